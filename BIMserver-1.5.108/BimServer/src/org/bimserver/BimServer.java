@@ -56,10 +56,13 @@ import org.bimserver.database.KeyValueStore;
 import org.bimserver.database.OldQuery;
 import org.bimserver.database.Record;
 import org.bimserver.database.RecordIterator;
+import org.bimserver.database.StorageReclaimer;
 import org.bimserver.database.berkeley.BerkeleyKeyValueStore;
 import org.bimserver.database.berkeley.DatabaseInitException;
 import org.bimserver.database.migrations.InconsistentModelsException;
+import org.bimserver.database.queries.QueryManager;
 import org.bimserver.database.queries.om.Include;
+import org.bimserver.database.queries.om.JsonQueryCache;
 import org.bimserver.database.queries.om.JsonQueryObjectModelConverter;
 import org.bimserver.database.query.conditions.AttributeCondition;
 import org.bimserver.database.query.conditions.Condition;
@@ -157,6 +160,8 @@ import org.slf4j.LoggerFactory;
  */
 public class BimServer {
 	private static final String ENCRYPTIONKEY = "encryptionkey";
+	// How long a replica refresh holds back new sessions while short calls finish, longer running sessions make the refresh wait for the next interval
+	private static final long REPLICA_REFRESH_DRAIN_MS = 2 * 1000;
 
 	private Logger LOGGER;
 
@@ -203,6 +208,9 @@ public class BimServer {
 	private MavenPluginRepository mavenPluginRepository;
 	private AuthCache authCache;
 	private GeometryAccellerator geometryAccellerator;
+	private JsonQueryCache jsonQueryCache = new JsonQueryCache(1000);
+	private final QueryManager queryManager = new QueryManager();
+	private StorageReclaimer storageReclaimer;
 
 	/**
 	 * Create a new BIMserver
@@ -212,6 +220,7 @@ public class BimServer {
 	 */
 	public BimServer(BimServerConfig config) {
 		this.config = config;
+		jsonQueryCache.setDefaultBudget(config.getDefaultQueryBudget());
 		try {
 			if (config.getHomeDir() != null) {
 				initHomeDir(config);
@@ -642,8 +651,11 @@ public class BimServer {
 			} else {
 				LOGGER.info("No email templates found");
 			}
-			Path databaseDir = config.getHomeDir().resolve("database");
-			BerkeleyKeyValueStore keyValueStore = new BerkeleyKeyValueStore(databaseDir);
+			Path databaseDir = config.getDatabaseDir() != null ? config.getDatabaseDir() : config.getHomeDir().resolve("database");
+			BerkeleyKeyValueStore keyValueStore = new BerkeleyKeyValueStore(databaseDir, config.isReadOnly());
+			keyValueStore.setGroupCommit(config.isGroupCommit());
+			keyValueStore.setMultiGetThreads(config.getMultiGetThreads());
+			keyValueStore.setCompressionThreshold(config.getCompressionThreshold());
 
 			geometryAccellerator = new GeometryAccellerator(this);
 			
@@ -667,7 +679,10 @@ public class BimServer {
 				bimDatabase.init();
 			} catch (DatabaseRestartRequiredException e) {
 				bimDatabase.close();
-				keyValueStore = new BerkeleyKeyValueStore(databaseDir);
+				keyValueStore = new BerkeleyKeyValueStore(databaseDir, config.isReadOnly());
+				keyValueStore.setGroupCommit(config.isGroupCommit());
+				keyValueStore.setMultiGetThreads(config.getMultiGetThreads());
+				keyValueStore.setCompressionThreshold(config.getCompressionThreshold());
 				bimDatabase = new Database(this, packages, keyValueStore, metaDataManager);
 				try {
 					bimDatabase.init();
@@ -685,6 +700,9 @@ public class BimServer {
 			try (DatabaseSession encsession = bimDatabase.createSession()) {
 				byte[] encryptionkeyBytes = null;
 				if (!bimDatabase.getRegistry().has(ENCRYPTIONKEY, encsession)) {
+					if (config.isReadOnly()) {
+						throw new BimserverDatabaseException("No encryption key found, start the server that writes to this database first");
+					}
 					encryptionkeyBytes = new byte[16];
 					new SecureRandom().nextBytes(encryptionkeyBytes);
 					bimDatabase.getRegistry().save(ENCRYPTIONKEY, encryptionkeyBytes, encsession);
@@ -695,7 +713,10 @@ public class BimServer {
 				encryptionkey = new SecretKeySpec(encryptionkeyBytes, "AES");
 			}
 			
-			cleanupStaleData();
+			if (!config.isReadOnly()) {
+				// Stale data of a checkin that is running on the primary server is not stale
+				cleanupStaleData();
+			}
 
 			protocolBuffersMetaData = new ProtocolBuffersMetaData();
 			protocolBuffersMetaData.load(servicesMap, ProtocolBuffersBimServerClientFactory.class);
@@ -751,7 +772,8 @@ public class BimServer {
 			mailSystem = new MailSystem(this);
 
 			diskCacheManager = new DiskCacheManager(this, config.getHomeDir().resolve("cache"));
-			newDiskCacheManager = new NewDiskCacheManager(this, config.getHomeDir().resolve("cache"));
+			// Not in the same directory as the DiskCacheManager, that one removes all files in its directory on cleanup
+			newDiskCacheManager = new NewDiskCacheManager(this, config.getHomeDir().resolve("querycache"), config.getOutputCacheMaxSize());
 
 			mergerFactory = new MergerFactory(this);
 
@@ -1083,12 +1105,20 @@ public class BimServer {
 	private void initDatabaseDependantItems() throws BimserverDatabaseException {
 		notificationsManager.init();
 
+		storageReclaimer = new StorageReclaimer((Database) bimDatabase, config.getReclaimBatchSize(), config.getReclaimBatchDelay());
+		if (!config.isReadOnly()) {
+			storageReclaimer.start();
+		}
+
 		getSerializerFactory().init(pluginManager, bimDatabase, this);
 		try {
 			DatabaseSession session = bimDatabase.createSession();
 			try {
 				updatePlugins(session);
-				session.commit();
+				if (!config.isReadOnly()) {
+					// On a replica the plugins are only activated, the descriptors are maintained by the primary server
+					session.commit();
+				}
 			} catch (ServiceException e) {
 				LOGGER.error("", e);
 			} finally {
@@ -1142,7 +1172,9 @@ public class BimServer {
 			serverStarted.setExecutor(systemUser);
 			try {
 				session.store(serverStarted);
-				session.commit();
+				if (!config.isReadOnly()) {
+					session.commit();
+				}
 			} catch (BimserverLockConflictException e) {
 				throw new BimserverDatabaseException(e);
 			} catch (ServiceException e) {
@@ -1367,6 +1399,14 @@ public class BimServer {
 	public void stop() {
 		LOGGER.info("Stopping BIMserver");
 		executorService.shutdown();
+		if (storageReclaimer != null) {
+			storageReclaimer.terminate();
+			try {
+				// The current batch is finished before the database is closed
+				storageReclaimer.join(10000);
+			} catch (InterruptedException e) {
+			}
+		}
 		if (bimDatabase != null) {
 			try {
 				bimDatabase.close();
@@ -1512,6 +1552,35 @@ public class BimServer {
 		return metricsRegistry;
 	}
 
+	public JsonQueryCache getJsonQueryCache() {
+		return jsonQueryCache;
+	}
+
+	public QueryManager getQueryManager() {
+		return queryManager;
+	}
+
+	public StorageReclaimer getStorageReclaimer() {
+		return storageReclaimer;
+	}
+
+	public boolean isReadOnly() {
+		return config.isReadOnly();
+	}
+
+	/**
+	 * Makes the revisions committed by the primary server visible on this read-only replica
+	 * 
+	 * @return false when the database could not be reopened because sessions stayed open, the next scheduled refresh will try again
+	 */
+	public boolean refreshReplica() throws BimserverDatabaseException {
+		if (!((Database) bimDatabase).refresh(REPLICA_REFRESH_DRAIN_MS)) {
+			return false;
+		}
+		serverSettingsCache.updateCache();
+		return true;
+	}
+
 	public void setEmbeddedWebServer(EmbeddedWebServerInterface embeddedWebServer) {
 		this.embeddedWebServer = embeddedWebServer;
 	}
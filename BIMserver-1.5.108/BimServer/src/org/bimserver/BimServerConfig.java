@@ -18,7 +18,11 @@ package org.bimserver;
  *****************************************************************************/
 
 import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
+import org.bimserver.database.queries.om.QueryBudget;
 import org.bimserver.plugins.ResourceFetcher;
 
 public class BimServerConfig {
@@ -32,6 +36,20 @@ public class BimServerConfig {
 	private boolean autoMigrate = false;
 	private Path developmentBaseDir;
 	private Environment environment;
+	private long outputCacheMaxSize = 10L * 1024 * 1024 * 1024;
+	private QueryBudget defaultQueryBudget = new QueryBudget();
+	private boolean groupCommit = false;
+	private int multiGetThreads = 4;
+	private long virtualObjectCacheSize = 256 * 1024 * 1024;
+	private int reclaimBatchSize = 10000;
+	private long reclaimBatchDelay = 100;
+	private boolean readOnly = false;
+	private Path databaseDir;
+	private int replicaRefreshInterval = 60 * 1000;
+	private Set<String> compressedTables = new LinkedHashSet<>(Arrays.asList("geometry_GeometryData", "geometry_Buffer"));
+	private int compressionThreshold = 512;
+	private boolean stringDictionary = false;
+	private int stringDictionaryCacheSize = 100000;
 	
 	public boolean isStartEmbeddedWebServer() {
 		return startEmbeddedWebServer;
@@ -136,4 +154,162 @@ public class BimServerConfig {
 	public Path getDevelopmentBaseDir() {
 		return developmentBaseDir;
 	}
-}
\ No newline at end of file
+
+	public long getOutputCacheMaxSize() {
+		return outputCacheMaxSize;
+	}
+
+	/**
+	 * @param outputCacheMaxSize The maximum size in bytes of the cache of serialized query results, the least recently used results are removed when the cache grows beyond this size
+	 */
+	public void setOutputCacheMaxSize(long outputCacheMaxSize) {
+		this.outputCacheMaxSize = outputCacheMaxSize;
+	}
+
+	public QueryBudget getDefaultQueryBudget() {
+		return defaultQueryBudget;
+	}
+
+	/**
+	 * @param defaultQueryBudget The limits for queries from clients (reads, objects, bytes, time), clients can lower these limits for their own queries but not raise them. Unlimited by default
+	 */
+	public void setDefaultQueryBudget(QueryBudget defaultQueryBudget) {
+		this.defaultQueryBudget = defaultQueryBudget;
+	}
+
+	public boolean isGroupCommit() {
+		return groupCommit;
+	}
+
+	/**
+	 * @param groupCommit When true, transactions are committed without waiting for the disk and sessions that commit at the same time share one sync, which is faster with many concurrent checkins. Disabled by default
+	 */
+	public void setGroupCommit(boolean groupCommit) {
+		this.groupCommit = groupCommit;
+	}
+
+	public int getMultiGetThreads() {
+		return multiGetThreads;
+	}
+
+	/**
+	 * @param multiGetThreads The maximum number of threads used to read one large batch of objects by oid, 1 to read on the calling thread only. 4 by default
+	 */
+	public void setMultiGetThreads(int multiGetThreads) {
+		this.multiGetThreads = multiGetThreads;
+	}
+
+	public long getVirtualObjectCacheSize() {
+		return virtualObjectCacheSize;
+	}
+
+	/**
+	 * @param virtualObjectCacheSize The maximum (estimated) number of bytes of objects every database session keeps cached, -1 for no limit. 256 MB by default
+	 */
+	public void setVirtualObjectCacheSize(long virtualObjectCacheSize) {
+		this.virtualObjectCacheSize = virtualObjectCacheSize;
+	}
+
+	public int getReclaimBatchSize() {
+		return reclaimBatchSize;
+	}
+
+	/**
+	 * @param reclaimBatchSize The maximum number of records the storage reclaimer deletes per transaction when removing purged projects. 10000 by default
+	 */
+	public void setReclaimBatchSize(int reclaimBatchSize) {
+		this.reclaimBatchSize = reclaimBatchSize;
+	}
+
+	public long getReclaimBatchDelay() {
+		return reclaimBatchDelay;
+	}
+
+	/**
+	 * @param reclaimBatchDelay The time in milliseconds the storage reclaimer pauses between two batches, to limit the load on the database. 100 by default
+	 */
+	public void setReclaimBatchDelay(long reclaimBatchDelay) {
+		this.reclaimBatchDelay = reclaimBatchDelay;
+	}
+
+	public boolean isReadOnly() {
+		return readOnly;
+	}
+
+	/**
+	 * @param readOnly Run as a read-only replica. The database is opened read-only, all changes (including checkins) are refused, downloads and queries work as usual.
+	 * Point the database dir (see setDatabaseDir) to the database of a running server, or to a copy of it
+	 */
+	public void setReadOnly(boolean readOnly) {
+		this.readOnly = readOnly;
+	}
+
+	public Path getDatabaseDir() {
+		return databaseDir;
+	}
+
+	/**
+	 * @param databaseDir The directory of the database, "database" in the home dir by default
+	 */
+	public void setDatabaseDir(Path databaseDir) {
+		this.databaseDir = databaseDir;
+	}
+
+	public int getReplicaRefreshInterval() {
+		return replicaRefreshInterval;
+	}
+
+	/**
+	 * @param replicaRefreshInterval The interval in milliseconds at which a read-only replica reopens the database to see new revisions, 0 to only refresh when
+	 * AdminInterface.refreshReplica is called. 1 minute by default
+	 */
+	public void setReplicaRefreshInterval(int replicaRefreshInterval) {
+		this.replicaRefreshInterval = replicaRefreshInterval;
+	}
+
+	public Set<String> getCompressedTables() {
+		return compressedTables;
+	}
+
+	/**
+	 * @param compressedTables The tables (package_Class) of which the values are compressed, by default the geometry tables. Compression is only enabled for
+	 * tables that are still empty, tables that have been compressed once stay compressed
+	 */
+	public void setCompressedTables(Set<String> compressedTables) {
+		this.compressedTables = compressedTables;
+	}
+
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+
+	/**
+	 * @param compressionThreshold The minimum size in bytes of a value in a compressed table to actually be compressed. 512 by default
+	 */
+	public void setCompressionThreshold(int compressionThreshold) {
+		this.compressionThreshold = compressionThreshold;
+	}
+
+	public boolean isStringDictionary() {
+		return stringDictionary;
+	}
+
+	/**
+	 * @param stringDictionary Store strings that occur in many IFC records (names, object types, labels) once, and refer to them from the records. Records that
+	 * have been written with the dictionary can not be read by older versions of BIMserver. Disabled by default
+	 */
+	public void setStringDictionary(boolean stringDictionary) {
+		this.stringDictionary = stringDictionary;
+	}
+
+	public int getStringDictionaryCacheSize() {
+		return stringDictionaryCacheSize;
+	}
+
+	/**
+	 * @param stringDictionaryCacheSize The maximum number of dictionary strings that are kept in memory. 100000 by default
+	 */
+	public void setStringDictionaryCacheSize(int stringDictionaryCacheSize) {
+		this.stringDictionaryCacheSize = stringDictionaryCacheSize;
+	}
+}
@@ -198,6 +198,31 @@ public class GenerateGeometryResult {
 		maxUntransformed[2] = value;
 	}
 
+	/**
+	 * Extends the bounds of this result so they also contain the given bounds
+	 */
+	public void extendBounds(Bounds bounds, Bounds boundsUntransformed) {
+		extend(min, max, bounds);
+		extend(minUntransformed, maxUntransformed, boundsUntransformed);
+	}
+
+	/**
+	 * @return Whether the untransformed bounds of this result are not bigger than the given bounds, the vertices are quantized with a matrix based on these bounds
+	 */
+	public boolean isBoundsUntransformedWithin(Bounds boundsUntransformed) {
+		return minUntransformed[0] >= boundsUntransformed.getMin().getX() && minUntransformed[1] >= boundsUntransformed.getMin().getY() && minUntransformed[2] >= boundsUntransformed.getMin().getZ()
+				&& maxUntransformed[0] <= boundsUntransformed.getMax().getX() && maxUntransformed[1] <= boundsUntransformed.getMax().getY() && maxUntransformed[2] <= boundsUntransformed.getMax().getZ();
+	}
+
+	private void extend(double[] min, double[] max, Bounds bounds) {
+		min[0] = Math.min(min[0], bounds.getMin().getX());
+		min[1] = Math.min(min[1], bounds.getMin().getY());
+		min[2] = Math.min(min[2], bounds.getMin().getZ());
+		max[0] = Math.max(max[0], bounds.getMax().getX());
+		max[1] = Math.max(max[1], bounds.getMax().getY());
+		max[2] = Math.max(max[2], bounds.getMax().getZ());
+	}
+
 	public void setMultiplierToMm(float multiplierToMm) {
 		this.multiplierToMm = multiplierToMm;
 	}
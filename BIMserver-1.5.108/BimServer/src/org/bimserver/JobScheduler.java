@@ -23,6 +23,7 @@ import static org.quartz.TriggerBuilder.newTrigger;
 
 import java.util.Properties;
 
+import org.bimserver.BimserverDatabaseException;
 import org.quartz.Job;
 import org.quartz.JobDetail;
 import org.quartz.JobExecutionContext;
@@ -41,6 +42,7 @@ public class JobScheduler {
 	private static final int LONG_ACTION_MANAGER_CLEANUP_INTERVAL_MILLIS = 1 * 60 * 1000; // 1 minute
 	private SchedulerFactory sf;
 	private Scheduler sched;
+	private BimServer bimServer;
 
 	public static class CompareResultCacheCleaner implements Job {
 		@Override
@@ -54,6 +56,20 @@ public class JobScheduler {
 		}
 	}
 	
+	public static class ReplicaRefresher implements Job {
+		@Override
+		public void execute(JobExecutionContext jobExecutionContext) throws JobExecutionException {
+			try {
+				BimServer bimServer = (BimServer) (jobExecutionContext.getScheduler().getContext().get("bimserver"));
+				bimServer.refreshReplica();
+			} catch (SchedulerException e) {
+				LOGGER.error("", e);
+			} catch (BimserverDatabaseException e) {
+				LOGGER.error("", e);
+			}
+		}
+	}
+	
 	public static class LongActionManagerCleaner implements Job {
 		@Override
 		public void execute(JobExecutionContext jobExecutionContext) throws JobExecutionException {
@@ -67,6 +83,7 @@ public class JobScheduler {
 	}
 	
 	public JobScheduler(BimServer bimServer) {
+		this.bimServer = bimServer;
 		try {
 			Properties properties = new Properties();
 			String instanceName = "UniqueName" + Math.random();
@@ -85,6 +102,9 @@ public class JobScheduler {
 		try {
 			addRecurringJob(CompareResultCacheCleaner.class, COMPARE_RESULT_CLEAN_INTERVAL_MILLIS);
 			addRecurringJob(LongActionManagerCleaner.class, LONG_ACTION_MANAGER_CLEANUP_INTERVAL_MILLIS);
+			if (bimServer.isReadOnly() && bimServer.getConfig().getReplicaRefreshInterval() > 0) {
+				addRecurringJob(ReplicaRefresher.class, bimServer.getConfig().getReplicaRefreshInterval());
+			}
 			sched.start();
 		} catch (SchedulerException e) {
 			LOGGER.error("", e);
@@ -75,6 +75,11 @@ public class ObjectProviderProxy implements ObjectProvider {
 		return objectProvider.getByOid(oid);
 	}
 
+	@Override
+	public String getIncompleteReason() {
+		return objectProvider.getIncompleteReason();
+	}
+
 	@Override
 	public void cache(HashMapVirtualObject object) {
 		// TODO Auto-generated method stub
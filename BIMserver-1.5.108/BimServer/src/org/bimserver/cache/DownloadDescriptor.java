@@ -19,6 +19,10 @@ package org.bimserver.cache;
 
 import java.io.IOException;
 import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import org.bimserver.database.queries.om.JsonQueryObjectModelConverter;
@@ -28,8 +32,10 @@ import org.bimserver.emf.PackageMetaData;
 import com.fasterxml.jackson.core.JsonGenerationException;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
 import com.google.common.hash.HashCode;
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hasher;
@@ -38,12 +44,18 @@ import com.google.common.hash.Hashing;
 public class DownloadDescriptor {
 	private static final HashFunction hf = Hashing.md5();
 	private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+	private static final ObjectMapper CANONICAL_OBJECT_MAPPER = new ObjectMapper().configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true);
+	
+	// With more roids than this, the roids are not part of the file name, those entries are invalidated when any revision is invalidated
+	private static final int MAX_ROIDS_IN_KEY = 8;
+	static final String MULTIPLE_ROIDS = "multi";
 	private Set<Long> roids;
 	private Query query;
 	private long serializerOid;
 	private String fileNameWithoutExtension;
 	private PackageMetaData packageMetaData;
 	private String jsonQuery;
+	private String cacheKey;
 
 	public long getSerializerOid() {
 		return serializerOid;
@@ -58,16 +70,67 @@ public class DownloadDescriptor {
 		this.fileNameWithoutExtension = fileNameWithoutExtension;
 	}
 	
-	public String getCacheKey() {
+	/**
+	 * The key has the form "roid-roid-..._hash", the roids are part of the key so entries can be invalidated per revision without having to keep an index
+	 */
+	public synchronized String getCacheKey() {
+		if (cacheKey == null) {
+			String hash = getHash();
+			if (hash != null) {
+				cacheKey = getRoidsPart() + "_" + hash;
+			}
+		}
+		return cacheKey;
+	}
+	
+	private String getRoidsPart() {
+		if (roids.size() > MAX_ROIDS_IN_KEY) {
+			return MULTIPLE_ROIDS;
+		}
+		List<Long> sortedRoids = new ArrayList<>(roids);
+		Collections.sort(sortedRoids);
+		return Joiner.on("-").join(sortedRoids);
+	}
+	
+	/**
+	 * @return The roids encoded in the given cache key, or null when the key is not in the expected format or has too many roids
+	 */
+	static Set<Long> getRoids(String cacheKey) {
+		int index = cacheKey.indexOf("_");
+		if (index == -1) {
+			return null;
+		}
+		String roidsPart = cacheKey.substring(0, index);
+		if (roidsPart.equals(MULTIPLE_ROIDS)) {
+			return null;
+		}
+		Set<Long> result = new HashSet<>();
+		try {
+			for (String roid : roidsPart.split("-")) {
+				result.add(Long.parseLong(roid));
+			}
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		return result;
+	}
+	
+	private String getHash() {
 		Hasher hasher = hf.newHasher();
 		// TODO This serializerOid actually makes the cache a per-user cache... Maybe not the most useful feature
 		hasher.putLong(serializerOid);
-		for (long roid : roids) {
+		List<Long> sortedRoids = new ArrayList<>(roids);
+		Collections.sort(sortedRoids);
+		for (long roid : sortedRoids) {
 			hasher.putLong(roid);
 		}
 		if (jsonQuery != null) {
-			// TODO This is based on the incoming JSON (if there is any), this should be replaced at some point by a canonical-form
-			hasher.putString(jsonQuery, Charsets.UTF_8);
+			// Canonical form, so differences in whitespace and field order result in the same key
+			try {
+				hasher.putString(CANONICAL_OBJECT_MAPPER.writeValueAsString(OBJECT_MAPPER.readValue(jsonQuery, Object.class)), Charsets.UTF_8);
+			} catch (IOException e) {
+				hasher.putString(jsonQuery, Charsets.UTF_8);
+			}
 			HashCode hashcode = hasher.hash();
 			return hashcode.toString();
 		} else {
@@ -23,6 +23,8 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 
@@ -32,31 +34,48 @@ import org.bimserver.utils.PathUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Caches the serialized results of streaming downloads on disk. Revisions never change after they have been committed, so a result stays valid until the revision is deleted
+ * or its geometry is regenerated, in which case invalidateRevision should be called. The total size of the cache is limited, the least recently used entries are evicted first.
+ */
 public class NewDiskCacheManager {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(NewDiskCacheManager.class);
 	private final Path cacheDir;
 	private final BimServer bimServer;
-	private final Set<String> cachedFileNames = new HashSet<>();
+	private final long maxSize;
+	
+	// Cache key -> file size, in access order
+	private final LinkedHashMap<String, Long> cachedFiles = new LinkedHashMap<>(16, 0.75f, true);
 	private final Map<String, DiskCacheItem> busyCaching = new HashMap<>();
+	
+	// Items that were invalidated while they were being written, these will be deleted as soon as they are done
+	private final Set<String> invalidatedWhileBusy = new HashSet<>();
+	private long totalSize;
 
-	public NewDiskCacheManager(BimServer bimServer, Path cacheDir) {
+	public NewDiskCacheManager(BimServer bimServer, Path cacheDir, long maxSize) {
 		this.bimServer = bimServer;
 		this.cacheDir = cacheDir;
+		this.maxSize = maxSize;
 		try {
 			if (!Files.exists(cacheDir)) {
 				Files.createDirectory(cacheDir);
 			}
 			for (Path file : PathUtils.list(this.cacheDir)) {
-				if (file.getFileName().toString().endsWith(".__tmp")) {
+				String fileName = file.getFileName().toString();
+				if (fileName.endsWith(".__tmp") || !fileName.contains("_")) {
+					// Unfinished, or written by a version that did not encode the roids in the name, so it can never be invalidated
 					Files.delete(file);
 				} else {
-					cachedFileNames.add(file.getFileName().toString());
+					long size = Files.size(file);
+					cachedFiles.put(fileName, size);
+					totalSize += size;
 				}
 			}
 		} catch (IOException e) {
 			LOGGER.error("", e);
 		}
+		evict();
 	}
 	
 	public boolean contains(DownloadDescriptor downloadDescriptor) {
@@ -67,8 +86,8 @@ public class NewDiskCacheManager {
 					return true;
 				}
 			}
-			synchronized (cachedFileNames) {
-				return cachedFileNames.contains(cacheKey);
+			synchronized (cachedFiles) {
+				return cachedFiles.containsKey(cacheKey);
 			}
 		} else {
 			return false;
@@ -97,11 +116,16 @@ public class NewDiskCacheManager {
 			Path file = cacheDir.resolve(cacheKey);
 			if (!Files.exists(file)) {
 				// This is an inconsistency that can only happen when users remove cached files manually while BIMserver is running
-				cachedFileNames.remove(file.getFileName().toString());
-				busyCaching.remove(downloadDescriptor.getCacheKey());
+				removeEntry(cacheKey);
+				synchronized (busyCaching) {
+					busyCaching.remove(cacheKey);
+				}
 				LOGGER.error("File " + file.getFileName().toString() + " not found in cache");
 			} else {
-//				LOGGER.info("Reading from cache " + cacheKey);
+				synchronized (cachedFiles) {
+					// Marks the entry as recently used
+					cachedFiles.get(cacheKey);
+				}
 				return file;
 			}
 		}
@@ -155,25 +179,131 @@ public class NewDiskCacheManager {
 		} catch (IOException e) {
 			LOGGER.error("", e);
 		}
-		cachedFileNames.clear();
+		synchronized (cachedFiles) {
+			cachedFiles.clear();
+			totalSize = 0;
+		}
+		return removed;
+	}
+
+	/**
+	 * Makes sure the result that is currently being cached for the given descriptor is thrown away when it is done, used for results that turned out to be incomplete
+	 */
+	public void discard(DownloadDescriptor downloadDescriptor) {
+		String cacheKey = downloadDescriptor.getCacheKey();
+		synchronized (busyCaching) {
+			if (busyCaching.containsKey(cacheKey)) {
+				invalidatedWhileBusy.add(cacheKey);
+			}
+		}
+	}
+
+	/**
+	 * Removes all cached results that (possibly) contain data of the given revision
+	 */
+	public int invalidateRevision(long roid) {
+		int removed = 0;
+		synchronized (cachedFiles) {
+			Iterator<String> iterator = cachedFiles.keySet().iterator();
+			while (iterator.hasNext()) {
+				String cacheKey = iterator.next();
+				if (containsRoid(cacheKey, roid)) {
+					totalSize -= cachedFiles.get(cacheKey);
+					iterator.remove();
+					deleteFile(cacheKey);
+					removed++;
+				}
+			}
+		}
+		synchronized (busyCaching) {
+			for (String cacheKey : busyCaching.keySet()) {
+				if (containsRoid(cacheKey, roid)) {
+					invalidatedWhileBusy.add(cacheKey);
+				}
+			}
+		}
 		return removed;
 	}
+	
+	private boolean containsRoid(String cacheKey, long roid) {
+		Set<Long> roids = DownloadDescriptor.getRoids(cacheKey);
+		// When the roids are unknown, we have to assume the worst
+		return roids == null || roids.contains(roid);
+	}
 
 	public void doneGenerating(DiskCacheItem diskCacheItem) {
+		String cacheKey = diskCacheItem.getDownloadDescriptor().getCacheKey();
+		boolean invalidated;
 		synchronized (busyCaching) {
-			String cacheKey = diskCacheItem.getDownloadDescriptor().getCacheKey();
 //			LOGGER.info("Done caching " + cacheKey);
 			busyCaching.remove(cacheKey);
-			cachedFileNames.add(cacheKey);
+			invalidated = invalidatedWhileBusy.remove(cacheKey);
 		}
+		if (invalidated) {
+			deleteFile(cacheKey);
+			return;
+		}
+		try {
+			long size = Files.size(cacheDir.resolve(cacheKey));
+			synchronized (cachedFiles) {
+				Long previous = cachedFiles.put(cacheKey, size);
+				if (previous != null) {
+					totalSize -= previous;
+				}
+				totalSize += size;
+			}
+		} catch (IOException e) {
+			LOGGER.error("", e);
+		}
+		evict();
 	}
 
 	public void remove(NewDiskCacheOutputStream diskCacheOutputStream) {
 		String cacheKey = diskCacheOutputStream.getDownloadDescriptor().getCacheKey();
 //		LOGGER.info("Removing cache " + cacheKey);
-		cachedFileNames.remove(cacheKey);
+		removeEntry(cacheKey);
 		synchronized (busyCaching) {
 			busyCaching.remove(cacheKey);
+			invalidatedWhileBusy.remove(cacheKey);
+		}
+	}
+	
+	public long getTotalSize() {
+		synchronized (cachedFiles) {
+			return totalSize;
+		}
+	}
+	
+	private void removeEntry(String cacheKey) {
+		synchronized (cachedFiles) {
+			Long size = cachedFiles.remove(cacheKey);
+			if (size != null) {
+				totalSize -= size;
+			}
+		}
+	}
+
+	/**
+	 * Removes the least recently used entries until the cache fits in maxSize again
+	 */
+	private void evict() {
+		synchronized (cachedFiles) {
+			Iterator<Map.Entry<String, Long>> iterator = cachedFiles.entrySet().iterator();
+			while (totalSize > maxSize && iterator.hasNext()) {
+				Map.Entry<String, Long> entry = iterator.next();
+				totalSize -= entry.getValue();
+				iterator.remove();
+				deleteFile(entry.getKey());
+			}
+		}
+	}
+	
+	private void deleteFile(String cacheKey) {
+		try {
+			// Readers that already opened the file can keep on reading on most platforms
+			Files.deleteIfExists(cacheDir.resolve(cacheKey));
+		} catch (IOException e) {
+			LOGGER.error("", e);
 		}
 	}
-}
\ No newline at end of file
+}
@@ -19,6 +19,7 @@ package org.bimserver.database;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
@@ -26,7 +27,13 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
@@ -51,6 +58,7 @@ import org.bimserver.models.store.SmtpProtocol;
 import org.bimserver.models.store.StorePackage;
 import org.bimserver.models.store.User;
 import org.bimserver.models.store.UserType;
+import org.bimserver.shared.exceptions.ServiceException;
 import org.bimserver.shared.exceptions.UserException;
 import org.bimserver.utils.BinUtils;
 import org.bimserver.webservices.authorization.SystemAuthorization;
@@ -61,6 +69,7 @@ import org.eclipse.emf.ecore.EStructuralFeature;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Joiner;
 import com.sleepycat.je.DatabaseNotFoundException;
 
 public class Database implements BimDatabase {
@@ -71,16 +80,46 @@ public class Database implements BimDatabase {
 	public static final int STORE_PROJECT_ID = 1;
 	public static final String SCHEMA_VERSION = "SCHEMA_VERSION";
 	private static final String DATE_CREATED = "DATE_CREATED";
+
+	// The oid counters (key: cid) and the pid counter (key: PID_COUNTER_KEY), stored at every commit and when the database is closed
+	private static final String COUNTERS_TABLE = "INT-Counters";
+	private static final byte[] PID_COUNTER_KEY = "pid".getBytes();
+	// Only when the database has been closed properly the stored counters are known to be complete
+	private static final String CLEAN_SHUTDOWN = "CLEAN_SHUTDOWN";
+	private static final String COMPRESSED_TABLES = "COMPRESSED_TABLES";
+	private static final int INIT_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
 	private final Map<String, EPackage> emfPackages = new LinkedHashMap<String, EPackage>();
 	private final KeyValueStore keyValueStore;
 	private final EClass[] cidToEclass;
 	private final Map<EClass, Short> eClassToCid = new HashMap<EClass, Short>();
+
+	// Resolved once, so reading and writing records does not require building table names and looking them up
+	private final Map<EClass, TableHandle> tableHandles = new ConcurrentHashMap<EClass, TableHandle>();
+	private final Map<EClass, Map<EStructuralFeature, TableHandle>> indexTableHandles = new ConcurrentHashMap<EClass, Map<EStructuralFeature, TableHandle>>();
 	private final List<String> realClasses = new ArrayList<String>();
 	private final Map<EClass, AtomicLong> oidCounters = new HashMap<EClass, AtomicLong>();
 	private final AtomicInteger pidCounter = new AtomicInteger(1);
+	private final AtomicLong virtualObjectCacheHits = new AtomicLong();
+	private final AtomicLong virtualObjectCacheMisses = new AtomicLong();
+	private final AtomicLong virtualObjectCacheEvictions = new AtomicLong();
+
+	// Counters that were read from the COUNTERS_TABLE, they are compared with the table of the class the first time they are used
+	private final Set<EClass> unvalidatedCounters = Collections.newSetFromMap(new ConcurrentHashMap<EClass, Boolean>());
+	private final Map<EClass, Long> storedCounters = new HashMap<EClass, Long>();
+	// Counters that changed since they were last stored, so a commit does not have to look at all counters
+	private final Set<EClass> changedCounters = Collections.newSetFromMap(new ConcurrentHashMap<EClass, Boolean>());
+	private int storedPidCounter = -1;
+	private volatile boolean countersInitialized;
 	private final Registry registry;
+	private final SpatialIndex spatialIndex;
+	private final PropertyIndex propertyIndex;
+	private final GeometryContentStore geometryContentStore;
+	private final StringDictionary stringDictionary;
 	private Date created;
-	private final Set<DatabaseSession> sessions = Collections.newSetFromMap(new ConcurrentHashMap<DatabaseSession, Boolean>());
+	// The open sessions and the time they were created, a refresh of a read-only database is skipped while sessions are open for a long time
+	private final Map<DatabaseSession, Long> sessions = new ConcurrentHashMap<DatabaseSession, Long>();
+	private final Object refreshLock = new Object();
+	private volatile boolean refreshing;
 	private int databaseSchemaVersion;
 	private short tableId;
 	private Migrator migrator;
@@ -106,6 +145,14 @@ public class Database implements BimDatabase {
 			this.emfPackages.put(ePackage.getName(), ePackage);
 		}
 		this.registry = new Registry(keyValueStore);
+		this.spatialIndex = new SpatialIndex(keyValueStore);
+		this.propertyIndex = new PropertyIndex(keyValueStore);
+		this.geometryContentStore = new GeometryContentStore(keyValueStore);
+		if (bimServer == null) {
+			this.stringDictionary = new StringDictionary(keyValueStore, false, 0);
+		} else {
+			this.stringDictionary = new StringDictionary(keyValueStore, bimServer.getConfig().isStringDictionary(), bimServer.getConfig().getStringDictionaryCacheSize());
+		}
 	}
 
 	public int getApplicationSchemaVersion() {
@@ -131,6 +178,13 @@ public class Database implements BimDatabase {
 				keyValueStore.createTable(CLASS_LOOKUP_TABLE, null, true);
 				keyValueStore.createTable(Database.STORE_PROJECT_NAME, null, true);
 				keyValueStore.createTable(Registry.REGISTRY_TABLE, null, true);
+				keyValueStore.createTable(SpatialIndex.SPATIAL_INDEX_TABLE, null, true);
+				keyValueStore.createTable(PropertyIndex.PROPERTY_INDEX_TABLE, null, true);
+				keyValueStore.createTable(GeometryContentStore.GEOMETRY_CONTENT_TABLE, null, true);
+				keyValueStore.createTable(COUNTERS_TABLE, null, true);
+				keyValueStore.createTable(StorageReclaimer.RECLAIM_TABLE, null, true);
+				keyValueStore.createTable(StringDictionary.DICTIONARY_TABLE, null, false);
+				keyValueStore.createTable(StringDictionary.DICTIONARY_INDEX_TABLE, null, false);
 				setDatabaseVersion(-1, databaseSession);
 				created = new Date();
 				registry.save(DATE_CREATED, created, databaseSession);
@@ -138,10 +192,49 @@ public class Database implements BimDatabase {
 				keyValueStore.openTable(databaseSession, CLASS_LOOKUP_TABLE, true);
 				keyValueStore.openTable(databaseSession, Database.STORE_PROJECT_NAME, true);
 				keyValueStore.openTable(databaseSession, Registry.REGISTRY_TABLE, true);
+				if (keyValueStore.containsTable(SpatialIndex.SPATIAL_INDEX_TABLE)) {
+					keyValueStore.openTable(databaseSession, SpatialIndex.SPATIAL_INDEX_TABLE, true);
+				} else if (!keyValueStore.isReadOnly()) {
+					// Databases created before the spatial index existed
+					keyValueStore.createTable(SpatialIndex.SPATIAL_INDEX_TABLE, null, true);
+				}
+				if (keyValueStore.containsTable(PropertyIndex.PROPERTY_INDEX_TABLE)) {
+					keyValueStore.openTable(databaseSession, PropertyIndex.PROPERTY_INDEX_TABLE, true);
+				} else if (!keyValueStore.isReadOnly()) {
+					// Databases created before the property index existed
+					keyValueStore.createTable(PropertyIndex.PROPERTY_INDEX_TABLE, null, true);
+				}
+				if (keyValueStore.containsTable(GeometryContentStore.GEOMETRY_CONTENT_TABLE)) {
+					keyValueStore.openTable(databaseSession, GeometryContentStore.GEOMETRY_CONTENT_TABLE, true);
+				} else if (!keyValueStore.isReadOnly()) {
+					keyValueStore.createTable(GeometryContentStore.GEOMETRY_CONTENT_TABLE, null, true);
+				}
+				if (keyValueStore.containsTable(COUNTERS_TABLE)) {
+					keyValueStore.openTable(databaseSession, COUNTERS_TABLE, true);
+				} else if (!keyValueStore.isReadOnly()) {
+					// Databases created before the counters were stored, CLEAN_SHUTDOWN will not be set either so the counters are read from the tables
+					keyValueStore.createTable(COUNTERS_TABLE, null, true);
+				}
+				if (keyValueStore.containsTable(StorageReclaimer.RECLAIM_TABLE)) {
+					keyValueStore.openTable(databaseSession, StorageReclaimer.RECLAIM_TABLE, true);
+				} else if (!keyValueStore.isReadOnly()) {
+					keyValueStore.createTable(StorageReclaimer.RECLAIM_TABLE, null, true);
+				}
+				// Not transactional, like the IFC tables that refer to it
+				for (String tableName : new String[] { StringDictionary.DICTIONARY_TABLE, StringDictionary.DICTIONARY_INDEX_TABLE }) {
+					if (keyValueStore.containsTable(tableName)) {
+						keyValueStore.openTable(databaseSession, tableName, false);
+					} else if (!keyValueStore.isReadOnly()) {
+						keyValueStore.createTable(tableName, null, false);
+					}
+				}
+				stringDictionary.init();
 				created = registry.readDate(DATE_CREATED, databaseSession);
 				if (created == null) {
 					created = new Date();
-					registry.save(DATE_CREATED, created, databaseSession);
+					if (!keyValueStore.isReadOnly()) {
+						registry.save(DATE_CREATED, created, databaseSession);
+					}
 				}
 			}
 			
@@ -160,6 +253,9 @@ public class Database implements BimDatabase {
 				databaseSession.close();
 				throw new DatabaseRestartRequiredException();
 			} else if (registry.readBoolean("isnew", true, databaseSession)) {
+				if (keyValueStore.isReadOnly()) {
+					throw new DatabaseInitException("The database has not been initialized yet, start the server that writes to it first");
+				}
 				initInternalStructure(databaseSession);
 				initCounters(databaseSession);
 
@@ -184,7 +280,14 @@ public class Database implements BimDatabase {
 				registry.save("isnew", false, databaseSession);
 			} else {
 				initInternalStructure(databaseSession);
-				initCounters(databaseSession);
+				if (keyValueStore.isReadOnly()) {
+					// Nothing is written, the counters only have to be valid enough for objects that are created in memory
+					for (EClass eClass : eClassToCid.keySet()) {
+						initCounter(eClass);
+					}
+				} else {
+					initCounters(databaseSession);
+				}
 			}
 			for (EClass eClass : cidToEclass) {
 				if (eClass != null) {
@@ -204,6 +307,9 @@ public class Database implements BimDatabase {
 			throw new DatabaseInitException(e.getMessage());
 		} catch (DatabaseRestartRequiredException e) {
 			throw e;
+		} catch (DatabaseInitException e) {
+			close();
+			throw e;
 		} catch (Exception e) {
 			throw new DatabaseInitException(e);
 		} finally {
@@ -249,11 +355,42 @@ public class Database implements BimDatabase {
 	}
 	
 	public long newOid(EClass eClass) {
-		return oidCounters.get(eClass).addAndGet(65536);
+		long oid = getOidCounter(eClass).addAndGet(65536);
+		// Checked first, a lookup is cheaper than an insert and most oids are given out to classes that are already marked
+		if (!changedCounters.contains(eClass)) {
+			changedCounters.add(eClass);
+		}
+		return oid;
 	}
 
 	public long getCounter(EClass eClass) {
-		return oidCounters.get(eClass).get();
+		return getOidCounter(eClass).get();
+	}
+
+	private AtomicLong getOidCounter(EClass eClass) {
+		AtomicLong counter = oidCounters.get(eClass);
+		if (unvalidatedCounters.contains(eClass)) {
+			synchronized (counter) {
+				if (unvalidatedCounters.contains(eClass)) {
+					try {
+						ByteBuffer lastKey = readLastKey(eClass, null);
+						if (lastKey != null) {
+							lastKey.getInt(); // pid
+							long oid = lastKey.getLong();
+							if (oid > counter.get()) {
+								LOGGER.warn("Stored counter of " + eClass.getName() + " was behind");
+								counter.set(oid);
+								changedCounters.add(eClass);
+							}
+						}
+					} catch (BimserverDatabaseException e) {
+						LOGGER.error("", e);
+					}
+					unvalidatedCounters.remove(eClass);
+				}
+			}
+		}
+		return counter;
 	}
 
 	public EClassifier getEClassifier(String packageName, String classifierName) throws BimserverDatabaseException {
@@ -281,7 +418,8 @@ public class Database implements BimDatabase {
 		throw new BimserverDatabaseException("Classifier " + packageName + "." + classifierName + " is not an EClass");
 	}
 
-	public void initInternalStructure(DatabaseSession databaseSession) throws BimserverLockConflictException, BimserverDatabaseException {
+	public void initInternalStructure(final DatabaseSession databaseSession) throws BimserverLockConflictException, BimserverDatabaseException {
+		Map<EClass, String> tableNames = new LinkedHashMap<EClass, String>();
 		RecordIterator recordIterator = keyValueStore.getRecordIterator(CLASS_LOOKUP_TABLE, databaseSession);
 		try {
 			Record record = recordIterator.next();
@@ -290,21 +428,7 @@ public class Database implements BimDatabase {
 				String packageName = packageAndClassName.substring(0, packageAndClassName.indexOf("_"));
 				String className = packageAndClassName.substring(packageAndClassName.indexOf("_") + 1);
 				EClass eClass = (EClass) getEClassifier(packageName, className);
-				
-				// TODO geometry?
-				boolean transactional = !(eClass.getEPackage() == Ifc2x3tc1Package.eINSTANCE || eClass.getEPackage() == Ifc4Package.eINSTANCE);
-
-				keyValueStore.openTable(databaseSession, packageAndClassName, transactional);
-				
-				for (EStructuralFeature eStructuralFeature : eClass.getEAllStructuralFeatures()) {
-					if (eStructuralFeature.getEAnnotation("singleindex") != null) {
-						String indexTableName = eClass.getEPackage().getName() + "_" + eClass.getName() + "_" + eStructuralFeature.getName();
-						try {
-							keyValueStore.openIndexTable(databaseSession, indexTableName, transactional);
-						} catch (DatabaseNotFoundException e) {
-						}
-					}
-				}
+				tableNames.put(eClass, packageAndClassName);
 				
 				Short cid = BinUtils.byteArrayToShort(record.getKey());
 				cidToEclass[cid] = eClass;
@@ -314,28 +438,225 @@ public class Database implements BimDatabase {
 		} finally {
 			recordIterator.close();
 		}
+		
+		// Opening a table takes a few milliseconds, with more than a thousand tables that adds up, so they are opened concurrently
+		List<Callable<Void>> tasks = new ArrayList<>();
+		for (final Map.Entry<EClass, String> entry : tableNames.entrySet()) {
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					openTables(databaseSession, entry.getKey(), entry.getValue());
+					return null;
+				}
+			});
+		}
+		runConcurrently(tasks);
+		initCompression(databaseSession);
+	}
+
+	/**
+	 * Compression is enabled for the tables that have been compressed before, and for the configured tables that are still empty. Records in a compressed table
+	 * start with a format byte, records written before compression was configured do not, so tables that already have records are left alone.
+	 */
+	private void initCompression(DatabaseSession databaseSession) throws BimserverDatabaseException {
+		Set<String> compressedTables = new TreeSet<>();
+		byte[] stored = registry.readByteArray(COMPRESSED_TABLES, databaseSession);
+		if (stored != null && stored.length > 0) {
+			compressedTables.addAll(Arrays.asList(BinUtils.byteArrayToString(stored).split(",")));
+		}
+		if (bimServer != null && !keyValueStore.isReadOnly()) {
+			boolean changed = false;
+			for (String tableName : bimServer.getConfig().getCompressedTables()) {
+				if (!compressedTables.contains(tableName) && keyValueStore.containsTable(tableName)) {
+					if (isEmpty(tableName, databaseSession)) {
+						compressedTables.add(tableName);
+						changed = true;
+					} else {
+						LOGGER.info("Not compressing table " + tableName + ", it already contains uncompressed records");
+					}
+				}
+			}
+			if (changed) {
+				registry.save(COMPRESSED_TABLES, BinUtils.stringToByteArray(Joiner.on(",").join(compressedTables)), databaseSession);
+			}
+		}
+		for (String tableName : compressedTables) {
+			if (keyValueStore.containsTable(tableName)) {
+				keyValueStore.setCompressed(tableName);
+			}
+		}
+	}
+
+	private boolean isEmpty(String tableName, DatabaseSession databaseSession) throws BimserverDatabaseException {
+		RecordIterator recordIterator = keyValueStore.getRecordIterator(tableName, databaseSession);
+		try {
+			return recordIterator.next() == null;
+		} finally {
+			recordIterator.close();
+		}
+	}
+
+	private void openTables(DatabaseSession databaseSession, EClass eClass, String packageAndClassName) throws BimserverDatabaseException {
+		// TODO geometry?
+		boolean transactional = !(eClass.getEPackage() == Ifc2x3tc1Package.eINSTANCE || eClass.getEPackage() == Ifc4Package.eINSTANCE);
+
+		keyValueStore.openTable(databaseSession, packageAndClassName, transactional);
+		tableHandles.put(eClass, keyValueStore.getTableHandle(packageAndClassName));
+		
+		Map<EStructuralFeature, TableHandle> indexTables = new HashMap<EStructuralFeature, TableHandle>();
+		for (EStructuralFeature eStructuralFeature : eClass.getEAllStructuralFeatures()) {
+			if (eStructuralFeature.getEAnnotation("singleindex") != null) {
+				String indexTableName = eClass.getEPackage().getName() + "_" + eClass.getName() + "_" + eStructuralFeature.getName();
+				try {
+					keyValueStore.openIndexTable(databaseSession, indexTableName, transactional);
+					indexTables.put(eStructuralFeature, keyValueStore.getTableHandle(indexTableName));
+				} catch (DatabaseNotFoundException e) {
+				}
+			}
+		}
+		indexTableHandles.put(eClass, indexTables);
+	}
+
+	private void runConcurrently(List<Callable<Void>> tasks) throws BimserverDatabaseException {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(INIT_THREADS, INIT_THREADS, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+		try {
+			for (Future<Void> future : executor.invokeAll(tasks)) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			throw new BimserverDatabaseException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof BimserverDatabaseException) {
+				throw (BimserverDatabaseException) e.getCause();
+			}
+			throw new BimserverDatabaseException(e.getCause());
+		} finally {
+			executor.shutdown();
+		}
 	}
 
-	public void initCounters(DatabaseSession databaseSession) throws BimserverLockConflictException, BimserverDatabaseException {
+	/**
+	 * After a clean shutdown the counters are read from the COUNTERS_TABLE, every oid counter is checked against its table the first time it is used. Otherwise the
+	 * last record of every table is read (concurrently).
+	 */
+	public void initCounters(final DatabaseSession databaseSession) throws BimserverLockConflictException, BimserverDatabaseException {
 		for (EClass eClass : eClassToCid.keySet()) {
-			RecordIterator iterator = keyValueStore.getRecordIterator(eClass.getEPackage().getName() + "_" + eClass.getName(), databaseSession);
-			try {
-				Record record = iterator.last();
-				initCounter(eClass);
-				if (record != null) {
-					ByteBuffer buffer = ByteBuffer.wrap(record.getKey());
-					int pid = buffer.getInt();
-					long oid = buffer.getLong();
-					if (oid > oidCounters.get(eClass).get()) {
-						oidCounters.put(eClass, new AtomicLong(oid));
+			initCounter(eClass);
+		}
+		if (registry.readBoolean(CLEAN_SHUTDOWN, false, databaseSession)) {
+			readStoredCounters(databaseSession);
+		} else {
+			LOGGER.info("Database was not closed properly, reading counters from all tables");
+			List<Callable<Void>> tasks = new ArrayList<>();
+			for (final EClass eClass : eClassToCid.keySet()) {
+				tasks.add(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						ByteBuffer lastKey = readLastKey(eClass, databaseSession);
+						if (lastKey != null) {
+							int pid = lastKey.getInt();
+							long oid = lastKey.getLong();
+							AtomicLong counter = oidCounters.get(eClass);
+							if (oid > counter.get()) {
+								counter.set(oid);
+							}
+							synchronized (pidCounter) {
+								if (pid > pidCounter.get()) {
+									pidCounter.set(pid);
+								}
+							}
+						}
+						return null;
+					}
+				});
+			}
+			runConcurrently(tasks);
+		}
+		for (EClass eClass : eClassToCid.keySet()) {
+			Long stored = storedCounters.get(eClass);
+			if (stored == null || stored != oidCounters.get(eClass).get()) {
+				changedCounters.add(eClass);
+			}
+		}
+		// Until the next clean shutdown the stored counters are not reliable
+		registry.save(CLEAN_SHUTDOWN, false, databaseSession);
+		countersInitialized = true;
+	}
+
+	private void readStoredCounters(DatabaseSession databaseSession) throws BimserverLockConflictException, BimserverDatabaseException {
+		unvalidatedCounters.addAll(eClassToCid.keySet());
+		RecordIterator recordIterator = keyValueStore.getRecordIterator(COUNTERS_TABLE, databaseSession);
+		try {
+			Record record = recordIterator.next();
+			while (record != null) {
+				ByteBuffer value = ByteBuffer.wrap(record.getValue());
+				if (record.getKey().length == 2) {
+					EClass eClass = cidToEclass[BinUtils.byteArrayToShort(record.getKey())];
+					if (eClass != null && oidCounters.containsKey(eClass)) {
+						long oid = value.getLong();
+						AtomicLong counter = oidCounters.get(eClass);
+						if (oid > counter.get()) {
+							counter.set(oid);
+						}
+						storedCounters.put(eClass, oid);
 					}
+				} else if (Arrays.equals(record.getKey(), PID_COUNTER_KEY)) {
+					int pid = value.getInt();
 					if (pid > pidCounter.get()) {
 						pidCounter.set(pid);
 					}
+					storedPidCounter = pid;
 				}
-			} finally {
-				iterator.close();
+				record = recordIterator.next();
+			}
+		} finally {
+			recordIterator.close();
+		}
+	}
+
+	/**
+	 * @return The key of the last record in the table of the given class, positioned at the start, or null when the table is empty
+	 */
+	private ByteBuffer readLastKey(EClass eClass, DatabaseSession databaseSession) throws BimserverDatabaseException {
+		RecordIterator iterator = keyValueStore.getRecordIterator(eClass.getEPackage().getName() + "_" + eClass.getName(), databaseSession);
+		try {
+			Record record = iterator.last();
+			if (record == null) {
+				return null;
 			}
+			return ByteBuffer.wrap(record.getKey());
+		} finally {
+			iterator.close();
+		}
+	}
+
+	/**
+	 * Stores the counters that changed since they were last stored. The counters are written outside of the transaction of the committing session, so concurrent
+	 * commits do not lock each other.
+	 */
+	public synchronized void storeCounters() throws BimserverDatabaseException {
+		if (!countersInitialized) {
+			return;
+		}
+		for (EClass eClass : changedCounters) {
+			// Removed before the value is read, a new oid given out after reading marks the counter again
+			changedCounters.remove(eClass);
+			long value = oidCounters.get(eClass).get();
+			Long stored = storedCounters.get(eClass);
+			if (stored == null || stored != value) {
+				try {
+					keyValueStore.store(COUNTERS_TABLE, BinUtils.shortToByteArray(getCidOfEClass(eClass)), BinUtils.longToByteArray(value), null);
+				} catch (BimserverDatabaseException e) {
+					changedCounters.add(eClass);
+					throw e;
+				}
+				storedCounters.put(eClass, value);
+			}
+		}
+		int pid = pidCounter.get();
+		if (pid != storedPidCounter) {
+			keyValueStore.store(COUNTERS_TABLE, PID_COUNTER_KEY, BinUtils.intToByteArray(pid), null);
+			storedPidCounter = pid;
 		}
 	}
 
@@ -351,6 +672,22 @@ public class Database implements BimDatabase {
 	}
 
 	public void close() {
+		if (countersInitialized) {
+			try {
+				storeCounters();
+				DatabaseSession databaseSession = createSession();
+				try {
+					registry.save(CLEAN_SHUTDOWN, true, databaseSession);
+					databaseSession.commit();
+				} finally {
+					databaseSession.close();
+				}
+			} catch (BimserverDatabaseException e) {
+				LOGGER.error("", e);
+			} catch (ServiceException e) {
+				LOGGER.error("", e);
+			}
+		}
 		keyValueStore.close();
 	}
 
@@ -359,9 +696,67 @@ public class Database implements BimDatabase {
 	}
 
 	public DatabaseSession createSession() {
-		DatabaseSession databaseSession = new DatabaseSession(this, keyValueStore.startTransaction());
-		sessions.add(databaseSession);
-		return databaseSession;
+		synchronized (refreshLock) {
+			// New sessions wait for a running refresh, it only waits for sessions that have just been created, so this never takes long
+			while (refreshing) {
+				try {
+					refreshLock.wait();
+				} catch (InterruptedException e) {
+					LOGGER.error("", e);
+				}
+			}
+			DatabaseSession databaseSession = new DatabaseSession(this, keyValueStore.startTransaction());
+			sessions.put(databaseSession, System.currentTimeMillis());
+			return databaseSession;
+		}
+	}
+
+	public boolean isReadOnly() {
+		return keyValueStore.isReadOnly();
+	}
+
+	/**
+	 * Makes the changes of the process that writes to the database visible to this read-only database. The database has to be reopened for that, which can only
+	 * be done when no sessions are open. When a session has been open longer than drainMs (a streaming download for example) nothing is done, otherwise new
+	 * sessions are held back for at most drainMs while the open sessions finish.
+	 * 
+	 * @param drainMs The maximum time new sessions are held back
+	 * @return false when sessions stayed open, the database has not been refreshed in that case and the next refresh tries again
+	 */
+	public boolean refresh(long drainMs) throws BimserverDatabaseException {
+		if (!keyValueStore.isReadOnly()) {
+			throw new BimserverDatabaseException("Only read-only databases can be refreshed");
+		}
+		synchronized (refreshLock) {
+			long now = System.currentTimeMillis();
+			for (long created : sessions.values()) {
+				if (now - created > drainMs) {
+					LOGGER.info("Not refreshing database, a session has been open for " + (now - created) + "ms");
+					return false;
+				}
+			}
+			refreshing = true;
+			try {
+				long deadline = now + drainMs;
+				while (!sessions.isEmpty()) {
+					long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0) {
+						LOGGER.warn("Not refreshing database, " + sessions.size() + " session(s) still open");
+						return false;
+					}
+					try {
+						refreshLock.wait(remaining);
+					} catch (InterruptedException e) {
+						return false;
+					}
+				}
+				keyValueStore.reopen();
+				return true;
+			} finally {
+				refreshing = false;
+				refreshLock.notifyAll();
+			}
+		}
 	}
 
 	public KeyValueStore getKeyValueStore() {
@@ -387,12 +782,40 @@ public class Database implements BimDatabase {
 		return registry;
 	}
 
+	public SpatialIndex getSpatialIndex() {
+		return spatialIndex;
+	}
+
+	public PropertyIndex getPropertyIndex() {
+		return propertyIndex;
+	}
+
+	public GeometryContentStore getGeometryContentStore() {
+		return geometryContentStore;
+	}
+
+	public StringDictionary getStringDictionary() {
+		return stringDictionary;
+	}
+
+	/**
+	 * @return Whether the string attributes of new records of this class are replaced by references to the string dictionary
+	 */
+	public boolean useStringDictionary(EClass eClass) {
+		return stringDictionary.isEnabled() && (eClass.getEPackage() == Ifc2x3tc1Package.eINSTANCE || eClass.getEPackage() == Ifc4Package.eINSTANCE);
+	}
+
 	public Date getCreated() {
 		return created;
 	}
 
 	public void unregisterSession(DatabaseSession databaseSession) {
 		sessions.remove(databaseSession);
+		if (refreshing) {
+			synchronized (refreshLock) {
+				refreshLock.notifyAll();
+			}
+		}
 	}
 
 	public void setDatabaseVersion(int version, DatabaseSession databaseSession) throws BimserverLockConflictException {
@@ -428,7 +851,7 @@ public class Database implements BimDatabase {
 	}
 	
 	public DatabaseSession getDatabaseSession(long txnid) {
-		for (DatabaseSession databaseSession : sessions) {
+		for (DatabaseSession databaseSession : sessions.keySet()) {
 			if (databaseSession.getTransactionId() == txnid) {
 				return databaseSession;
 			}
@@ -443,6 +866,37 @@ public class Database implements BimDatabase {
 	public void incrementReads(long reads) {
 		keyValueStore.incrementReads(reads);
 	}
+
+	/**
+	 * Adds the statistics of the cache of a session that is being closed to the totals of this database
+	 */
+	public void addVirtualObjectCacheStatistics(VirtualObjectCache virtualObjectCache) {
+		virtualObjectCacheHits.addAndGet(virtualObjectCache.getHits());
+		virtualObjectCacheMisses.addAndGet(virtualObjectCache.getMisses());
+		virtualObjectCacheEvictions.addAndGet(virtualObjectCache.getEvictions());
+	}
+
+	public long getVirtualObjectCacheHits() {
+		return virtualObjectCacheHits.get();
+	}
+
+	public long getVirtualObjectCacheMisses() {
+		return virtualObjectCacheMisses.get();
+	}
+
+	public long getVirtualObjectCacheEvictions() {
+		return virtualObjectCacheEvictions.get();
+	}
+
+	/**
+	 * @return The maximum size in bytes of the virtual object cache of every session, -1 for no limit
+	 */
+	public long getVirtualObjectCacheSize() {
+		if (bimServer == null) {
+			return -1;
+		}
+		return bimServer.getConfig().getVirtualObjectCacheSize();
+	}
 	
 	public EClass getEClassForOid(long oid) throws BimserverDatabaseException {
 		short cid = (short)oid;
@@ -457,4 +911,39 @@ public class Database implements BimDatabase {
 	public String getTableName(EClass eClass) {
 		return eClass.getEPackage().getName() + "_" + eClass.getName();
 	}
+
+	public TableHandle getTableHandle(EClass eClass) throws BimserverDatabaseException {
+		TableHandle tableHandle = tableHandles.get(eClass);
+		if (tableHandle == null) {
+			// Tables created after initialization
+			tableHandle = keyValueStore.getTableHandle(getTableName(eClass));
+			tableHandles.put(eClass, tableHandle);
+		}
+		return tableHandle;
+	}
+
+	/**
+	 * @return The index tables of the "singleindex" features of the given class, empty when the class has no indexed features
+	 */
+	public Map<EStructuralFeature, TableHandle> getIndexTableHandles(EClass eClass) throws BimserverDatabaseException {
+		Map<EStructuralFeature, TableHandle> result = indexTableHandles.get(eClass);
+		if (result == null) {
+			result = new HashMap<EStructuralFeature, TableHandle>();
+			for (EStructuralFeature eStructuralFeature : eClass.getEAllStructuralFeatures()) {
+				if (eStructuralFeature.getEAnnotation("singleindex") != null) {
+					result.put(eStructuralFeature, keyValueStore.getTableHandle(getTableName(eClass) + "_" + eStructuralFeature.getName()));
+				}
+			}
+			indexTableHandles.put(eClass, result);
+		}
+		return result;
+	}
+
+	public TableHandle getIndexTableHandle(EClass eClass, EStructuralFeature eStructuralFeature) throws BimserverDatabaseException {
+		TableHandle tableHandle = getIndexTableHandles(eClass).get(eStructuralFeature);
+		if (tableHandle == null) {
+			throw new BimserverDatabaseException("No index table for " + eClass.getName() + "." + eStructuralFeature.getName());
+		}
+		return tableHandle;
+	}
 }
\ No newline at end of file
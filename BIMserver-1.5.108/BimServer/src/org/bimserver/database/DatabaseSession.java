@@ -24,6 +24,7 @@ import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -34,6 +35,7 @@ import java.util.Scanner;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.bimserver.BimserverDatabaseException;
 import org.bimserver.ServerIfcModel;
@@ -107,9 +109,21 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 	private StackTraceElement[] stackTrace;
 	private final ObjectCache objectCache = new ObjectCache();
 	private Map<EClass, Long> startOids;
-	private final Map<Long, HashMapVirtualObject> voCache = new ConcurrentHashMap<>();
+	private final VirtualObjectCache voCache;
 	private long reads;
 
+	// Writes are collected and written to the KeyValueStore in sorted batches, the KeyValueStore flushes them before this session reads or writes directly
+	private static final int MAX_PENDING_WRITES = 10000;
+	private static final long MAX_PENDING_BYTES = 16 * 1024 * 1024;
+	private WriteBatch pendingWrites = new WriteBatch();
+	private final Object pendingWritesLock = new Object();
+	private final Object flushLock = new Object();
+	private final AtomicLong unflushedWrites = new AtomicLong();
+
+	// Strings this session has written inline once, the second time they are added to the string dictionary
+	private static final int MAX_STRING_CANDIDATES = 100000;
+	private final Set<String> stringCandidates = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
 	public enum SessionState {
 		OPEN, CLOSED
 	}
@@ -120,6 +134,7 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 	public DatabaseSession(Database database, BimTransaction bimTransaction) {
 		this.database = database;
 		this.bimTransaction = bimTransaction;
+		this.voCache = new VirtualObjectCache(database.getVirtualObjectCacheSize());
 		if (DEVELOPER_DEBUG) {
 			this.stackTrace = Thread.currentThread().getStackTrace();
 			LOGGER.info("");
@@ -157,10 +172,28 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 	}
 
 	public void close() {
+		if (bimTransaction == null) {
+			// Without a transaction there is nothing to roll back, so pending writes should still end up in the database
+			try {
+				flushPendingWrites();
+			} catch (BimserverDatabaseException e) {
+				LOGGER.error("", e);
+			}
+		}
+		if (state == SessionState.OPEN) {
+			// Sessions are often closed twice (commit closes, and the caller closes in a finally block)
+			database.addVirtualObjectCacheStatistics(voCache);
+		}
 		state = SessionState.CLOSED;
+		if (LOGGER.isDebugEnabled() && voCache.getHits() + voCache.getMisses() > 0) {
+			LOGGER.debug("Virtual object cache: " + voCache);
+		}
+		voCache.clear();
 		database.unregisterSession(this);
 		database.incrementReads(reads);
 		if (bimTransaction != null) {
+			// Closing rolls back everything that has not been committed, batched writes would otherwise end up in the next transaction of this session
+			discardPendingWrites();
 			try {
 				bimTransaction.close();
 			} catch (IllegalStateException e) {
@@ -174,17 +207,19 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 	
 	public void commit(ProgressHandler progressHandler) throws BimserverDatabaseException, ServiceException {
 		checkOpen();
+		if (database.isReadOnly() && ((objectsToCommit != null && objectsToCommit.size() > 0) || (objectsToDelete != null && objectsToDelete.size() > 0))) {
+			throw new BimserverDatabaseException("This server is a read-only replica, changes can only be made on the primary server");
+		}
 		try {
 			if (progressHandler != null) {
 				progressHandler.progress(0, objectsToCommit == null ? 0 : objectsToCommit.size());
 			}
 			int current = 0;
 			long writes = 0;
-			ByteBuffer keyBuffer = ByteBuffer.wrap(new byte[16]);
 			if (objectsToDelete != null) {
 				for (RecordIdentifierPlusType recordIdentifier : objectsToDelete) {
-					fillKeyBuffer(keyBuffer, recordIdentifier);
-					database.getKeyValueStore().storeNoOverwrite(recordIdentifier.getPackageName() + "_" + recordIdentifier.getClassName(), keyBuffer.array(), new byte[] { -1 }, this);
+					ByteBuffer keyBuffer = createKeyBuffer(recordIdentifier.getPid(), recordIdentifier.getOid(), recordIdentifier.getRid());
+					storeBatched(database.getKeyValueStore().getTableHandle(recordIdentifier.getPackageName() + "_" + recordIdentifier.getClassName()), keyBuffer.array(), new byte[] { -1 }, 0, 1, true);
 					writes++;
 				}
 			}
@@ -195,19 +230,24 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 					if (object.getOid() == -1) {
 						throw new BimserverDatabaseException("Cannot store object with oid -1");
 					}
-					fillKeyBuffer(keyBuffer, object);
+					// The batch keeps a reference to the key, so every object gets its own key buffer
+					ByteBuffer keyBuffer = fillKeyBuffer(ByteBuffer.allocate(16), object);
 					if (DEVELOPER_DEBUG) {
 						LOGGER.info("Write: " + object.eClass().getName() + " " + "pid=" + object.getPid() + " oid=" + object.getOid() + " rid=" + object.getRid());
 					}
 					ByteBuffer valueBuffer = convertObjectToByteArray(object, reusableBuffer, getMetaDataManager().getPackageMetaData(object.eClass().getEPackage().getName()));
 					int valueBufferPosition = valueBuffer.position();
 					processPossibleIndices(keyBuffer, object.getPid(), object.getRid(), object.getOid(), object.eClass(), valueBuffer);
-					if (object.eClass().getEAnnotation("nolazyload") == null && !overwriteEnabled) {
-						database.getKeyValueStore().storeNoOverwrite(object.eClass().getEPackage().getName() + "_" + object.eClass().getName(), keyBuffer.array(), valueBuffer.array(), 0, valueBufferPosition, this);
+					// The value buffer is reused for the next object, so the batch gets a copy
+					byte[] value;
+					if (database.useStringDictionary(object.eClass())) {
+						ByteBuffer encoded = encodeStrings(object.eClass(), valueBuffer.array(), valueBufferPosition);
+						value = Arrays.copyOf(encoded.array(), encoded.position());
 					} else {
-						database.getKeyValueStore().store(object.eClass().getEPackage().getName() + "_" + object.eClass().getName(), keyBuffer.array(),
-								valueBuffer.array(), 0, valueBuffer.position(), this);
+						value = Arrays.copyOf(valueBuffer.array(), valueBufferPosition);
 					}
+					boolean noOverwrite = object.eClass().getEAnnotation("nolazyload") == null && !overwriteEnabled;
+					storeBatched(database.getTableHandle(object.eClass()), keyBuffer.array(), value, 0, value.length, noOverwrite);
 					if (progressHandler != null) {
 						progressHandler.progress(++current, objectsToCommit.size());
 					}
@@ -216,6 +256,9 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 					reusableBuffer.position(0);
 				}
 			}
+			// Stored before the data, so the stored counters are never behind on the committed oids
+			database.storeCounters();
+			flushPendingWrites();
 			if (bimTransaction != null) {
 				bimTransaction.commit();
 				database.getKeyValueStore().sync();
@@ -235,14 +278,8 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 	}
 
 	private void processPossibleIndices(ByteBuffer keyBuffer, int pid, int rid, long oid, EClass eClass, ByteBuffer valueBuffer) throws BimserverLockConflictException, BimserverDatabaseException {
-		boolean hasAtLeastOneIndex = false;
-		for (EStructuralFeature eStructuralFeature : eClass.getEAllStructuralFeatures()) {
-			if (eStructuralFeature.getEAnnotation("singleindex") != null) {
-				hasAtLeastOneIndex = true;
-				break;
-			}
-		}
-		if (hasAtLeastOneIndex) {
+		Map<EStructuralFeature, TableHandle> indexTables = database.getIndexTableHandles(eClass);
+		if (!indexTables.isEmpty()) {
 			byte[] oldData = null;
 			ByteBuffer oldKeyBuffer = null;
 			boolean perRecordVersioning = perRecordVersioning(eClass);
@@ -251,46 +288,93 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 				oldKeyBuffer.putInt(pid);
 				oldKeyBuffer.putLong(oid);
 				oldKeyBuffer.putInt(-(rid - 1));
-				oldData = database.getKeyValueStore().get(eClass.getEPackage().getName() + "_" + eClass.getName(), oldKeyBuffer.array(), this);
+				oldData = database.getKeyValueStore().get(database.getTableHandle(eClass), oldKeyBuffer.array(), this);
 			}
 			
-			for (EStructuralFeature eStructuralFeature : eClass.getEAllStructuralFeatures()) {
-				if (eStructuralFeature.getEAnnotation("singleindex") != null) {
-					String indexTableName = eClass.getEPackage().getName() + "_" + eClass.getName() + "_" + eStructuralFeature.getName();
-					if (perRecordVersioning && oldData != null) {
-						ByteBuffer oldValue = ByteBuffer.wrap(oldData);
-						
-						byte[] featureBytesOldIndex = extractFeatureBytes(this, oldValue, eClass, eStructuralFeature);
-						
-						if (!perRecordVersioning) {
-							ByteBuffer oldFeatureBuffer = ByteBuffer.allocate(featureBytesOldIndex.length + 8);
-							oldFeatureBuffer.putInt(pid);
-							oldFeatureBuffer.putInt(-(rid - 1));
-							oldFeatureBuffer.put(featureBytesOldIndex);
-							featureBytesOldIndex = oldFeatureBuffer.array();
-						}
-						
-						database.getKeyValueStore().delete(indexTableName, featureBytesOldIndex, oldKeyBuffer.array(), this);
+			for (Map.Entry<EStructuralFeature, TableHandle> indexTable : indexTables.entrySet()) {
+				EStructuralFeature eStructuralFeature = indexTable.getKey();
+				TableHandle indexTableHandle = indexTable.getValue();
+				if (perRecordVersioning && oldData != null) {
+					ByteBuffer oldValue = ByteBuffer.wrap(oldData);
+					
+					byte[] featureBytesOldIndex = extractFeatureBytes(this, oldValue, eClass, eStructuralFeature);
+					
+					if (!perRecordVersioning) {
+						ByteBuffer oldFeatureBuffer = ByteBuffer.allocate(featureBytesOldIndex.length + 8);
+						oldFeatureBuffer.putInt(pid);
+						oldFeatureBuffer.putInt(-(rid - 1));
+						oldFeatureBuffer.put(featureBytesOldIndex);
+						featureBytesOldIndex = oldFeatureBuffer.array();
 					}
 					
-					byte[] featureBytes = extractFeatureBytes(this, valueBuffer, eClass, eStructuralFeature);
-					if (featureBytes != null) {
-						if (!perRecordVersioning) {
-							ByteBuffer featureBuffer = ByteBuffer.allocate(featureBytes.length + 8);
-							featureBuffer.putInt(pid);
-							featureBuffer.putInt(-rid);
-							featureBuffer.put(featureBytes);
-							featureBytes = featureBuffer.array();
-						}
-						database.getKeyValueStore().store(indexTableName, featureBytes, keyBuffer.array(), this);
+					database.getKeyValueStore().delete(indexTableHandle, featureBytesOldIndex, oldKeyBuffer.array(), this);
+				}
+				
+				byte[] featureBytes = extractFeatureBytes(this, valueBuffer, eClass, eStructuralFeature);
+				if (featureBytes != null) {
+					if (!perRecordVersioning) {
+						ByteBuffer featureBuffer = ByteBuffer.allocate(featureBytes.length + 8);
+						featureBuffer.putInt(pid);
+						featureBuffer.putInt(-rid);
+						featureBuffer.put(featureBytes);
+						featureBytes = featureBuffer.array();
 					}
+					byte[] key = keyBuffer.array();
+					storeBatched(indexTableHandle, featureBytes, key, 0, key.length, false);
 				}
 			}
 		}
 	}
 
-	private void fillKeyBuffer(ByteBuffer buffer, RecordIdentifierPlusType recordIdentifier) {
-		fillKeyBuffer(buffer, recordIdentifier.getPid(), recordIdentifier.getOid(), recordIdentifier.getRid());
+	void storeBatched(TableHandle table, byte[] key, byte[] value, int offset, int length, boolean noOverwrite) throws BimserverDatabaseException {
+		boolean full;
+		synchronized (pendingWritesLock) {
+			if (noOverwrite) {
+				pendingWrites.storeNoOverwrite(table, key, value, offset, length);
+			} else {
+				pendingWrites.store(table, key, value, offset, length);
+			}
+			unflushedWrites.incrementAndGet();
+			full = pendingWrites.size() >= MAX_PENDING_WRITES || pendingWrites.getBytes() >= MAX_PENDING_BYTES;
+		}
+		if (full) {
+			flushPendingWrites();
+		}
+	}
+
+	/**
+	 * Writes all batched writes of this session to the KeyValueStore. Returns after all writes done by this session before the call are in the database,
+	 * also when another thread is flushing at the same time.
+	 */
+	public void flushPendingWrites() throws BimserverDatabaseException {
+		if (unflushedWrites.get() == 0) {
+			return;
+		}
+		synchronized (flushLock) {
+			WriteBatch writeBatch;
+			synchronized (pendingWritesLock) {
+				if (pendingWrites.isEmpty()) {
+					return;
+				}
+				writeBatch = pendingWrites;
+				pendingWrites = new WriteBatch();
+			}
+			try {
+				database.getKeyValueStore().storeBatch(writeBatch, this);
+			} finally {
+				unflushedWrites.addAndGet(-writeBatch.size());
+			}
+		}
+	}
+
+	/**
+	 * Forgets the batched writes that have not been flushed yet, should be called whenever the transaction is rolled back
+	 */
+	private void discardPendingWrites() {
+		synchronized (pendingWritesLock) {
+			pendingWrites = new WriteBatch();
+			unflushedWrites.set(0);
+		}
 	}
 
 	private IdEObjectImpl createInternal(EClass eClass, QueryInterface queryInterface) {
@@ -732,7 +816,7 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 		for (int i = 0; i < retries; i++) {
 			try {
 				T result = action.execute();
-				if ((objectsToCommit != null && objectsToCommit.size() > 0) || (objectsToDelete != null && objectsToDelete.size() > 0)) {
+				if (hasPendingChanges()) {
 					commit(progressHandler);
 				}
 				return result;
@@ -743,6 +827,7 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 				}
 				if (bimTransaction != null) {
 					bimTransaction.rollback();
+					discardPendingWrites();
 				}
 				if (rollbackListener != null) {
 					rollbackListener.rollback();
@@ -758,6 +843,7 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 			} catch (BimserverLockConflictException e) {
 				LOGGER.info("BimserverLockConflictException");
 				bimTransaction.rollback();
+				discardPendingWrites();
 				objectCache.clear();
 				objectsToCommit = null;
 				bimTransaction = database.getKeyValueStore().startTransaction();
@@ -782,6 +868,7 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 			} catch (UncheckedBimserverLockConflictException e) {
 				LOGGER.info("UncheckedBimserverLockConflictException");
 				bimTransaction.rollback();
+				discardPendingWrites();
 				objectCache.clear();
 				objectsToCommit = null;
 				bimTransaction = database.getKeyValueStore().startTransaction();
@@ -807,6 +894,14 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 		throw new BimserverDatabaseException("Too many conflicts, tried " + retries + " times");
 	}
 
+	/**
+	 * Actions that only write directly to the KeyValueStore (registry entries, queues) register a post commit action, without a commit their writes are rolled back
+	 * when the session is closed
+	 */
+	private boolean hasPendingChanges() {
+		return (objectsToCommit != null && objectsToCommit.size() > 0) || (objectsToDelete != null && objectsToDelete.size() > 0) || (postCommitActions != null && !postCommitActions.isEmpty()) || unflushedWrites.get() > 0;
+	}
+
 	@SuppressWarnings("unchecked")
 	public <T extends IdEObject> T get(EClass eClass, IfcModelInterface model, IdEObject idEObject, long oid, QueryInterface query, TodoList todoList)
 			throws BimserverDatabaseException {
@@ -901,7 +996,7 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 		startSearchWith.putLong(oid);
 		startSearchWith.putInt(-query.getRid());
 
-		SearchingRecordIterator recordIterator = database.getKeyValueStore().getRecordIterator(eClass.getEPackage().getName() + "_" + eClass.getName(), mustStartWith.array(),
+		SearchingRecordIterator recordIterator = database.getKeyValueStore().getRecordIterator(database.getTableHandle(eClass), mustStartWith.array(),
 				startSearchWith.array(), this);
 		try {
 			Record record = recordIterator.next();
@@ -1008,7 +1103,7 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 		// TODO, only need to fetch the first byte of the value to be able to do the null-check, needs change in keyvaluestore layer
 		checkOpen();
 		int count = 0;
-		SearchingRecordIterator recordIterator = database.getKeyValueStore().getRecordIterator(eClass.getEPackage().getName() + "_" + eClass.getName(),
+		SearchingRecordIterator recordIterator = database.getKeyValueStore().getRecordIterator(database.getTableHandle(eClass),
 				BinUtils.intToByteArray(pid), BinUtils.intToByteArray(pid), this);
 		try {
 			Record record = recordIterator.next();
@@ -1085,10 +1180,29 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 		} finally {
 			scanner.close();
 		}
+		DatabaseInformationCategory reclaimCategory = StoreFactory.eINSTANCE.createDatabaseInformationCategory();
+		reclaimCategory.setTitle("Storage reclamation");
+		addDatabaseInformationItem(reclaimCategory, "Reclaimed bytes", "" + database.getRegistry().readLong(StorageReclaimer.RECLAIMED_BYTES, this, 0));
+		addDatabaseInformationItem(reclaimCategory, "Reclaimed records", "" + database.getRegistry().readLong(StorageReclaimer.RECLAIMED_RECORDS, this, 0));
+		addDatabaseInformationItem(reclaimCategory, "Projects waiting to be reclaimed", "" + database.getKeyValueStore().count(StorageReclaimer.RECLAIM_TABLE));
+		databaseInformation.getCategories().add(reclaimCategory);
+		DatabaseInformationCategory cacheCategory = StoreFactory.eINSTANCE.createDatabaseInformationCategory();
+		cacheCategory.setTitle("Virtual object cache (closed sessions)");
+		addDatabaseInformationItem(cacheCategory, "Hits", "" + database.getVirtualObjectCacheHits());
+		addDatabaseInformationItem(cacheCategory, "Misses", "" + database.getVirtualObjectCacheMisses());
+		addDatabaseInformationItem(cacheCategory, "Evictions", "" + database.getVirtualObjectCacheEvictions());
+		databaseInformation.getCategories().add(cacheCategory);
 		databaseInformation.setLocation(database.getKeyValueStore().getLocation());
 		return databaseInformation;
 	}
 
+	private void addDatabaseInformationItem(DatabaseInformationCategory category, String key, String value) {
+		DatabaseInformationItem item = StoreFactory.eINSTANCE.createDatabaseInformationItem();
+		item.setKey(key);
+		item.setValue(value);
+		category.getItems().add(item);
+	}
+
 	public EClass getEClass(short cid) throws BimserverDatabaseException {
 		return database.getEClassForCid(cid);
 	}
@@ -1186,7 +1300,7 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 	public void getMap(EClass eClass, IfcModelInterface ifcModel, QueryInterface query, TodoList todoList) throws BimserverDatabaseException {
 		checkOpen();
 		SearchingRecordIterator recordIterator = null;
-		String tableName = eClass.getEPackage().getName() + "_" + eClass.getName();
+		TableHandle tableHandle = database.getTableHandle(eClass);
 		if (query.getOidCounters() != null) {
 			if (!query.getOidCounters().containsKey(eClass)) {
 				return;
@@ -1195,10 +1309,10 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 			ByteBuffer tmp = ByteBuffer.allocate(12);
 			tmp.putInt(query.getPid());
 			tmp.putLong(startOid + 1);
-			recordIterator = database.getKeyValueStore().getRecordIterator(tableName, BinUtils.intToByteArray(query.getPid()), tmp.array(), this);
+			recordIterator = database.getKeyValueStore().getRecordIterator(tableHandle, BinUtils.intToByteArray(query.getPid()), tmp.array(), this);
 		} else {
 //			LOGGER.warn("Potential too-many-reads");
-			recordIterator = database.getKeyValueStore().getRecordIterator(tableName, BinUtils.intToByteArray(query.getPid()), BinUtils.intToByteArray(query.getPid()), this);
+			recordIterator = database.getKeyValueStore().getRecordIterator(tableHandle, BinUtils.intToByteArray(query.getPid()), BinUtils.intToByteArray(query.getPid()), this);
 		}
 		try {
 			Record record = recordIterator.next();
@@ -1268,7 +1382,7 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 		TodoList todoList = new TodoList();
 		ByteBuffer mustStartWith = createKeyBuffer(query.getPid(), oid);
 		ByteBuffer key = createKeyBuffer(query.getPid(), oid, -query.getStopRid());
-		SearchingRecordIterator recordIterator = database.getKeyValueStore().getRecordIterator(eClass.getEPackage().getName() + "_" + eClass.getName(), mustStartWith.array(),
+		SearchingRecordIterator recordIterator = database.getKeyValueStore().getRecordIterator(database.getTableHandle(eClass), mustStartWith.array(),
 				key.array(), this);
 		checkOpen();
 		try {
@@ -1318,14 +1432,27 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 
 	public void getMapWithOids(IfcModelInterface model, Set<Long> oids, QueryInterface query) throws BimserverDatabaseException {
 		checkOpen();
+		List<MultiGetKey> keys = new ArrayList<>(oids.size());
 		for (Long oid : oids) {
 			EClass eClass = getEClassForOid(oid);
 			if (eClass != null) {
-				getMapWithOid(query, database.getCidOfEClass(eClass), oid, model);
+				keys.add(new MultiGetKey(database.getTableHandle(eClass), query.getPid(), oid, query.getStopRid(), query.getRid()));
 			} else {
 				throw new BimserverDatabaseException("No class found for oid " + oid);
 			}
 		}
+		// All objects are read with one sorted pass over every table instead of one seek per oid
+		database.getKeyValueStore().multiGet(keys, this);
+		TodoList todoList = new TodoList();
+		for (MultiGetKey key : keys) {
+			Record record = key.getRecord();
+			if (record != null) {
+				reads++;
+				EClass eClass = getEClassForOid(key.getOid());
+				getMap(eClass, eClass, model, ByteBuffer.wrap(record.getValue()), key.getPid(), key.getOid(), key.getRecordRid(), query, todoList);
+			}
+		}
+		processTodoList(model, todoList, query);
 	}
 
 	public MetaDataManager getMetaDataManager() {
@@ -1340,7 +1467,7 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 	public ObjectIdentifier getOidOfGuid(String schema, String guid, int pid, int rid) throws BimserverDatabaseException {
 		PackageMetaData packageMetaData = getMetaDataManager().getPackageMetaData(schema);
 		for (EClass eClass : packageMetaData.getAllSubClasses(packageMetaData.getEClass("IfcRoot"))) {
-			RecordIterator recordIterator = database.getKeyValueStore().getRecordIterator(eClass.getEPackage().getName() + "_" + eClass.getName(), BinUtils.intToByteArray(pid),
+			RecordIterator recordIterator = database.getKeyValueStore().getRecordIterator(database.getTableHandle(eClass), BinUtils.intToByteArray(pid),
 					BinUtils.intToByteArray(pid), this);
 			try {
 				Record record = recordIterator.next();
@@ -1361,7 +1488,7 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 							if (stringLength == -1) {
 								return null;
 							} else {
-								String s = BinUtils.readString(value, stringLength);
+								String s = StringDictionary.isReference(stringLength) ? database.getStringDictionary().get(stringLength) : BinUtils.readString(value, stringLength);
 								if (s.equals(guid)) {
 									return new ObjectIdentifier(oid, getCid(eClass));
 								}
@@ -1379,8 +1506,11 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 
 	public Set<ObjectIdentifier> getOidsOfName(String schema, String name, int pid, int rid) throws BimserverDatabaseException, MetaDataException {
 		Set<ObjectIdentifier> result = new HashSet<ObjectIdentifier>();
+		// Names stored in the string dictionary are compared by their reference, without reading the string
+		Integer nameId = database.getStringDictionary().find(name);
+		int nameReference = nameId == null ? -1 : StringDictionary.toReference(nameId);
 		for (EClass eClass : getMetaDataManager().getPackageMetaData(schema).getAllSubClasses(getMetaDataManager().getPackageMetaData(schema).getEClass("IfcRoot"))) {
-			RecordIterator recordIterator = database.getKeyValueStore().getRecordIterator(eClass.getEPackage().getName() + "_" + eClass.getName(), BinUtils.intToByteArray(pid),
+			RecordIterator recordIterator = database.getKeyValueStore().getRecordIterator(database.getTableHandle(eClass), BinUtils.intToByteArray(pid),
 					BinUtils.intToByteArray(pid), this);
 			try {
 				Record record = recordIterator.next();
@@ -1402,12 +1532,18 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 							if (stringLength == -1) {
 								return null;
 							} else {
-								BinUtils.readString(value, stringLength); // GUID
+								if (stringLength > 0) {
+									value.position(value.position() + stringLength); // GUID
+								}
 								if (value.getShort() != -1) { // CID of OwnerHistory
 									value.getLong(); // OID of OwnerHistory
 								}
 								stringLength = value.getInt();
-								if (stringLength != -1) {
+								if (StringDictionary.isReference(stringLength)) {
+									if (stringLength == nameReference) {
+										result.add(new ObjectIdentifier(oid, getCid(eClass)));
+									}
+								} else if (stringLength != -1) {
 									String foundName = BinUtils.readString(value, stringLength);
 									if (name.equals(foundName)) {
 										result.add(new ObjectIdentifier(oid, getCid(eClass)));
@@ -1596,10 +1732,12 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 		return values.iterator().next();
 	}
 
-	public Object readPrimitiveValue(EClassifier classifier, ByteBuffer buffer, QueryInterface query) {
+	public Object readPrimitiveValue(EClassifier classifier, ByteBuffer buffer, QueryInterface query) throws BimserverDatabaseException {
 		if (classifier == EcorePackage.eINSTANCE.getEString()) {
 			int length = buffer.getInt();
-			if (length != -1) {
+			if (StringDictionary.isReference(length)) {
+				return database.getStringDictionary().get(length);
+			} else if (length != -1) {
 				return BinUtils.readString(buffer, length);
 			} else {
 				return null;
@@ -1640,10 +1778,13 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 		}
 	}
 
-	public byte[] readPrimitiveBytes(EClassifier classifier, ByteBuffer buffer, QueryInterface query) {
+	public byte[] readPrimitiveBytes(EClassifier classifier, ByteBuffer buffer, QueryInterface query) throws BimserverDatabaseException {
 		if (classifier == EcorePackage.eINSTANCE.getEString()) {
 			int length = buffer.getInt();
-			if (length != -1) {
+			if (StringDictionary.isReference(length)) {
+				// Index keys always have the string itself
+				return database.getStringDictionary().getBytes(length);
+			} else if (length != -1) {
 				byte[] result = new byte[length];
 				buffer.get(result, 0, length);
 				return result;
@@ -1684,8 +1825,10 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 		}
 	}
 	
+	/**
+	 * Moves the buffer past the value of the given feature without creating any objects, has to stay in sync with the way features are read
+	 */
 	public void fakeRead(ByteBuffer buffer, EStructuralFeature feature) throws BimserverDatabaseException {
-		boolean wrappedValue = feature.getEType().getEAnnotation("wrapped") != null;
 		if (feature.isMany()) {
 			if (feature.getEType() instanceof EEnum) {
 			} else if (feature.getEType() instanceof EClass) {
@@ -1697,13 +1840,14 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 						buffer.order(ByteOrder.LITTLE_ENDIAN);
 						short cid = buffer.getShort();
 						buffer.order(ByteOrder.BIG_ENDIAN);
-						if (cid != -1) {
-							if (wrappedValue) {
-								EClass eClass = (EClass) feature.getEType();
-								fakePrimitiveRead(eClass.getEStructuralFeature("wrappedValue").getEType(), buffer);
-							} else {
-								buffer.position(buffer.position() + 6);
-							}
+						if (feature.getEAnnotation("twodimensionalarray") != null) {
+							fakeRead(buffer, ((EClass) feature.getEType()).getEStructuralFeature("List"));
+						} else if (cid == -1) {
+							// null
+						} else if (cid < 0) {
+							fakeWrappedRead(buffer, database.getEClassForCid((short) (-cid)));
+						} else {
+							buffer.position(buffer.position() + 6);
 						}
 					}
 				}
@@ -1723,12 +1867,17 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 					buffer.order(ByteOrder.LITTLE_ENDIAN);
 					short cid = buffer.getShort();
 					buffer.order(ByteOrder.BIG_ENDIAN);
-					if (wrappedValue) {
-						fakePrimitiveRead(feature.getEType(), buffer);
-					} else {
-						if (cid != -1) {
-							buffer.position(buffer.position() + 6);
+					if (cid == -1) {
+						// null
+					} else if (cid < 0) {
+						EClass referenceClass = database.getEClassForCid((short) (-cid));
+						if (feature.getEAnnotation("dbembed") != null) {
+							fakeEmbeddedRead(buffer, referenceClass);
+						} else {
+							fakeWrappedRead(buffer, referenceClass);
 						}
+					} else {
+						buffer.position(buffer.position() + 6);
 					}
 				}
 			} else if (feature.getEType() instanceof EDataType) {
@@ -1737,10 +1886,36 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 		}
 	}
 
+	private void fakeWrappedRead(ByteBuffer buffer, EClass eClass) throws BimserverDatabaseException {
+		EStructuralFeature eStructuralFeature = eClass.getEStructuralFeature("wrappedValue");
+		fakePrimitiveRead(eStructuralFeature.getEType(), buffer);
+		if (eStructuralFeature.getEType() == EcorePackage.eINSTANCE.getEDouble() || eStructuralFeature.getEType() == EcorePackage.eINSTANCE.getEDoubleObject()) {
+			fakePrimitiveRead(EcorePackage.eINSTANCE.getEString(), buffer);
+		}
+	}
+
+	private void fakeEmbeddedRead(ByteBuffer buffer, EClass eClass) throws BimserverDatabaseException {
+		for (EStructuralFeature eStructuralFeature : eClass.getEAllStructuralFeatures()) {
+			if (eStructuralFeature.isMany()) {
+				// Not implemented
+			} else if (eStructuralFeature.getEType() instanceof EDataType) {
+				fakePrimitiveRead(eStructuralFeature.getEType(), buffer);
+			} else {
+				buffer.order(ByteOrder.LITTLE_ENDIAN);
+				short cid = buffer.getShort();
+				buffer.order(ByteOrder.BIG_ENDIAN);
+				if (cid < -1) {
+					fakeEmbeddedRead(buffer, database.getEClassForCid((short) (-cid)));
+				}
+			}
+		}
+	}
+
 	private void fakePrimitiveRead(EClassifier classifier, ByteBuffer buffer) throws BimserverDatabaseException {
 		if (classifier == EcorePackage.eINSTANCE.getEString()) {
 			int length = buffer.getInt();
-			if (length != -1) {
+			// -1 for null, below that for a reference to the string dictionary
+			if (length > 0) {
 				buffer.position(buffer.position() + length);
 			}
 		} else if (classifier == EcorePackage.eINSTANCE.getEInt() || classifier == EcorePackage.eINSTANCE.getEIntegerObject()) {
@@ -1812,7 +1987,7 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 		return newObject;
 	}
 
-	private IdEObject readWrappedValue(EStructuralFeature feature, ByteBuffer buffer, EClass eClass, QueryInterface query) {
+	private IdEObject readWrappedValue(EStructuralFeature feature, ByteBuffer buffer, EClass eClass, QueryInterface query) throws BimserverDatabaseException {
 		EStructuralFeature eStructuralFeature = eClass.getEStructuralFeature("wrappedValue");
 		Object primitiveValue = readPrimitiveValue(eStructuralFeature.getEType(), buffer, query);
 		IdEObject eObject = createInternal(eClass, query);
@@ -2040,13 +2215,8 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 			}
 			ByteBuffer valueBuffer = convertObjectToByteArray(wrappedValue, ByteBuffer.allocate(getExactSize(wrappedValue, packageMetaData, true)), packageMetaData);
 			ByteBuffer keyBuffer = createKeyBuffer(pid, wrappedValue.getOid(), rid);
-			try {
-				database.getKeyValueStore().storeNoOverwrite(eClass.getEPackage().getName() + "_" + eClass.getName(),
-						keyBuffer.array(), valueBuffer.array(), this);
-				database.incrementCommittedWrites(1);
-			} catch (BimserverLockConflictException e) {
-				LOGGER.error("", e);
-			}
+			storeBatched(database.getTableHandle(eClass), keyBuffer.array(), valueBuffer.array(), 0, valueBuffer.array().length, true);
+			database.incrementCommittedWrites(1);
 		}
 	}
 	
@@ -2155,7 +2325,7 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 	@SuppressWarnings("unchecked")
 	public <T extends IdEObject> T querySingle(EAttribute attribute, Object value, int pid, int rid) throws BimserverLockConflictException, BimserverDatabaseException {
 		if (attribute.getEAnnotation("singleindex") != null) {
-			String indexTableName = attribute.getEContainingClass().getEPackage().getName() + "_" + attribute.getEContainingClass().getName() + "_" + attribute.getName();
+			TableHandle indexTableHandle = database.getIndexTableHandle(attribute.getEContainingClass(), attribute);
 			byte[] queryBytes = null;
 			if (value instanceof String) {
 				queryBytes = ((String)value).getBytes(Charsets.UTF_8);
@@ -2172,7 +2342,7 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 				valueBuffer.put(queryBytes);
 				queryBytes = valueBuffer.array();
 			}
-			byte[] firstDuplicate = database.getKeyValueStore().get(indexTableName, queryBytes, this);
+			byte[] firstDuplicate = database.getKeyValueStore().get(indexTableHandle, queryBytes, this);
 			if (firstDuplicate != null) {
 				ByteBuffer buffer = ByteBuffer.wrap(firstDuplicate);
 				buffer.getInt(); // pid
@@ -2189,7 +2359,7 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 	public <T extends IdEObject> List<T> query(EAttribute attribute, Object value) throws BimserverLockConflictException, BimserverDatabaseException {
 		List<T> result = new ArrayList<>();
 		if (attribute.getEAnnotation("singleindex") != null) {
-			String indexTableName = attribute.getEContainingClass().getEPackage().getName() + "_" + attribute.getEContainingClass().getName() + "_" + attribute.getName();
+			TableHandle indexTableHandle = database.getIndexTableHandle(attribute.getEContainingClass(), attribute);
 			byte[] queryBytes = null;
 			if (value instanceof String) {
 				queryBytes = ((String)value).getBytes(Charsets.UTF_8);
@@ -2198,7 +2368,7 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 			} else {
 				throw new BimserverDatabaseException("Unsupported type " + value);
 			}
-			List<byte[]> duplicates = database.getKeyValueStore().getDuplicates(indexTableName, queryBytes, this);
+			List<byte[]> duplicates = database.getKeyValueStore().getDuplicates(indexTableHandle, queryBytes, this);
 			for (byte[] indexValue : duplicates) {
 				ByteBuffer buffer = ByteBuffer.wrap(indexValue);
 				buffer.getInt(); // pid
@@ -2261,12 +2431,16 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 		ByteBuffer valueBuffer = object.write();
 		EClass eClass = object.eClass();
 		ByteBuffer keyBuffer = createKeyBuffer(object.getPid(), object.getOid(), newRid);
-		database.getKeyValueStore().storeNoOverwrite(eClass.getEPackage().getName() + "_" + eClass.getName(), keyBuffer.array(), valueBuffer.array(), 0, valueBuffer.position(), this);
+		ByteBuffer storedBuffer = valueBuffer;
+		if (database.useStringDictionary(eClass)) {
+			storedBuffer = encodeStrings(eClass, valueBuffer.array(), valueBuffer.position());
+		}
+		storeBatched(database.getTableHandle(eClass), keyBuffer.array(), storedBuffer.array(), 0, storedBuffer.position(), true);
 		
 		processPossibleIndices(keyBuffer, object.getPid(), object.getRid(), object.getOid(), object.eClass(), valueBuffer);
 		
 		database.incrementCommittedWrites(1);
-		return valueBuffer.position();
+		return storedBuffer.position();
 	}
 	
 	@Override
@@ -2274,15 +2448,123 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 		ByteBuffer valueBuffer = object.write();
 		EClass eClass = object.eClass();
 		ByteBuffer keyBuffer = createKeyBuffer(object.getPid(), object.getOid(), object.getRid());
-		database.getKeyValueStore().store(eClass.getEPackage().getName() + "_" + eClass.getName(), keyBuffer.array(), valueBuffer.array(), 0, valueBuffer.position(), this);
+		if (database.useStringDictionary(eClass)) {
+			valueBuffer = encodeStrings(eClass, valueBuffer.array(), valueBuffer.position());
+		}
+		storeBatched(database.getTableHandle(eClass), keyBuffer.array(), valueBuffer.array(), 0, valueBuffer.position(), false);
 		database.incrementCommittedWrites(1);
 		return valueBuffer.position();
 	}
 
+	/**
+	 * Replaces the strings of a record that have been written before by references to the string dictionary. Only single string attributes (Name, ObjectType,
+	 * Description...) and the strings of wrapped values (IfcLabel, IfcText...) are replaced, all other bytes are copied as they are.
+	 * 
+	 * @return A buffer with its position at the end of the record, the given array is not changed
+	 */
+	private ByteBuffer encodeStrings(EClass eClass, byte[] value, int length) throws BimserverDatabaseException {
+		ByteBuffer buffer = ByteBuffer.wrap(value, 0, length);
+		if (length == 1 && value[0] == -1) {
+			buffer.position(length);
+			return buffer;
+		}
+		PackageMetaData packageMetaData = getMetaDataManager().getPackageMetaData(eClass.getEPackage().getName());
+		byte[] unsetted = new byte[packageMetaData.getUnsettedLength(eClass)];
+		buffer.get(unsetted);
+		// Only allocated when the first string is replaced, a reference is never longer than the string it replaces
+		ByteBuffer result = null;
+		int copiedUpTo = 0;
+		int fieldCounter = 0;
+		for (EStructuralFeature feature : eClass.getEAllStructuralFeatures()) {
+			if (packageMetaData.useForDatabaseStorage(eClass, feature)) {
+				boolean isUnsetted = (unsetted[fieldCounter / 8] & (1 << (fieldCounter % 8))) != 0;
+				if (!isUnsetted && !feature.isMany()) {
+					int stringPosition = -1;
+					if (feature.getEType() == EcorePackage.eINSTANCE.getEString()) {
+						stringPosition = buffer.position();
+					} else if (feature.getEType() instanceof EClass && feature.getEAnnotation("dbembed") == null) {
+						buffer.order(ByteOrder.LITTLE_ENDIAN);
+						short cid = buffer.getShort(buffer.position());
+						buffer.order(ByteOrder.BIG_ENDIAN);
+						if (cid < -1) {
+							EStructuralFeature wrappedValueFeature = database.getEClassForCid((short) -cid).getEStructuralFeature("wrappedValue");
+							if (wrappedValueFeature != null && wrappedValueFeature.getEType() == EcorePackage.eINSTANCE.getEString()) {
+								stringPosition = buffer.position() + 2;
+							}
+						}
+					}
+					if (stringPosition != -1) {
+						int stringLength = buffer.getInt(stringPosition);
+						if (stringLength >= StringDictionary.MIN_LENGTH && stringLength <= StringDictionary.MAX_LENGTH) {
+							Integer id = getStringId(BinUtils.byteArrayToString(value, stringPosition + 4, stringLength));
+							if (id != null) {
+								if (result == null) {
+									result = ByteBuffer.allocate(length);
+								}
+								result.put(value, copiedUpTo, stringPosition - copiedUpTo);
+								result.putInt(StringDictionary.toReference(id));
+								copiedUpTo = stringPosition + 4 + stringLength;
+							}
+						}
+					}
+				}
+				if (!isUnsetted) {
+					fakeRead(buffer, feature);
+				}
+				fieldCounter++;
+			}
+		}
+		if (result == null) {
+			buffer.position(length);
+			return buffer;
+		}
+		result.put(value, copiedUpTo, length - copiedUpTo);
+		return result;
+	}
+
+	private Integer getStringId(String value) throws BimserverDatabaseException {
+		StringDictionary stringDictionary = database.getStringDictionary();
+		Integer id = stringDictionary.getCachedId(value);
+		if (id != null) {
+			return id;
+		}
+		if (stringCandidates.contains(value)) {
+			return stringDictionary.getOrCreate(value);
+		}
+		if (stringCandidates.size() < MAX_STRING_CANDIDATES) {
+			stringCandidates.add(value);
+		}
+		return null;
+	}
+
 	public KeyValueStore getKeyValueStore() {
 		return database.getKeyValueStore();
 	}
 
+	public StringDictionary getStringDictionary() {
+		return database.getStringDictionary();
+	}
+
+	public SpatialIndex getSpatialIndex() {
+		return database.getSpatialIndex();
+	}
+
+	public PropertyIndex getPropertyIndex() {
+		return database.getPropertyIndex();
+	}
+
+	public GeometryContentStore getGeometryContentStore() {
+		return database.getGeometryContentStore();
+	}
+
+	public TableHandle getTableHandle(EClass eClass) throws BimserverDatabaseException {
+		return database.getTableHandle(eClass);
+	}
+
+	public TableHandle getIndexTableHandle(EClass eClass, EStructuralFeature eStructuralFeature) throws BimserverDatabaseException {
+		return database.getIndexTableHandle(eClass, eStructuralFeature);
+	}
+
 	@Override
 	public byte[] get(String tableName, byte[] key) throws BimserverLockConflictException, BimserverDatabaseException {
 		return database.getKeyValueStore().get(tableName, key, this);
@@ -2298,13 +2580,23 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 	}
 
 	public void cache(HashMapVirtualObject object) {
-		voCache.put(object.getOid(), object);
+		voCache.put(object);
 	}
-	
+
+	/**
+	 * @return The cached object, or null when the object was never cached or has been evicted
+	 */
 	public HashMapVirtualObject getFromCache(long oid) {
 		return voCache.get(oid);
 	}
 
+	/**
+	 * @return The cache of this session, for statistics
+	 */
+	public VirtualObjectCache getVirtualObjectCache() {
+		return voCache;
+	}
+
 	public <T extends IdEObject> List<T> getAll(Class<T> class1) throws BimserverDatabaseException {
 		EClass eClass = getEClass(class1.getPackage().getName(), class1.getSimpleName());
 		IfcModelInterface allOfType = getAllOfType(eClass, OldQuery.getDefault());
@@ -2315,8 +2607,18 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 		ByteBuffer keyBuffer = ByteBuffer.allocate(16);
 		fillKeyBuffer(keyBuffer, object.getPid(), object.getOid(), newRid);
 		EClass eClass = object.eClass();
-		String tableName = eClass.getEPackage().getName() + "_" + eClass.getName();
-		database.getKeyValueStore().storeNoOverwrite(tableName, keyBuffer.array(), new byte[] { -1 }, this);
+		storeBatched(database.getTableHandle(eClass), keyBuffer.array(), new byte[] { -1 }, 0, 1, true);
+		database.incrementCommittedWrites(1);
+	}
+
+	/**
+	 * Marks an object that has been saved by this session as deleted again, for objects that turn out not to be needed before the session is committed
+	 */
+	public void removeSaved(long oid, int pid, int rid) throws BimserverDatabaseException {
+		EClass eClass = getEClassForOid(oid);
+		ByteBuffer keyBuffer = createKeyBuffer(pid, oid, rid);
+		storeBatched(database.getTableHandle(eClass), keyBuffer.array(), new byte[] { -1 }, 0, 1, false);
+		voCache.remove(oid);
 		database.incrementCommittedWrites(1);
 	}
 
@@ -0,0 +1,98 @@
+package org.bimserver.database;
+
+/******************************************************************************
+ * Copyright (C) 2009-2018  BIMserver.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.nio.ByteBuffer;
+
+import org.bimserver.BimserverDatabaseException;
+
+import com.google.common.hash.HashCode;
+
+/**
+ * Project wide content addressed store of generated geometry. Maps the digest of the triangles, normals and colors of a GeometryData object to the first
+ * GeometryData with that content, so new revisions of a project can refer to the geometry of earlier revisions instead of storing it again. The digest only
+ * finds candidates, callers have to compare the stored data before using it.
+ *
+ * Key: pid (4) | digest (16)
+ * Value: oid (8) | rid (4)
+ */
+public class GeometryContentStore {
+	public static final String GEOMETRY_CONTENT_TABLE = "INT-GeometryContent";
+	public static final int DIGEST_LENGTH = 16;
+	private final KeyValueStore keyValueStore;
+	private volatile TableHandle table;
+
+	public static class Entry {
+		private final long oid;
+		private final int rid;
+
+		public Entry(long oid, int rid) {
+			this.oid = oid;
+			this.rid = rid;
+		}
+
+		public long getOid() {
+			return oid;
+		}
+
+		/**
+		 * @return The rid of the revision the GeometryData was written for, it is only visible from this and later revisions
+		 */
+		public int getRid() {
+			return rid;
+		}
+	}
+
+	public GeometryContentStore(KeyValueStore keyValueStore) {
+		this.keyValueStore = keyValueStore;
+	}
+
+	private TableHandle getTable() throws BimserverDatabaseException {
+		if (table == null) {
+			// The table is opened after this object has been created
+			table = keyValueStore.getTableHandle(GEOMETRY_CONTENT_TABLE);
+		}
+		return table;
+	}
+
+	public Entry get(int pid, HashCode digest, DatabaseSession databaseSession) throws BimserverLockConflictException, BimserverDatabaseException {
+		byte[] value = keyValueStore.get(getTable(), createKey(pid, digest), databaseSession);
+		if (value == null) {
+			return null;
+		}
+		ByteBuffer valueBuffer = ByteBuffer.wrap(value);
+		return new Entry(valueBuffer.getLong(), valueBuffer.getInt());
+	}
+
+	/**
+	 * Replaces an existing entry with the same digest, which happens when the stored data turned out to be different or no longer readable
+	 */
+	public void put(int pid, HashCode digest, long oid, int rid, DatabaseSession databaseSession) throws BimserverDatabaseException {
+		ByteBuffer value = ByteBuffer.allocate(12);
+		value.putLong(oid);
+		value.putInt(rid);
+		databaseSession.storeBatched(getTable(), createKey(pid, digest), value.array(), 0, value.capacity(), false);
+	}
+
+	private byte[] createKey(int pid, HashCode digest) {
+		ByteBuffer key = ByteBuffer.allocate(4 + DIGEST_LENGTH);
+		key.putInt(pid);
+		digest.writeBytesTo(key.array(), 4, DIGEST_LENGTH);
+		return key.array();
+	}
+}
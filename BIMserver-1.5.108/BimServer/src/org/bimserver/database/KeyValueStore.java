@@ -50,6 +50,25 @@ public interface KeyValueStore {
 
 	boolean isNew();
 
+	/**
+	 * @return Whether the store has been opened read-only, all writes will fail
+	 */
+	boolean isReadOnly();
+
+	/**
+	 * Closes and reopens all tables of a read-only store, so changes made by the process that writes to the store become visible. No cursors or transactions may
+	 * be open during this call.
+	 */
+	void reopen() throws BimserverDatabaseException;
+
+	/**
+	 * From now on values written to the table are compressed when they are large enough. Every value of a compressed table starts with a format byte, so this
+	 * should only be called for empty tables, or tables that have been compressed before.
+	 */
+	void setCompressed(String tableName) throws BimserverDatabaseException;
+
+	boolean isCompressed(String tableName) throws BimserverDatabaseException;
+
 	void delete(String tableName, byte[] key, DatabaseSession databaseSession) throws BimserverLockConflictException;
 
 	String getLocation();
@@ -76,6 +95,11 @@ public interface KeyValueStore {
 	
 	void store(String tableName, byte[] key, byte[] value, int offset, int length, DatabaseSession databaseSession) throws BimserverDatabaseException, BimserverLockConflictException;
 
+	/**
+	 * Writes all records of the batch, per table in key order, within the transaction of the given session
+	 */
+	void storeBatch(WriteBatch writeBatch, DatabaseSession databaseSession) throws BimserverDatabaseException, BimserverLockConflictException, BimserverConcurrentModificationDatabaseException;
+
 	void dumpOpenCursors();
 
 	boolean createIndexTable(String tableName, DatabaseSession databaseSession, boolean transactional) throws BimserverDatabaseException;
@@ -89,4 +113,28 @@ public interface KeyValueStore {
 	boolean isTransactional(DatabaseSession databaseSession, String tableName) throws BimserverDatabaseException;
 
 	SearchingRecordIterator getRecordIterator(String tableName, byte[] mustStartWith, byte[] startSearchingAt, DatabaseSession databaseSession, boolean keysOnly) throws BimserverLockConflictException, BimserverDatabaseException;
+
+	/**
+	 * @return A handle for an opened table, the methods taking a TableHandle skip the lookup by name
+	 */
+	TableHandle getTableHandle(String tableName) throws BimserverDatabaseException;
+
+	byte[] get(TableHandle tableHandle, byte[] key, DatabaseSession databaseSession) throws BimserverLockConflictException, BimserverDatabaseException;
+
+	List<byte[]> getDuplicates(TableHandle tableHandle, byte[] keyBytes, DatabaseSession databaseSession) throws BimserverDatabaseException;
+
+	SearchingRecordIterator getRecordIterator(TableHandle tableHandle, byte[] mustStartWith, byte[] startSearchingAt, DatabaseSession databaseSession) throws BimserverLockConflictException, BimserverDatabaseException;
+
+	SearchingRecordIterator getRecordIterator(TableHandle tableHandle, byte[] mustStartWith, byte[] startSearchingAt, DatabaseSession databaseSession, boolean keysOnly) throws BimserverLockConflictException, BimserverDatabaseException;
+
+	void store(TableHandle tableHandle, byte[] key, byte[] value, int offset, int length, DatabaseSession databaseSession) throws BimserverDatabaseException, BimserverLockConflictException;
+
+	void storeNoOverwrite(TableHandle tableHandle, byte[] key, byte[] value, int offset, int length, DatabaseSession databaseSession) throws BimserverDatabaseException, BimserverLockConflictException;
+
+	void delete(TableHandle indexTableHandle, byte[] featureBytesOldIndex, byte[] array, DatabaseSession databaseSession) throws BimserverLockConflictException;
+
+	/**
+	 * Reads the records of all given keys (see MultiGetKey). The keys are sorted and read with one cursor per table, very large batches are divided over multiple threads
+	 */
+	void multiGet(List<MultiGetKey> keys, DatabaseSession databaseSession) throws BimserverLockConflictException, BimserverDatabaseException;
 }
\ No newline at end of file
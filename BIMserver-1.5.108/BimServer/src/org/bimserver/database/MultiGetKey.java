@@ -0,0 +1,88 @@
+package org.bimserver.database;
+
+/******************************************************************************
+ * Copyright (C) 2009-2018  BIMserver.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.nio.ByteBuffer;
+import java.util.Comparator;
+
+/**
+ * One object to read with KeyValueStore.multiGet: the newest version of (pid, oid) with a rid between minRid and maxRid (both inclusive). After the multi-get
+ * the record is available through getRecord, which returns null when there is no such version.
+ */
+public class MultiGetKey {
+	public static final Comparator<MultiGetKey> KEY_ORDER = new Comparator<MultiGetKey>() {
+		@Override
+		public int compare(MultiGetKey o1, MultiGetKey o2) {
+			int result = Integer.compareUnsigned(o1.pid, o2.pid);
+			if (result == 0) {
+				result = Long.compareUnsigned(o1.oid, o2.oid);
+			}
+			return result;
+		}
+	};
+
+	private final TableHandle table;
+	private final int pid;
+	private final long oid;
+	private final int minRid;
+	private final int maxRid;
+	private volatile Record record;
+
+	public MultiGetKey(TableHandle table, int pid, long oid, int minRid, int maxRid) {
+		this.table = table;
+		this.pid = pid;
+		this.oid = oid;
+		this.minRid = minRid;
+		this.maxRid = maxRid;
+	}
+
+	public TableHandle getTable() {
+		return table;
+	}
+
+	public int getPid() {
+		return pid;
+	}
+
+	public long getOid() {
+		return oid;
+	}
+
+	public int getMinRid() {
+		return minRid;
+	}
+
+	public int getMaxRid() {
+		return maxRid;
+	}
+
+	public Record getRecord() {
+		return record;
+	}
+
+	public void setRecord(Record record) {
+		this.record = record;
+	}
+
+	/**
+	 * @return The rid of the record that was found
+	 */
+	public int getRecordRid() {
+		return -ByteBuffer.wrap(record.getKey()).getInt(12);
+	}
+}
@@ -19,15 +19,13 @@ package org.bimserver.database;
 
 import org.bimserver.emf.IdEObject;
 import org.bimserver.emf.IdEObjectImpl;
-
-import com.google.common.collect.BiMap;
-import com.google.common.collect.HashBiMap;
+import org.bimserver.utils.LongObjectBiMap;
 
 public class ObjectCache {
-	private final BiMap<Long, IdEObjectImpl> oidCache = HashBiMap.create();
+	private final LongObjectBiMap<IdEObjectImpl> oidCache = new LongObjectBiMap<>();
 
 	public void put(long oid, IdEObject object) {
-		if (!oidCache.containsValue(object)) {
+		if (!oidCache.containsValue((IdEObjectImpl) object)) {
 			oidCache.put(oid, (IdEObjectImpl) object);
 		}
 	}
@@ -36,12 +34,15 @@ public class ObjectCache {
 		return oidCache.get(oid);
 	}
 	
+	/**
+	 * @return The oid of the given object, or -1 when the object is not in this cache
+	 */
 	public long get(IdEObject object) {
-		return oidCache.inverse().get(object);
+		return oidCache.getKey((IdEObjectImpl) object);
 	}
 	
 	public boolean contains(IdEObject object) {
-		return oidCache.inverse().containsKey(object);
+		return oidCache.containsValue((IdEObjectImpl) object);
 	}
 
 	public boolean contains(long oid) {
@@ -51,4 +52,4 @@ public class ObjectCache {
 	public void clear() {
 		oidCache.clear();
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,153 @@
+package org.bimserver.database;
+
+/******************************************************************************
+ * Copyright (C) 2009-2018  BIMserver.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bimserver.BimserverDatabaseException;
+import org.eclipse.emf.common.util.Enumerator;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Per concrete revision inverted index from (property set name, property name, normalized value) to the oids of the objects that have that property, either
+ * directly (IfcRelDefinesByProperties) or through their type (IfcRelDefinesByType). Only IfcPropertySingleValue properties of IfcPropertySets are indexed.
+ *
+ * The index is allowed to contain too many entries (values are normalized, so for example the string "60" and the number 60 end up in the same entry), the caller
+ * is responsible for verifying the candidates.
+ *
+ * Key: croid (8) | property set name | property name | value (all 3 as length (2) + UTF-8) | oid (8)
+ * Value: empty
+ */
+public class PropertyIndex {
+	public static final String PROPERTY_INDEX_TABLE = "INT-PropertyIndex";
+	private static final String COMPLETE_PREFIX = "propertyindex_";
+
+	// Longer names/values are not indexed, queries on them have to fall back to scanning
+	private static final int MAX_PART_LENGTH = 1024;
+	private static final byte[] EMPTY = new byte[0];
+	private final KeyValueStore keyValueStore;
+	private volatile TableHandle table;
+
+	public PropertyIndex(KeyValueStore keyValueStore) {
+		this.keyValueStore = keyValueStore;
+	}
+
+	private TableHandle getTable() throws BimserverDatabaseException {
+		if (table == null) {
+			// The table is opened after this object has been created
+			table = keyValueStore.getTableHandle(PROPERTY_INDEX_TABLE);
+		}
+		return table;
+	}
+
+	public void add(long croid, String propertySetName, String propertyName, Object value, long oid, DatabaseSession databaseSession) throws BimserverLockConflictException, BimserverDatabaseException {
+		ByteBuffer prefix = createPrefix(croid, propertySetName, propertyName, normalize(value));
+		if (prefix == null) {
+			return;
+		}
+		ByteBuffer key = ByteBuffer.allocate(prefix.capacity() + 8);
+		key.put(prefix.array());
+		key.putLong(oid);
+		databaseSession.storeBatched(getTable(), key.array(), EMPTY, 0, 0, false);
+	}
+
+	/**
+	 * Only revisions for which all properties have been indexed should be queried through the index, older revisions will have to keep using the full scan
+	 */
+	public boolean isComplete(long croid, DatabaseSession databaseSession) throws BimserverLockConflictException, BimserverDatabaseException {
+		byte[] bytes = keyValueStore.get(Registry.REGISTRY_TABLE, (COMPLETE_PREFIX + croid).getBytes(), databaseSession);
+		return bytes != null;
+	}
+
+	public void setComplete(long croid, DatabaseSession databaseSession) throws BimserverLockConflictException, BimserverDatabaseException {
+		keyValueStore.store(Registry.REGISTRY_TABLE, (COMPLETE_PREFIX + croid).getBytes(), new byte[]{1}, databaseSession);
+	}
+
+	public void setIncomplete(long croid, DatabaseSession databaseSession) throws BimserverLockConflictException {
+		keyValueStore.delete(Registry.REGISTRY_TABLE, (COMPLETE_PREFIX + croid).getBytes(), databaseSession);
+	}
+
+	/**
+	 * Returns the oids of all objects that (possibly) have the given property value, sorted by oid. Returns null when the given combination cannot be looked up in the index.
+	 */
+	public List<Long> query(long croid, String propertySetName, String propertyName, Object value, DatabaseSession databaseSession) throws BimserverLockConflictException, BimserverDatabaseException {
+		List<Long> result = new ArrayList<>();
+		if (value == null) {
+			// Properties without a value are not indexed, and never match
+			return result;
+		}
+		ByteBuffer prefix = createPrefix(croid, propertySetName, propertyName, normalize(value));
+		if (prefix == null) {
+			return null;
+		}
+		try (SearchingRecordIterator recordIterator = keyValueStore.getRecordIterator(getTable(), prefix.array(), prefix.array(), databaseSession, true)) {
+			Record record = recordIterator.next();
+			while (record != null) {
+				byte[] key = record.getKey();
+				result.add(ByteBuffer.wrap(key).getLong(key.length - 8));
+				record = recordIterator.next();
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Converts a property value (the wrappedValue of an IfcValue) or a value from a query to the form that is stored in the index. Numbers are compared by value,
+	 * so 60 and 60.0 are the same, IfcBoolean/IfcLogical values become "true", "false" or "undefined".
+	 */
+	public static String normalize(Object value) {
+		if (value == null) {
+			return null;
+		}
+		if (value instanceof Enumerator) {
+			return ((Enumerator) value).getName().toLowerCase();
+		}
+		if (value instanceof Number) {
+			double d = ((Number) value).doubleValue();
+			if (d == Math.rint(d) && Math.abs(d) < 1E15) {
+				return Long.toString((long) d);
+			}
+			return Double.toString(d);
+		}
+		return value.toString();
+	}
+
+	private ByteBuffer createPrefix(long croid, String propertySetName, String propertyName, String normalizedValue) {
+		if (propertySetName == null || propertyName == null || normalizedValue == null) {
+			return null;
+		}
+		byte[] propertySetNameBytes = propertySetName.getBytes(Charsets.UTF_8);
+		byte[] propertyNameBytes = propertyName.getBytes(Charsets.UTF_8);
+		byte[] valueBytes = normalizedValue.getBytes(Charsets.UTF_8);
+		if (propertySetNameBytes.length > MAX_PART_LENGTH || propertyNameBytes.length > MAX_PART_LENGTH || valueBytes.length > MAX_PART_LENGTH) {
+			return null;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(8 + 6 + propertySetNameBytes.length + propertyNameBytes.length + valueBytes.length);
+		buffer.putLong(croid);
+		buffer.putShort((short) propertySetNameBytes.length);
+		buffer.put(propertySetNameBytes);
+		buffer.putShort((short) propertyNameBytes.length);
+		buffer.put(propertyNameBytes);
+		buffer.putShort((short) valueBytes.length);
+		buffer.put(valueBytes);
+		return buffer;
+	}
+}
@@ -76,6 +76,15 @@ public class Registry {
 		}
 	}
 
+	public long readLong(String key, DatabaseSession databaseSession, long defaultValue) throws BimserverLockConflictException, BimserverDatabaseException {
+		byte[] bytes = keyValueStore.get(REGISTRY_TABLE, key.getBytes(Charsets.UTF_8), databaseSession);
+		if (bytes == null) {
+			return defaultValue;
+		} else {
+			return BinUtils.byteArrayToLong(bytes);
+		}
+	}
+
 	public int readInt(String key, DatabaseSession databaseSession) throws BimserverLockConflictException, BimserverDatabaseException {
 		byte[] bytes = keyValueStore.get(REGISTRY_TABLE, key.getBytes(Charsets.UTF_8), databaseSession);
 		if (bytes == null) {
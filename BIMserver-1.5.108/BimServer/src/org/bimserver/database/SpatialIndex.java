@@ -0,0 +1,269 @@
+package org.bimserver.database;
+
+/******************************************************************************
+ * Copyright (C) 2009-2018  BIMserver.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.bimserver.BimserverDatabaseException;
+
+/**
+ * Per concrete revision spatial index on the boundsMm of the generated geometry.
+ *
+ * The index is a loose multi-level grid (effectively a linear octree). An object is stored on the level where the cell size (2^level mm) is at least its largest
+ * extent, in the cell that contains its min corner. This means an object only ever overlaps the cell it is stored in and the next cell on every axis, so when querying a level
+ * we only have to grow the query box by one cell on the min side.
+ *
+ * Key: croid (8) | cid (2) | level (1) | x (4) | y (4) | z (4) | oid (8)
+ * Value: minX, minY, minZ, maxX, maxY, maxZ (6 * 8) | density (4)
+ */
+public class SpatialIndex {
+	public static final String SPATIAL_INDEX_TABLE = "INT-SpatialIndex";
+	private static final String COMPLETE_PREFIX = "spatialindex_";
+	private static final int MAX_LEVEL = 48;
+
+	// When a level would require more column seeks than this, the whole level is scanned instead
+	private static final int MAX_COLUMNS_PER_LEVEL = 4096;
+	private static final int KEY_LENGTH = 31;
+	private static final int COLUMN_PREFIX_LENGTH = 19;
+	private static final int LEVEL_PREFIX_LENGTH = 11;
+	private final KeyValueStore keyValueStore;
+	private volatile TableHandle table;
+
+	public static class Entry {
+		private final long oid;
+		private final double[] min;
+		private final double[] max;
+		private final float density;
+
+		public Entry(long oid, double[] min, double[] max, float density) {
+			this.oid = oid;
+			this.min = min;
+			this.max = max;
+			this.density = density;
+		}
+
+		public long getOid() {
+			return oid;
+		}
+
+		public double[] getMin() {
+			return min;
+		}
+
+		public double[] getMax() {
+			return max;
+		}
+
+		public float getDensity() {
+			return density;
+		}
+	}
+
+	public SpatialIndex(KeyValueStore keyValueStore) {
+		this.keyValueStore = keyValueStore;
+	}
+
+	private TableHandle getTable() throws BimserverDatabaseException {
+		if (table == null) {
+			// The table is opened after this object has been created
+			table = keyValueStore.getTableHandle(SPATIAL_INDEX_TABLE);
+		}
+		return table;
+	}
+
+	public void add(long croid, long oid, double[] min, double[] max, float density, DatabaseSession databaseSession) throws BimserverLockConflictException, BimserverDatabaseException {
+		double extent = Math.max(max[0] - min[0], Math.max(max[1] - min[1], max[2] - min[2]));
+		int level = levelFor(extent);
+		double cellSize = cellSize(level);
+
+		ByteBuffer key = ByteBuffer.allocate(KEY_LENGTH);
+		key.putLong(croid);
+		key.putShort((short) oid);
+		key.put((byte) level);
+		key.putInt(sortable(cell(min[0], cellSize)));
+		key.putInt(sortable(cell(min[1], cellSize)));
+		key.putInt(sortable(cell(min[2], cellSize)));
+		key.putLong(oid);
+
+		ByteBuffer value = ByteBuffer.allocate(52);
+		for (int i=0; i<3; i++) {
+			value.putDouble(min[i]);
+		}
+		for (int i=0; i<3; i++) {
+			value.putDouble(max[i]);
+		}
+		value.putFloat(density);
+
+		databaseSession.storeBatched(getTable(), key.array(), value.array(), 0, value.capacity(), false);
+	}
+
+	/**
+	 * Only revisions for which all geometry has been indexed should be queried through the index, older revisions will have to keep using the full scan
+	 */
+	public boolean isComplete(long croid, DatabaseSession databaseSession) throws BimserverLockConflictException, BimserverDatabaseException {
+		byte[] bytes = keyValueStore.get(Registry.REGISTRY_TABLE, (COMPLETE_PREFIX + croid).getBytes(), databaseSession);
+		return bytes != null;
+	}
+
+	public void setComplete(long croid, DatabaseSession databaseSession) throws BimserverLockConflictException, BimserverDatabaseException {
+		keyValueStore.store(Registry.REGISTRY_TABLE, (COMPLETE_PREFIX + croid).getBytes(), new byte[]{1}, databaseSession);
+	}
+
+	public void setIncomplete(long croid, DatabaseSession databaseSession) throws BimserverLockConflictException {
+		keyValueStore.delete(Registry.REGISTRY_TABLE, (COMPLETE_PREFIX + croid).getBytes(), databaseSession);
+	}
+
+	/**
+	 * Removes all entries of the given concrete revision, used when geometry is regenerated
+	 */
+	public void clear(long croid, DatabaseSession databaseSession) throws BimserverLockConflictException, BimserverDatabaseException {
+		setIncomplete(croid, databaseSession);
+		byte[] prefix = ByteBuffer.allocate(8).putLong(croid).array();
+		try (SearchingRecordIterator recordIterator = keyValueStore.getRecordIterator(getTable(), prefix, prefix, databaseSession, true)) {
+			Record record = recordIterator.next();
+			while (record != null) {
+				keyValueStore.delete(SPATIAL_INDEX_TABLE, record.getKey(), databaseSession);
+				record = recordIterator.next();
+			}
+		}
+	}
+
+	/**
+	 * Returns all entries of the given class whose bounds intersect the given box, sorted by oid. NaN values make the box unbounded on that side.
+	 * The returned entries are candidates, the caller is responsible for applying the exact (partial/center point/contained) test.
+	 */
+	public List<Entry> query(long croid, short cid, double[] queryMin, double[] queryMax, DatabaseSession databaseSession) throws BimserverLockConflictException, BimserverDatabaseException {
+		List<Entry> result = new ArrayList<>();
+		for (int level=0; level<=MAX_LEVEL; level++) {
+			ByteBuffer levelPrefix = ByteBuffer.allocate(LEVEL_PREFIX_LENGTH);
+			levelPrefix.putLong(croid);
+			levelPrefix.putShort(cid);
+			levelPrefix.put((byte) level);
+
+			try (SearchingRecordIterator recordIterator = keyValueStore.getRecordIterator(getTable(), levelPrefix.array(), levelPrefix.array(), databaseSession)) {
+				Record record = recordIterator.next();
+				if (record == null) {
+					// Empty level
+					continue;
+				}
+				double cellSize = cellSize(level);
+				int[] minCell = new int[3];
+				int[] maxCell = new int[3];
+				boolean bounded = true;
+				for (int i=0; i<3; i++) {
+					if (Double.isNaN(queryMin[i]) || Double.isNaN(queryMax[i])) {
+						bounded = false;
+					} else {
+						// Objects stored in the previous cell may still reach into the query box
+						minCell[i] = cell(queryMin[i] - cellSize, cellSize);
+						maxCell[i] = cell(queryMax[i], cellSize);
+					}
+				}
+				long columns = bounded ? ((long)maxCell[0] - minCell[0] + 1) * ((long)maxCell[1] - minCell[1] + 1) : Long.MAX_VALUE;
+				if (columns > MAX_COLUMNS_PER_LEVEL) {
+					while (record != null) {
+						addIfIntersecting(result, record, queryMin, queryMax);
+						record = recordIterator.next();
+					}
+				} else {
+					ByteBuffer columnStart = ByteBuffer.allocate(COLUMN_PREFIX_LENGTH + 4);
+					for (int x=minCell[0]; x<=maxCell[0]; x++) {
+						for (int y=minCell[1]; y<=maxCell[1]; y++) {
+							columnStart.position(0);
+							columnStart.put(levelPrefix.array());
+							columnStart.putInt(sortable(x));
+							columnStart.putInt(sortable(y));
+							columnStart.putInt(sortable(minCell[2]));
+							record = recordIterator.next(columnStart.array());
+							while (record != null) {
+								ByteBuffer keyBuffer = ByteBuffer.wrap(record.getKey());
+								keyBuffer.position(LEVEL_PREFIX_LENGTH);
+								int keyX = keyBuffer.getInt();
+								int keyY = keyBuffer.getInt();
+								int keyZ = keyBuffer.getInt();
+								if (keyX != sortable(x) || keyY != sortable(y) || Integer.compareUnsigned(keyZ, sortable(maxCell[2])) > 0) {
+									break;
+								}
+								addIfIntersecting(result, record, queryMin, queryMax);
+								record = recordIterator.next();
+							}
+						}
+					}
+				}
+			}
+		}
+		Collections.sort(result, new Comparator<Entry>() {
+			@Override
+			public int compare(Entry o1, Entry o2) {
+				return Long.compare(o1.getOid(), o2.getOid());
+			}
+		});
+		return result;
+	}
+
+	private void addIfIntersecting(List<Entry> result, Record record, double[] queryMin, double[] queryMax) {
+		ByteBuffer keyBuffer = ByteBuffer.wrap(record.getKey());
+		long oid = keyBuffer.getLong(KEY_LENGTH - 8);
+		ByteBuffer valueBuffer = ByteBuffer.wrap(record.getValue());
+		double[] min = new double[]{valueBuffer.getDouble(), valueBuffer.getDouble(), valueBuffer.getDouble()};
+		double[] max = new double[]{valueBuffer.getDouble(), valueBuffer.getDouble(), valueBuffer.getDouble()};
+		float density = valueBuffer.getFloat();
+		for (int i=0; i<3; i++) {
+			if (!Double.isNaN(queryMax[i]) && min[i] > queryMax[i]) {
+				return;
+			}
+			if (!Double.isNaN(queryMin[i]) && max[i] < queryMin[i]) {
+				return;
+			}
+		}
+		result.add(new Entry(oid, min, max, density));
+	}
+
+	private int levelFor(double extent) {
+		if (!(extent > 1)) {
+			return 0;
+		}
+		int level = 64 - Long.numberOfLeadingZeros((long) Math.ceil(extent) - 1);
+		return Math.min(level, MAX_LEVEL);
+	}
+
+	private double cellSize(int level) {
+		return (double) (1L << level);
+	}
+
+	private int cell(double value, double cellSize) {
+		double cell = Math.floor(value / cellSize);
+		if (cell > Integer.MAX_VALUE) {
+			return Integer.MAX_VALUE;
+		} else if (cell < Integer.MIN_VALUE) {
+			return Integer.MIN_VALUE;
+		}
+		return (int) cell;
+	}
+
+	/**
+	 * Flips the sign bit, so negative cells are sorted before positive ones by the (unsigned, big endian) key comparison
+	 */
+	private int sortable(int cell) {
+		return cell ^ Integer.MIN_VALUE;
+	}
+}
@@ -0,0 +1,287 @@
+package org.bimserver.database;
+
+/******************************************************************************
+ * Copyright (C) 2009-2018  BIMserver.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bimserver.BimserverDatabaseException;
+import org.bimserver.models.store.ConcreteRevision;
+import org.bimserver.models.store.Project;
+import org.bimserver.shared.exceptions.ServiceException;
+import org.eclipse.emf.ecore.EClass;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Background thread that removes the records of purged projects. Deleting a project only marks it as deleted, purging it queues its pid (and the croids of its
+ * concrete revisions) in the reclaim table. This thread then removes all records with that pid from the class tables and the geometry content store, the entries
+ * pointing to those records from the "singleindex" tables and the spatial and property index entries of the concrete revisions.
+ *
+ * Records are deleted in batches, every batch in its own transaction followed by a pause, so the server stays responsive. The queue is persistent, an interrupted purge
+ * continues after a restart. Deleting records that are already gone does nothing, so redoing (part of) a purge is harmless.
+ *
+ * Queue key: pid (4)
+ * Queue value: croid (8) * n
+ */
+public class StorageReclaimer extends Thread {
+	private static final Logger LOGGER = LoggerFactory.getLogger(StorageReclaimer.class);
+	public static final String RECLAIM_TABLE = "INT-Reclaim";
+	public static final String RECLAIMED_BYTES = "RECLAIMED_BYTES";
+	public static final String RECLAIMED_RECORDS = "RECLAIMED_RECORDS";
+	private static final String PURGED_PREFIX = "purgedproject_";
+
+	// How long to wait before looking at the queue again when nothing woke us up, or after a failure
+	private static final long IDLE_WAIT_MS = 60000;
+	private final Database database;
+	private final KeyValueStore keyValueStore;
+	private final int batchSize;
+	private final long batchDelay;
+	private final Object lock = new Object();
+	private volatile boolean running = true;
+	private boolean queueChanged = true;
+
+	/**
+	 * @param batchSize The maximum number of records to delete per transaction
+	 * @param batchDelay The time in milliseconds to wait between batches
+	 */
+	public StorageReclaimer(Database database, int batchSize, long batchDelay) {
+		this.database = database;
+		this.keyValueStore = database.getKeyValueStore();
+		this.batchSize = batchSize;
+		this.batchDelay = batchDelay;
+		setName("Storage reclaimer");
+		setDaemon(true);
+	}
+
+	/**
+	 * Adds the given project and its subprojects to the queue, within the transaction of the given session. Call wake() after the session has been committed.
+	 */
+	public void queue(Project project, DatabaseSession databaseSession) throws BimserverLockConflictException, BimserverDatabaseException {
+		ByteBuffer value = ByteBuffer.allocate(project.getConcreteRevisions().size() * 8);
+		for (ConcreteRevision concreteRevision : project.getConcreteRevisions()) {
+			value.putLong(concreteRevision.getOid());
+		}
+		keyValueStore.store(RECLAIM_TABLE, ByteBuffer.allocate(4).putInt(project.getId()).array(), value.array(), databaseSession);
+		database.getRegistry().save(PURGED_PREFIX + project.getOid(), true, databaseSession);
+		for (Project subProject : project.getSubProjects()) {
+			queue(subProject, databaseSession);
+		}
+	}
+
+	/**
+	 * @return Whether the given project has been purged, its data might not have been removed yet
+	 */
+	public boolean isPurged(long poid, DatabaseSession databaseSession) throws BimserverLockConflictException, BimserverDatabaseException {
+		return database.getRegistry().has(PURGED_PREFIX + poid, databaseSession);
+	}
+
+	public void wake() {
+		synchronized (lock) {
+			queueChanged = true;
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Stops the thread after the current batch, the thread is not interrupted because that could leave the database environment in an invalid state
+	 */
+	public void terminate() {
+		synchronized (lock) {
+			running = false;
+			lock.notifyAll();
+		}
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			try {
+				synchronized (lock) {
+					if (!queueChanged && running) {
+						lock.wait(IDLE_WAIT_MS);
+					}
+					queueChanged = false;
+				}
+				Map<Integer, List<Long>> queue = readQueue();
+				if (!queue.isEmpty()) {
+					reclaim(queue);
+				}
+			} catch (InterruptedException e) {
+				if (running) {
+					LOGGER.error("Unexpected interruption");
+				}
+			} catch (BimserverDatabaseException e) {
+				// Most likely a lock conflict with a regular transaction, the queue is still intact so the next round continues where this one stopped
+				LOGGER.error("", e);
+			} catch (ServiceException e) {
+				LOGGER.error("", e);
+			}
+		}
+	}
+
+	private Map<Integer, List<Long>> readQueue() throws BimserverLockConflictException, BimserverDatabaseException {
+		Map<Integer, List<Long>> queue = new LinkedHashMap<>();
+		try (DatabaseSession databaseSession = database.createSession()) {
+			try (RecordIterator recordIterator = keyValueStore.getRecordIterator(RECLAIM_TABLE, databaseSession)) {
+				Record record = recordIterator.next();
+				while (record != null) {
+					ByteBuffer value = ByteBuffer.wrap(record.getValue());
+					List<Long> croids = new ArrayList<>();
+					while (value.hasRemaining()) {
+						croids.add(value.getLong());
+					}
+					queue.put(ByteBuffer.wrap(record.getKey()).getInt(), croids);
+					record = recordIterator.next();
+				}
+			}
+		}
+		return queue;
+	}
+
+	private void reclaim(Map<Integer, List<Long>> queue) throws BimserverDatabaseException, ServiceException, InterruptedException {
+		LOGGER.info("Reclaiming storage of " + queue.size() + " purged project(s)");
+		for (Integer pid : queue.keySet()) {
+			byte[] prefix = ByteBuffer.allocate(4).putInt(pid).array();
+			for (EClass eClass : database.getClasses()) {
+				deleteRange(database.getTableName(eClass), database.getTableHandle(eClass), prefix);
+			}
+			deleteRange(GeometryContentStore.GEOMETRY_CONTENT_TABLE, keyValueStore.getTableHandle(GeometryContentStore.GEOMETRY_CONTENT_TABLE), prefix);
+		}
+		// The index tables are keyed by feature value, so they have to be scanned completely, which is done once for all queued projects
+		Set<Integer> pids = new HashSet<>(queue.keySet());
+		for (EClass eClass : database.getClasses()) {
+			for (TableHandle indexTableHandle : database.getIndexTableHandles(eClass).values()) {
+				cleanIndexTable(indexTableHandle, pids);
+			}
+		}
+		for (Map.Entry<Integer, List<Long>> entry : queue.entrySet()) {
+			for (long croid : entry.getValue()) {
+				byte[] prefix = ByteBuffer.allocate(8).putLong(croid).array();
+				deleteRange(SpatialIndex.SPATIAL_INDEX_TABLE, keyValueStore.getTableHandle(SpatialIndex.SPATIAL_INDEX_TABLE), prefix);
+				deleteRange(PropertyIndex.PROPERTY_INDEX_TABLE, keyValueStore.getTableHandle(PropertyIndex.PROPERTY_INDEX_TABLE), prefix);
+			}
+			if (!running) {
+				// Stopped halfway, the project stays queued
+				return;
+			}
+			try (DatabaseSession databaseSession = database.createSession()) {
+				for (long croid : entry.getValue()) {
+					database.getSpatialIndex().setIncomplete(croid, databaseSession);
+					database.getPropertyIndex().setIncomplete(croid, databaseSession);
+				}
+				keyValueStore.delete(RECLAIM_TABLE, ByteBuffer.allocate(4).putInt(entry.getKey()).array(), databaseSession);
+				databaseSession.commit();
+			}
+			LOGGER.info("Reclaimed storage of project with pid " + entry.getKey());
+		}
+	}
+
+	/**
+	 * Deletes all records of which the key starts with the given prefix
+	 */
+	private void deleteRange(String tableName, TableHandle tableHandle, byte[] prefix) throws BimserverDatabaseException, ServiceException, InterruptedException {
+		while (running) {
+			List<byte[]> keys = new ArrayList<>();
+			long bytes = 0;
+			try (DatabaseSession databaseSession = database.createSession()) {
+				try (SearchingRecordIterator recordIterator = keyValueStore.getRecordIterator(tableHandle, prefix, prefix, databaseSession)) {
+					Record record = recordIterator.next();
+					while (record != null && keys.size() < batchSize) {
+						keys.add(record.getKey());
+						bytes += record.getKey().length + record.getValue().length;
+						record = recordIterator.next();
+					}
+				}
+				if (keys.isEmpty()) {
+					return;
+				}
+				for (byte[] key : keys) {
+					keyValueStore.delete(tableName, key, databaseSession);
+				}
+				addReclaimed(keys.size(), bytes, databaseSession);
+				databaseSession.commit();
+			}
+			if (keys.size() < batchSize) {
+				return;
+			}
+			pause();
+		}
+	}
+
+	/**
+	 * Deletes all index entries that point to a record of one of the given projects, the values of index entries are the keys of the indexed records (pid first)
+	 */
+	private void cleanIndexTable(TableHandle indexTableHandle, Set<Integer> pids) throws BimserverDatabaseException, ServiceException, InterruptedException {
+		byte[] startSearchingAt = new byte[0];
+		while (running) {
+			List<byte[][]> entries = new ArrayList<>();
+			long bytes = 0;
+			boolean finished = true;
+			try (DatabaseSession databaseSession = database.createSession()) {
+				try (SearchingRecordIterator recordIterator = keyValueStore.getRecordIterator(indexTableHandle, new byte[0], startSearchingAt, databaseSession)) {
+					Record record = recordIterator.next();
+					while (record != null) {
+						byte[] value = record.getValue();
+						if (value.length >= 4 && pids.contains(ByteBuffer.wrap(value).getInt())) {
+							entries.add(new byte[][] { record.getKey(), value });
+							bytes += record.getKey().length + value.length;
+							if (entries.size() >= batchSize) {
+								// Continue at this key next time, duplicates of this key that have been deleted will not show up again
+								startSearchingAt = record.getKey();
+								finished = false;
+								break;
+							}
+						}
+						record = recordIterator.next();
+					}
+				}
+				for (byte[][] entry : entries) {
+					keyValueStore.delete(indexTableHandle, entry[0], entry[1], databaseSession);
+				}
+				if (!entries.isEmpty()) {
+					addReclaimed(entries.size(), bytes, databaseSession);
+					databaseSession.commit();
+				}
+			}
+			if (finished) {
+				return;
+			}
+			pause();
+		}
+	}
+
+	private void pause() throws InterruptedException {
+		synchronized (lock) {
+			if (running) {
+				lock.wait(batchDelay);
+			}
+		}
+	}
+
+	private void addReclaimed(long records, long bytes, DatabaseSession databaseSession) throws BimserverLockConflictException, BimserverDatabaseException {
+		Registry registry = database.getRegistry();
+		registry.save(RECLAIMED_RECORDS, registry.readLong(RECLAIMED_RECORDS, databaseSession, 0) + records, databaseSession);
+		registry.save(RECLAIMED_BYTES, registry.readLong(RECLAIMED_BYTES, databaseSession, 0) + bytes, databaseSession);
+	}
+}
@@ -0,0 +1,182 @@
+package org.bimserver.database;
+
+/******************************************************************************
+ * Copyright (C) 2009-2018  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.bimserver.BimserverDatabaseException;
+import org.bimserver.utils.BinUtils;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Strings that occur in many IFC records (names, object types, labels) are stored once in the dictionary table, the records refer to them by id. Where a
+ * record normally has the length of a string, a dictionary reference has a negative number below -1 (-1 means null), so records written without the dictionary
+ * stay readable.
+ * 
+ * Ids are never reused or removed, so the cache of id to string can be shared by all sessions, including those of a read-only replica.
+ */
+public class StringDictionary {
+	public static final String DICTIONARY_TABLE = "INT-StringDictionary";
+	public static final String DICTIONARY_INDEX_TABLE = "INT-StringDictionaryIndex";
+
+	// A reference takes 4 bytes, shorter strings are not worth a lookup. Long strings are usually descriptions that do not repeat
+	public static final int MIN_LENGTH = 8;
+	public static final int MAX_LENGTH = 512;
+
+	private final KeyValueStore keyValueStore;
+	private final boolean enabled;
+	private final Map<Integer, String> strings;
+	private final Map<String, Integer> ids;
+	private volatile boolean available;
+	private int nextId;
+
+	/**
+	 * @param enabled Whether new records use the dictionary, existing references are always resolved
+	 * @param cacheSize The maximum number of strings (and ids) that are cached
+	 */
+	public StringDictionary(KeyValueStore keyValueStore, boolean enabled, final int cacheSize) {
+		this.keyValueStore = keyValueStore;
+		this.enabled = enabled;
+		this.strings = new LinkedHashMap<Integer, String>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, String> eldest) {
+				return size() > cacheSize;
+			}
+		};
+		this.ids = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+				return size() > cacheSize;
+			}
+		};
+	}
+
+	public void init() throws BimserverDatabaseException {
+		available = keyValueStore.containsTable(DICTIONARY_TABLE) && keyValueStore.containsTable(DICTIONARY_INDEX_TABLE);
+		if (!available) {
+			return;
+		}
+		RecordIterator recordIterator = keyValueStore.getRecordIterator(DICTIONARY_TABLE, null);
+		try {
+			Record last = recordIterator.last();
+			if (last != null) {
+				nextId = BinUtils.byteArrayToInt(last.getKey()) + 1;
+			}
+		} finally {
+			recordIterator.close();
+		}
+	}
+
+	public boolean isEnabled() {
+		return enabled && available && !keyValueStore.isReadOnly();
+	}
+
+	public static boolean isReference(int lengthOrReference) {
+		return lengthOrReference < -1;
+	}
+
+	public static int toReference(int id) {
+		return -2 - id;
+	}
+
+	public String get(int reference) throws BimserverDatabaseException {
+		int id = -2 - reference;
+		synchronized (strings) {
+			String value = strings.get(id);
+			if (value != null) {
+				return value;
+			}
+		}
+		String value = BinUtils.byteArrayToString(read(id));
+		synchronized (strings) {
+			strings.put(id, value);
+		}
+		return value;
+	}
+
+	public byte[] getBytes(int reference) throws BimserverDatabaseException {
+		return get(reference).getBytes(Charsets.UTF_8);
+	}
+
+	private byte[] read(int id) throws BimserverDatabaseException {
+		byte[] value = keyValueStore.get(DICTIONARY_TABLE, BinUtils.intToByteArray(id), null);
+		if (value == null) {
+			throw new BimserverDatabaseException("String " + id + " not found in dictionary");
+		}
+		return value;
+	}
+
+	/**
+	 * @return The id of the string when it has been used recently, without reading from the database
+	 */
+	public Integer getCachedId(String value) {
+		synchronized (ids) {
+			return ids.get(value);
+		}
+	}
+
+	/**
+	 * @return The id of the string, or null when the string is not in the dictionary
+	 */
+	public Integer find(String value) throws BimserverDatabaseException {
+		Integer id = getCachedId(value);
+		if (id != null) {
+			return id;
+		}
+		if (!available) {
+			return null;
+		}
+		byte[] stored = keyValueStore.get(DICTIONARY_INDEX_TABLE, BinUtils.stringToByteArray(value), null);
+		if (stored == null) {
+			return null;
+		}
+		id = BinUtils.byteArrayToInt(stored);
+		synchronized (ids) {
+			ids.put(value, id);
+		}
+		return id;
+	}
+
+	/**
+	 * The dictionary tables are not transactional, like the IFC tables that refer to them. Strings added by a session that is rolled back stay in the dictionary
+	 * unused.
+	 */
+	public synchronized int getOrCreate(String value) throws BimserverDatabaseException {
+		Integer id = find(value);
+		if (id != null) {
+			return id;
+		}
+		id = nextId++;
+		byte[] bytes = BinUtils.stringToByteArray(value);
+		keyValueStore.store(DICTIONARY_TABLE, BinUtils.intToByteArray(id), bytes, null);
+		keyValueStore.store(DICTIONARY_INDEX_TABLE, bytes, BinUtils.intToByteArray(id), null);
+		synchronized (ids) {
+			ids.put(value, id);
+		}
+		synchronized (strings) {
+			strings.put(id, value);
+		}
+		return id;
+	}
+}
@@ -0,0 +1,168 @@
+package org.bimserver.database;
+
+/******************************************************************************
+ * Copyright (C) 2009-2018  BIMserver.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.bimserver.shared.HashMapVirtualObject;
+import org.bimserver.shared.HashMapWrappedVirtualObject;
+import org.eclipse.emf.ecore.EStructuralFeature;
+
+/**
+ * Cache of the HashMapVirtualObjects read or created by one DatabaseSession. The cache is limited by the estimated heap size of the cached objects, when it grows
+ * beyond that size the least recently used objects are evicted. Evicted objects will be read from the database again when needed.
+ */
+public class VirtualObjectCache {
+	// Rough heap usage of a HashMapVirtualObject without any values, and of one entry in its map
+	private static final int OBJECT_OVERHEAD = 200;
+	private static final int ENTRY_OVERHEAD = 48;
+
+	private final long maxBytes;
+	private final LinkedHashMap<Long, CacheEntry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long bytes;
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	private static class CacheEntry {
+		private final HashMapVirtualObject object;
+		private final long size;
+
+		public CacheEntry(HashMapVirtualObject object, long size) {
+			this.object = object;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * @param maxBytes The maximum estimated size of the cached objects, -1 for no limit
+	 */
+	public VirtualObjectCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	public synchronized HashMapVirtualObject get(long oid) {
+		CacheEntry cacheEntry = entries.get(oid);
+		if (cacheEntry == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return cacheEntry.object;
+	}
+
+	public synchronized void put(HashMapVirtualObject object) {
+		remove(object.getOid());
+		CacheEntry cacheEntry = new CacheEntry(object, estimateSize(object));
+		entries.put(object.getOid(), cacheEntry);
+		bytes += cacheEntry.size;
+		evict();
+	}
+
+	public synchronized void remove(long oid) {
+		CacheEntry cacheEntry = entries.remove(oid);
+		if (cacheEntry != null) {
+			bytes -= cacheEntry.size;
+		}
+	}
+
+	private void evict() {
+		if (maxBytes == -1) {
+			return;
+		}
+		Iterator<CacheEntry> iterator = entries.values().iterator();
+		while (bytes > maxBytes && iterator.hasNext()) {
+			CacheEntry cacheEntry = iterator.next();
+			iterator.remove();
+			bytes -= cacheEntry.size;
+			evictions++;
+		}
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		bytes = 0;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * @return The estimated heap size of all cached objects
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "objects: " + size() + ", bytes: " + bytes + ", hits: " + hits + ", misses: " + misses + ", evictions: " + evictions;
+	}
+
+	private static long estimateSize(HashMapVirtualObject object) {
+		long size = OBJECT_OVERHEAD;
+		for (EStructuralFeature eStructuralFeature : object.eClass().getEAllStructuralFeatures()) {
+			Object value = object.eGet(eStructuralFeature);
+			if (value != null) {
+				size += ENTRY_OVERHEAD + estimateValueSize(value);
+			}
+		}
+		return size;
+	}
+
+	private static long estimateValueSize(Object value) {
+		if (value instanceof byte[]) {
+			return 16 + ((byte[]) value).length;
+		} else if (value instanceof String) {
+			return 40 + 2 * ((String) value).length();
+		} else if (value instanceof List) {
+			long size = 24;
+			for (Object item : (List<?>) value) {
+				size += 8 + (item == null ? 0 : estimateValueSize(item));
+			}
+			return size;
+		} else if (value instanceof HashMapWrappedVirtualObject) {
+			HashMapWrappedVirtualObject wrappedObject = (HashMapWrappedVirtualObject) value;
+			long size = OBJECT_OVERHEAD;
+			for (EStructuralFeature eStructuralFeature : wrappedObject.eClass().getEAllStructuralFeatures()) {
+				Object wrappedValue = wrappedObject.eGet(eStructuralFeature);
+				if (wrappedValue != null) {
+					size += ENTRY_OVERHEAD + estimateValueSize(wrappedValue);
+				}
+			}
+			return size;
+		}
+		// Boxed primitives and enum literals
+		return 16;
+	}
+}
@@ -0,0 +1,139 @@
+package org.bimserver.database;
+
+/******************************************************************************
+ * Copyright (C) 2009-2018  BIMserver.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A number of records that are written to the KeyValueStore in one call. Records are grouped per table and sorted by key (unsigned, like the store compares
+ * them) before they are written, so consecutive writes end up in the same parts of the B-tree.
+ *
+ * The batch does not copy the given arrays, the caller should not reuse them.
+ */
+public class WriteBatch {
+	private static final Comparator<Entry> KEY_COMPARATOR = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry o1, Entry o2) {
+			return compareUnsigned(o1.key, o2.key);
+		}
+	};
+
+	public static class Entry {
+		private final byte[] key;
+		private final byte[] value;
+		private final int offset;
+		private final int length;
+		private final boolean noOverwrite;
+
+		private Entry(byte[] key, byte[] value, int offset, int length, boolean noOverwrite) {
+			this.key = key;
+			this.value = value;
+			this.offset = offset;
+			this.length = length;
+			this.noOverwrite = noOverwrite;
+		}
+
+		public byte[] getKey() {
+			return key;
+		}
+
+		public byte[] getValue() {
+			return value;
+		}
+
+		public int getOffset() {
+			return offset;
+		}
+
+		public int getLength() {
+			return length;
+		}
+
+		public boolean isNoOverwrite() {
+			return noOverwrite;
+		}
+	}
+
+	private final Map<TableHandle, List<Entry>> tables = new LinkedHashMap<>();
+	private int size;
+	private long bytes;
+
+	public void store(TableHandle table, byte[] key, byte[] value, int offset, int length) {
+		add(table, new Entry(key, value, offset, length, false));
+	}
+
+	public void storeNoOverwrite(TableHandle table, byte[] key, byte[] value, int offset, int length) {
+		add(table, new Entry(key, value, offset, length, true));
+	}
+
+	private void add(TableHandle table, Entry entry) {
+		List<Entry> entries = tables.get(table);
+		if (entries == null) {
+			entries = new ArrayList<>();
+			tables.put(table, entries);
+		}
+		entries.add(entry);
+		size++;
+		bytes += entry.key.length + entry.length;
+	}
+
+	public Set<TableHandle> getTables() {
+		return tables.keySet();
+	}
+
+	/**
+	 * @return The entries for the given table, sorted by key. The sort is stable, so multiple writes to the same key are still done in the order they were added
+	 */
+	public List<Entry> getSortedEntries(TableHandle table) {
+		List<Entry> entries = tables.get(table);
+		if (entries == null) {
+			return Collections.emptyList();
+		}
+		Collections.sort(entries, KEY_COMPARATOR);
+		return entries;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public long getBytes() {
+		return bytes;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	private static int compareUnsigned(byte[] a, byte[] b) {
+		int length = Math.min(a.length, b.length);
+		for (int i = 0; i < length; i++) {
+			int diff = (a[i] & 0xFF) - (b[i] & 0xFF);
+			if (diff != 0) {
+				return diff;
+			}
+		}
+		return a.length - b.length;
+	}
+}
@@ -58,7 +58,7 @@ public class AutologinDatabaseAction extends BimDatabaseAction<String>{
 			} else if (user.getUserType() == UserType.SYSTEM) {
 				throw new UserException("System user cannot login");
 			}
-			if (bimServer.getServerSettingsCache().getServerSettings().isStoreLastLogin()) {
+			if (bimServer.getServerSettingsCache().getServerSettings().isStoreLastLogin() && !bimServer.isReadOnly()) {
 				user.setLastSeen(new Date());
 				getDatabaseSession().store(user);
 			}
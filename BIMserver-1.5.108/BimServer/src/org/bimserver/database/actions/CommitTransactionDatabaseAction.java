@@ -21,6 +21,7 @@ import java.io.IOException;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 
 import org.bimserver.BimServer;
 import org.bimserver.BimserverDatabaseException;
@@ -38,6 +39,8 @@ import org.bimserver.database.OldQuery.Deep;
 import org.bimserver.database.PostCommitAction;
 import org.bimserver.database.queries.om.QueryException;
 import org.bimserver.emf.PackageMetaData;
+import org.bimserver.geometry.AffectedProductsFinder;
+import org.bimserver.geometry.Density;
 import org.bimserver.geometry.GeometryGenerationReport;
 import org.bimserver.geometry.StreamingGeometryGenerator;
 import org.bimserver.interfaces.SConverter;
@@ -144,9 +147,6 @@ public class CommitTransactionDatabaseAction extends GenericCheckinDatabaseActio
 			summaryMap = new SummaryMap(packageMetaData);
 		}
 
-		boolean geometryChanged = true;
-		// TODO actually change this variable...
-		
 		// First create all new objects
 		
 		Transaction transaction = new Transaction(getBimServer(), previousRevision, project, concreteRevision, getDatabaseSession());
@@ -198,55 +198,88 @@ public class CommitTransactionDatabaseAction extends GenericCheckinDatabaseActio
 			e1.printStackTrace();
 		}
 
-		if (getBimServer().getServerSettingsCache().getServerSettings().isGenerateGeometryOnCheckin() && geometryChanged) {
-			setProgress("Generating Geometry...", -1);
+		ConcreteRevision previousConcreteRevision = null;
+		if (oldLastRevision != null && oldLastRevision.isHasGeometry() && oldLastRevision.getConcreteRevisions().size() == 1 && oldLastRevision.getLastConcreteRevision().getBounds() != null) {
+			previousConcreteRevision = oldLastRevision.getLastConcreteRevision();
+		}
+		if (getBimServer().getServerSettingsCache().getServerSettings().isGenerateGeometryOnCheckin() && previousConcreteRevision != null) {
+			// The geometry of the products that are not affected by the changes is still valid in the new revision, because their objects have not been rewritten
+			AffectedProductsFinder affectedProductsFinder = new AffectedProductsFinder(getBimServer(), getDatabaseSession(), packageMetaData);
 			try {
-				GeometryGenerationReport report = new GeometryGenerationReport();
-
-				report.setOriginalDeserializer("No deserializer, low level call");
-				report.setOriginalIfcFileName("No file, low level call");
-				report.setOriginalIfcFileSize(-1);
-				
-				StreamingGeometryGenerator streamingGeometryGenerator = new StreamingGeometryGenerator(getBimServer(), null, -1L, report);
-				int highestStopId = AbstractDownloadDatabaseAction.findHighestStopRid(concreteRevision.getProject(), concreteRevision);
-
-				QueryContext queryContext = new QueryContext(getDatabaseSession(), packageMetaData, project.getId(), concreteRevision.getId(), concreteRevision.getRevisions().get(0).getOid(), concreteRevision.getOid(), highestStopId);
-
-				Map<EClass, Long> startOids = getDatabaseSession().getStartOids();
-				if (startOids == null) {
-					throw new BimserverDatabaseException("No objects changed");
+				affectedProductsFinder.find(transaction, newRoid);
+			} catch (QueryException | IOException e) {
+				throw new UserException(e);
+			}
+			Set<Long> affectedProducts = affectedProductsFinder.getAffectedProducts();
+			GenerateGeometryResult generateGeometry = null;
+			if (affectedProducts.isEmpty()) {
+				generateGeometry = new GenerateGeometryResult();
+				generateGeometry.setMultiplierToMm(previousConcreteRevision.getMultiplierToMm());
+				generateGeometry.extendBounds(previousConcreteRevision.getBounds(), previousConcreteRevision.getBoundsUntransformed());
+			} else {
+				StreamingGeometryGenerator streamingGeometryGenerator = createGeometryGenerator();
+				streamingGeometryGenerator.setProductOids(affectedProducts);
+				streamingGeometryGenerator.setInitialBounds(previousConcreteRevision.getMultiplierToMm(), previousConcreteRevision.getBounds(), previousConcreteRevision.getBoundsUntransformed());
+				QueryContext queryContext = createQueryContext(concreteRevision, packageMetaData, project);
+				generateGeometry = generateGeometry(streamingGeometryGenerator, queryContext);
+				if (generateGeometry.getMultiplierToMm() != previousConcreteRevision.getMultiplierToMm()) {
+					// Nothing has been generated, the units of the model have changed
+					generateGeometry = null;
+				} else if (!generateGeometry.isBoundsUntransformedWithin(previousConcreteRevision.getBoundsUntransformed())) {
+					// The vertices of the reused geometry have been quantized with the matrix of the previous bounds, they cannot be rewritten without changing the
+					// previous revision. The bounds are only known after the geometry has been generated, so the new geometry is removed again.
+					streamingGeometryGenerator.removeGeneratedGeometry(getDatabaseSession(), queryContext);
+					generateGeometry = null;
 				}
-				Map<EClass, Long> oidCounters = new HashMap<>();
-//				int s = 0;
-//				for (EClass eClass : packageMetaData.getEClasses()) {
-//					if (!DatabaseSession.perRecordVersioning(eClass)) {
-//						s++;
-//					}
+			}
+			if (generateGeometry == null) {
+				LOGGER.info("Bounds or units changed, generating geometry for all products");
+				generateGeometry = generateGeometry(createGeometryGenerator(), createQueryContext(concreteRevision, packageMetaData, project));
+			} else {
+				addPreviousDensities(generateGeometry, previousConcreteRevision, affectedProductsFinder.getReplacedGeometryInfos());
+			}
+			
+			concreteRevision.setMultiplierToMm(generateGeometry.getMultiplierToMm());
+			concreteRevision.setBounds(generateGeometry.getBounds());
+			concreteRevision.setBoundsUntransformed(generateGeometry.getBoundsUntransformed());
+			
+			generateDensityAndBounds(result, generateGeometry, concreteRevision);
+			revision.setHasGeometry(true);
+		} else if (getBimServer().getServerSettingsCache().getServerSettings().isGenerateGeometryOnCheckin()) {
+			QueryContext queryContext = createQueryContext(concreteRevision, packageMetaData, project);
+
+			Map<EClass, Long> startOids = getDatabaseSession().getStartOids();
+			if (startOids == null) {
+				throw new BimserverDatabaseException("No objects changed");
+			}
+			Map<EClass, Long> oidCounters = new HashMap<>();
+//			int s = 0;
+//			for (EClass eClass : packageMetaData.getEClasses()) {
+//				if (!DatabaseSession.perRecordVersioning(eClass)) {
+//					s++;
 //				}
-//				ByteBuffer buffer = ByteBuffer.allocate(8 * s);
-//				buffer.order(ByteOrder.LITTLE_ENDIAN);
-				for (EClass eClass : packageMetaData.getEClasses()) {
-					if (startOids.containsKey(eClass)) {
-						long oid = startOids.get(eClass);
-						if (!DatabaseSession.perRecordVersioning(eClass)) {
-							oidCounters.put(eClass, oid);
-//						buffer.putLong(oid);
-						}
+//			}
+//			ByteBuffer buffer = ByteBuffer.allocate(8 * s);
+//			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			for (EClass eClass : packageMetaData.getEClasses()) {
+				if (startOids.containsKey(eClass)) {
+					long oid = startOids.get(eClass);
+					if (!DatabaseSession.perRecordVersioning(eClass)) {
+						oidCounters.put(eClass, oid);
+//					buffer.putLong(oid);
 					}
 				}
+			}
 
-				queryContext.setOidCounters(oidCounters);
+			queryContext.setOidCounters(oidCounters);
 
-				GenerateGeometryResult generateGeometry = streamingGeometryGenerator.generateGeometry(authorization.getUoid(), getDatabaseSession(), queryContext);
-				
-				concreteRevision.setMultiplierToMm(generateGeometry.getMultiplierToMm());
-				concreteRevision.setBounds(generateGeometry.getBounds());
-				concreteRevision.setBoundsUntransformed(generateGeometry.getBoundsUntransformed());
-				
-				generateDensityAndBounds(result, generateGeometry, concreteRevision);
-			} catch (GeometryGeneratingException e) {
-				throw new UserException(e);
-			}
+			GenerateGeometryResult generateGeometry = generateGeometry(createGeometryGenerator(), queryContext);
+			
+			concreteRevision.setMultiplierToMm(generateGeometry.getMultiplierToMm());
+			concreteRevision.setBounds(generateGeometry.getBounds());
+			concreteRevision.setBoundsUntransformed(generateGeometry.getBoundsUntransformed());
+			
+			generateDensityAndBounds(result, generateGeometry, concreteRevision);
 			revision.setHasGeometry(true);
 		}
 
@@ -260,6 +293,45 @@ public class CommitTransactionDatabaseAction extends GenericCheckinDatabaseActio
 		return concreteRevision;
 	}
 
+	private StreamingGeometryGenerator createGeometryGenerator() {
+		GeometryGenerationReport report = new GeometryGenerationReport();
+
+		report.setOriginalDeserializer("No deserializer, low level call");
+		report.setOriginalIfcFileName("No file, low level call");
+		report.setOriginalIfcFileSize(-1);
+
+		return new StreamingGeometryGenerator(getBimServer(), null, -1L, report);
+	}
+
+	private QueryContext createQueryContext(ConcreteRevision concreteRevision, PackageMetaData packageMetaData, Project project) {
+		int highestStopId = AbstractDownloadDatabaseAction.findHighestStopRid(concreteRevision.getProject(), concreteRevision);
+		return new QueryContext(getDatabaseSession(), packageMetaData, project.getId(), concreteRevision.getId(), concreteRevision.getRevisions().get(0).getOid(), concreteRevision.getOid(), highestStopId);
+	}
+
+	private GenerateGeometryResult generateGeometry(StreamingGeometryGenerator streamingGeometryGenerator, QueryContext queryContext) throws UserException, BimserverDatabaseException {
+		setProgress("Generating Geometry...", -1);
+		try {
+			return streamingGeometryGenerator.generateGeometry(authorization.getUoid(), getDatabaseSession(), queryContext);
+		} catch (GeometryGeneratingException e) {
+			throw new UserException(e);
+		}
+	}
+
+	/**
+	 * Adds the densities of the previous revision of which the geometry is reused in the new revision
+	 */
+	private void addPreviousDensities(GenerateGeometryResult generateGeometryResult, ConcreteRevision previousConcreteRevision, Set<Long> replacedGeometryInfos) {
+		if (previousConcreteRevision.getDensityCollection() == null) {
+			return;
+		}
+		for (org.bimserver.models.store.Density density : previousConcreteRevision.getDensityCollection().getDensities()) {
+			if (!replacedGeometryInfos.contains(density.getGeometryInfoId())) {
+				float biggestFaceArea = density.getDensity() == 0 ? 0 : density.getTrianglesBelow() / density.getDensity();
+				generateGeometryResult.addDensity(new Density(density.getType(), density.getVolume(), biggestFaceArea, density.getTrianglesBelow(), density.getGeometryInfoId()));
+			}
+		}
+	}
+
 	public Revision getRevision() {
 		return revision;
 	}
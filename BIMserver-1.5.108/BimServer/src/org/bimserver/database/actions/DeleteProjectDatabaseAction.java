@@ -18,6 +18,8 @@ package org.bimserver.database.actions;
  *****************************************************************************/
 
 import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
 
 import org.bimserver.BimServer;
 import org.bimserver.BimserverDatabaseException;
@@ -29,6 +31,7 @@ import org.bimserver.models.log.AccessMethod;
 import org.bimserver.models.log.ProjectDeleted;
 import org.bimserver.models.store.ObjectState;
 import org.bimserver.models.store.Project;
+import org.bimserver.models.store.Revision;
 import org.bimserver.models.store.User;
 import org.bimserver.models.store.UserType;
 import org.bimserver.shared.exceptions.UserException;
@@ -58,10 +61,16 @@ public class DeleteProjectDatabaseAction extends BimDatabaseAction<Boolean> {
 			projectDeleted.setDate(new Date());
 			projectDeleted.setExecutor(actingUser);
 			projectDeleted.setProject(project);
+			final Set<Long> roids = new HashSet<>();
+			getRoids(project, roids);
 			getDatabaseSession().addPostCommitAction(new PostCommitAction() {
 				@Override
 				public void execute() throws UserException {
 					bimServer.getNotificationsManager().notify(new SConverter().convertToSObject(projectDeleted));
+					for (long roid : roids) {
+						bimServer.getNewDiskCacheManager().invalidateRevision(roid);
+					}
+					bimServer.getDiskCacheManager().cleanup();
 				}
 			});
 			getDatabaseSession().store(project);
@@ -71,6 +80,15 @@ public class DeleteProjectDatabaseAction extends BimDatabaseAction<Boolean> {
 		}
 	}
 	
+	private void getRoids(Project project, Set<Long> roids) {
+		for (Revision revision : project.getRevisions()) {
+			roids.add(revision.getOid());
+		}
+		for (Project subProject : project.getSubProjects()) {
+			getRoids(subProject, roids);
+		}
+	}
+	
 	private void delete(Project project) {
 		project.setState(ObjectState.DELETED);
 		for (Project subProject : project.getSubProjects()) {
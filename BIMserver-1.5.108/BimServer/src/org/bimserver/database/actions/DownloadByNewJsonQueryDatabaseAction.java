@@ -33,7 +33,6 @@ import org.bimserver.database.BimserverLockConflictException;
 import org.bimserver.database.DatabaseSession;
 import org.bimserver.database.OldQuery;
 import org.bimserver.database.queries.QueryObjectProvider;
-import org.bimserver.database.queries.om.JsonQueryObjectModelConverter;
 import org.bimserver.database.queries.om.Query;
 import org.bimserver.database.queries.om.QueryException;
 import org.bimserver.emf.IdEObject;
@@ -95,11 +94,10 @@ public class DownloadByNewJsonQueryDatabaseAction extends AbstractDownloadDataba
 			lastProject = revision.getProject();
 			PackageMetaData packageMetaData = getBimServer().getMetaDataManager().getPackageMetaData(revision.getProject().getSchema());
 			lastPackageMetaData = packageMetaData;
-			JsonQueryObjectModelConverter converter = new JsonQueryObjectModelConverter(packageMetaData);
 			ObjectNode queryObject;
 			try {
 				queryObject = OBJECT_MAPPER.readValue(json, ObjectNode.class);
-				Query query = converter.parseJson("query", (ObjectNode) queryObject);
+				Query query = getBimServer().getJsonQueryCache().get(packageMetaData, "query", queryObject);
 		
 				pidRoidMap.put(revision.getProject().getId(), roid);
 				IfcModelInterface ifcModel = new ServerIfcModel(packageMetaData, pidRoidMap, getDatabaseSession());
@@ -35,6 +35,7 @@ import org.bimserver.BimserverDatabaseException;
 import org.bimserver.GenerateGeometryResult;
 import org.bimserver.database.BimserverLockConflictException;
 import org.bimserver.database.DatabaseSession;
+import org.bimserver.database.PropertyIndex;
 import org.bimserver.database.queries.QueryObjectProvider;
 import org.bimserver.database.queries.QueryTypeStackFrame;
 import org.bimserver.database.queries.om.Include;
@@ -57,6 +58,7 @@ import org.bimserver.models.store.StoreFactory;
 import org.bimserver.models.store.StorePackage;
 import org.bimserver.models.store.User;
 import org.bimserver.shared.HashMapVirtualObject;
+import org.bimserver.shared.HashMapWrappedVirtualObject;
 import org.bimserver.shared.exceptions.UserException;
 import org.eclipse.emf.ecore.EClass;
 import org.eclipse.emf.ecore.EReference;
@@ -439,6 +441,111 @@ public abstract class GenericCheckinDatabaseAction extends BimDatabaseAction<Con
 		}
 	}
 	
+	/**
+	 * Fills the PropertyIndex for the given concrete revision. The relations, property sets, type objects and properties are all read in one query, the names and
+	 * values are kept in memory until everything has been read, after that the index entries are written per related object.
+	 */
+	@SuppressWarnings("unchecked")
+	protected void buildPropertyIndex(PackageMetaData packageMetaData, long newRoid, long croid) throws QueryException, IOException, BimserverDatabaseException {
+		EClass relDefinesByProperties = packageMetaData.getEClass("IfcRelDefinesByProperties");
+		EClass relDefinesByType = packageMetaData.getEClass("IfcRelDefinesByType");
+		EClass typeObject = packageMetaData.getEClass("IfcTypeObject");
+		EClass propertySet = packageMetaData.getEClass("IfcPropertySet");
+		EClass propertySingleValue = packageMetaData.getEClass("IfcPropertySingleValue");
+		if (relDefinesByProperties == null || relDefinesByType == null || typeObject == null || propertySet == null || propertySingleValue == null) {
+			// Not an IFC schema
+			return;
+		}
+		Query query = new Query("Property index builder", packageMetaData);
+		for (EClass eClass : new EClass[]{relDefinesByProperties, relDefinesByType, typeObject, propertySet, propertySingleValue}) {
+			query.createQueryPart().addType(eClass, true);
+		}
+
+		Map<Long, String> propertyNames = new HashMap<>();
+		Map<Long, Object> propertyValues = new HashMap<>();
+		Map<Long, String> propertySetNames = new HashMap<>();
+		Map<Long, List<Long>> propertySetProperties = new HashMap<>();
+		Map<Long, List<Long>> typePropertySets = new HashMap<>();
+		Map<Long, List<Long>> propertySetRelatedObjects = new HashMap<>();
+		Map<Long, List<Long>> typeRelatedObjects = new HashMap<>();
+
+		QueryObjectProvider queryObjectProvider = new QueryObjectProvider(getDatabaseSession(), bimServer, query, Collections.singleton(newRoid), packageMetaData);
+		HashMapVirtualObject next = queryObjectProvider.next();
+		while (next != null) {
+			EClass eClass = next.eClass();
+			if (propertySingleValue.isSuperTypeOf(eClass)) {
+				HashMapWrappedVirtualObject value = (HashMapWrappedVirtualObject) next.get("NominalValue");
+				if (value != null) {
+					propertyNames.put(next.getOid(), (String) next.get("Name"));
+					propertyValues.put(next.getOid(), value.eGet(value.eClass().getEStructuralFeature("wrappedValue")));
+				}
+			} else if (propertySet.isSuperTypeOf(eClass)) {
+				List<Long> properties = (List<Long>) next.get("HasProperties");
+				if (properties != null) {
+					propertySetNames.put(next.getOid(), (String) next.get("Name"));
+					propertySetProperties.put(next.getOid(), properties);
+				}
+			} else if (typeObject.isSuperTypeOf(eClass)) {
+				List<Long> propertySets = (List<Long>) next.get("HasPropertySets");
+				if (propertySets != null) {
+					typePropertySets.put(next.getOid(), propertySets);
+				}
+			} else if (relDefinesByProperties.isSuperTypeOf(eClass)) {
+				Object relatingPropertyDefinition = next.get("RelatingPropertyDefinition");
+				List<Long> relatedObjects = (List<Long>) next.get("RelatedObjects");
+				if (relatingPropertyDefinition instanceof Long && relatedObjects != null) {
+					addRelatedObjects(propertySetRelatedObjects, (Long) relatingPropertyDefinition, relatedObjects);
+				}
+			} else if (relDefinesByType.isSuperTypeOf(eClass)) {
+				Object relatingType = next.get("RelatingType");
+				List<Long> relatedObjects = (List<Long>) next.get("RelatedObjects");
+				if (relatingType instanceof Long && relatedObjects != null) {
+					addRelatedObjects(typeRelatedObjects, (Long) relatingType, relatedObjects);
+				}
+			}
+			next = queryObjectProvider.next();
+		}
+
+		// Objects get the property sets of their type as well
+		for (Long typeOid : typeRelatedObjects.keySet()) {
+			List<Long> propertySets = typePropertySets.get(typeOid);
+			if (propertySets != null) {
+				for (Long propertySetOid : propertySets) {
+					addRelatedObjects(propertySetRelatedObjects, propertySetOid, typeRelatedObjects.get(typeOid));
+				}
+			}
+		}
+
+		PropertyIndex propertyIndex = getDatabaseSession().getPropertyIndex();
+		for (Long propertySetOid : propertySetRelatedObjects.keySet()) {
+			String propertySetName = propertySetNames.get(propertySetOid);
+			if (propertySetName == null) {
+				// Not an IfcPropertySet
+				continue;
+			}
+			for (Long propertyOid : propertySetProperties.get(propertySetOid)) {
+				String propertyName = propertyNames.get(propertyOid);
+				if (propertyName == null) {
+					// Not an IfcPropertySingleValue, or no value
+					continue;
+				}
+				for (Long relatedObject : propertySetRelatedObjects.get(propertySetOid)) {
+					propertyIndex.add(croid, propertySetName, propertyName, propertyValues.get(propertyOid), relatedObject, getDatabaseSession());
+				}
+			}
+		}
+		propertyIndex.setComplete(croid, getDatabaseSession());
+	}
+
+	private void addRelatedObjects(Map<Long, List<Long>> relatedObjectsMap, Long oid, List<Long> relatedObjects) {
+		List<Long> existing = relatedObjectsMap.get(oid);
+		if (existing == null) {
+			existing = new ArrayList<>();
+			relatedObjectsMap.put(oid, existing);
+		}
+		existing.addAll(relatedObjects);
+	}
+
 	public HashMapVirtualObject getByOid(PackageMetaData packageMetaData, DatabaseSession databaseSession, long roid, long oid) throws JsonParseException, JsonMappingException, IOException, QueryException, BimserverDatabaseException {
 		Query query = new Query("test", packageMetaData);
 		QueryPart queryPart = query.createQueryPart();
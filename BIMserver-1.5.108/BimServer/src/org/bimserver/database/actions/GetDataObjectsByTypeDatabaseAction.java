@@ -116,7 +116,7 @@ public class GetDataObjectsByTypeDatabaseAction extends AbstractDownloadDatabase
 					dataObject.setName("");
 				}
 				if (!flat) {
-					GetDataObjectByOidDatabaseAction.fillDataObject(ifcModel.getObjects(), eObject, dataObject);
+					GetDataObjectByOidDatabaseAction.fillDataObject(ifcModel.getObjectMap(), eObject, dataObject);
 				}
 				dataObjects.add(dataObject);
 			}
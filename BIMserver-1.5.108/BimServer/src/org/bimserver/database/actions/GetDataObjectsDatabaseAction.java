@@ -99,7 +99,7 @@ public class GetDataObjectsDatabaseAction extends AbstractDownloadDatabaseAction
 					dataObject.setGuid("");
 					dataObject.setName("");
 				}
-				GetDataObjectByOidDatabaseAction.fillDataObject(ifcModel.getObjects(), eObject, dataObject);
+				GetDataObjectByOidDatabaseAction.fillDataObject(ifcModel.getObjectMap(), eObject, dataObject);
 				dataObjects.add(dataObject);
 			}
 		}
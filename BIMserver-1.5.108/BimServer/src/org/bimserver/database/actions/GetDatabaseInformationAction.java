@@ -17,21 +17,45 @@ package org.bimserver.database.actions;
  * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
  *****************************************************************************/
 
+import org.bimserver.BimServer;
 import org.bimserver.BimserverDatabaseException;
 import org.bimserver.database.BimserverLockConflictException;
 import org.bimserver.database.DatabaseSession;
+import org.bimserver.database.queries.om.JsonQueryCache;
 import org.bimserver.models.log.AccessMethod;
 import org.bimserver.models.store.DatabaseInformation;
+import org.bimserver.models.store.DatabaseInformationCategory;
+import org.bimserver.models.store.DatabaseInformationItem;
+import org.bimserver.models.store.StoreFactory;
 import org.bimserver.shared.exceptions.UserException;
 
 public class GetDatabaseInformationAction extends BimDatabaseAction<DatabaseInformation> {
 
-	public GetDatabaseInformationAction(DatabaseSession databaseSession, AccessMethod accessMethod) {
+	private final BimServer bimServer;
+
+	public GetDatabaseInformationAction(BimServer bimServer, DatabaseSession databaseSession, AccessMethod accessMethod) {
 		super(databaseSession, accessMethod);
+		this.bimServer = bimServer;
 	}
 
 	@Override
 	public DatabaseInformation execute() throws UserException, BimserverLockConflictException, BimserverDatabaseException {
-		return getDatabaseSession().getDatabaseInformation();
+		DatabaseInformation databaseInformation = getDatabaseSession().getDatabaseInformation();
+		JsonQueryCache jsonQueryCache = bimServer.getJsonQueryCache();
+		DatabaseInformationCategory queryCacheCategory = StoreFactory.eINSTANCE.createDatabaseInformationCategory();
+		queryCacheCategory.setTitle("Query cache");
+		addItem(queryCacheCategory, "Cached queries", "" + jsonQueryCache.size());
+		addItem(queryCacheCategory, "Hits", "" + jsonQueryCache.getHits());
+		addItem(queryCacheCategory, "Misses", "" + jsonQueryCache.getMisses());
+		addItem(queryCacheCategory, "Evictions", "" + jsonQueryCache.getEvictions());
+		databaseInformation.getCategories().add(queryCacheCategory);
+		return databaseInformation;
+	}
+
+	private void addItem(DatabaseInformationCategory category, String key, String value) {
+		DatabaseInformationItem item = StoreFactory.eINSTANCE.createDatabaseInformationItem();
+		item.setKey(key);
+		item.setValue(value);
+		category.getItems().add(item);
 	}
 }
\ No newline at end of file
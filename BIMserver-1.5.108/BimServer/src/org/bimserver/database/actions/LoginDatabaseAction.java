@@ -80,7 +80,7 @@ public class LoginDatabaseAction extends BimDatabaseAction<String> {
 				String asHexToken = authorization.asHexToken(bimServer.getEncryptionKey());
 				serviceMap.setAuthorization(authorization);
 				bimServer.getAuthCache().store(asHexToken, authorization);
-				if (bimServer.getServerSettingsCache().getServerSettings().isStoreLastLogin()) {
+				if (bimServer.getServerSettingsCache().getServerSettings().isStoreLastLogin() && !bimServer.isReadOnly()) {
 					user.setLastSeen(new Date());
 					getDatabaseSession().store(user);
 				}
@@ -72,7 +72,7 @@ public class LoginUserTokenDatabaseAction extends BimDatabaseAction<String> {
 			authorization.setUsername(user.getUsername());
 			String asHexToken = authorization.asHexToken(bimServer.getEncryptionKey());
 			serviceMap.setAuthorization(authorization);
-			if (bimServer.getServerSettingsCache().getServerSettings().isStoreLastLogin()) {
+			if (bimServer.getServerSettingsCache().getServerSettings().isStoreLastLogin() && !bimServer.isReadOnly()) {
 				user.setLastSeen(new Date());
 				getDatabaseSession().store(user);
 			}
@@ -0,0 +1,101 @@
+package org.bimserver.database.actions;
+
+/******************************************************************************
+ * Copyright (C) 2009-2018  BIMserver.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.io.IOException;
+import java.util.Set;
+
+import org.bimserver.BimServer;
+import org.bimserver.BimserverDatabaseException;
+import org.bimserver.database.BimserverLockConflictException;
+import org.bimserver.database.DatabaseSession;
+import org.bimserver.database.queries.ParallelQueryObjectProvider;
+import org.bimserver.database.queries.QueryObjectProvider;
+import org.bimserver.database.queries.QueryProfile;
+import org.bimserver.database.queries.om.Query;
+import org.bimserver.database.queries.om.QueryException;
+import org.bimserver.emf.PackageMetaData;
+import org.bimserver.models.log.AccessMethod;
+import org.bimserver.models.store.Revision;
+import org.bimserver.shared.exceptions.UserException;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Executes a query with the profile and skipData flags set, so nothing is returned except for the execution profile
+ */
+public class ProfileQueryDatabaseAction extends BimDatabaseAction<String> {
+
+	private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+	private final BimServer bimServer;
+	private final Set<Long> roids;
+	private final String jsonQuery;
+
+	public ProfileQueryDatabaseAction(BimServer bimServer, DatabaseSession databaseSession, AccessMethod accessMethod, Set<Long> roids, String jsonQuery) {
+		super(databaseSession, accessMethod);
+		this.bimServer = bimServer;
+		this.roids = roids;
+		this.jsonQuery = jsonQuery;
+	}
+
+	@Override
+	public String execute() throws UserException, BimserverLockConflictException, BimserverDatabaseException {
+		if (roids == null || roids.isEmpty()) {
+			throw new UserException("No roids given");
+		}
+		Revision revision = getRevisionByRoid(roids.iterator().next());
+		if (revision == null) {
+			throw new UserException("Revision with roid " + roids.iterator().next() + " not found");
+		}
+		PackageMetaData packageMetaData = bimServer.getMetaDataManager().getPackageMetaData(revision.getProject().getSchema());
+		if (packageMetaData == null) {
+			throw new UserException("Schema not found");
+		}
+		try {
+			ObjectNode queryObject = OBJECT_MAPPER.readValue(jsonQuery, ObjectNode.class);
+			// The cache always returns a new copy, so changing the flags does not affect other users of the same query
+			Query query = bimServer.getJsonQueryCache().get(packageMetaData, "profile", queryObject);
+			query.setProfile(true);
+			query.setSkipData(true);
+
+			QueryProfile profile;
+			if (query.isParallel()) {
+				ParallelQueryObjectProvider queryObjectProvider = new ParallelQueryObjectProvider(getDatabaseSession(), bimServer, query, roids, packageMetaData);
+				try {
+					while (queryObjectProvider.next() != null) {
+					}
+					profile = queryObjectProvider.getProfile();
+				} finally {
+					// Stops the shards when reading failed halfway
+					queryObjectProvider.close();
+				}
+			} else {
+				QueryObjectProvider queryObjectProvider = new QueryObjectProvider(getDatabaseSession(), bimServer, query, roids, packageMetaData);
+				while (queryObjectProvider.next() != null) {
+				}
+				profile = queryObjectProvider.getProfile();
+			}
+			return profile.toJson().toString();
+		} catch (QueryException e) {
+			throw new UserException(e);
+		} catch (IOException e) {
+			throw new UserException(e);
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package org.bimserver.database.actions;
+
+/******************************************************************************
+ * Copyright (C) 2009-2018  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import org.bimserver.BimServer;
+import org.bimserver.BimserverDatabaseException;
+import org.bimserver.database.BimserverLockConflictException;
+import org.bimserver.database.DatabaseSession;
+import org.bimserver.database.PostCommitAction;
+import org.bimserver.models.log.AccessMethod;
+import org.bimserver.models.store.ObjectState;
+import org.bimserver.models.store.Project;
+import org.bimserver.models.store.User;
+import org.bimserver.models.store.UserType;
+import org.bimserver.shared.exceptions.UserException;
+import org.bimserver.webservices.authorization.Authorization;
+
+public class PurgeProjectDatabaseAction extends BimDatabaseAction<Void> {
+
+	private final long poid;
+	private Authorization authorization;
+	private BimServer bimServer;
+
+	public PurgeProjectDatabaseAction(BimServer bimServer, DatabaseSession databaseSession, AccessMethod accessMethod, long poid, Authorization authorization) {
+		super(databaseSession, accessMethod);
+		this.bimServer = bimServer;
+		this.poid = poid;
+		this.authorization = authorization;
+	}
+
+	@Override
+	public Void execute() throws UserException, BimserverDatabaseException, BimserverLockConflictException {
+		User actingUser = getUserByUoid(authorization.getUoid());
+		if (actingUser.getUserType() != UserType.ADMIN) {
+			throw new UserException("Only administrators can purge projects");
+		}
+		Project project = getProjectByPoid(poid);
+		if (project == null) {
+			throw new UserException("No Project with oid " + poid + " found");
+		}
+		if (project.getState() != ObjectState.DELETED) {
+			throw new UserException("Only deleted projects can be purged");
+		}
+		if (bimServer.getStorageReclaimer().isPurged(poid, getDatabaseSession())) {
+			throw new UserException("Project " + project.getName() + " has already been purged");
+		}
+		bimServer.getStorageReclaimer().queue(project, getDatabaseSession());
+		getDatabaseSession().addPostCommitAction(new PostCommitAction() {
+			@Override
+			public void execute() throws UserException {
+				bimServer.getStorageReclaimer().wake();
+			}
+		});
+		return null;
+	}
+}
@@ -18,6 +18,8 @@ package org.bimserver.database.actions;
  *****************************************************************************/
 
 import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
 
 import org.bimserver.BimServer;
 import org.bimserver.BimserverDatabaseException;
@@ -26,6 +28,7 @@ import org.bimserver.GeometryGeneratingException;
 import org.bimserver.database.BimserverLockConflictException;
 import org.bimserver.database.DatabaseSession;
 import org.bimserver.database.OldQuery;
+import org.bimserver.database.PostCommitAction;
 import org.bimserver.emf.PackageMetaData;
 import org.bimserver.geometry.GeometryGenerationReport;
 import org.bimserver.geometry.StreamingGeometryGenerator;
@@ -85,10 +88,24 @@ public class RegenerateGeometryDatabaseAction extends ProjectBasedDatabaseAction
 		QueryContext queryContext = new QueryContext(getDatabaseSession(), packageMetaData, revision.getProject().getId(), revision.getId(), roid, concreteRevision.getOid(), highestStopId);
 		try {
 			GenerateGeometryResult generateGeometry = streamingGeometryGenerator.generateGeometry(uoid, getDatabaseSession(), queryContext);
+			// All geometry of this concrete revision has been generated, so bounding box queries can use the spatial index from now on
+			getDatabaseSession().getSpatialIndex().setComplete(queryContext.getCroid(), getDatabaseSession());
 			
+			final Set<Long> roids = new HashSet<>();
 			for (Revision other : concreteRevision.getRevisions()) {
 				other.setHasGeometry(true);
+				roids.add(other.getOid());
 			}
+			getDatabaseSession().addPostCommitAction(new PostCommitAction() {
+				@Override
+				public void execute() throws UserException {
+					// Cached results of these revisions contain the old geometry
+					for (long roid : roids) {
+						bimServer.getNewDiskCacheManager().invalidateRevision(roid);
+					}
+					bimServer.getDiskCacheManager().cleanup();
+				}
+			});
 			
 			concreteRevision.setMultiplierToMm(generateGeometry.getMultiplierToMm());
 			concreteRevision.setBounds(generateGeometry.getBounds());
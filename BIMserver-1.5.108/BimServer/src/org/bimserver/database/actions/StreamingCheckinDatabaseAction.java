@@ -27,6 +27,13 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.bimserver.BimServer;
@@ -72,6 +79,7 @@ import org.bimserver.shared.HashMapVirtualObject;
 import org.bimserver.shared.QueryContext;
 import org.bimserver.shared.exceptions.ServiceException;
 import org.bimserver.shared.exceptions.UserException;
+import org.bimserver.utils.Formatters;
 import org.bimserver.webservices.authorization.Authorization;
 import org.bimserver.webservices.authorization.ExplicitRightsAuthorization;
 import org.bimserver.webservices.impl.RestartableInputStream;
@@ -84,6 +92,8 @@ import com.google.common.base.Charsets;
 public class StreamingCheckinDatabaseAction extends GenericCheckinDatabaseAction {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(StreamingCheckinDatabaseAction.class);
+	private static final long PROPERTY_INDEX_TIMEOUT_MINUTES = 60;
+	private static final long PROPERTY_INDEX_STOP_SECONDS = 30;
 	private final String comment;
 	private final long poid;
 	private ConcreteRevision concreteRevision;
@@ -222,27 +232,64 @@ public class StreamingCheckinDatabaseAction extends GenericCheckinDatabaseAction
 			concreteRevision = result.getConcreteRevision();
 			concreteRevision.setOidCounters(buffer.array());
 
-			setProgress("Generating inverses/opposites...", -1);
-			
-			fixInverses(packageMetaData, newRoid, deserializer.getSummaryMap());
-
-			ProgressListener progressListener = new ProgressListener() {
+			// The property index only uses forward references, so it can be built while the inverses and the geometry are being generated
+			ExecutorService propertyIndexExecutor = Executors.newSingleThreadExecutor();
+			Future<Void> propertyIndexBuilder = propertyIndexExecutor.submit(new Callable<Void>() {
 				@Override
-				public void updateProgress(String state, int percentage) {
-					setProgress("Generating geometry...", percentage);
+				public Void call() throws Exception {
+					long start = System.nanoTime();
+					buildPropertyIndex(packageMetaData, newRoid, queryContext.getCroid());
+					LOGGER.debug("Property index built in " + Formatters.nanosToString(System.nanoTime() - start));
+					return null;
 				}
-			};
-			
+			});
+			propertyIndexExecutor.shutdown();
+
 			GeometryGenerationReport report = new GeometryGenerationReport();
 			report.setOriginalIfcFileName(fileName);
 			report.setOriginalIfcFileSize(bytesRead.get());
 			report.setNumberOfObjects(size);
 			report.setOriginalDeserializer(pluginBundleVersion.getGroupId() + "." + pluginBundleVersion.getArtifactId() + ":" + pluginBundleVersion.getVersion());
-			
-			StreamingGeometryGenerator geometryGenerator = new StreamingGeometryGenerator(getBimServer(), progressListener, -1L, report);
-			setProgress("Generating geometry...", 0);
 
-			GenerateGeometryResult generateGeometry = geometryGenerator.generateGeometry(getActingUid(), getDatabaseSession(), queryContext);
+			GenerateGeometryResult generateGeometry = null;
+			try {
+				setProgress("Generating inverses/opposites...", -1);
+				
+				fixInverses(packageMetaData, newRoid, deserializer.getSummaryMap());
+				
+				ProgressListener progressListener = new ProgressListener() {
+					@Override
+					public void updateProgress(String state, int percentage) {
+						setProgress("Generating geometry...", percentage);
+					}
+				};
+				
+				StreamingGeometryGenerator geometryGenerator = new StreamingGeometryGenerator(getBimServer(), progressListener, -1L, report);
+				setProgress("Generating geometry...", 0);
+				
+				generateGeometry = geometryGenerator.generateGeometry(getActingUid(), getDatabaseSession(), queryContext);
+			} finally {
+				if (generateGeometry == null) {
+					stopPropertyIndexBuilder(propertyIndexBuilder, propertyIndexExecutor);
+				}
+			}
+			// The property index builder uses the same database session, so it has to be finished before this action continues
+			if (!propertyIndexBuilder.isDone()) {
+				setProgress("Building property index...", -1);
+			}
+			try {
+				propertyIndexBuilder.get(PROPERTY_INDEX_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof BimserverDatabaseException) {
+					throw (BimserverDatabaseException) e.getCause();
+				}
+				throw new BimserverDatabaseException("Property index could not be built", e.getCause());
+			} catch (TimeoutException e) {
+				stopPropertyIndexBuilder(propertyIndexBuilder, propertyIndexExecutor);
+				throw new BimserverDatabaseException("Property index not built within " + PROPERTY_INDEX_TIMEOUT_MINUTES + " minutes");
+			}
+			// All geometry of this concrete revision has been generated, so bounding box queries can use the spatial index from now on
+			getDatabaseSession().getSpatialIndex().setComplete(queryContext.getCroid(), getDatabaseSession());
 			
 			for (Revision other : concreteRevision.getRevisions()) {
 				other.setHasGeometry(true);
@@ -402,6 +449,17 @@ public class StreamingCheckinDatabaseAction extends GenericCheckinDatabaseAction
 		return concreteRevision;
 	}
 
+	/**
+	 * Stops the property index builder of a checkin that fails, it uses the database session of this action so it cannot keep running after the action
+	 */
+	private void stopPropertyIndexBuilder(Future<Void> propertyIndexBuilder, ExecutorService propertyIndexExecutor) throws InterruptedException {
+		propertyIndexBuilder.cancel(true);
+		propertyIndexExecutor.shutdownNow();
+		if (!propertyIndexExecutor.awaitTermination(PROPERTY_INDEX_STOP_SECONDS, TimeUnit.SECONDS)) {
+			LOGGER.error("Property index builder did not stop within " + PROPERTY_INDEX_STOP_SECONDS + " seconds");
+		}
+	}
+
 	private void generateQuantizedVertices(DatabaseSession databaseSession, Revision revision, float[] quantizationMatrix, float multiplierToMm) {
 		PackageMetaData packageMetaData = getBimServer().getMetaDataManager().getPackageMetaData(revision.getProject().getSchema()); 
 		Query query = new Query(packageMetaData);
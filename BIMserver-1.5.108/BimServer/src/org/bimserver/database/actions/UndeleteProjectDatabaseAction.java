@@ -54,6 +54,9 @@ public class UndeleteProjectDatabaseAction extends BimDatabaseAction<Boolean> {
 		if (project == null) {
 			throw new UserException("No Project with oid " + poid + " found");
 		}
+		if (bimServer.getStorageReclaimer().isPurged(poid, getDatabaseSession())) {
+			throw new UserException("Project " + project.getName() + " has been purged and cannot be undeleted");
+		}
 		if (actingUser.getUserType() == UserType.ADMIN || actingUser.getHasRightsOn().contains(project)) {
 			project.setState(ObjectState.ACTIVE);
 			final ProjectUndeleted projectUndeleted = getDatabaseSession().create(ProjectUndeleted.class);
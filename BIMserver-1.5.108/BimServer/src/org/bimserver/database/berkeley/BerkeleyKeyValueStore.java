@@ -23,12 +23,18 @@ import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -37,9 +43,12 @@ import org.bimserver.database.BimTransaction;
 import org.bimserver.database.BimserverLockConflictException;
 import org.bimserver.database.DatabaseSession;
 import org.bimserver.database.KeyValueStore;
+import org.bimserver.database.MultiGetKey;
 import org.bimserver.database.Record;
 import org.bimserver.database.RecordIterator;
 import org.bimserver.database.SearchingRecordIterator;
+import org.bimserver.database.TableHandle;
+import org.bimserver.database.WriteBatch;
 import org.bimserver.utils.PathUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -63,10 +72,12 @@ import com.sleepycat.je.TransactionConfig;
 public class BerkeleyKeyValueStore implements KeyValueStore {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(BerkeleyKeyValueStore.class);
-	private Environment environment;
+	private volatile Environment environment;
+	private final Path dataDir;
+	private final boolean readOnly;
 	private long committedWrites;
 	private long reads;
-	private final Map<String, TableWrapper> tables = new HashMap<>();
+	private final Map<String, TableWrapper> tables = new ConcurrentHashMap<>();
 	private boolean isNew;
 	private TransactionConfig transactionConfig;
 	private CursorConfig safeCursorConfig;
@@ -77,8 +88,32 @@ public class BerkeleyKeyValueStore implements KeyValueStore {
 	private final Map<Long, StackTraceElement[]> openCursors = new ConcurrentHashMap<>();
 	private boolean useTransactions = true;
 	private CursorConfig unsafeCursorConfig;
+	private volatile boolean groupCommit;
+
+	// Used to let concurrent callers of sync share one environment sync
+	private final AtomicLong syncRequests = new AtomicLong();
+	private final Object syncLock = new Object();
+	private long syncedUpTo;
+
+	// Multi-gets with at least this many keys per thread for a table are divided over multiple threads
+	private static final int MIN_KEYS_PER_MULTI_GET_THREAD = 2500;
+	private ThreadPoolExecutor multiGetExecutor;
+	private int multiGetThreads = 1;
+
+	public static final int DEFAULT_COMPRESSION_THRESHOLD = 512;
+	private volatile RecordCompressor recordCompressor = new RecordCompressor(DEFAULT_COMPRESSION_THRESHOLD);
 
 	public BerkeleyKeyValueStore(Path dataDir) throws DatabaseInitException {
+		this(dataDir, false);
+	}
+
+	/**
+	 * @param readOnly Open an existing database read-only. Another process can keep writing to the same database, changes made by that process become visible
+	 * after calling reopen()
+	 */
+	public BerkeleyKeyValueStore(Path dataDir, boolean readOnly) throws DatabaseInitException {
+		this.dataDir = dataDir;
+		this.readOnly = readOnly;
 		if (Files.isDirectory(dataDir)) {
 			try {
 				if (PathUtils.list(dataDir).size() > 0) {
@@ -91,6 +126,8 @@ public class BerkeleyKeyValueStore implements KeyValueStore {
 			} catch (IOException e) {
 				LOGGER.error("", e);
 			}
+		} else if (readOnly) {
+			throw new DatabaseInitException("No database found at \"" + dataDir.toString() + "\", a read-only database has to point to an existing database");
 		} else {
 			isNew = true;
 			LOGGER.info("No database directory found, creating \"" + dataDir.toString() + "\"");
@@ -101,16 +138,11 @@ public class BerkeleyKeyValueStore implements KeyValueStore {
 				LOGGER.error("Error creating database dir \"" + dataDir.toString() + "\"");
 			}
 		}
-		EnvironmentConfig envConfig = new EnvironmentConfig();
-		envConfig.setCachePercent(50);
-		envConfig.setAllowCreate(true);
-		envConfig.setTransactional(useTransactions);
-		envConfig.setTxnTimeout(10, TimeUnit.SECONDS);
-		envConfig.setLockTimeout(2000, TimeUnit.MILLISECONDS);
-		envConfig.setConfigParam(EnvironmentConfig.CHECKPOINTER_HIGH_PRIORITY, "true");
-		envConfig.setConfigParam(EnvironmentConfig.CLEANER_THREADS, "5");
+		if (readOnly && isNew) {
+			throw new DatabaseInitException("Database at \"" + dataDir.toString() + "\" is empty, a read-only database has to point to an existing database");
+		}
 		try {
-			environment = new Environment(dataDir.toFile(), envConfig);
+			environment = openEnvironment();
 		} catch (EnvironmentLockedException e) {
 			String message = "Environment locked exception. Another process is using the same database, or the current user has no write access (database location: \""
 					+ dataDir.toString() + "\")";
@@ -130,6 +162,45 @@ public class BerkeleyKeyValueStore implements KeyValueStore {
 		unsafeCursorConfig.setReadUncommitted(true);
 	}
 
+	private Environment openEnvironment() throws DatabaseException {
+		EnvironmentConfig envConfig = new EnvironmentConfig();
+		envConfig.setCachePercent(50);
+		envConfig.setAllowCreate(!readOnly);
+		envConfig.setReadOnly(readOnly);
+		envConfig.setTransactional(useTransactions);
+		envConfig.setTxnTimeout(10, TimeUnit.SECONDS);
+		envConfig.setLockTimeout(2000, TimeUnit.MILLISECONDS);
+		envConfig.setConfigParam(EnvironmentConfig.CHECKPOINTER_HIGH_PRIORITY, "true");
+		envConfig.setConfigParam(EnvironmentConfig.CLEANER_THREADS, "5");
+		return new Environment(dataDir.toFile(), envConfig);
+	}
+
+	@Override
+	public boolean isReadOnly() {
+		return readOnly;
+	}
+
+	@Override
+	public synchronized void reopen() throws BimserverDatabaseException {
+		if (!readOnly) {
+			throw new BimserverDatabaseException("Only read-only databases can be reopened");
+		}
+		try {
+			Map<TableWrapper, DatabaseConfig> databaseConfigs = new LinkedHashMap<>();
+			for (TableWrapper tableWrapper : tables.values()) {
+				databaseConfigs.put(tableWrapper, tableWrapper.getDatabase().getConfig());
+				tableWrapper.getDatabase().close();
+			}
+			environment.close();
+			environment = openEnvironment();
+			for (Map.Entry<TableWrapper, DatabaseConfig> entry : databaseConfigs.entrySet()) {
+				entry.getKey().setDatabase(environment.openDatabase(null, entry.getKey().getName(), entry.getValue()));
+			}
+		} catch (DatabaseException e) {
+			throw new BimserverDatabaseException(e);
+		}
+	}
+
 	public boolean isNew() {
 		return isNew;
 	}
@@ -137,7 +208,7 @@ public class BerkeleyKeyValueStore implements KeyValueStore {
 	public BimTransaction startTransaction() {
 		if (useTransactions) {
 			try {
-				return new BerkeleyTransaction(environment.beginTransaction(null, transactionConfig));
+				return new BerkeleyTransaction(environment.beginTransaction(null, transactionConfig), groupCommit);
 			} catch (DatabaseException e) {
 				LOGGER.error("", e);
 			}
@@ -146,6 +217,9 @@ public class BerkeleyKeyValueStore implements KeyValueStore {
 	}
 
 	public boolean createTable(String tableName, DatabaseSession databaseSession, boolean transactional) throws BimserverDatabaseException {
+		if (readOnly) {
+			throw new BimserverDatabaseException("Cannot create table " + tableName + " in a read-only database");
+		}
 		if (tables.containsKey(tableName)) {
 			throw new BimserverDatabaseException("Table " + tableName + " already created");
 		}
@@ -162,12 +236,15 @@ public class BerkeleyKeyValueStore implements KeyValueStore {
 		if (database == null) {
 			return false;
 		}
-		tables.put(tableName, new TableWrapper(database, finalTransactional));
+		tables.put(tableName, new TableWrapper(tableName, database, finalTransactional));
 		
 		return true;
 	}
 
 	public boolean createIndexTable(String tableName, DatabaseSession databaseSession, boolean transactional) throws BimserverDatabaseException {
+		if (readOnly) {
+			throw new BimserverDatabaseException("Cannot create table " + tableName + " in a read-only database");
+		}
 		if (tables.containsKey(tableName)) {
 			throw new BimserverDatabaseException("Table " + tableName + " already created");
 		}
@@ -184,7 +261,7 @@ public class BerkeleyKeyValueStore implements KeyValueStore {
 		if (database == null) {
 			return false;
 		}
-		tables.put(tableName, new TableWrapper(database, finalTransactional));
+		tables.put(tableName, new TableWrapper(tableName, database, finalTransactional));
 		
 		return true;
 	}
@@ -195,18 +272,19 @@ public class BerkeleyKeyValueStore implements KeyValueStore {
 		}
 		DatabaseConfig databaseConfig = new DatabaseConfig();
 		databaseConfig.setAllowCreate(false);
+		databaseConfig.setReadOnly(readOnly);
 		boolean finalTransactional = transactional && useTransactions;
 //		if (!transactional) {
 //			databaseConfig.setCacheMode(CacheMode.EVICT_BIN);
 //		}
-		databaseConfig.setDeferredWrite(!finalTransactional);
+		databaseConfig.setDeferredWrite(!finalTransactional && !readOnly);
 		databaseConfig.setTransactional(finalTransactional);
 		databaseConfig.setSortedDuplicates(false);
 		Database database = environment.openDatabase(null, tableName, databaseConfig);
 		if (database == null) {
 			throw new BimserverDatabaseException("Table " + tableName + " not found in database");
 		}
-		tables.put(tableName, new TableWrapper(database, finalTransactional));
+		tables.put(tableName, new TableWrapper(tableName, database, finalTransactional));
 		return true;
 	}
 
@@ -216,24 +294,30 @@ public class BerkeleyKeyValueStore implements KeyValueStore {
 		}
 		DatabaseConfig databaseConfig = new DatabaseConfig();
 		databaseConfig.setAllowCreate(false);
+		databaseConfig.setReadOnly(readOnly);
 		boolean finalTransactional = transactional && useTransactions;
 //		if (!transactional) {
 //			databaseConfig.setCacheMode(CacheMode.EVICT_BIN);
 //		}
-		databaseConfig.setDeferredWrite(!finalTransactional);
+		databaseConfig.setDeferredWrite(!finalTransactional && !readOnly);
 		databaseConfig.setTransactional(finalTransactional);
 		databaseConfig.setSortedDuplicates(true);
 		Database database = environment.openDatabase(null, tableName, databaseConfig);
 		if (database == null) {
 			throw new BimserverDatabaseException("Table " + tableName + " not found in database");
 		}
-		tables.put(tableName, new TableWrapper(database, finalTransactional));
+		tables.put(tableName, new TableWrapper(tableName, database, finalTransactional));
 	}
 	
 	private Database getDatabase(String tableName) throws BimserverDatabaseException {
 		return getTableWrapper(tableName).getDatabase();
 	}
 
+	@Override
+	public TableHandle getTableHandle(String tableName) throws BimserverDatabaseException {
+		return getTableWrapper(tableName);
+	}
+
 	private TableWrapper getTableWrapper(String tableName) throws BimserverDatabaseException {
 		TableWrapper tableWrapper = tables.get(tableName);
 		if (tableWrapper == null) {
@@ -253,6 +337,10 @@ public class BerkeleyKeyValueStore implements KeyValueStore {
 	}
 
 	public void close() {
+		if (multiGetExecutor != null) {
+			multiGetExecutor.shutdown();
+		}
+		recordCompressor.close();
 		for (TableWrapper tableWrapper : tables.values()) {
 			try {
 				tableWrapper.getDatabase().close();
@@ -295,13 +383,19 @@ public class BerkeleyKeyValueStore implements KeyValueStore {
 	
 	@Override
 	public byte[] get(String tableName, byte[] keyBytes, DatabaseSession databaseSession) throws BimserverDatabaseException {
+		return get(getTableWrapper(tableName), keyBytes, databaseSession);
+	}
+
+	@Override
+	public byte[] get(TableHandle tableHandle, byte[] keyBytes, DatabaseSession databaseSession) throws BimserverDatabaseException {
+		flushPendingWrites(databaseSession);
 		DatabaseEntry key = new DatabaseEntry(keyBytes);
 		DatabaseEntry value = new DatabaseEntry();
 		try {
-			TableWrapper tableWrapper = getTableWrapper(tableName);
+			TableWrapper tableWrapper = (TableWrapper) tableHandle;
 			OperationStatus operationStatus = tableWrapper.getDatabase().get(getTransaction(databaseSession, tableWrapper), key, value, getLockMode(tableWrapper));
 			if (operationStatus == OperationStatus.SUCCESS) {
-				return value.getData();
+				return readValue(tableWrapper, value.getData());
 			}
 		} catch (DatabaseException e) {
 			LOGGER.error("", e);
@@ -311,16 +405,22 @@ public class BerkeleyKeyValueStore implements KeyValueStore {
 
 	@Override
 	public List<byte[]> getDuplicates(String tableName, byte[] keyBytes, DatabaseSession databaseSession) throws BimserverDatabaseException {
+		return getDuplicates(getTableWrapper(tableName), keyBytes, databaseSession);
+	}
+
+	@Override
+	public List<byte[]> getDuplicates(TableHandle tableHandle, byte[] keyBytes, DatabaseSession databaseSession) throws BimserverDatabaseException {
+		flushPendingWrites(databaseSession);
 		DatabaseEntry key = new DatabaseEntry(keyBytes);
 		DatabaseEntry value = new DatabaseEntry();
 		try {
-			TableWrapper tableWrapper = getTableWrapper(tableName);
+			TableWrapper tableWrapper = (TableWrapper) tableHandle;
 			Cursor cursor = tableWrapper.getDatabase().openCursor(getTransaction(databaseSession, tableWrapper), getCursorConfig(tableWrapper));
 			try {
 				OperationStatus operationStatus = cursor.getSearchKey(key, value, LockMode.DEFAULT);
 				List<byte[]> result = new ArrayList<byte[]>();
 				while (operationStatus == OperationStatus.SUCCESS) {
-					result.add(value.getData());
+					result.add(readValue(tableWrapper, value.getData()));
 					operationStatus = cursor.getNextDup(key, value, LockMode.DEFAULT);
 				}
 				return result;
@@ -338,12 +438,93 @@ public class BerkeleyKeyValueStore implements KeyValueStore {
 	}
 
 	public void sync() {
-		try {
-			environment.sync();
-//			environment.flushLog(true);
-//			environment.evictMemory();
-		} catch (DatabaseException e) {
-			LOGGER.error("", e);
+		if (readOnly) {
+			return;
+		}
+		long ticket = syncRequests.incrementAndGet();
+		synchronized (syncLock) {
+			if (syncedUpTo >= ticket) {
+				// Another thread has synced after this call started, which includes everything committed before this call
+				return;
+			}
+			long upTo = syncRequests.get();
+			try {
+				environment.sync();
+//				environment.flushLog(true);
+//				environment.evictMemory();
+			} catch (DatabaseException e) {
+				LOGGER.error("", e);
+			}
+			syncedUpTo = upTo;
+		}
+	}
+
+	/**
+	 * When enabled, transactions are committed without writing the log to disk, the sync that follows every commit makes them durable. Concurrent sessions
+	 * committing at the same time share one sync.
+	 */
+	public void setGroupCommit(boolean groupCommit) {
+		this.groupCommit = groupCommit;
+	}
+
+	public boolean isGroupCommit() {
+		return groupCommit;
+	}
+
+	/**
+	 * @param multiGetThreads The maximum number of threads used for one multi-get, 1 to always read on the calling thread
+	 */
+	public synchronized void setMultiGetThreads(int multiGetThreads) {
+		this.multiGetThreads = multiGetThreads;
+		if (multiGetExecutor != null) {
+			multiGetExecutor.shutdown();
+			multiGetExecutor = null;
+		}
+		if (multiGetThreads > 1) {
+			multiGetExecutor = new ThreadPoolExecutor(multiGetThreads, multiGetThreads, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>());
+			multiGetExecutor.allowCoreThreadTimeOut(true);
+		}
+	}
+
+	/**
+	 * @param compressionThreshold Values of compressed tables of at least this many bytes are compressed, smaller values are stored as they are
+	 */
+	public void setCompressionThreshold(int compressionThreshold) {
+		RecordCompressor old = recordCompressor;
+		recordCompressor = new RecordCompressor(compressionThreshold);
+		old.close();
+	}
+
+	@Override
+	public void setCompressed(String tableName) throws BimserverDatabaseException {
+		getTableWrapper(tableName).setCompressed(true);
+	}
+
+	@Override
+	public boolean isCompressed(String tableName) throws BimserverDatabaseException {
+		return getTableWrapper(tableName).isCompressed();
+	}
+
+	byte[] readValue(TableWrapper tableWrapper, byte[] value) throws BimserverDatabaseException {
+		if (tableWrapper.isCompressed()) {
+			return recordCompressor.decompress(value);
+		}
+		return value;
+	}
+
+	private DatabaseEntry createValueEntry(TableWrapper tableWrapper, byte[] value, int offset, int length) {
+		if (tableWrapper.isCompressed()) {
+			return new DatabaseEntry(recordCompressor.compress(value, offset, length));
+		}
+		return new DatabaseEntry(value, offset, length);
+	}
+
+	/**
+	 * Writes that are still batched in the session have to be in the database before the session reads or writes directly
+	 */
+	private void flushPendingWrites(DatabaseSession databaseSession) throws BimserverDatabaseException {
+		if (databaseSession != null) {
+			databaseSession.flushPendingWrites();
 		}
 	}
 
@@ -359,11 +540,12 @@ public class BerkeleyKeyValueStore implements KeyValueStore {
 
 	@Override
 	public RecordIterator getRecordIterator(String tableName, DatabaseSession databaseSession) throws BimserverDatabaseException {
+		flushPendingWrites(databaseSession);
 		Cursor cursor = null;
 		try {
 			TableWrapper tableWrapper = getTableWrapper(tableName);
 			cursor = tableWrapper.getDatabase().openCursor(getTransaction(databaseSession, tableWrapper), getCursorConfig(tableWrapper));
-			BerkeleyRecordIterator berkeleyRecordIterator = new BerkeleyRecordIterator(cursor, this, cursorCounter.incrementAndGet());
+			BerkeleyRecordIterator berkeleyRecordIterator = new BerkeleyRecordIterator(cursor, this, tableWrapper, cursorCounter.incrementAndGet());
 			if (MONITOR_CURSOR_STACK_TRACES) {
 				openCursors.put(berkeleyRecordIterator.getCursorId(), new Exception().getStackTrace());
 			}
@@ -376,11 +558,17 @@ public class BerkeleyKeyValueStore implements KeyValueStore {
 
 	@Override
 	public SearchingRecordIterator getRecordIterator(String tableName, byte[] mustStartWith, byte[] startSearchingAt, DatabaseSession databaseSession, boolean keysOnly) throws BimserverLockConflictException, BimserverDatabaseException {
+		return getRecordIterator(getTableWrapper(tableName), mustStartWith, startSearchingAt, databaseSession, keysOnly);
+	}
+
+	@Override
+	public SearchingRecordIterator getRecordIterator(TableHandle tableHandle, byte[] mustStartWith, byte[] startSearchingAt, DatabaseSession databaseSession, boolean keysOnly) throws BimserverLockConflictException, BimserverDatabaseException {
+		flushPendingWrites(databaseSession);
 		Cursor cursor = null;
 		try {
-			TableWrapper tableWrapper = getTableWrapper(tableName);
+			TableWrapper tableWrapper = (TableWrapper) tableHandle;
 			cursor = tableWrapper.getDatabase().openCursor(getTransaction(databaseSession, tableWrapper), getCursorConfig(tableWrapper));
-			BerkeleySearchingRecordIterator berkeleySearchingRecordIterator = new BerkeleySearchingRecordIterator(cursor, this, cursorCounter.incrementAndGet(), mustStartWith, startSearchingAt, keysOnly);
+			BerkeleySearchingRecordIterator berkeleySearchingRecordIterator = new BerkeleySearchingRecordIterator(cursor, this, tableWrapper, cursorCounter.incrementAndGet(), mustStartWith, startSearchingAt, keysOnly);
 			if (MONITOR_CURSOR_STACK_TRACES) {
 				openCursors.put(berkeleySearchingRecordIterator.getCursorId(), new Exception().getStackTrace());
 			}
@@ -405,6 +593,11 @@ public class BerkeleyKeyValueStore implements KeyValueStore {
 		return getRecordIterator(tableName, mustStartWith, startSearchingAt, databaseSession, false);
 	}
 
+	@Override
+	public SearchingRecordIterator getRecordIterator(TableHandle tableHandle, byte[] mustStartWith, byte[] startSearchingAt, DatabaseSession databaseSession) throws BimserverLockConflictException, BimserverDatabaseException {
+		return getRecordIterator(tableHandle, mustStartWith, startSearchingAt, databaseSession, false);
+	}
+
 	@Override
 	public long count(String tableName) {
 		try {
@@ -434,6 +627,7 @@ public class BerkeleyKeyValueStore implements KeyValueStore {
 	public void delete(String tableName, byte[] key, DatabaseSession databaseSession) throws BimserverLockConflictException {
 		DatabaseEntry entry = new DatabaseEntry(key);
 		try {
+			flushPendingWrites(databaseSession);
 			TableWrapper tableWrapper = getTableWrapper(tableName);
 			tableWrapper.getDatabase().delete(getTransaction(databaseSession, tableWrapper), entry);
 		} catch (LockConflictException e) {
@@ -444,6 +638,8 @@ public class BerkeleyKeyValueStore implements KeyValueStore {
 			LOGGER.error("", e);
 		} catch (IllegalArgumentException e) {
 			LOGGER.error("", e);
+		} catch (BimserverLockConflictException e) {
+			throw e;
 		} catch (BimserverDatabaseException e) {
 			LOGGER.error("", e);
 		}
@@ -451,8 +647,21 @@ public class BerkeleyKeyValueStore implements KeyValueStore {
 	
 	@Override
 	public void delete(String indexTableName, byte[] featureBytesOldIndex, byte[] array, DatabaseSession databaseSession) throws BimserverLockConflictException {
+		TableWrapper tableWrapper;
+		try {
+			tableWrapper = getTableWrapper(indexTableName);
+		} catch (BimserverDatabaseException e) {
+			LOGGER.error("", e);
+			return;
+		}
+		delete(tableWrapper, featureBytesOldIndex, array, databaseSession);
+	}
+
+	@Override
+	public void delete(TableHandle indexTableHandle, byte[] featureBytesOldIndex, byte[] array, DatabaseSession databaseSession) throws BimserverLockConflictException {
 		try {
-			TableWrapper tableWrapper = getTableWrapper(indexTableName);
+			flushPendingWrites(databaseSession);
+			TableWrapper tableWrapper = (TableWrapper) indexTableHandle;
 			Cursor cursor = tableWrapper.getDatabase().openCursor(getTransaction(databaseSession, tableWrapper), getCursorConfig(tableWrapper));
 			try {
 				if (cursor.getSearchBoth(new DatabaseEntry(featureBytesOldIndex), new DatabaseEntry(array), LockMode.DEFAULT) == OperationStatus.SUCCESS) {
@@ -469,11 +678,102 @@ public class BerkeleyKeyValueStore implements KeyValueStore {
 			LOGGER.error("", e);
 		} catch (IllegalArgumentException e) {
 			LOGGER.error("", e);
+		} catch (BimserverLockConflictException e) {
+			throw e;
 		} catch (BimserverDatabaseException e) {
 			LOGGER.error("", e);
 		}
 	}
 
+	@Override
+	public void multiGet(List<MultiGetKey> keys, final DatabaseSession databaseSession) throws BimserverLockConflictException, BimserverDatabaseException {
+		flushPendingWrites(databaseSession);
+		Map<TableHandle, List<MultiGetKey>> keysPerTable = new LinkedHashMap<>();
+		for (MultiGetKey key : keys) {
+			List<MultiGetKey> tableKeys = keysPerTable.get(key.getTable());
+			if (tableKeys == null) {
+				tableKeys = new ArrayList<>();
+				keysPerTable.put(key.getTable(), tableKeys);
+			}
+			tableKeys.add(key);
+		}
+		ThreadPoolExecutor executor;
+		int maxThreads;
+		synchronized (this) {
+			executor = multiGetExecutor;
+			maxThreads = multiGetThreads;
+		}
+		for (Map.Entry<TableHandle, List<MultiGetKey>> entry : keysPerTable.entrySet()) {
+			final TableWrapper tableWrapper = (TableWrapper) entry.getKey();
+			List<MultiGetKey> tableKeys = entry.getValue();
+			Collections.sort(tableKeys, MultiGetKey.KEY_ORDER);
+			int nrThreads = executor == null ? 1 : Math.min(maxThreads, tableKeys.size() / MIN_KEYS_PER_MULTI_GET_THREAD);
+			if (nrThreads <= 1) {
+				multiGet(tableWrapper, tableKeys, databaseSession);
+			} else {
+				// Every thread gets a consecutive range of keys and its own cursor
+				int keysPerThread = (tableKeys.size() + nrThreads - 1) / nrThreads;
+				List<Future<Void>> futures = new ArrayList<>();
+				for (int start = 0; start < tableKeys.size(); start += keysPerThread) {
+					final List<MultiGetKey> part = tableKeys.subList(start, Math.min(tableKeys.size(), start + keysPerThread));
+					futures.add(executor.submit(new Callable<Void>() {
+						@Override
+						public Void call() throws Exception {
+							multiGet(tableWrapper, part, databaseSession);
+							return null;
+						}
+					}));
+				}
+				for (Future<Void> future : futures) {
+					try {
+						future.get();
+					} catch (InterruptedException e) {
+						throw new BimserverDatabaseException(e);
+					} catch (ExecutionException e) {
+						if (e.getCause() instanceof BimserverDatabaseException) {
+							throw (BimserverDatabaseException) e.getCause();
+						}
+						throw new BimserverDatabaseException(e.getCause());
+					}
+				}
+			}
+		}
+	}
+
+	private void multiGet(TableWrapper tableWrapper, List<MultiGetKey> keys, DatabaseSession databaseSession) throws BimserverLockConflictException, BimserverDatabaseException {
+		Cursor cursor = null;
+		try {
+			cursor = tableWrapper.getDatabase().openCursor(getTransaction(databaseSession, tableWrapper), getCursorConfig(tableWrapper));
+			for (MultiGetKey multiGetKey : keys) {
+				// Versions are stored with -rid, so the first key at or after the search key is the newest version with a rid <= maxRid
+				ByteBuffer searchKey = ByteBuffer.allocate(16);
+				searchKey.putInt(multiGetKey.getPid());
+				searchKey.putLong(multiGetKey.getOid());
+				searchKey.putInt(-multiGetKey.getMaxRid());
+				DatabaseEntry key = new DatabaseEntry(searchKey.array());
+				DatabaseEntry value = new DatabaseEntry();
+				if (cursor.getSearchKeyRange(key, value, LockMode.DEFAULT) == OperationStatus.SUCCESS) {
+					ByteBuffer foundKey = ByteBuffer.wrap(key.getData());
+					if (foundKey.capacity() == 16 && foundKey.getInt() == multiGetKey.getPid() && foundKey.getLong() == multiGetKey.getOid() && -foundKey.getInt() >= multiGetKey.getMinRid()) {
+						multiGetKey.setRecord(new BerkeleyRecord(key.getData(), readValue(tableWrapper, value.getData())));
+					}
+				}
+			}
+		} catch (LockConflictException e) {
+			throw new BimserverLockConflictException(e);
+		} catch (DatabaseException e) {
+			LOGGER.error("", e);
+		} finally {
+			if (cursor != null) {
+				try {
+					cursor.close();
+				} catch (DatabaseException e) {
+					LOGGER.error("", e);
+				}
+			}
+		}
+	}
+
 	@Override
 	public String getLocation() {
 		try {
@@ -496,6 +796,7 @@ public class BerkeleyKeyValueStore implements KeyValueStore {
 
 	@Override
 	public void commit(DatabaseSession databaseSession) throws BimserverLockConflictException, BimserverDatabaseException {
+		flushPendingWrites(databaseSession);
 		Transaction bdbTransaction = getTransaction(databaseSession);
 		try {
 			bdbTransaction.commit();
@@ -513,10 +814,16 @@ public class BerkeleyKeyValueStore implements KeyValueStore {
 	
 	@Override
 	public void store(String tableName, byte[] key, byte[] value, int offset, int length, DatabaseSession databaseSession) throws BimserverDatabaseException, BimserverLockConflictException {
+		store(getTableWrapper(tableName), key, value, offset, length, databaseSession);
+	}
+
+	@Override
+	public void store(TableHandle tableHandle, byte[] key, byte[] value, int offset, int length, DatabaseSession databaseSession) throws BimserverDatabaseException, BimserverLockConflictException {
+		flushPendingWrites(databaseSession);
+		TableWrapper tableWrapper = (TableWrapper) tableHandle;
 		DatabaseEntry dbKey = new DatabaseEntry(key);
-		DatabaseEntry dbValue = new DatabaseEntry(value, offset, length);
+		DatabaseEntry dbValue = createValueEntry(tableWrapper, value, offset, length);
 		try {
-			TableWrapper tableWrapper = getTableWrapper(tableName);
 			tableWrapper.getDatabase().put(getTransaction(databaseSession, tableWrapper), dbKey, dbValue);
 		} catch (LockConflictException e) {
 			throw new BimserverLockConflictException(e);
@@ -532,24 +839,68 @@ public class BerkeleyKeyValueStore implements KeyValueStore {
 	
 	@Override
 	public void storeNoOverwrite(String tableName, byte[] key, byte[] value, int index, int length, DatabaseSession databaseSession) throws BimserverDatabaseException, BimserverLockConflictException, BimserverConcurrentModificationDatabaseException {
+		storeNoOverwrite(getTableWrapper(tableName), key, value, index, length, databaseSession);
+	}
+
+	@Override
+	public void storeNoOverwrite(TableHandle tableHandle, byte[] key, byte[] value, int index, int length, DatabaseSession databaseSession) throws BimserverDatabaseException, BimserverLockConflictException, BimserverConcurrentModificationDatabaseException {
+		flushPendingWrites(databaseSession);
+		TableWrapper tableWrapper = (TableWrapper) tableHandle;
 		DatabaseEntry dbKey = new DatabaseEntry(key);
-		DatabaseEntry dbValue = new DatabaseEntry(value, index, length);
+		DatabaseEntry dbValue = createValueEntry(tableWrapper, value, index, length);
 		try {
-			TableWrapper tableWrapper = getTableWrapper(tableName);
-			OperationStatus putNoOverwrite = tableWrapper.getDatabase().putNoOverwrite(getTransaction(databaseSession, tableWrapper), dbKey, dbValue);
+			Transaction transaction = getTransaction(databaseSession, tableWrapper);
+			OperationStatus putNoOverwrite = tableWrapper.getDatabase().putNoOverwrite(transaction, dbKey, dbValue);
 			if (putNoOverwrite == OperationStatus.KEYEXIST) {
-				// TODO temporary test
-				tableWrapper.getDatabase().put(getTransaction(databaseSession, tableWrapper), dbKey, dbValue);
-				ByteBuffer keyBuffer = ByteBuffer.wrap(key);
-				if (key.length == 16) {
-					int pid = keyBuffer.getInt();
-					long oid = keyBuffer.getLong();
-					int rid = -keyBuffer.getInt();
-//					LOGGER.warn("Key exists: pid: " + pid + ", oid: " + oid + ", rid: " + rid + ", " + databaseSession.getEClassForOid(oid).getName());
-					throw new BimserverConcurrentModificationDatabaseException("Key exists: pid: " + pid + ", oid: " + oid + ", rid: " + rid);
-				} else {
-					LOGGER.warn("Key exists");
-//					throw new BimserverConcurrentModificationDatabaseException("Key exists: " );
+				keyExists(tableWrapper, transaction, dbKey, dbValue);
+			}
+		} catch (LockConflictException e) {
+			throw new BimserverLockConflictException(e);
+		} catch (DatabaseException e) {
+			throw new BimserverDatabaseException("", e);
+		}
+	}
+
+	private void keyExists(TableWrapper tableWrapper, Transaction transaction, DatabaseEntry dbKey, DatabaseEntry dbValue) throws BimserverConcurrentModificationDatabaseException {
+		byte[] key = dbKey.getData();
+		ByteBuffer keyBuffer = ByteBuffer.wrap(key);
+		if (key.length == 16) {
+			int pid = keyBuffer.getInt();
+			long oid = keyBuffer.getLong();
+			int rid = -keyBuffer.getInt();
+//			LOGGER.warn("Key exists: pid: " + pid + ", oid: " + oid + ", rid: " + rid + ", " + databaseSession.getEClassForOid(oid).getName());
+			throw new BimserverConcurrentModificationDatabaseException("Key exists: pid: " + pid + ", oid: " + oid + ", rid: " + rid);
+		} else {
+			// Not an object record, the new value replaces the existing one
+			tableWrapper.getDatabase().put(transaction, dbKey, dbValue);
+			LOGGER.warn("Key exists");
+		}
+	}
+
+	@Override
+	public void storeBatch(WriteBatch writeBatch, DatabaseSession databaseSession) throws BimserverDatabaseException, BimserverLockConflictException, BimserverConcurrentModificationDatabaseException {
+		// Reused for all records, only the data they point to changes
+		DatabaseEntry dbKey = new DatabaseEntry();
+		DatabaseEntry dbValue = new DatabaseEntry();
+		try {
+			for (TableHandle tableHandle : writeBatch.getTables()) {
+				TableWrapper tableWrapper = (TableWrapper) tableHandle;
+				Database database = tableWrapper.getDatabase();
+				Transaction transaction = getTransaction(databaseSession, tableWrapper);
+				for (WriteBatch.Entry entry : writeBatch.getSortedEntries(tableHandle)) {
+					dbKey.setData(entry.getKey());
+					if (tableWrapper.isCompressed()) {
+						dbValue.setData(recordCompressor.compress(entry.getValue(), entry.getOffset(), entry.getLength()));
+					} else {
+						dbValue.setData(entry.getValue(), entry.getOffset(), entry.getLength());
+					}
+					if (entry.isNoOverwrite()) {
+						if (database.putNoOverwrite(transaction, dbKey, dbValue) == OperationStatus.KEYEXIST) {
+							keyExists(tableWrapper, transaction, dbKey, dbValue);
+						}
+					} else {
+						database.put(transaction, dbKey, dbValue);
+					}
 				}
 			}
 		} catch (LockConflictException e) {
@@ -17,9 +17,11 @@ package org.bimserver.database.berkeley;
  * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
  *****************************************************************************/
 
+import org.bimserver.BimserverDatabaseException;
 import org.bimserver.database.BimserverLockConflictException;
 import org.bimserver.database.Record;
 import org.bimserver.database.RecordIterator;
+import org.bimserver.database.UncheckedBimserverDatabaseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -34,10 +36,12 @@ public class BerkeleyRecordIterator implements RecordIterator {
 	private static final Logger LOGGER = LoggerFactory.getLogger(BerkeleyRecordIterator.class);
 	private final Cursor cursor;
 	private BerkeleyKeyValueStore berkeleyKeyValueStore;
+	private final TableWrapper tableWrapper;
 
-	public BerkeleyRecordIterator(Cursor cursor, BerkeleyKeyValueStore berkeleyKeyValueStore, long cursorId) {
+	public BerkeleyRecordIterator(Cursor cursor, BerkeleyKeyValueStore berkeleyKeyValueStore, TableWrapper tableWrapper, long cursorId) {
 		this.cursor = cursor;
 		this.berkeleyKeyValueStore = berkeleyKeyValueStore;
+		this.tableWrapper = tableWrapper;
 		this.cursorId = cursorId;
 	}
 
@@ -51,10 +55,13 @@ public class BerkeleyRecordIterator implements RecordIterator {
 		try {
 			OperationStatus next = cursor.getNext(key, value, LockMode.DEFAULT);
 			if (next == OperationStatus.SUCCESS) {
-				return new BerkeleyRecord(key, value);
+				return new BerkeleyRecord(key.getData(), berkeleyKeyValueStore.readValue(tableWrapper, value.getData()));
 			} else {
 				return null;
 			}
+		} catch (BimserverDatabaseException e) {
+			// A value that cannot be read must not look like the end of the table
+			throw new UncheckedBimserverDatabaseException(e);
 		} catch (DatabaseException e) {
 			LOGGER.error("", e);
 		}
@@ -78,10 +85,12 @@ public class BerkeleyRecordIterator implements RecordIterator {
 		try {
 			OperationStatus next = cursor.getLast(key, value, LockMode.DEFAULT);
 			if (next == OperationStatus.SUCCESS) {
-				return new BerkeleyRecord(key, value);
+				return new BerkeleyRecord(key.getData(), berkeleyKeyValueStore.readValue(tableWrapper, value.getData()));
 			} else {
 				return null;
 			}
+		} catch (BimserverDatabaseException e) {
+			throw new UncheckedBimserverDatabaseException(e);
 		} catch (DatabaseException e) {
 		}
 		return null;
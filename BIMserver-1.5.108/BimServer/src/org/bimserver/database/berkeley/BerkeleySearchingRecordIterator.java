@@ -19,9 +19,11 @@ package org.bimserver.database.berkeley;
 
 import java.util.Arrays;
 
+import org.bimserver.BimserverDatabaseException;
 import org.bimserver.database.BimserverLockConflictException;
 import org.bimserver.database.Record;
 import org.bimserver.database.SearchingRecordIterator;
+import org.bimserver.database.UncheckedBimserverDatabaseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -40,11 +42,13 @@ public class BerkeleySearchingRecordIterator implements SearchingRecordIterator
 	private byte[] nextStartSearchingAt;
 	private long cursorId;
 	private BerkeleyKeyValueStore berkeleyKeyValueStore;
+	private final TableWrapper tableWrapper;
 	private boolean onlyKeys;
 
-	public BerkeleySearchingRecordIterator(Cursor cursor, BerkeleyKeyValueStore berkeleyKeyValueStore, long cursorId, byte[] mustStartWith, byte[] startSearchingAt, boolean onlyKeys) throws BimserverLockConflictException {
+	public BerkeleySearchingRecordIterator(Cursor cursor, BerkeleyKeyValueStore berkeleyKeyValueStore, TableWrapper tableWrapper, long cursorId, byte[] mustStartWith, byte[] startSearchingAt, boolean onlyKeys) throws BimserverLockConflictException {
 		this.cursor = cursor;
 		this.berkeleyKeyValueStore = berkeleyKeyValueStore;
+		this.tableWrapper = tableWrapper;
 		this.cursorId = cursorId;
 		this.mustStartWith = mustStartWith;
 		this.nextStartSearchingAt = startSearchingAt;
@@ -68,11 +72,14 @@ public class BerkeleySearchingRecordIterator implements SearchingRecordIterator
 				byte[] firstBytes = new byte[mustStartWith.length];
 				System.arraycopy(key.getData(), 0, firstBytes, 0, mustStartWith.length);
 				if (Arrays.equals(firstBytes, mustStartWith)) {
-					return new BerkeleyRecord(key, value);
+					return new BerkeleyRecord(key.getData(), berkeleyKeyValueStore.readValue(tableWrapper, value.getData()));
 				}
 			}
 		} catch (LockConflictException e) {
 			throw new BimserverLockConflictException(e);
+		} catch (BimserverDatabaseException e) {
+			// A value that cannot be read must not look like the end of the table
+			throw new UncheckedBimserverDatabaseException(e);
 		} catch (DatabaseException e) {
 			LOGGER.error("", e);
 		}
@@ -95,11 +102,13 @@ public class BerkeleySearchingRecordIterator implements SearchingRecordIterator
 				byte[] firstBytes = new byte[mustStartWith.length];
 				System.arraycopy(key.getData(), 0, firstBytes, 0, mustStartWith.length);
 				if (Arrays.equals(firstBytes, mustStartWith)) {
-					return new BerkeleyRecord(key, value);
+					return new BerkeleyRecord(key.getData(), berkeleyKeyValueStore.readValue(tableWrapper, value.getData()));
 				}
 			}
 		} catch (LockConflictException e) {
 			throw new BimserverLockConflictException(e);
+		} catch (BimserverDatabaseException e) {
+			throw new UncheckedBimserverDatabaseException(e);
 		} catch (DatabaseException e) {
 			LOGGER.error("", e);
 		}
@@ -137,11 +146,13 @@ public class BerkeleySearchingRecordIterator implements SearchingRecordIterator
 				byte[] firstBytes = new byte[mustStartWith.length];
 				System.arraycopy(key.getData(), 0, firstBytes, 0, mustStartWith.length);
 				if (Arrays.equals(firstBytes, mustStartWith)) {
-					return new BerkeleyRecord(key, value);
+					return new BerkeleyRecord(key.getData(), berkeleyKeyValueStore.readValue(tableWrapper, value.getData()));
 				}
 			}
 		} catch (LockConflictException e) {
 			throw new BimserverLockConflictException(e);
+		} catch (BimserverDatabaseException e) {
+			throw new UncheckedBimserverDatabaseException(e);
 		} catch (DatabaseException e) {
 			LOGGER.error("", e);
 		}
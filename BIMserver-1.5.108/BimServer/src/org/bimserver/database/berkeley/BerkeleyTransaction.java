@@ -32,9 +32,14 @@ public class BerkeleyTransaction implements BimTransaction {
 	private static final Logger LOGGER = LoggerFactory.getLogger(BerkeleyTransaction.class);
 	private final Transaction transaction;
 	private boolean transactionAlive = true;
+	private final boolean noSync;
 
-	public BerkeleyTransaction(Transaction transaction) {
+	/**
+	 * @param noSync When true the commit does not wait for the log to be written to disk, the caller is responsible for syncing
+	 */
+	public BerkeleyTransaction(Transaction transaction, boolean noSync) {
 		this.transaction = transaction;
+		this.noSync = noSync;
 	}
 
 	public Transaction getTransaction() {
@@ -66,7 +71,11 @@ public class BerkeleyTransaction implements BimTransaction {
 	@Override
 	public void commit() throws BimserverLockConflictException, BimserverDatabaseException {
 		try {
-			transaction.commit();
+			if (noSync) {
+				transaction.commitNoSync();
+			} else {
+				transaction.commit();
+			}
 			transactionAlive = false;
 		} catch (LockConflictException e) {
 			throw new BimserverLockConflictException(e);
@@ -0,0 +1,169 @@
+package org.bimserver.database.berkeley;
+
+/******************************************************************************
+ * Copyright (C) 2009-2018  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.bimserver.BimserverDatabaseException;
+
+/**
+ * Compresses the values of the tables that have compression enabled. Every value in such a table starts with a format byte, values smaller than the threshold, or
+ * values that do not get smaller, are stored as they are after that byte.
+ * 
+ * Deflaters and inflaters hold native memory and are expensive to create, so they are pooled, together with the buffer the values are compressed into.
+ */
+public class RecordCompressor {
+	public static final byte FORMAT_PLAIN = 0;
+	public static final byte FORMAT_DEFLATE = 1;
+
+	// Format byte and uncompressed length
+	private static final int DEFLATE_HEADER_SIZE = 5;
+	private static final int MAX_POOLED = 32;
+
+	private final int threshold;
+	private final ConcurrentLinkedQueue<Codec> pool = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger pooled = new AtomicInteger();
+
+	private static class Codec {
+		private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		private final Inflater inflater = new Inflater();
+		private byte[] buffer = new byte[32768];
+
+		private void end() {
+			deflater.end();
+			inflater.end();
+		}
+	}
+
+	/**
+	 * @param threshold Values of at least this many bytes are compressed
+	 */
+	public RecordCompressor(int threshold) {
+		this.threshold = threshold;
+	}
+
+	public byte[] compress(byte[] value, int offset, int length) {
+		if (length >= threshold) {
+			Codec codec = acquire();
+			try {
+				if (codec.buffer.length < length) {
+					codec.buffer = new byte[length];
+				}
+				Deflater deflater = codec.deflater;
+				deflater.setInput(value, offset, length);
+				deflater.finish();
+				int compressedLength = 0;
+				while (!deflater.finished() && compressedLength < length) {
+					compressedLength += deflater.deflate(codec.buffer, compressedLength, codec.buffer.length - compressedLength);
+				}
+				// Not worth it when it did not fit in the size of the original value
+				if (deflater.finished() && compressedLength + DEFLATE_HEADER_SIZE < length) {
+					ByteBuffer result = ByteBuffer.allocate(DEFLATE_HEADER_SIZE + compressedLength);
+					result.put(FORMAT_DEFLATE);
+					result.putInt(length);
+					result.put(codec.buffer, 0, compressedLength);
+					return result.array();
+				}
+			} finally {
+				release(codec);
+			}
+		}
+		byte[] result = new byte[length + 1];
+		result[0] = FORMAT_PLAIN;
+		System.arraycopy(value, offset, result, 1, length);
+		return result;
+	}
+
+	/**
+	 * @return The original value, the readers keep references to it, so it is never taken from a pool
+	 */
+	public byte[] decompress(byte[] stored) throws BimserverDatabaseException {
+		if (stored == null || stored.length == 0) {
+			// Values that have been read with keysOnly
+			return stored;
+		}
+		if (stored[0] == FORMAT_PLAIN) {
+			byte[] result = new byte[stored.length - 1];
+			System.arraycopy(stored, 1, result, 0, result.length);
+			return result;
+		} else if (stored[0] == FORMAT_DEFLATE) {
+			int length = ByteBuffer.wrap(stored, 1, 4).getInt();
+			byte[] result = new byte[length];
+			Codec codec = acquire();
+			try {
+				Inflater inflater = codec.inflater;
+				inflater.setInput(stored, DEFLATE_HEADER_SIZE, stored.length - DEFLATE_HEADER_SIZE);
+				int read = 0;
+				while (read < length && !inflater.finished()) {
+					int n = inflater.inflate(result, read, length - read);
+					if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+						break;
+					}
+					read += n;
+				}
+				if (read != length) {
+					throw new BimserverDatabaseException("Compressed record is corrupt, expected " + length + " bytes, got " + read);
+				}
+			} catch (DataFormatException e) {
+				throw new BimserverDatabaseException("Compressed record is corrupt", e);
+			} finally {
+				release(codec);
+			}
+			return result;
+		} else {
+			throw new BimserverDatabaseException("Unknown record format " + stored[0]);
+		}
+	}
+
+	private Codec acquire() {
+		Codec codec = pool.poll();
+		if (codec == null) {
+			return new Codec();
+		}
+		pooled.decrementAndGet();
+		return codec;
+	}
+
+	private void release(Codec codec) {
+		codec.deflater.reset();
+		codec.inflater.reset();
+		if (pooled.incrementAndGet() <= MAX_POOLED) {
+			pool.offer(codec);
+		} else {
+			pooled.decrementAndGet();
+			codec.end();
+		}
+	}
+
+	public int getThreshold() {
+		return threshold;
+	}
+
+	public void close() {
+		Codec codec = pool.poll();
+		while (codec != null) {
+			codec.end();
+			codec = pool.poll();
+		}
+	}
+}
@@ -17,16 +17,26 @@ package org.bimserver.database.berkeley;
  * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
  *****************************************************************************/
 
+import org.bimserver.database.TableHandle;
+
 import com.sleepycat.je.Database;
 
-public class TableWrapper {
+public class TableWrapper implements TableHandle {
+	private final String name;
 	private Database database;
 	private boolean transactional;
+	private volatile boolean compressed;
 
-	public TableWrapper(Database database, boolean transactional) {
+	public TableWrapper(String name, Database database, boolean transactional) {
+		this.name = name;
 		this.database = database;
 		this.transactional = transactional;
 	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
 	
 	public boolean isTransactional() {
 		return transactional;
@@ -35,4 +45,19 @@ public class TableWrapper {
 	public Database getDatabase() {
 		return database;
 	}
+
+	/**
+	 * Used when the environment is reopened, so handles that have been given out stay valid
+	 */
+	void setDatabase(Database database) {
+		this.database = database;
+	}
+
+	public boolean isCompressed() {
+		return compressed;
+	}
+
+	void setCompressed(boolean compressed) {
+		this.compressed = compressed;
+	}
 }
@@ -21,19 +21,25 @@ import java.nio.BufferOverflowException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.bimserver.BimserverDatabaseException;
+import org.bimserver.database.DatabaseSession;
 import org.bimserver.database.DatabaseSession.GetResult;
+import org.bimserver.database.MultiGetKey;
 import org.bimserver.database.Record;
 import org.bimserver.database.SearchingRecordIterator;
+import org.bimserver.database.StringDictionary;
 import org.bimserver.database.queries.om.CanInclude;
 import org.bimserver.database.queries.om.Include;
-import org.bimserver.database.queries.om.Include.TypeDef;
 import org.bimserver.database.queries.om.QueryException;
 import org.bimserver.database.queries.om.QueryPart;
-import org.bimserver.database.queries.om.Reference;
+import org.bimserver.database.queries.om.QueryPlan.IncludeStep;
 import org.bimserver.emf.PackageMetaData;
 import org.bimserver.shared.HashMapVirtualObject;
 import org.bimserver.shared.HashMapWrappedVirtualObject;
@@ -87,71 +93,43 @@ public abstract class DatabaseReadingStackFrame extends StackFrame implements Ob
 	
 	protected void processPossibleIncludes(HashMapVirtualObject object, EClass previousType, CanInclude canInclude) throws QueryException, BimserverDatabaseException {
 		if (object != null) {
-			if (canInclude.hasReferences()) {
-				for (Reference reference : canInclude.getReferences()) {
-					processPossibleInclude(object, canInclude, reference.getInclude());
-				}
-			}
-			if (canInclude.hasIncludes()) {
-				for (Include include : canInclude.getIncludes()) {
-					processPossibleInclude(object, canInclude, include);
-				}
-			}
-			if (canInclude.isIncludeAllFields()) {
-				for (EReference eReference : object.eClass().getEAllReferences()) {
-					Include include = new Include(reusable.getPackageMetaData());
-					include.addType(object.eClass(), false);
-					include.addField(eReference.getName());
-					processPossibleInclude(object, canInclude, include);
-				}
-			}
-			if (canInclude instanceof Include) {
-				processPossibleInclude(object, null, (Include) canInclude);
+			for (IncludeStep includeStep : queryObjectProvider.getQuery().getPlan().getIncludeSteps(canInclude, object.eClass())) {
+				processInclude(object, includeStep);
 			}
 		}
 	}
 
-	protected void processPossibleInclude(HashMapVirtualObject object, CanInclude previousInclude, Include include) throws QueryException, BimserverDatabaseException {
-		if (include.hasTypes()) {
-			for (TypeDef filterClass : include.getTypes()) {
-				// TODO also exclude the possibly excluded types here
-				if (!filterClass.geteClass().isSuperTypeOf(object.eClass())) {
-//					System.out.println(filterClass.getName() + " / " + currentObject.eClass().getName());
-					// TODO too many times queries are spending time here
-					return;
-				}
-			}
-		}
-		if (include.hasDirectFields()) {
-			for (EReference eReference : include.getFieldsDirect()) {
-				Object ref = object.get(eReference.getName());
-				if (ref != null) {
-					if (ref instanceof List) {
-						for (Long r : (List<Long>)ref) {
-							HashMapVirtualObject byOid = getByOid(r, true);
-							object.addDirectListReference(eReference, byOid);
-							processPossibleIncludes(byOid, byOid.eClass(), include);
-						}
+	/**
+	 * Processes an include of which it is already known that it applies to the given object, the fields are already resolved against the class of the object by the plan
+	 */
+	private void processInclude(HashMapVirtualObject object, IncludeStep includeStep) throws QueryException, BimserverDatabaseException {
+		Include include = includeStep.getInclude();
+		for (EReference eReference : includeStep.getDirectFields()) {
+			Object ref = object.eGet(eReference);
+			if (ref != null) {
+				if (ref instanceof List) {
+					Map<Long, HashMapVirtualObject> byOids = getByOids((List<Long>)ref, true);
+					for (Long r : (List<Long>)ref) {
+						HashMapVirtualObject byOid = byOids.get(r);
+						object.addDirectListReference(eReference, byOid);
+						processPossibleIncludes(byOid, byOid.eClass(), include);
+					}
+				} else {
+					if (ref instanceof Long) {
+						HashMapVirtualObject byOid = getByOid((Long)ref, true);
+						object.setDirectReference(eReference, byOid);
+						processPossibleIncludes(byOid, byOid.eClass(), include);
 					} else {
-						if (ref instanceof Long) {
-							HashMapVirtualObject byOid = getByOid((Long)ref, true);
-							object.setDirectReference(eReference, byOid);
-							processPossibleIncludes(byOid, byOid.eClass(), include);
-						} else {
-							object.setDirectReference(eReference, (HashMapWrappedVirtualObject)ref);
-						}
+						object.setDirectReference(eReference, (HashMapWrappedVirtualObject)ref);
 					}
 				}
 			}
 		}
-		if (include.hasFields()) {
-			for (EStructuralFeature eStructuralFeature : include.getFields()) {
-				// TODO do we really have to iterate through the EAtrributes as well? You should not use fields for attributes anyways, so there should be none ...
-				object.addUseForSerialization(eStructuralFeature);
-			}
+		for (EReference eReference : includeStep.getSerializationFeatures()) {
+			object.addUseForSerialization(eReference);
 		}
 
-		getQueryObjectProvider().push(new QueryIncludeStackFrame(getQueryObjectProvider(), getReusable(), previousInclude, include, object, queryPart));
+		getQueryObjectProvider().push(new QueryIncludeStackFrame(getQueryObjectProvider(), getReusable(), includeStep.getPreviousInclude(), include, object, queryPart));
 	}
 	
 	public GetResult getMap(EClass originalQueryClass, EClass eClass, ByteBuffer buffer, int keyPid, long keyOid, int keyRid) throws BimserverDatabaseException {
@@ -163,7 +141,7 @@ public abstract class DatabaseReadingStackFrame extends StackFrame implements Ob
 						return GetResult.CONTINUE_WITH_NEXT_OID;
 						// deleted entity
 					} else {
-						 currentObject = convertByteArrayToObject(eClass, keyOid, buffer, keyRid);
+						 currentObject = convertByteArrayToObject(eClass, keyOid, buffer, keyRid, queryObjectProvider.getProjection(queryPart, eClass));
 					}
 				}
 				return GetResult.CONTINUE_WITH_NEXT_OID;
@@ -176,6 +154,14 @@ public abstract class DatabaseReadingStackFrame extends StackFrame implements Ob
 	}
 	
 	protected HashMapVirtualObject convertByteArrayToObject(EClass eClass, long oid, ByteBuffer buffer, int rid) throws BimserverDatabaseException {
+		return convertByteArrayToObject(eClass, oid, buffer, rid, null);
+	}
+
+	/**
+	 * @param projection When not null, only these features are decoded, the others are skipped in the buffer
+	 */
+	protected HashMapVirtualObject convertByteArrayToObject(EClass eClass, long oid, ByteBuffer buffer, int rid, Set<EStructuralFeature> projection) throws BimserverDatabaseException {
+		getQueryObjectProvider().incDecoded(this, eClass);
 		try {
 			HashMapVirtualObject idEObject = new HashMapVirtualObject(reusable, eClass);
 			idEObject.setOid(oid);
@@ -199,6 +185,8 @@ public abstract class DatabaseReadingStackFrame extends StackFrame implements Ob
 							} else if (feature.getDefaultValue() != null) {
 								idEObject.setAttribute(feature, feature.getDefaultValue());
 							}
+						} else if (projection != null && !projection.contains(feature)) {
+							queryObjectProvider.getDatabaseSession().fakeRead(buffer, feature);
 						} else {
 							Object newValue = null;
 							if (feature.isMany()) {
@@ -327,10 +315,12 @@ public abstract class DatabaseReadingStackFrame extends StackFrame implements Ob
 		return eObject;
 	}
 	
-	public Object readPrimitiveValue(EClassifier classifier, ByteBuffer buffer) {
+	public Object readPrimitiveValue(EClassifier classifier, ByteBuffer buffer) throws BimserverDatabaseException {
 		if (classifier == EcorePackage.eINSTANCE.getEString()) {
 			int length = buffer.getInt();
-			if (length != -1) {
+			if (StringDictionary.isReference(length)) {
+				return getQueryObjectProvider().getDatabaseSession().getStringDictionary().get(length);
+			} else if (length != -1) {
 				return BinUtils.readString(buffer, length);
 			} else {
 				return null;
@@ -455,6 +445,17 @@ public abstract class DatabaseReadingStackFrame extends StackFrame implements Ob
 	}
 	
 	public HashMapVirtualObject getByOid(long oid, boolean useCache) throws BimserverDatabaseException {
+		return getByOid(oid, useCache, null);
+	}
+
+	/**
+	 * Reads an object that is only inspected by this frame, only the features of the projection are decoded. The result is never cached
+	 */
+	public HashMapVirtualObject getByOid(long oid, FeatureProjection projection) throws BimserverDatabaseException {
+		return getByOid(oid, false, projection);
+	}
+
+	private HashMapVirtualObject getByOid(long oid, boolean useCache, FeatureProjection projection) throws BimserverDatabaseException {
 		HashMapVirtualObject byOid = getQueryObjectProvider().getFromCache((long)oid);
 		if (byOid != null) {
 			return byOid;
@@ -468,14 +469,15 @@ public abstract class DatabaseReadingStackFrame extends StackFrame implements Ob
 		startSearchWith.putLong(oid);
 		startSearchWith.putInt(-reusable.getRid());
 	
-		SearchingRecordIterator recordIterator = getQueryObjectProvider().getDatabaseSession().getKeyValueStore().getRecordIterator(eClass.getEPackage().getName() + "_" + eClass.getName(), mustStartWith.array(),
+		getQueryObjectProvider().incIndexLookups(this, eClass);
+		SearchingRecordIterator recordIterator = getQueryObjectProvider().getDatabaseSession().getKeyValueStore().getRecordIterator(getQueryObjectProvider().getDatabaseSession().getTableHandle(eClass), mustStartWith.array(),
 				startSearchWith.array(), getQueryObjectProvider().getDatabaseSession());
 		try {
 			Record record = recordIterator.next();
 			if (record == null) {
 				return null;
 			}
-			getQueryObjectProvider().incReads();
+			getQueryObjectProvider().incReads(this, eClass);
 			ByteBuffer keyBuffer = ByteBuffer.wrap(record.getKey());
 			ByteBuffer valueBuffer = ByteBuffer.wrap(record.getValue());
 			keyBuffer.getInt(); // pid
@@ -487,7 +489,7 @@ public abstract class DatabaseReadingStackFrame extends StackFrame implements Ob
 					return null;
 					// deleted entity
 				} else {
-					byOid = convertByteArrayToObject(eClass, keyOid, valueBuffer, keyRid);
+					byOid = convertByteArrayToObject(eClass, keyOid, valueBuffer, keyRid, projection == null ? null : projection.get(eClass));
 					if (byOid != null && useCache) {
 						getQueryObjectProvider().cache(byOid);
 					}
@@ -500,4 +502,53 @@ public abstract class DatabaseReadingStackFrame extends StackFrame implements Ob
 			recordIterator.close();
 		}
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Same as getByOid for multiple oids, all objects that are not in the cache are read with one multi-get. Objects that do not exist are not in the returned map
+	 */
+	public Map<Long, HashMapVirtualObject> getByOids(List<Long> oids, boolean useCache) throws BimserverDatabaseException {
+		Map<Long, HashMapVirtualObject> result = new HashMap<>();
+		DatabaseSession databaseSession = getQueryObjectProvider().getDatabaseSession();
+		List<MultiGetKey> keys = new ArrayList<>(oids.size());
+		for (Long oid : oids) {
+			if (result.containsKey(oid)) {
+				continue;
+			}
+			HashMapVirtualObject byOid = getQueryObjectProvider().getFromCache((long)oid);
+			if (byOid != null) {
+				result.put(oid, byOid);
+			} else {
+				EClass eClass = databaseSession.getEClassForOid(oid);
+				getQueryObjectProvider().incIndexLookups(this, eClass);
+				keys.add(new MultiGetKey(databaseSession.getTableHandle(eClass), reusable.getPid(), oid, Integer.MIN_VALUE, reusable.getRid()));
+				// Marks the oid as seen, the value is replaced when the object is found
+				result.put(oid, null);
+			}
+		}
+		if (keys.isEmpty()) {
+			return result;
+		}
+		databaseSession.getKeyValueStore().multiGet(keys, databaseSession);
+		for (MultiGetKey key : keys) {
+			Record record = key.getRecord();
+			if (record == null) {
+				result.remove(key.getOid());
+				continue;
+			}
+			EClass eClass = databaseSession.getEClassForOid(key.getOid());
+			getQueryObjectProvider().incReads(this, eClass);
+			ByteBuffer valueBuffer = ByteBuffer.wrap(record.getValue());
+			if (valueBuffer.capacity() == 1 && valueBuffer.get(0) == -1) {
+				// deleted entity
+				result.remove(key.getOid());
+			} else {
+				HashMapVirtualObject byOid = convertByteArrayToObject(eClass, key.getOid(), valueBuffer, key.getRecordRid());
+				if (byOid != null && useCache) {
+					getQueryObjectProvider().cache(byOid);
+				}
+				result.put(key.getOid(), byOid);
+			}
+		}
+		return result;
+	}
+}
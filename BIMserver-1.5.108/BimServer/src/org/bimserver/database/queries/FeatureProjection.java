@@ -0,0 +1,57 @@
+package org.bimserver.database.queries;
+
+/******************************************************************************
+ * Copyright (C) 2009-2018  BIMserver.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EStructuralFeature;
+
+/**
+ * The features a stack frame needs of objects it only reads to filter on, for example the bounds of a GeometryInfo. The names are resolved once per EClass.
+ *
+ * Objects read with a projection are partial, so they must not be cached or returned as query results.
+ */
+public class FeatureProjection {
+	private final String[] featureNames;
+	private final Map<EClass, Set<EStructuralFeature>> perClass = new ConcurrentHashMap<>();
+
+	public FeatureProjection(String... featureNames) {
+		this.featureNames = featureNames;
+	}
+
+	public Set<EStructuralFeature> get(EClass eClass) {
+		Set<EStructuralFeature> features = perClass.get(eClass);
+		if (features == null) {
+			features = new HashSet<>();
+			for (String featureName : featureNames) {
+				EStructuralFeature feature = eClass.getEStructuralFeature(featureName);
+				if (feature != null) {
+					features.add(feature);
+				}
+			}
+			features = Collections.unmodifiableSet(features);
+			perClass.put(eClass, features);
+		}
+		return features;
+	}
+}
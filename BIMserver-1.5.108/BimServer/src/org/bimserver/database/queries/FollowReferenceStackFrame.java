@@ -69,14 +69,15 @@ public class FollowReferenceStackFrame extends DatabaseReadingStackFrame impleme
 		startSearchWith.putLong(oid);
 		startSearchWith.putInt(-getReusable().getRid());
 
-		SearchingRecordIterator recordIterator = getQueryObjectProvider().getDatabaseSession().getKeyValueStore().getRecordIterator(eClass.getEPackage().getName() + "_" + eClass.getName(), mustStartWith.array(),
+		getQueryObjectProvider().incIndexLookups(this, eClass);
+		SearchingRecordIterator recordIterator = getQueryObjectProvider().getDatabaseSession().getKeyValueStore().getRecordIterator(getQueryObjectProvider().getDatabaseSession().getTableHandle(eClass), mustStartWith.array(),
 				startSearchWith.array(), getQueryObjectProvider().getDatabaseSession());
 		try {
 			Record record = recordIterator.next();
 			if (record == null) {
 				return true;
 			}
-			getQueryObjectProvider().incReads();
+			getQueryObjectProvider().incReads(this, eClass);
 			ByteBuffer keyBuffer = ByteBuffer.wrap(record.getKey());
 			ByteBuffer valueBuffer = ByteBuffer.wrap(record.getValue());
 			keyBuffer.getInt(); // pid
@@ -0,0 +1,301 @@
+package org.bimserver.database.queries;
+
+/******************************************************************************
+ * Copyright (C) 2009-2018  BIMserver.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Compact set of oids, without boxing.
+ *
+ * The low 16 bits of an oid are the cid, the other 48 bits are a counter per class, which is dense for the objects of one class. So the oids are first grouped per cid,
+ * and per cid the counters are stored in roaring bitmap style containers: the high bits of the counter select the container, a container holds the low 16 bits as
+ * a sorted short array while it is small and as a bitmap (8KB) when it is large.
+ *
+ * Not thread safe, use synchronizedSet for sets that are shared by multiple threads.
+ */
+public class OidSet {
+	private static final int MAX_ARRAY_CONTAINER_SIZE = 4096;
+	private static final int INITIAL_CAPACITY = 4;
+
+	// Rough estimates of the JVM object overhead, only used for memory accounting
+	private static final int OBJECT_OVERHEAD = 16;
+	private static final int ARRAY_OVERHEAD = 16;
+	private static final int REFERENCE_SIZE = 8;
+
+	// Sorted cids, with the CidSet of each cid at the same index
+	private int[] cids = new int[INITIAL_CAPACITY];
+	private CidSet[] cidSets = new CidSet[INITIAL_CAPACITY];
+	private int nrCids;
+	private long size;
+	private long memoryUsage = OBJECT_OVERHEAD + 2 * ARRAY_OVERHEAD + INITIAL_CAPACITY * (4 + REFERENCE_SIZE);
+
+	private static abstract class Container {
+		abstract boolean add(int low);
+		abstract boolean contains(int low);
+		abstract int size();
+		abstract long getMemoryUsage();
+	}
+
+	private static class ArrayContainer extends Container {
+		private short[] values = new short[INITIAL_CAPACITY];
+		private int size;
+
+		@Override
+		boolean add(int low) {
+			int index = indexOf(low);
+			if (index >= 0) {
+				return false;
+			}
+			index = -index - 1;
+			if (size == values.length) {
+				values = Arrays.copyOf(values, Math.min(values.length * 2, MAX_ARRAY_CONTAINER_SIZE));
+			}
+			System.arraycopy(values, index, values, index + 1, size - index);
+			values[index] = (short) low;
+			size++;
+			return true;
+		}
+
+		@Override
+		boolean contains(int low) {
+			return indexOf(low) >= 0;
+		}
+
+		// Binary search on the unsigned values
+		private int indexOf(int low) {
+			int from = 0;
+			int to = size - 1;
+			while (from <= to) {
+				int middle = (from + to) >>> 1;
+				int value = values[middle] & 0xFFFF;
+				if (value < low) {
+					from = middle + 1;
+				} else if (value > low) {
+					to = middle - 1;
+				} else {
+					return middle;
+				}
+			}
+			return -(from + 1);
+		}
+
+		boolean isFull() {
+			return size == MAX_ARRAY_CONTAINER_SIZE;
+		}
+
+		BitmapContainer toBitmapContainer() {
+			BitmapContainer bitmapContainer = new BitmapContainer();
+			for (int i=0; i<size; i++) {
+				bitmapContainer.add(values[i] & 0xFFFF);
+			}
+			return bitmapContainer;
+		}
+
+		@Override
+		int size() {
+			return size;
+		}
+
+		@Override
+		long getMemoryUsage() {
+			return OBJECT_OVERHEAD + ARRAY_OVERHEAD + values.length * 2;
+		}
+	}
+
+	private static class BitmapContainer extends Container {
+		private final long[] bits = new long[1024];
+		private int size;
+
+		@Override
+		boolean add(int low) {
+			long mask = 1L << low;
+			long word = bits[low >>> 6];
+			if ((word & mask) != 0) {
+				return false;
+			}
+			bits[low >>> 6] = word | mask;
+			size++;
+			return true;
+		}
+
+		@Override
+		boolean contains(int low) {
+			return (bits[low >>> 6] & (1L << low)) != 0;
+		}
+
+		@Override
+		int size() {
+			return size;
+		}
+
+		@Override
+		long getMemoryUsage() {
+			return OBJECT_OVERHEAD + ARRAY_OVERHEAD + bits.length * 8;
+		}
+	}
+
+	/**
+	 * The containers of one cid, sorted by the high bits of the counter
+	 */
+	private static class CidSet {
+		private long[] keys = new long[INITIAL_CAPACITY];
+		private Container[] containers = new Container[INITIAL_CAPACITY];
+		private int nrContainers;
+
+		int indexOf(long key) {
+			return Arrays.binarySearch(keys, 0, nrContainers, key);
+		}
+
+		int insert(int index, long key, Container container) {
+			if (nrContainers == keys.length) {
+				keys = Arrays.copyOf(keys, keys.length * 2);
+				containers = Arrays.copyOf(containers, containers.length * 2);
+			}
+			System.arraycopy(keys, index, keys, index + 1, nrContainers - index);
+			System.arraycopy(containers, index, containers, index + 1, nrContainers - index);
+			keys[index] = key;
+			containers[index] = container;
+			nrContainers++;
+			return index;
+		}
+
+		long getMemoryUsage() {
+			return OBJECT_OVERHEAD + 2 * ARRAY_OVERHEAD + keys.length * (8 + REFERENCE_SIZE);
+		}
+	}
+
+	public static OidSet synchronizedSet() {
+		return new SynchronizedOidSet();
+	}
+
+	/**
+	 * @return true when the oid was not in the set yet
+	 */
+	public boolean add(long oid) {
+		int cid = (int) (oid & 0xFFFF);
+		long counter = oid >>> 16;
+		long key = counter >>> 16;
+		int low = (int) (counter & 0xFFFF);
+
+		CidSet cidSet = getCidSet(cid);
+		if (cidSet == null) {
+			cidSet = addCidSet(cid);
+		}
+		int index = cidSet.indexOf(key);
+		if (index < 0) {
+			long before = cidSet.getMemoryUsage();
+			ArrayContainer arrayContainer = new ArrayContainer();
+			index = cidSet.insert(-index - 1, key, arrayContainer);
+			memoryUsage += cidSet.getMemoryUsage() - before + arrayContainer.getMemoryUsage();
+		}
+		Container container = cidSet.containers[index];
+		if (container instanceof ArrayContainer && ((ArrayContainer) container).isFull() && !container.contains(low)) {
+			BitmapContainer bitmapContainer = ((ArrayContainer) container).toBitmapContainer();
+			memoryUsage += bitmapContainer.getMemoryUsage() - container.getMemoryUsage();
+			cidSet.containers[index] = bitmapContainer;
+			container = bitmapContainer;
+		}
+		long before = container.getMemoryUsage();
+		if (container.add(low)) {
+			memoryUsage += container.getMemoryUsage() - before;
+			size++;
+			return true;
+		}
+		return false;
+	}
+
+	private CidSet getCidSet(int cid) {
+		int index = Arrays.binarySearch(cids, 0, nrCids, cid);
+		return index < 0 ? null : cidSets[index];
+	}
+
+	private CidSet addCidSet(int cid) {
+		int index = -Arrays.binarySearch(cids, 0, nrCids, cid) - 1;
+		if (nrCids == cids.length) {
+			memoryUsage += cids.length * (4 + REFERENCE_SIZE);
+			cids = Arrays.copyOf(cids, cids.length * 2);
+			cidSets = Arrays.copyOf(cidSets, cidSets.length * 2);
+		}
+		System.arraycopy(cids, index, cids, index + 1, nrCids - index);
+		System.arraycopy(cidSets, index, cidSets, index + 1, nrCids - index);
+		CidSet cidSet = new CidSet();
+		cids[index] = cid;
+		cidSets[index] = cidSet;
+		nrCids++;
+		memoryUsage += cidSet.getMemoryUsage();
+		return cidSet;
+	}
+
+	public void addAll(Collection<Long> oids) {
+		for (long oid : oids) {
+			add(oid);
+		}
+	}
+
+	public boolean contains(long oid) {
+		CidSet cidSet = getCidSet((int) (oid & 0xFFFF));
+		if (cidSet == null) {
+			return false;
+		}
+		long counter = oid >>> 16;
+		int index = cidSet.indexOf(counter >>> 16);
+		if (index < 0) {
+			return false;
+		}
+		return cidSet.containers[index].contains((int) (counter & 0xFFFF));
+	}
+
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * @return An estimate of the number of bytes used by this set
+	 */
+	public long getMemoryUsage() {
+		return memoryUsage;
+	}
+
+	private static class SynchronizedOidSet extends OidSet {
+		@Override
+		public synchronized boolean add(long oid) {
+			return super.add(oid);
+		}
+
+		@Override
+		public synchronized void addAll(Collection<Long> oids) {
+			super.addAll(oids);
+		}
+
+		@Override
+		public synchronized boolean contains(long oid) {
+			return super.contains(oid);
+		}
+
+		@Override
+		public synchronized long size() {
+			return super.size();
+		}
+
+		@Override
+		public synchronized long getMemoryUsage() {
+			return super.getMemoryUsage();
+		}
+	}
+}
@@ -0,0 +1,440 @@
+package org.bimserver.database.queries;
+
+/******************************************************************************
+ * Copyright (C) 2009-2018  BIMserver.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinPool.ManagedBlocker;
+import java.util.concurrent.TimeUnit;
+
+import org.bimserver.BimServer;
+import org.bimserver.BimserverDatabaseException;
+import org.bimserver.database.DatabaseSession;
+import org.bimserver.database.OldQuery;
+import org.bimserver.database.Record;
+import org.bimserver.database.SearchingRecordIterator;
+import org.bimserver.database.queries.om.Include.TypeDef;
+import org.bimserver.database.queries.om.JsonQueryObjectModelConverter;
+import org.bimserver.database.queries.om.Query;
+import org.bimserver.database.queries.om.QueryException;
+import org.bimserver.database.queries.om.QueryPart;
+import org.bimserver.emf.PackageMetaData;
+import org.bimserver.models.store.Revision;
+import org.bimserver.models.store.StorePackage;
+import org.bimserver.plugins.serializers.ObjectProvider;
+import org.bimserver.shared.HashMapVirtualObject;
+import org.bimserver.utils.BinUtils;
+import org.eclipse.emf.ecore.EClass;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Executes a query by splitting it up in shards (per roid, per query part and per type for type queries, big types are split up further in oid ranges) and running
+ * those shards on a ForkJoinPool. Every shard is a normal QueryObjectProvider, they share the administration of which objects have been read, so an object is still
+ * only returned once. Shards waiting for room in a full queue are managed blockers, so the pool can add threads for other queries in the mean time. A provider of
+ * which not all results are read has to be closed to stop its shards.
+ *
+ * When the query is ordered, the results of a shard are only returned after all results of the previous shards, otherwise results are returned as soon as they are available.
+ */
+public class ParallelQueryObjectProvider implements ObjectProvider {
+	private static final Logger LOGGER = LoggerFactory.getLogger(ParallelQueryObjectProvider.class);
+	private static final int QUEUE_SIZE = 10000;
+	private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+	// Types with more objects than this (estimated from the oid counter, for all projects together) are read by several shards, each reading a range of oids
+	private static final long MIN_OBJECTS_PER_OID_RANGE = 50000;
+
+	// Marks the end of the results of one shard
+	private static final HashMapVirtualObject END = new HashMapVirtualObject(null, null, -1);
+
+	private final DatabaseSession databaseSession;
+	private final BimServer bimServer;
+	private final Query query;
+	private final Set<Long> roids;
+	private final PackageMetaData packageMetaData;
+	private final List<Shard> shards = new ArrayList<>();
+	private final BlockingQueue<HashMapVirtualObject> sharedQueue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+	private final int parallelism;
+	private final OidSet oidsRead;
+	private final OidSet goingToRead;
+	private final RunningQuery runningQuery;
+	private volatile boolean closed;
+	private boolean started;
+	private int currentShard;
+	private int nextShardToSubmit;
+	private int shardsDone;
+	private boolean profileLogged;
+
+	private class Shard implements Runnable {
+		private final QueryObjectProvider queryObjectProvider;
+		private final BlockingQueue<HashMapVirtualObject> queue;
+		private volatile Exception exception;
+
+		public Shard(QueryObjectProvider queryObjectProvider, BlockingQueue<HashMapVirtualObject> queue) {
+			this.queryObjectProvider = queryObjectProvider;
+			this.queue = queue;
+		}
+
+		@Override
+		public void run() {
+			try {
+				HashMapVirtualObject next = queryObjectProvider.next();
+				while (next != null && !closed) {
+					put(next);
+					next = queryObjectProvider.next();
+				}
+			} catch (Exception e) {
+				LOGGER.error("", e);
+				exception = e;
+			} finally {
+				try {
+					put(END);
+				} catch (InterruptedException e) {
+					LOGGER.error("", e);
+				}
+			}
+		}
+
+		private void put(final HashMapVirtualObject object) throws InterruptedException {
+			if (queue.offer(object)) {
+				return;
+			}
+			ForkJoinPool.managedBlock(new ManagedBlocker() {
+				private boolean done;
+
+				@Override
+				public boolean block() throws InterruptedException {
+					while (!done && !closed) {
+						done = queue.offer(object, 100, TimeUnit.MILLISECONDS);
+					}
+					return true;
+				}
+
+				@Override
+				public boolean isReleasable() {
+					if (!done && !closed) {
+						done = queue.offer(object);
+					}
+					return done || closed;
+				}
+			});
+		}
+	}
+
+	public ParallelQueryObjectProvider(DatabaseSession databaseSession, BimServer bimServer, Query query, Set<Long> roids, PackageMetaData packageMetaData) throws IOException, QueryException {
+		this.databaseSession = databaseSession;
+		this.bimServer = bimServer;
+		this.query = query;
+		this.roids = roids;
+		this.packageMetaData = packageMetaData;
+		this.parallelism = POOL.getParallelism();
+
+		oidsRead = OidSet.synchronizedSet();
+		goingToRead = OidSet.synchronizedSet();
+		runningQuery = QueryObjectProvider.register(bimServer, query, roids);
+
+		boolean hasTiles = false;
+		for (QueryPart queryPart : query.getQueryParts()) {
+			if (queryPart.getTiles() != null) {
+				hasTiles = true;
+			}
+		}
+		if (hasTiles) {
+			// The octree used for tiles is built for all roids together, so this query can only be run as one shard
+			addShard(query, roids, oidsRead, goingToRead);
+		} else {
+			for (Long roid : roids) {
+				int pid = getPid(roid);
+				for (QueryPart queryPart : query.getQueryParts()) {
+					for (QueryPart shardPart : split(queryPart, pid)) {
+						Query shardQuery = new Query(query.getName() + "-" + shards.size(), packageMetaData);
+						for (String name : query.getDefines().keySet()) {
+							shardQuery.addDefine(name, query.getDefine(name));
+						}
+						shardQuery.setGeometrySettings(query.getGeometrySettings());
+						shardQuery.setVersion(query.getVersion());
+						shardQuery.addQueryPart(shardPart);
+						addShard(shardQuery, Collections.singleton(roid), oidsRead, goingToRead);
+					}
+				}
+			}
+		}
+	}
+
+	private void addShard(Query shardQuery, Set<Long> shardRoids, OidSet oidsRead, OidSet goingToRead) throws IOException, QueryException {
+		QueryObjectProvider queryObjectProvider = new QueryObjectProvider(databaseSession, bimServer, shardQuery, query, shardRoids, packageMetaData, oidsRead, goingToRead, runningQuery, false);
+		BlockingQueue<HashMapVirtualObject> queue = query.isOrdered() ? new ArrayBlockingQueue<HashMapVirtualObject>(QUEUE_SIZE) : sharedQueue;
+		shards.add(new Shard(queryObjectProvider, queue));
+	}
+
+	private int getPid(long roid) throws QueryException {
+		try {
+			Revision revision = databaseSession.get(StorePackage.eINSTANCE.getRevision(), roid, OldQuery.getDefault());
+			if (revision == null) {
+				throw new QueryException("No revision with roid " + roid + " found");
+			}
+			return revision.getProject().getId();
+		} catch (BimserverDatabaseException e) {
+			throw new QueryException(e);
+		}
+	}
+
+	/**
+	 * Parts that only select on types are split up per type, and big types in oid ranges. All other parts are executed as a whole
+	 */
+	private List<QueryPart> split(QueryPart queryPart, int pid) throws QueryException {
+		if (!queryPart.hasTypes() || queryPart.hasOids()) {
+			return Collections.singletonList(queryPart);
+		}
+		Set<EClass> eClasses = new LinkedHashSet<>();
+		for (TypeDef typeDef : queryPart.getTypes()) {
+			eClasses.add(typeDef.geteClass());
+			if (typeDef.isIncludeSubTypes()) {
+				for (EClass eClass : packageMetaData.getAllSubClasses(typeDef.geteClass())) {
+					if (!typeDef.excludes(eClass)) {
+						eClasses.add(eClass);
+					}
+				}
+			}
+		}
+		List<QueryPart> result = new ArrayList<>();
+		for (EClass eClass : eClasses) {
+			List<TypeDef> types = new ArrayList<>();
+			types.add(new TypeDef(eClass, false));
+			QueryPart typePart = queryPart.copyWithTypes(types);
+			try {
+				splitInOidRanges(typePart, eClass, pid, result);
+			} catch (BimserverDatabaseException e) {
+				throw new QueryException(e);
+			}
+		}
+		return result;
+	}
+
+	private void splitInOidRanges(QueryPart typePart, EClass eClass, int pid, List<QueryPart> result) throws BimserverDatabaseException {
+		// The lower 16 bits of an oid are the cid, the counter is the highest oid given out for this type
+		long lastOid = databaseSession.getCounter(eClass);
+		if (parallelism < 2 || (lastOid >> 16) < MIN_OBJECTS_PER_OID_RANGE * 2) {
+			result.add(typePart);
+			return;
+		}
+		long firstOid = -1;
+		SearchingRecordIterator recordIterator = databaseSession.getKeyValueStore().getRecordIterator(databaseSession.getTableHandle(eClass), BinUtils.intToByteArray(pid), BinUtils.intToByteArray(pid), databaseSession, true);
+		try {
+			Record record = recordIterator.next();
+			if (record != null) {
+				ByteBuffer keyBuffer = ByteBuffer.wrap(record.getKey());
+				keyBuffer.getInt(); // pid
+				firstOid = keyBuffer.getLong();
+			}
+		} finally {
+			recordIterator.close();
+		}
+		if (firstOid == -1) {
+			result.add(typePart);
+			return;
+		}
+		int ranges = (int) Math.min(parallelism, ((lastOid - firstOid) >> 16) / MIN_OBJECTS_PER_OID_RANGE);
+		if (ranges < 2) {
+			result.add(typePart);
+			return;
+		}
+		long rangeSize = (lastOid + 1 - firstOid) / ranges + 1;
+		for (int i = 0; i < ranges; i++) {
+			QueryPart rangePart = typePart.copyWithTypes(typePart.getTypes());
+			rangePart.setOidRange(firstOid + i * rangeSize, i == ranges - 1 ? lastOid + 1 : firstOid + (i + 1) * rangeSize);
+			result.add(rangePart);
+		}
+	}
+
+	@Override
+	public HashMapVirtualObject next() throws BimserverDatabaseException {
+		try {
+			if (query.isOrdered()) {
+				return nextOrdered();
+			} else {
+				return nextUnordered();
+			}
+		} catch (InterruptedException e) {
+			close();
+			throw new BimserverDatabaseException(e);
+		}
+	}
+
+	private HashMapVirtualObject nextUnordered() throws InterruptedException, BimserverDatabaseException {
+		if (!started) {
+			started = true;
+			for (Shard shard : shards) {
+				POOL.execute(shard);
+			}
+		}
+		while (shardsDone < shards.size()) {
+			HashMapVirtualObject next = sharedQueue.take();
+			if (next == END) {
+				shardsDone++;
+				checkExceptions();
+			} else {
+				return next;
+			}
+		}
+		logProfile();
+		unregister();
+		return null;
+	}
+
+	private HashMapVirtualObject nextOrdered() throws InterruptedException, BimserverDatabaseException {
+		while (currentShard < shards.size()) {
+			// Only a limited number of shards ahead of the current one is running, so the current one can never be starved by shards waiting on their full queues
+			while (nextShardToSubmit < shards.size() && nextShardToSubmit < currentShard + parallelism) {
+				POOL.execute(shards.get(nextShardToSubmit++));
+			}
+			Shard shard = shards.get(currentShard);
+			HashMapVirtualObject next = shard.queue.take();
+			if (next == END) {
+				currentShard++;
+				checkExceptions();
+			} else {
+				return next;
+			}
+		}
+		logProfile();
+		unregister();
+		return null;
+	}
+
+	private void unregister() {
+		if (runningQuery != null) {
+			bimServer.getQueryManager().unregister(runningQuery);
+		}
+	}
+
+	@Override
+	public String getIncompleteReason() {
+		for (Shard shard : shards) {
+			String reason = shard.queryObjectProvider.getIncompleteReason();
+			if (reason != null) {
+				return reason;
+			}
+		}
+		return null;
+	}
+
+	public RunningQuery getRunningQuery() {
+		return runningQuery;
+	}
+
+	private void logProfile() {
+		if (query.isProfile() && !profileLogged) {
+			profileLogged = true;
+			LOGGER.info("Query " + query.getName() + " profile: " + getProfile().toString());
+		}
+	}
+
+	private void checkExceptions() throws BimserverDatabaseException {
+		for (Shard shard : shards) {
+			if (shard.exception != null) {
+				close();
+				throw new BimserverDatabaseException(shard.exception);
+			}
+		}
+	}
+
+	/**
+	 * @return An estimate of the number of bytes used to keep track of which objects have been read, the shards share this administration
+	 */
+	public long getMemoryUsage() {
+		return oidsRead.getMemoryUsage() + goingToRead.getMemoryUsage();
+	}
+
+	/**
+	 * @return The profiles of all shards merged, only available when the query has the profile flag
+	 */
+	public QueryProfile getProfile() {
+		if (!query.isProfile()) {
+			return null;
+		}
+		QueryProfile result = new QueryProfile();
+		for (Shard shard : shards) {
+			result.merge(shard.queryObjectProvider.getProfile());
+		}
+		return result;
+	}
+
+	public void setMaxMemoryUsage(long maxMemoryUsage) {
+		for (Shard shard : shards) {
+			shard.queryObjectProvider.setMaxMemoryUsage(maxMemoryUsage);
+		}
+	}
+
+	/**
+	 * Stops all running shards, only needed when not all results are consumed
+	 */
+	public void close() {
+		closed = true;
+		unregister();
+	}
+
+	@Override
+	public ObjectProvider copy() throws IOException, QueryException {
+		return new ParallelQueryObjectProvider(databaseSession, bimServer, query, roids, packageMetaData);
+	}
+
+	@Override
+	public HashMapVirtualObject getByOid(long oid) {
+		return databaseSession.getFromCache(oid);
+	}
+
+	@Override
+	public EClass getEClassForOid(long oid) {
+		try {
+			return databaseSession.getEClassForOid(oid);
+		} catch (BimserverDatabaseException e) {
+			LOGGER.error("", e);
+		}
+		return null;
+	}
+
+	@Override
+	public EClass getEClassForCid(short cid) {
+		try {
+			return databaseSession.getEClass(cid);
+		} catch (BimserverDatabaseException e) {
+			LOGGER.error("", e);
+		}
+		return null;
+	}
+
+	@Override
+	public ObjectNode getQueryNode() {
+		return new JsonQueryObjectModelConverter(packageMetaData).toJson(query);
+	}
+
+	@Override
+	public void cache(HashMapVirtualObject object) {
+		databaseSession.cache(object);
+	}
+}
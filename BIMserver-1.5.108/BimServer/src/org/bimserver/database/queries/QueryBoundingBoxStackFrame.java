@@ -18,11 +18,14 @@ package org.bimserver.database.queries;
  *****************************************************************************/
 
 import java.nio.ByteBuffer;
+import java.util.Iterator;
 
 import org.bimserver.BimserverDatabaseException;
 import org.bimserver.database.DatabaseSession.GetResult;
 import org.bimserver.database.Record;
 import org.bimserver.database.SearchingRecordIterator;
+import org.bimserver.database.SpatialIndex;
+import org.bimserver.database.TableHandle;
 import org.bimserver.database.queries.om.InBoundingBox;
 import org.bimserver.database.queries.om.QueryException;
 import org.bimserver.database.queries.om.QueryPart;
@@ -33,36 +36,52 @@ import org.bimserver.utils.BinUtils;
 import org.eclipse.emf.ecore.EClass;
 
 public class QueryBoundingBoxStackFrame extends DatabaseReadingStackFrame implements ObjectProvidingStackFrame {
+	private static final FeatureProjection GEOMETRY_INFO_FILTER = new FeatureProjection("density", "boundsMm");
 	private EClass eClass;
 	private SearchingRecordIterator typeRecordIterator;
 	private Record record;
 	private InBoundingBox inBoundingBox;
+	private Iterator<SpatialIndex.Entry> spatialIndexIterator;
 
 	public QueryBoundingBoxStackFrame(QueryObjectProvider queryObjectProvider, EClass eClass, QueryPart queryPart, QueryContext reusable, InBoundingBox inBoundingBox) throws BimserverDatabaseException {
 		super(reusable, queryObjectProvider, queryPart);
 		this.eClass = eClass;
 		this.inBoundingBox = inBoundingBox;
 
-		String tableName = eClass.getEPackage().getName() + "_" + eClass.getName();
+		TableHandle tableHandle = queryObjectProvider.getDatabaseSession().getTableHandle(eClass);
 		if (reusable.getOidCounters() != null) {
 			if (!reusable.getOidCounters().containsKey(eClass)) {
 				return; // will skip to next one
 			}
+		}
+		SpatialIndex spatialIndex = queryObjectProvider.getDatabaseSession().getSpatialIndex();
+		if (spatialIndex.isComplete(reusable.getCroid(), queryObjectProvider.getDatabaseSession())) {
+			double[] queryMin = new double[]{inBoundingBox.getX(), inBoundingBox.getY(), inBoundingBox.getZ()};
+			double[] queryMax = new double[]{inBoundingBox.getX() + inBoundingBox.getWidth(), inBoundingBox.getY() + inBoundingBox.getHeight(), inBoundingBox.getZ() + inBoundingBox.getDepth()};
+			short cid = queryObjectProvider.getDatabaseSession().getCid(eClass);
+			queryObjectProvider.incIndexLookups(this, eClass);
+			spatialIndexIterator = spatialIndex.query(reusable.getCroid(), cid, queryMin, queryMax, queryObjectProvider.getDatabaseSession()).iterator();
+			return;
+		}
+		if (reusable.getOidCounters() != null) {
 			long startOid = reusable.getOidCounters().get(eClass);
 			ByteBuffer tmp = ByteBuffer.allocate(12);
 			tmp.putInt(reusable.getPid());
 			tmp.putLong(startOid + 1);
-			typeRecordIterator = queryObjectProvider.getDatabaseSession().getKeyValueStore().getRecordIterator(tableName, BinUtils.intToByteArray(getReusable().getPid()), tmp.array(), queryObjectProvider.getDatabaseSession());
+			typeRecordIterator = queryObjectProvider.getDatabaseSession().getKeyValueStore().getRecordIterator(tableHandle, BinUtils.intToByteArray(getReusable().getPid()), tmp.array(), queryObjectProvider.getDatabaseSession());
 			record = typeRecordIterator.next();
 		} else {
 //			LOGGER.warn("Potential too-many-reads");
-			typeRecordIterator = queryObjectProvider.getDatabaseSession().getKeyValueStore().getRecordIterator(tableName, BinUtils.intToByteArray(getReusable().getPid()), BinUtils.intToByteArray(getReusable().getPid()), queryObjectProvider.getDatabaseSession());
+			typeRecordIterator = queryObjectProvider.getDatabaseSession().getKeyValueStore().getRecordIterator(tableHandle, BinUtils.intToByteArray(getReusable().getPid()), BinUtils.intToByteArray(getReusable().getPid()), queryObjectProvider.getDatabaseSession());
 			record = typeRecordIterator.next();
 		}
 	}
 	
 	@Override
 	public boolean process() throws BimserverDatabaseException, QueryException {
+		if (spatialIndexIterator != null) {
+			return processSpatialIndex();
+		}
 		if (typeRecordIterator == null) {
 			return true;
 		}
@@ -75,7 +94,7 @@ public class QueryBoundingBoxStackFrame extends DatabaseReadingStackFrame implem
 		currentObject = null;
 		
 		ByteBuffer nextKeyStart = ByteBuffer.allocate(12);
-		getQueryObjectProvider().incReads();
+		getQueryObjectProvider().incReads(this, eClass);
 		ByteBuffer keyBuffer = ByteBuffer.wrap(record.getKey());
 		int keyPid = keyBuffer.getInt();
 		long keyOid = keyBuffer.getLong();
@@ -94,28 +113,13 @@ public class QueryBoundingBoxStackFrame extends DatabaseReadingStackFrame implem
 		if (currentObject != null) {
 			if (currentObject.has("geometry")) {
 				long geometryInfoId = (Long) currentObject.get("geometry");
-				HashMapVirtualObject geometryInfo = getByOid(geometryInfoId);
+				HashMapVirtualObject geometryInfo = getByOid(geometryInfoId, GEOMETRY_INFO_FILTER);
 				
 				// TODO the querying party should be able to force the units used
-				// TODO use some spatial indexing, this is getting slow now that it's actually used
 
-				boolean hasAny = !Double.isNaN(inBoundingBox.getX()) || !Double.isNaN(inBoundingBox.getY()) || !Double.isNaN(inBoundingBox.getZ()) || !Double.isNaN(inBoundingBox.getWidth()) || !Double.isNaN(inBoundingBox.getHeight()) || !Double.isNaN(inBoundingBox.getDepth());
-				
-				if (inBoundingBox.getDensityLowerThreshold() != null) {
-					float density = (float) geometryInfo.get("density");
-					if (density > inBoundingBox.getDensityLowerThreshold()) {
-						currentObject = null;
-						return false;
-					}
-				}
-				if (inBoundingBox.getDensityUpperThreshold() != null) {
-					float density = (float) geometryInfo.get("density");
-					if (density <= inBoundingBox.getDensityUpperThreshold()) {
-						currentObject = null;
-						return false;
-					}
-				}
-				if (hasAny) {
+				if (!matchesDensity((Float) geometryInfo.get("density"))) {
+					currentObject = null;
+				} else if (hasAny()) {
 					HashMapWrappedVirtualObject bounds = (HashMapWrappedVirtualObject) geometryInfo.get("boundsMm");
 					HashMapWrappedVirtualObject minBounds = (HashMapWrappedVirtualObject) bounds.eGet("min");
 					HashMapWrappedVirtualObject maxBounds = (HashMapWrappedVirtualObject) bounds.eGet("max");
@@ -125,84 +129,8 @@ public class QueryBoundingBoxStackFrame extends DatabaseReadingStackFrame implem
 					double maxX = (double) maxBounds.eGet("x");
 					double maxY = (double) maxBounds.eGet("y");
 					double maxZ = (double) maxBounds.eGet("z");
-					
-					if (inBoundingBox.isPartial()) {
-//						if ((maxX >= inBoundingBox.getX() && inBoundingBox.getX() + inBoundingBox.getWidth() >= minX) &&
-//							(maxY >= inBoundingBox.getY() && inBoundingBox.getY() + inBoundingBox.getHeight() >= minY) &&
-//							(maxZ >= inBoundingBox.getZ() && inBoundingBox.getZ() + inBoundingBox.getDepth() >= minZ)) {
-//							
-//						} else {
-//							currentObject = null;
-//						}
-						if (minX >= inBoundingBox.getX() &&
-						minY >= inBoundingBox.getY() &&
-						minZ >= inBoundingBox.getZ() &&
-						maxX <= inBoundingBox.getX() + inBoundingBox.getWidth() &&
-						maxY <= inBoundingBox.getY() + inBoundingBox.getHeight() &&
-						maxZ <= inBoundingBox.getZ() + inBoundingBox.getDepth()) {
-							// OK
-						} else if (minX <= inBoundingBox.getX() &&
-								minY <= inBoundingBox.getY() &&
-								minZ <= inBoundingBox.getZ() &&
-								maxX >= inBoundingBox.getX() + inBoundingBox.getWidth() &&
-								maxY >= inBoundingBox.getY() + inBoundingBox.getHeight() &&
-								maxZ >= inBoundingBox.getZ() + inBoundingBox.getDepth()) {
-							// OK
-						} else {
-							if (
-								(minX <= inBoundingBox.getX() + inBoundingBox.getWidth() && maxX >= inBoundingBox.getX()) &&
-								(minY <= inBoundingBox.getY() + inBoundingBox.getHeight() && maxY >= inBoundingBox.getY()) &&
-								(minZ <= inBoundingBox.getZ() + inBoundingBox.getDepth() && maxZ >= inBoundingBox.getZ())) {
-								// OK
-							} else {
-								currentObject = null;
-							}
-						}
-					} else if (inBoundingBox.isUseCenterPoint()) {
-						double centerX = (minX + maxX) / 2f;
-						double centerY = (minY + maxY) / 2f;
-						double centerZ = (minZ + maxZ) / 2f;
-						if (
-								centerX > inBoundingBox.getX() &&
-								centerY > inBoundingBox.getY() &&
-								centerZ > inBoundingBox.getZ() &&
-								centerX <= inBoundingBox.getX() + inBoundingBox.getWidth() &&
-								centerY <= inBoundingBox.getY() + inBoundingBox.getHeight() &&
-								centerZ <= inBoundingBox.getZ() + inBoundingBox.getDepth()) {
-						} else {
-							currentObject = null;
-						}
-					} else {
-						if (
-							minX > inBoundingBox.getX() &&
-							minY > inBoundingBox.getY() &&
-							minZ > inBoundingBox.getZ() &&
-							maxX <= inBoundingBox.getX() + inBoundingBox.getWidth() &&
-							maxY <= inBoundingBox.getY() + inBoundingBox.getHeight() &&
-							maxZ <= inBoundingBox.getZ() + inBoundingBox.getDepth()) {
-							if (inBoundingBox.isExcludeOctants()) {
-								for (int x=0; x<2; x++) {
-									for (int y=0; y<2; y++) {
-										for (int z=0; z<2; z++) {
-											if (
-												minX > inBoundingBox.getX() + (x * inBoundingBox.getWidth() / 2) &&
-												minY > inBoundingBox.getY() + (y * inBoundingBox.getHeight() / 2) &&
-												minZ > inBoundingBox.getZ() + (z * inBoundingBox.getDepth() / 2) &&
-												maxX < inBoundingBox.getX() + ((x == 0 ? 0.5f : 1f) * inBoundingBox.getWidth()) &&
-												maxY < inBoundingBox.getY() + ((y == 0 ? 0.5f : 1f) * inBoundingBox.getHeight()) &&
-												maxZ < inBoundingBox.getZ() + ((z == 0 ? 0.5f : 1f) * inBoundingBox.getDepth())) {
-												currentObject = null;
-												break;
-											}
-										}
-									}
-								}
-							} else {
-								// OK
-							}
-						} else {
-							currentObject = null;
-						}
+					if (!matchesBounds(minX, minY, minZ, maxX, maxY, maxZ)) {
+						currentObject = null;
 					}
 				}
 			} else {
@@ -215,6 +143,123 @@ public class QueryBoundingBoxStackFrame extends DatabaseReadingStackFrame implem
 		return false;
 	}
 	
+	/**
+	 * Only the candidates found in the spatial index are read, the index also contains the bounds and density, so there is no need to read the GeometryInfo objects
+	 */
+	private boolean processSpatialIndex() throws BimserverDatabaseException, QueryException {
+		if (!spatialIndexIterator.hasNext()) {
+			currentObject = null;
+			return true;
+		}
+		currentObject = null;
+		SpatialIndex.Entry entry = spatialIndexIterator.next();
+		if (getQueryObjectProvider().hasRead(entry.getOid())) {
+			return false;
+		}
+		if (!matchesDensity(entry.getDensity())) {
+			return false;
+		}
+		double[] min = entry.getMin();
+		double[] max = entry.getMax();
+		if (hasAny() && !matchesBounds(min[0], min[1], min[2], max[0], max[1], max[2])) {
+			return false;
+		}
+		currentObject = getByOid(entry.getOid());
+		if (currentObject != null && !currentObject.has("geometry")) {
+			currentObject = null;
+		}
+		processPossibleIncludes(currentObject, eClass, getQueryPart());
+		return false;
+	}
+
+	private boolean hasAny() {
+		return !Double.isNaN(inBoundingBox.getX()) || !Double.isNaN(inBoundingBox.getY()) || !Double.isNaN(inBoundingBox.getZ()) || !Double.isNaN(inBoundingBox.getWidth()) || !Double.isNaN(inBoundingBox.getHeight()) || !Double.isNaN(inBoundingBox.getDepth());
+	}
+
+	private boolean matchesDensity(Float density) {
+		if (inBoundingBox.getDensityLowerThreshold() != null) {
+			if (density > inBoundingBox.getDensityLowerThreshold()) {
+				return false;
+			}
+		}
+		if (inBoundingBox.getDensityUpperThreshold() != null) {
+			if (density <= inBoundingBox.getDensityUpperThreshold()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean matchesBounds(double minX, double minY, double minZ, double maxX, double maxY, double maxZ) {
+		if (inBoundingBox.isPartial()) {
+//			if ((maxX >= inBoundingBox.getX() && inBoundingBox.getX() + inBoundingBox.getWidth() >= minX) &&
+//				(maxY >= inBoundingBox.getY() && inBoundingBox.getY() + inBoundingBox.getHeight() >= minY) &&
+//				(maxZ >= inBoundingBox.getZ() && inBoundingBox.getZ() + inBoundingBox.getDepth() >= minZ)) {
+//				
+//			} else {
+//				currentObject = null;
+//			}
+			if (minX >= inBoundingBox.getX() &&
+			minY >= inBoundingBox.getY() &&
+			minZ >= inBoundingBox.getZ() &&
+			maxX <= inBoundingBox.getX() + inBoundingBox.getWidth() &&
+			maxY <= inBoundingBox.getY() + inBoundingBox.getHeight() &&
+			maxZ <= inBoundingBox.getZ() + inBoundingBox.getDepth()) {
+				return true;
+			} else if (minX <= inBoundingBox.getX() &&
+					minY <= inBoundingBox.getY() &&
+					minZ <= inBoundingBox.getZ() &&
+					maxX >= inBoundingBox.getX() + inBoundingBox.getWidth() &&
+					maxY >= inBoundingBox.getY() + inBoundingBox.getHeight() &&
+					maxZ >= inBoundingBox.getZ() + inBoundingBox.getDepth()) {
+				return true;
+			} else {
+				return (minX <= inBoundingBox.getX() + inBoundingBox.getWidth() && maxX >= inBoundingBox.getX()) &&
+					(minY <= inBoundingBox.getY() + inBoundingBox.getHeight() && maxY >= inBoundingBox.getY()) &&
+					(minZ <= inBoundingBox.getZ() + inBoundingBox.getDepth() && maxZ >= inBoundingBox.getZ());
+			}
+		} else if (inBoundingBox.isUseCenterPoint()) {
+			double centerX = (minX + maxX) / 2f;
+			double centerY = (minY + maxY) / 2f;
+			double centerZ = (minZ + maxZ) / 2f;
+			return centerX > inBoundingBox.getX() &&
+					centerY > inBoundingBox.getY() &&
+					centerZ > inBoundingBox.getZ() &&
+					centerX <= inBoundingBox.getX() + inBoundingBox.getWidth() &&
+					centerY <= inBoundingBox.getY() + inBoundingBox.getHeight() &&
+					centerZ <= inBoundingBox.getZ() + inBoundingBox.getDepth();
+		} else {
+			if (
+				minX > inBoundingBox.getX() &&
+				minY > inBoundingBox.getY() &&
+				minZ > inBoundingBox.getZ() &&
+				maxX <= inBoundingBox.getX() + inBoundingBox.getWidth() &&
+				maxY <= inBoundingBox.getY() + inBoundingBox.getHeight() &&
+				maxZ <= inBoundingBox.getZ() + inBoundingBox.getDepth()) {
+				if (inBoundingBox.isExcludeOctants()) {
+					for (int x=0; x<2; x++) {
+						for (int y=0; y<2; y++) {
+							for (int z=0; z<2; z++) {
+								if (
+									minX > inBoundingBox.getX() + (x * inBoundingBox.getWidth() / 2) &&
+									minY > inBoundingBox.getY() + (y * inBoundingBox.getHeight() / 2) &&
+									minZ > inBoundingBox.getZ() + (z * inBoundingBox.getDepth() / 2) &&
+									maxX < inBoundingBox.getX() + ((x == 0 ? 0.5f : 1f) * inBoundingBox.getWidth()) &&
+									maxY < inBoundingBox.getY() + ((y == 0 ? 0.5f : 1f) * inBoundingBox.getHeight()) &&
+									maxZ < inBoundingBox.getZ() + ((z == 0 ? 0.5f : 1f) * inBoundingBox.getDepth())) {
+									return false;
+								}
+							}
+						}
+					}
+				}
+				return true;
+			} else {
+				return false;
+			}
+		}
+	}
+
 	public HashMapVirtualObject getCurrentObject() {
 		return currentObject;
 	}
@@ -20,16 +20,16 @@ package org.bimserver.database.queries;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 
 import org.bimserver.BimserverDatabaseException;
 import org.bimserver.database.DatabaseSession;
-import org.bimserver.database.DatabaseSession.GetResult;
 import org.bimserver.database.ObjectIdentifier;
-import org.bimserver.database.Record;
-import org.bimserver.database.SearchingRecordIterator;
+import org.bimserver.database.TableHandle;
 import org.bimserver.database.queries.om.QueryException;
 import org.bimserver.database.queries.om.QueryPart;
 import org.bimserver.plugins.deserializers.DatabaseInterface;
@@ -43,12 +43,12 @@ import com.fasterxml.jackson.databind.JsonMappingException;
 import com.google.common.base.Charsets;
 
 public class QueryClassificationsAndTypesStackFrame extends DatabaseReadingStackFrame {
+	private static final FeatureProjection REL_ASSOCIATES_CLASSIFICATION = new FeatureProjection("RelatedObjects");
 
 	private EClass eClass;
 	private Set<String> classifications;
-	private SearchingRecordIterator typeRecordIterator;
-	private Record record;
 	private Set<Long> allowedOids = new HashSet<>();
+	private Iterator<Long> candidateIterator;
 
 	@SuppressWarnings("unchecked")
 	public QueryClassificationsAndTypesStackFrame(QueryObjectProvider queryObjectProvider, EClass eClass, QueryPart partialQuery, QueryContext reusable, Set<String> classifications) throws BimserverDatabaseException {
@@ -67,7 +67,7 @@ public class QueryClassificationsAndTypesStackFrame extends DatabaseReadingStack
 				// Now we need to get all the IfcRelAssociatesClassification objects referencing this one
 				List<ObjectIdentifier> relAssociates = getOids(relAssociatesClassificationReferenceClass, relAssociatesClassificationReferenceClass.getEStructuralFeature("RelatingClassification"), objectIdentifier.getOid(), databaseSession, reusable.getPid(), reusable.getRid());
 				for (ObjectIdentifier objectIdentifier2 : relAssociates) {
-					HashMapVirtualObject relAssociatesClassification = getByOid(objectIdentifier2.getOid());
+					HashMapVirtualObject relAssociatesClassification = getByOid(objectIdentifier2.getOid(), REL_ASSOCIATES_CLASSIFICATION);
 					List<Long> relatedObjects = (List<Long>) relAssociatesClassification.eGet(relAssociatesClassificationReferenceClass.getEStructuralFeature("RelatedObjects"));
 					
 					allowedOids.addAll(relatedObjects);
@@ -75,28 +75,27 @@ public class QueryClassificationsAndTypesStackFrame extends DatabaseReadingStack
 			}
 		}
 		
-		String tableName = eClass.getEPackage().getName() + "_" + eClass.getName();
 		if (getReusable().getOidCounters() != null) {
 			if (!getReusable().getOidCounters().containsKey(eClass)) {
 				return; // will skip to next one
 			}
-			long startOid = getReusable().getOidCounters().get(eClass);
-			ByteBuffer tmp = ByteBuffer.allocate(12);
-			tmp.putInt(getReusable().getPid());
-			tmp.putLong(startOid + 1);
-			typeRecordIterator = queryObjectProvider.getDatabaseSession().getKeyValueStore().getRecordIterator(tableName, BinUtils.intToByteArray(getReusable().getPid()), tmp.array(), queryObjectProvider.getDatabaseSession());
-			record = typeRecordIterator.next();
-		} else {
-			// LOGGER.warn("Potential too-many-reads");
-			typeRecordIterator = queryObjectProvider.getDatabaseSession().getKeyValueStore().getRecordIterator(tableName, BinUtils.intToByteArray(getReusable().getPid()), BinUtils.intToByteArray(getReusable().getPid()),
-					queryObjectProvider.getDatabaseSession());
-			record = typeRecordIterator.next();
 		}
+		// The classified objects are already known from the indices, so instead of scanning all objects of the type, only the ones of this type are read
+		short cid = databaseSession.getCid(eClass);
+		List<Long> candidates = new ArrayList<>();
+		for (Long oid : allowedOids) {
+			if ((short) oid.longValue() == cid) {
+				candidates.add(oid);
+			}
+		}
+		Collections.sort(candidates);
+		candidateIterator = candidates.iterator();
 	}
 
 	public ObjectIdentifier getOid(EClass eClass, EAttribute attribute, Object value, DatabaseInterface databaseInterface, int pid, int rid) throws BimserverDatabaseException {
 		if (attribute.getEAnnotation("singleindex") != null) {
-			String indexTableName = attribute.getEContainingClass().getEPackage().getName() + "_" + eClass.getName() + "_" + attribute.getName();
+			DatabaseSession databaseSession = getQueryObjectProvider().getDatabaseSession();
+			TableHandle indexTableHandle = databaseSession.getIndexTableHandle(eClass, attribute);
 			byte[] queryBytes = null;
 			if (value instanceof String) {
 				queryBytes = ((String)value).getBytes(Charsets.UTF_8);
@@ -109,7 +108,8 @@ public class QueryClassificationsAndTypesStackFrame extends DatabaseReadingStack
 			valueBuffer.putInt(pid);
 			valueBuffer.putInt(-rid);
 			valueBuffer.put(queryBytes);
-			byte[] firstDuplicate = databaseInterface.get(indexTableName, valueBuffer.array());
+			getQueryObjectProvider().incIndexLookups(this, eClass);
+			byte[] firstDuplicate = databaseSession.getKeyValueStore().get(indexTableHandle, valueBuffer.array(), databaseSession);
 			if (firstDuplicate != null) {
 				ByteBuffer buffer = ByteBuffer.wrap(firstDuplicate);
 				buffer.getInt(); // pid
@@ -126,7 +126,8 @@ public class QueryClassificationsAndTypesStackFrame extends DatabaseReadingStack
 	public List<ObjectIdentifier> getOids(EClass eClass, EStructuralFeature eStructuralFeature, Object value, DatabaseInterface databaseInterface, int pid, int rid) throws BimserverDatabaseException {
 		if (eStructuralFeature.getEAnnotation("singleindex") != null) {
 			List<ObjectIdentifier> result = new ArrayList<>();
-			String indexTableName = eStructuralFeature.getEContainingClass().getEPackage().getName() + "_" + eClass.getName() + "_" + eStructuralFeature.getName();
+			DatabaseSession databaseSession = getQueryObjectProvider().getDatabaseSession();
+			TableHandle indexTableHandle = databaseSession.getIndexTableHandle(eClass, eStructuralFeature);
 			byte[] queryBytes = null;
 			if (value instanceof String) {
 				queryBytes = ((String)value).getBytes(Charsets.UTF_8);
@@ -141,7 +142,8 @@ public class QueryClassificationsAndTypesStackFrame extends DatabaseReadingStack
 			valueBuffer.putInt(pid);
 			valueBuffer.putInt(-rid);
 			valueBuffer.put(queryBytes);
-			List<byte[]> duplicates = databaseInterface.getDuplicates(indexTableName, valueBuffer.array());
+			getQueryObjectProvider().incIndexLookups(this, eClass);
+			List<byte[]> duplicates = databaseSession.getKeyValueStore().getDuplicates(indexTableHandle, valueBuffer.array(), databaseSession);
 			for (byte[] duplicate : duplicates) {
 				ByteBuffer buffer = ByteBuffer.wrap(duplicate);
 				buffer.getInt(); // pid
@@ -157,39 +159,20 @@ public class QueryClassificationsAndTypesStackFrame extends DatabaseReadingStack
 	
 	@Override
 	boolean process() throws BimserverDatabaseException, QueryException, JsonParseException, JsonMappingException, IOException {
-		if (typeRecordIterator == null) {
+		if (candidateIterator == null) {
 			return true;
 		}
-		if (record == null) {
+		if (!candidateIterator.hasNext()) {
 			currentObject = null;
-			typeRecordIterator.close();
 			return true;
 		}
 
 		currentObject = null;
-
-		ByteBuffer nextKeyStart = ByteBuffer.allocate(12);
-		getQueryObjectProvider().incReads();
-		ByteBuffer keyBuffer = ByteBuffer.wrap(record.getKey());
-		int keyPid = keyBuffer.getInt();
-		long keyOid = keyBuffer.getLong();
-		int keyRid = -keyBuffer.getInt();
-		ByteBuffer valueBuffer = ByteBuffer.wrap(record.getValue());
-		GetResult map = getMap(eClass, eClass, valueBuffer, keyPid, keyOid, keyRid);
-		if (map == GetResult.CONTINUE_WITH_NEXT_OID) {
-			nextKeyStart.position(0);
-			nextKeyStart.putInt(getReusable().getPid());
-			nextKeyStart.putLong(keyOid + 1);
-			record = typeRecordIterator.next(nextKeyStart.array());
-		} else {
-			record = typeRecordIterator.next();
-		}
-
-		if (currentObject != null) {
-			if (!allowedOids.contains(currentObject.getOid())) {
-				currentObject = null;
-			}
+		long oid = candidateIterator.next();
+		if (getQueryObjectProvider().hasRead(oid)) {
+			return false;
 		}
+		currentObject = getByOid(oid);
 
 		processPossibleIncludes(currentObject, eClass, getQueryPart());
 
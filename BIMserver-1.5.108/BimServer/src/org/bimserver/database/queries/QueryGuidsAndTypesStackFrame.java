@@ -23,7 +23,9 @@ import java.util.HashSet;
 import java.util.Set;
 
 import org.bimserver.BimserverDatabaseException;
+import org.bimserver.database.DatabaseSession;
 import org.bimserver.database.ObjectIdentifier;
+import org.bimserver.database.TableHandle;
 import org.bimserver.database.queries.om.QueryException;
 import org.bimserver.database.queries.om.QueryPart;
 import org.bimserver.plugins.deserializers.DatabaseInterface;
@@ -70,7 +72,8 @@ public class QueryGuidsAndTypesStackFrame extends DatabaseReadingStackFrame {
 
 	public ObjectIdentifier getOidOfGuidAlternative(EClass eClass, EAttribute attribute, Object value, DatabaseInterface databaseInterface, int pid, int rid) throws BimserverDatabaseException {
 		if (attribute.getEAnnotation("singleindex") != null) {
-			String indexTableName = attribute.getEContainingClass().getEPackage().getName() + "_" + eClass.getName() + "_" + attribute.getName();
+			DatabaseSession databaseSession = getQueryObjectProvider().getDatabaseSession();
+			TableHandle indexTableHandle = databaseSession.getIndexTableHandle(eClass, attribute);
 			byte[] queryBytes = null;
 			if (value instanceof String) {
 				queryBytes = ((String)value).getBytes(Charsets.UTF_8);
@@ -83,7 +86,8 @@ public class QueryGuidsAndTypesStackFrame extends DatabaseReadingStackFrame {
 			valueBuffer.putInt(pid);
 			valueBuffer.putInt(-rid);
 			valueBuffer.put(queryBytes);
-			byte[] firstDuplicate = databaseInterface.get(indexTableName, valueBuffer.array());
+			getQueryObjectProvider().incIndexLookups(this, eClass);
+			byte[] firstDuplicate = databaseSession.getKeyValueStore().get(indexTableHandle, valueBuffer.array(), databaseSession);
 			if (firstDuplicate != null) {
 				ByteBuffer buffer = ByteBuffer.wrap(firstDuplicate);
 				buffer.getInt(); // pid
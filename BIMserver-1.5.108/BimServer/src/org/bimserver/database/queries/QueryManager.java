@@ -0,0 +1,90 @@
+package org.bimserver.database.queries;
+
+/******************************************************************************
+ * Copyright (C) 2009-2018  BIMserver.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bimserver.database.queries.om.QueryBudget;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+
+/**
+ * Keeps track of the queries that have a budget (all queries coming from clients), so they can be listed and cancelled.
+ */
+public class QueryManager {
+	private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+	// Queries of which the results are not read anymore (for example because the client disconnected) are never ended, they are forgotten after this time
+	private static final long MAX_IDLE_TIME = TimeUnit.HOURS.toMillis(1);
+
+	private final Map<Long, RunningQuery> runningQueries = new ConcurrentHashMap<>();
+	private final AtomicLong idCounter = new AtomicLong();
+
+	public RunningQuery register(String name, Set<Long> roids, QueryBudget budget) {
+		RunningQuery runningQuery = new RunningQuery(idCounter.incrementAndGet(), name, roids, budget);
+		runningQueries.put(runningQuery.getId(), runningQuery);
+		return runningQuery;
+	}
+
+	public void unregister(RunningQuery runningQuery) {
+		runningQueries.remove(runningQuery.getId());
+	}
+
+	public List<RunningQuery> getRunningQueries() {
+		long now = System.currentTimeMillis();
+		List<RunningQuery> result = new ArrayList<>();
+		Iterator<RunningQuery> iterator = runningQueries.values().iterator();
+		while (iterator.hasNext()) {
+			RunningQuery runningQuery = iterator.next();
+			if (now - runningQuery.getLastActivity() > MAX_IDLE_TIME) {
+				iterator.remove();
+			} else {
+				result.add(runningQuery);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return Whether a query with the given id was running
+	 */
+	public boolean cancel(long id) {
+		RunningQuery runningQuery = runningQueries.get(id);
+		if (runningQuery == null) {
+			return false;
+		}
+		runningQuery.cancel();
+		return true;
+	}
+
+	public ArrayNode toJson() {
+		ArrayNode result = OBJECT_MAPPER.createArrayNode();
+		for (RunningQuery runningQuery : getRunningQueries()) {
+			result.add(runningQuery.toJson());
+		}
+		return result;
+	}
+}
@@ -20,6 +20,7 @@ package org.bimserver.database.queries;
 import java.io.IOException;
 import java.util.ArrayDeque;
 import java.util.Deque;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
@@ -27,17 +28,20 @@ import java.util.Set;
 import org.bimserver.BimServer;
 import org.bimserver.BimserverDatabaseException;
 import org.bimserver.database.DatabaseSession;
-import org.bimserver.database.queries.om.Include.TypeDef;
+import org.bimserver.database.queries.om.Include;
 import org.bimserver.database.queries.om.JsonQueryObjectModelConverter;
 import org.bimserver.database.queries.om.Query;
 import org.bimserver.database.queries.om.QueryException;
 import org.bimserver.database.queries.om.QueryPart;
+import org.bimserver.database.queries.om.Reference;
 import org.bimserver.emf.MetaDataManager;
 import org.bimserver.emf.PackageMetaData;
 import org.bimserver.plugins.serializers.ObjectProvider;
 import org.bimserver.shared.HashMapVirtualObject;
 import org.bimserver.shared.QueryContext;
 import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EReference;
+import org.eclipse.emf.ecore.EStructuralFeature;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -60,36 +64,71 @@ public class QueryObjectProvider implements ObjectProvider {
 	private DatabaseSession databaseSession;
 	private BimServer bimServer;
 	
-	private final Set<Long> oidsRead = new HashSet<>();
+	private final OidSet oidsRead;
 	private Deque<StackFrame> stack;
 	private long start = -1;
 	private long reads = 0;
 	private long stackFramesProcessed = 0;
-	private final Set<Long> goingToRead = new HashSet<>();
+	private final OidSet goingToRead;
+	private long maxMemoryUsage = -1;
+	private long nrReturned;
 	private Query query;
+	
+	// The query as given by the user, when this provider only executes a part of it (see ParallelQueryObjectProvider), this is the complete query
+	private final Query fullQuery;
 	private StackFrame stackFrame;
 
+	// Only set when the query has the profile flag
+	private final QueryProfile profile;
+
+	// Only set when the query has a budget, shared by all shards of a parallel query
+	private final RunningQuery runningQuery;
+	private final boolean ownsRunningQuery;
+	private long unreportedReads;
+	private String incompleteReason;
+
 	private Set<Long> roids;
 
 	private final PackageMetaData packageMetaData;
+	private final Map<QueryPart, Map<EClass, Set<EStructuralFeature>>> projections = new HashMap<>();
 
 	public QueryObjectProvider(DatabaseSession databaseSession, BimServer bimServer, Query query, Set<Long> roids, PackageMetaData packageMetaData) throws IOException, QueryException {
+		this(databaseSession, bimServer, query, query, roids, packageMetaData, new OidSet(), new OidSet(), register(bimServer, query, roids), true);
+	}
+
+	QueryObjectProvider(DatabaseSession databaseSession, BimServer bimServer, Query query, Query fullQuery, Set<Long> roids, PackageMetaData packageMetaData, OidSet oidsRead, OidSet goingToRead, RunningQuery runningQuery, boolean ownsRunningQuery) throws IOException, QueryException {
 		this.databaseSession = databaseSession;
 		this.bimServer = bimServer;
 		this.query = query;
+		this.fullQuery = fullQuery;
 		this.roids = roids;
 		this.packageMetaData = packageMetaData;
+		this.oidsRead = oidsRead;
+		this.goingToRead = goingToRead;
+		this.profile = fullQuery.isProfile() ? new QueryProfile() : null;
+		this.runningQuery = runningQuery;
+		this.ownsRunningQuery = ownsRunningQuery;
 		
 		stack = new ArrayDeque<StackFrame>();
 		stack.push(new StartFrame(this, roids));
 		
-		for (QueryPart queryPart : query.getQueryParts()) {
+		for (QueryPart queryPart : fullQuery.getQueryParts()) {
 			if (queryPart.hasOids()) {
 				goingToRead.addAll(queryPart.getOids());
 			}
 		}
 	}
 	
+	/**
+	 * @return The registration of the given query with the QueryManager, or null when the query has no budget
+	 */
+	static RunningQuery register(BimServer bimServer, Query query, Set<Long> roids) {
+		if (bimServer == null || query.getBudget() == null) {
+			return null;
+		}
+		return bimServer.getQueryManager().register(query.getName(), roids, query.getBudget());
+	}
+
 	public void cache(HashMapVirtualObject object) {
 		databaseSession.cache(object);
 	}
@@ -128,8 +167,7 @@ public class QueryObjectProvider implements ObjectProvider {
 	
 	public static QueryObjectProvider fromJsonNode(DatabaseSession databaseSession, BimServer bimServer, JsonNode fullQuery, Set<Long> roids, PackageMetaData packageMetaData) throws JsonParseException, JsonMappingException, IOException, QueryException {
 		if (fullQuery instanceof ObjectNode) {
-			JsonQueryObjectModelConverter converter = new JsonQueryObjectModelConverter(packageMetaData);
-			Query query = converter.parseJson("query", (ObjectNode) fullQuery);
+			Query query = bimServer.getJsonQueryCache().get(packageMetaData, "query", (ObjectNode) fullQuery);
 			return new QueryObjectProvider(databaseSession, bimServer, query, roids, packageMetaData);
 		} else {
 			throw new QueryException("Query root must be of type object");
@@ -149,6 +187,12 @@ public class QueryObjectProvider implements ObjectProvider {
 		if (start == -1) {
 			start = System.nanoTime();
 		}
+		if (incompleteReason != null) {
+			return null;
+		}
+		if (runningQuery != null && isStopped()) {
+			return null;
+		}
 		try {
 			while (!stack.isEmpty()) {
 				if (stack.size() > MAX_STACK_SIZE) {
@@ -165,26 +209,90 @@ public class QueryObjectProvider implements ObjectProvider {
 					dumpEndQuery();
 					throw new BimserverDatabaseException("Too many stack frames processed ( > " + MAX_STACK_FRAMES_PROCESSED + "), probably a bug, or possibly a very large model, please report");
 				}
-				boolean done = stackFrame.process();
+				if (runningQuery != null && (stackFramesProcessed & 255) == 0 && isStopped()) {
+					return null;
+				}
+				boolean done;
+				if (profile != null) {
+					long frameStart = System.nanoTime();
+					done = stackFrame.process();
+					profile.frameProcessed(stackFrame, System.nanoTime() - frameStart);
+				} else {
+					done = stackFrame.process();
+				}
 				stackFrame.setDone(done);
 				if (stackFrame instanceof ObjectProvidingStackFrame) {
 					HashMapVirtualObject currentObject = ((ObjectProvidingStackFrame) stackFrame).getCurrentObject();
 					if (currentObject != null) {
-						if (!oidsRead.contains(currentObject.getOid())) {
-							oidsRead.add(currentObject.getOid());
+						if (oidsRead.add(currentObject.getOid())) {
+							// Checking every 1024 objects is precise enough, the sets grow slowly
+							if (maxMemoryUsage != -1 && (++nrReturned & 1023) == 0 && getMemoryUsage() > maxMemoryUsage) {
+								dumpEndQuery();
+								throw new BimserverDatabaseException("Query " + query.getName() + " uses more than the allowed " + maxMemoryUsage + " bytes");
+							}
+							if (profile != null) {
+								profile.objectEmitted(stackFrame, currentObject.eClass());
+							}
+							if (runningQuery != null) {
+								runningQuery.addObjects(1);
+							}
+							if (fullQuery.isSkipData()) {
+								continue;
+							}
 							return currentObject;
 						}
 					}
 				}
 			}
+		} catch (BimserverDatabaseException e) {
+			unregister();
+			throw e;
 		} catch (Exception e) {
+			unregister();
 			throw new BimserverDatabaseException(e);
 		}
 
 		dumpEndQuery();
+		unregister();
 		
 		return null;
 	}
+
+	/**
+	 * Reports the progress of this provider to the RunningQuery and ends the query when it has to stop (budget exceeded or cancelled)
+	 */
+	private boolean isStopped() {
+		runningQuery.addReads(unreportedReads);
+		unreportedReads = 0;
+		String reason = runningQuery.check();
+		if (reason == null) {
+			return false;
+		}
+		incompleteReason = reason;
+		LOGGER.info("Query " + query.getName() + " ended early: " + reason);
+		stack.clear();
+		dumpEndQuery();
+		unregister();
+		return true;
+	}
+
+	private void unregister() {
+		if (ownsRunningQuery && runningQuery != null) {
+			bimServer.getQueryManager().unregister(runningQuery);
+		}
+	}
+
+	@Override
+	public String getIncompleteReason() {
+		return incompleteReason;
+	}
+
+	/**
+	 * @return The registration of this query with the QueryManager, null when the query has no budget
+	 */
+	public RunningQuery getRunningQuery() {
+		return runningQuery;
+	}
 	
 	public StackFrame getStackFrame() {
 		return stackFrame;
@@ -202,11 +310,41 @@ public class QueryObjectProvider implements ObjectProvider {
 			}
 		}
 		long end = System.nanoTime();
-		LOGGER.debug("Query " + query.getName() + ", " + reads + " reads, " + stackFramesProcessed + " stack frames processed, " + oidsRead.size() + " objects read, " + ((end - start) / 1000000) + "ms");
+		if (profile != null) {
+			profile.setNanos(end - start);
+			// Shards of a parallel query are logged as a whole by the ParallelQueryObjectProvider
+			if (query == fullQuery) {
+				LOGGER.info("Query " + query.getName() + " profile: " + profile.toString());
+			}
+		}
+		LOGGER.debug("Query " + query.getName() + ", " + reads + " reads, " + stackFramesProcessed + " stack frames processed, " + oidsRead.size() + " objects read, " + getMemoryUsage() + " bytes administration, " + ((end - start) / 1000000) + "ms");
 	}
 
-	public void incReads() {
+	public void incReads(StackFrame stackFrame, EClass eClass) {
 		reads++;
+		unreportedReads++;
+		if (profile != null) {
+			profile.recordScanned(stackFrame, eClass);
+		}
+	}
+
+	public void incDecoded(StackFrame stackFrame, EClass eClass) {
+		if (profile != null) {
+			profile.recordDecoded(stackFrame, eClass);
+		}
+	}
+
+	public void incIndexLookups(StackFrame stackFrame, EClass eClass) {
+		if (profile != null) {
+			profile.indexLookup(stackFrame, eClass);
+		}
+	}
+
+	/**
+	 * @return The execution profile, only available when the query has the profile flag, complete after next() returned null
+	 */
+	public QueryProfile getProfile() {
+		return profile;
 	}
 
 	public DatabaseSession getDatabaseSession() {
@@ -227,39 +365,11 @@ public class QueryObjectProvider implements ObjectProvider {
 		}
 	}
 	
-	private boolean typeDefContains(QueryPart queryPart, EClass eClass) {
-		for (TypeDef typeDef : queryPart.getTypes()) {
-			if (typeDef.geteClass() == eClass) {
-				return true;
-			}
-			if (typeDef.isIncludeSubTypes()) {
-				for (EClass subType : packageMetaData.getAllSubClasses(eClass)) {
-					if (subType == eClass && !typeDef.excludes(subType)) {
-						return true;
-					}
-				}
-			}
-		}
-		return false;
-	}
-
 	public boolean hasReadOrIsGoingToRead(EClass eClass) {
-		for (QueryPart queryPart : query.getQueryParts()) {
-			boolean allNull = queryPart.getGuids() == null && queryPart.getNames() == null && queryPart.getOids() == null && queryPart.getInBoundingBox() == null && queryPart.getProperties() == null && queryPart.getClassifications() == null;
-			if (queryPart.hasTypes()) {
-				if (typeDefContains(queryPart, eClass)) {
-					if (allNull) {
-						return true;
-					}
-				}
-			} else {
-				return allNull;
-			}
-		}
-		return false;
+		return fullQuery.getPlan().isSelectedByType(eClass);
 	}
 	
-	public boolean hasReadOrIsGoingToRead(Long oid) {
+	public boolean hasReadOrIsGoingToRead(long oid) {
 		if (oidsRead.contains(oid)) {
 			return true;
 		}
@@ -278,6 +388,20 @@ public class QueryObjectProvider implements ObjectProvider {
 		oidsRead.add(oid);
 	}
 
+	/**
+	 * @return An estimate of the number of bytes this query uses to keep track of which objects have been read
+	 */
+	public long getMemoryUsage() {
+		return oidsRead.getMemoryUsage() + goingToRead.getMemoryUsage();
+	}
+
+	/**
+	 * @param maxMemoryUsage When the query uses more bytes than this (see getMemoryUsage), next() will throw an exception, -1 means no limit
+	 */
+	public void setMaxMemoryUsage(long maxMemoryUsage) {
+		this.maxMemoryUsage = maxMemoryUsage;
+	}
+
 	@Override
 	public ObjectNode getQueryNode() {
 		return new JsonQueryObjectModelConverter(packageMetaData).toJson(query);
@@ -286,4 +410,68 @@ public class QueryObjectProvider implements ObjectProvider {
 	public BimServer getBimServer() {
 		return bimServer;
 	}
+
+	/**
+	 * Without "fields" the whole object is decoded, even though the plan only needs the included features: the serializers write every attribute and every
+	 * set reference of a result, and internal callers (checkin, geometry generation, changes) modify and store the objects they query. "fields" is how a
+	 * client says it does not need the rest. Objects that are only read to filter on are projected by the stack frames themselves, see {@link FeatureProjection}.
+	 * 
+	 * @return The features that have to be decoded for objects of the given class that are matched by the given query part, or null when all features are needed
+	 */
+	public Set<EStructuralFeature> getProjection(QueryPart queryPart, EClass eClass) {
+		if (queryPart == null || !queryPart.hasProjection() || queryPart.isIncludeAllFields() || queryPart.hasProperties() || queryPart.getClassifications() != null) {
+			return null;
+		}
+		Map<EClass, Set<EStructuralFeature>> perClass = projections.get(queryPart);
+		if (perClass == null) {
+			perClass = new HashMap<>();
+			projections.put(queryPart, perClass);
+		}
+		Set<EStructuralFeature> projection = perClass.get(eClass);
+		if (projection == null) {
+			Set<String> featureNames = new HashSet<>(queryPart.getProjection());
+			featureNames.add("geometry");
+			if (queryPart.hasGuids()) {
+				featureNames.add("GlobalId");
+			}
+			if (queryPart.getNames() != null) {
+				featureNames.add("Name");
+			}
+			if (queryPart.getMinimumReuseThreshold() != -1) {
+				featureNames.add("saveableTriangles");
+			}
+			if (queryPart.hasIncludes()) {
+				for (Include include : queryPart.getIncludes()) {
+					addIncludedFeatures(include, featureNames);
+				}
+			}
+			if (queryPart.hasReferences()) {
+				for (Reference reference : queryPart.getReferences()) {
+					addIncludedFeatures(reference.getInclude(), featureNames);
+				}
+			}
+			projection = new HashSet<>();
+			for (String featureName : featureNames) {
+				EStructuralFeature feature = eClass.getEStructuralFeature(featureName);
+				if (feature != null) {
+					projection.add(feature);
+				}
+			}
+			perClass.put(eClass, projection);
+		}
+		return projection;
+	}
+
+	private void addIncludedFeatures(Include include, Set<String> featureNames) {
+		if (include.hasFields()) {
+			for (EReference eReference : include.getFields()) {
+				featureNames.add(eReference.getName());
+			}
+		}
+		if (include.hasDirectFields()) {
+			for (EReference eReference : include.getFieldsDirect()) {
+				featureNames.add(eReference.getName());
+			}
+		}
+	}
 }
\ No newline at end of file
@@ -18,112 +18,71 @@ package org.bimserver.database.queries;
  *****************************************************************************/
 
 import java.nio.ByteBuffer;
-import java.util.Iterator;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.bimserver.BimserverDatabaseException;
 import org.bimserver.database.BimserverLockConflictException;
-import org.bimserver.database.DatabaseSession.GetResult;
+import org.bimserver.database.MultiGetKey;
 import org.bimserver.database.Record;
-import org.bimserver.database.SearchingRecordIterator;
+import org.bimserver.database.TableHandle;
 import org.bimserver.database.queries.om.QueryException;
 import org.bimserver.database.queries.om.QueryPart;
 import org.bimserver.shared.HashMapVirtualObject;
 import org.bimserver.shared.QueryContext;
-import org.bimserver.utils.BinUtils;
 import org.eclipse.emf.ecore.EClass;
 
 public class QueryOidsAndTypesStackFrame extends DatabaseReadingStackFrame implements ObjectProvidingStackFrame {
 
+	// The objects are read with multi-gets of this many oids, so not all values have to be in memory at the same time
+	private static final int FETCH_SIZE = 20000;
 	private EClass eClass;
-	private SearchingRecordIterator typeRecordIterator;
-	private Record record;
-	private Iterator<Long> oidIterator;
+	private List<MultiGetKey> keys;
+	private int index;
+	private int fetchedUpTo;
 
 	public QueryOidsAndTypesStackFrame(QueryObjectProvider queryObjectProvider, EClass eClass, QueryPart queryPart, QueryContext reusable, List<Long> oids) throws BimserverLockConflictException, BimserverDatabaseException, QueryException {
 		super(reusable, queryObjectProvider, queryPart);
 		this.eClass = eClass;
 		
-		// Assumption: oids are sorted
-		
-		String tableName = eClass.getEPackage().getName() + "_" + eClass.getName();
+		long startOid = Long.MIN_VALUE;
 		if (getReusable().getOidCounters() != null) {
 			if (!getReusable().getOidCounters().containsKey(eClass)) {
 				return; // will skip to next one
 			}
-			long startOid = getReusable().getOidCounters().get(eClass);
-			oidIterator = oids.iterator();
-			long firstOid = oidIterator.next();
-			while (firstOid < startOid && oidIterator.hasNext()) {
-				firstOid = oidIterator.next();
-			}
-
-			if (firstOid >= startOid) {
-				// Just an optimization
-				startOid = firstOid;
-			} else {
-				return;
+			startOid = getReusable().getOidCounters().get(eClass);
+		}
+		TableHandle tableHandle = queryObjectProvider.getDatabaseSession().getTableHandle(eClass);
+		keys = new ArrayList<>(oids.size());
+		for (Long oid : oids) {
+			if (oid >= startOid) {
+				keys.add(new MultiGetKey(tableHandle, getReusable().getPid(), oid, getReusable().getStopRid(), getReusable().getRid()));
 			}
-			ByteBuffer tmp = ByteBuffer.allocate(12);
-			tmp.putInt(getReusable().getPid());
-			tmp.putLong(startOid);
-			typeRecordIterator = queryObjectProvider.getDatabaseSession().getKeyValueStore().getRecordIterator(tableName, BinUtils.intToByteArray(getReusable().getPid()), tmp.array(), queryObjectProvider.getDatabaseSession());
-			record = typeRecordIterator.next();
-		} else {
-//			LOGGER.warn("Potential too-many-reads");
-			oidIterator = oids.iterator();
-			long firstOid = oidIterator.next();
-			ByteBuffer tmp = ByteBuffer.allocate(12);
-			tmp.putInt(getReusable().getPid());
-			tmp.putLong(firstOid);
-			typeRecordIterator = queryObjectProvider.getDatabaseSession().getKeyValueStore().getRecordIterator(tableName, BinUtils.intToByteArray(getReusable().getPid()), tmp.array(), queryObjectProvider.getDatabaseSession());
-			record = typeRecordIterator.next();
 		}
 	}
 
 	@Override
 	public boolean process() throws BimserverDatabaseException, QueryException {
-		if (typeRecordIterator == null) {
+		currentObject = null;
+		if (keys == null || index >= keys.size()) {
 			return true;
 		}
-		if (record == null) {
-			currentObject = null;
-			typeRecordIterator.close();
-			return true;
+		if (index == fetchedUpTo) {
+			fetchedUpTo = Math.min(keys.size(), index + FETCH_SIZE);
+			getQueryObjectProvider().getDatabaseSession().getKeyValueStore().multiGet(keys.subList(index, fetchedUpTo), getQueryObjectProvider().getDatabaseSession());
 		}
-
-		currentObject = null;
-		
-		ByteBuffer nextKeyStart = ByteBuffer.allocate(12);
-		getQueryObjectProvider().incReads();
-		ByteBuffer keyBuffer = ByteBuffer.wrap(record.getKey());
-		int keyPid = keyBuffer.getInt();
-		long keyOid = keyBuffer.getLong();
-		int keyRid = -keyBuffer.getInt();
-		ByteBuffer valueBuffer = ByteBuffer.wrap(record.getValue());
-		GetResult map = getMap(eClass, eClass, valueBuffer, keyPid, keyOid, keyRid);
-		if (map == GetResult.CONTINUE_WITH_NEXT_OID) {
-			if (oidIterator.hasNext()) {
-				nextKeyStart.position(0);
-				nextKeyStart.putInt(getReusable().getPid());
-				nextKeyStart.putLong(oidIterator.next());
-				record = typeRecordIterator.next(nextKeyStart.array());
-			} else {
-				record = null;
-			}
-		} else {
-			record = typeRecordIterator.next();
-		}
-
-		processPossibleIncludes(currentObject, eClass, getQueryPart());
-		
-		if (record == null) {
-			typeRecordIterator.close();
+		MultiGetKey key = keys.get(index++);
+		Record record = key.getRecord();
+		if (record != null) {
+			key.setRecord(null);
+			getQueryObjectProvider().incReads(this, eClass);
+			getMap(eClass, eClass, ByteBuffer.wrap(record.getValue()), key.getPid(), key.getOid(), key.getRecordRid());
+			processPossibleIncludes(currentObject, eClass, getQueryPart());
 		}
-		return record == null;
+		return index >= keys.size();
 	}
 
 	public HashMapVirtualObject getCurrentObject() {
 		return currentObject;
 	}
-}
\ No newline at end of file
+}
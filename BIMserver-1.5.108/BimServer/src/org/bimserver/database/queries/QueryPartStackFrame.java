@@ -28,7 +28,6 @@ import java.util.Set;
 
 import org.bimserver.BimserverDatabaseException;
 import org.bimserver.database.queries.om.InBoundingBox;
-import org.bimserver.database.queries.om.Include;
 import org.bimserver.database.queries.om.Include.TypeDef;
 import org.bimserver.geometry.accellerator.GeometryObject;
 import org.bimserver.geometry.accellerator.Node;
@@ -38,7 +37,6 @@ import org.bimserver.database.queries.om.QueryPart;
 import org.bimserver.database.queries.om.Tiles;
 import org.bimserver.shared.QueryContext;
 import org.eclipse.emf.ecore.EClass;
-import org.eclipse.emf.ecore.EReference;
 
 public class QueryPartStackFrame extends StackFrame {
 
@@ -152,7 +150,7 @@ public class QueryPartStackFrame extends StackFrame {
 				List<Long> oids = new ArrayList<>();
 				List<Long> oidsFiltered = new ArrayList<>();
 
-				QueryPart filteredQueryPart = createFilteredQueryPart(partialQuery);
+				QueryPart filteredQueryPart = queryObjectProvider.getQuery().getPlan().getFilteredQueryPart(partialQuery);
 				Set<Node<GeometryObject>> nodes = (Set<Node<GeometryObject>>) tiles.getNodes();
 				for (Node<GeometryObject> node : nodes) {
 					for (ObjectWrapper<GeometryObject> objectWrapper : node.getValues()) {
@@ -191,50 +189,4 @@ public class QueryPartStackFrame extends StackFrame {
 		}
 		return true;
 	}
-	
-	private QueryPart createFilteredQueryPart(QueryPart input) throws QueryException {
-		QueryPart result = new QueryPart(input.getPackageMetaData());
-		for (TypeDef typeDef : input.getTypes()) {
-			result.addType(typeDef);
-		}
-		for (Include include : input.getIncludes()) {
-			createFilteredInclude(result, include);
-		}
-		return result;
-	}
-
-	private void createFilteredInclude(QueryPart result, Include include) throws QueryException {
-		Include newInclude = result.createInclude();
-		for (TypeDef typeDef : include.getTypes()) {
-			newInclude.addType(typeDef);
-		}
-		for (EReference field : include.getFields()) {
-			newInclude.addField(field);
-		}
-		for (Include include2 : include.getIncludes()) {
-			newInclude.addInclude(createFilteredInclude(include2));
-		}
-	}
-
-	private Include createFilteredInclude(Include inputInclude) throws QueryException {
-		Include newInclude = new Include(inputInclude.getPackageMetaData());
-		for (TypeDef typeDef : inputInclude.getTypes()) {
-			newInclude.addType(typeDef);
-		}
-		if (inputInclude.hasFields()) {
-			for (EReference field : inputInclude.getFields()) {
-				if (field.getName().equals("data")) {
-					// Skip, this is the actual filtering
-					return newInclude;
-				}
-				newInclude.addField(field);
-			}
-		}
-		if (inputInclude.hasIncludes()) {
-			for (Include include2 : inputInclude.getIncludes()) {
-				newInclude.addInclude(createFilteredInclude(include2));
-			}
-		}
-		return newInclude;
-	}
-}
\ No newline at end of file
+}
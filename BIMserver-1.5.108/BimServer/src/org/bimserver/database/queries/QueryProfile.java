@@ -0,0 +1,227 @@
+package org.bimserver.database.queries;
+
+/******************************************************************************
+ * Copyright (C) 2009-2018  BIMserver.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.eclipse.emf.ecore.EClass;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Execution profile of a query, collected by the QueryObjectProvider when the query has the "profile" flag set.
+ *
+ * Everything is counted twice, once for the StackFrame class that did the work and once for the EClass (table) the work was done on. Time is the time spent in
+ * StackFrame.process, which does not include the time of the frames it pushes. Per EClass the time of a call is counted for the first table it read from, calls
+ * that did not read anything are only counted per StackFrame class.
+ *
+ * Not thread safe, the shards of a parallel query all have their own profile, these are merged afterwards.
+ */
+public class QueryProfile {
+	private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+	public static class Stats {
+		private long processed;
+		private long nanos;
+		private long recordsScanned;
+		private long recordsDecoded;
+		private long objectsEmitted;
+		private long indexLookups;
+
+		public long getProcessed() {
+			return processed;
+		}
+
+		public long getNanos() {
+			return nanos;
+		}
+
+		public long getRecordsScanned() {
+			return recordsScanned;
+		}
+
+		public long getRecordsDecoded() {
+			return recordsDecoded;
+		}
+
+		public long getObjectsEmitted() {
+			return objectsEmitted;
+		}
+
+		public long getIndexLookups() {
+			return indexLookups;
+		}
+
+		private void merge(Stats other) {
+			processed += other.processed;
+			nanos += other.nanos;
+			recordsScanned += other.recordsScanned;
+			recordsDecoded += other.recordsDecoded;
+			objectsEmitted += other.objectsEmitted;
+			indexLookups += other.indexLookups;
+		}
+
+		private ObjectNode toJson() {
+			ObjectNode result = OBJECT_MAPPER.createObjectNode();
+			result.put("processed", processed);
+			result.put("ms", nanos / 1000000);
+			result.put("recordsScanned", recordsScanned);
+			result.put("recordsDecoded", recordsDecoded);
+			result.put("objectsEmitted", objectsEmitted);
+			result.put("indexLookups", indexLookups);
+			return result;
+		}
+	}
+
+	// TreeMaps, so the output is sorted by name
+	private final Map<String, Stats> perFrame = new TreeMap<>();
+	private final Map<String, Stats> perClass = new TreeMap<>();
+	private long nanos;
+	// The table the frame that is currently being processed read from first
+	private Stats currentClassStats;
+
+	private Stats getFrameStats(StackFrame stackFrame) {
+		String name = stackFrame == null ? "none" : stackFrame.getClass().getSimpleName();
+		Stats stats = perFrame.get(name);
+		if (stats == null) {
+			stats = new Stats();
+			perFrame.put(name, stats);
+		}
+		return stats;
+	}
+
+	private Stats getClassStats(EClass eClass) {
+		String name = eClass == null ? "none" : eClass.getEPackage().getName() + "_" + eClass.getName();
+		Stats stats = perClass.get(name);
+		if (stats == null) {
+			stats = new Stats();
+			perClass.put(name, stats);
+		}
+		return stats;
+	}
+
+	public void frameProcessed(StackFrame stackFrame, long nanos) {
+		Stats stats = getFrameStats(stackFrame);
+		stats.processed++;
+		stats.nanos += nanos;
+		if (currentClassStats != null) {
+			currentClassStats.processed++;
+			currentClassStats.nanos += nanos;
+			currentClassStats = null;
+		}
+	}
+
+	private Stats touchClass(EClass eClass) {
+		Stats stats = getClassStats(eClass);
+		if (currentClassStats == null) {
+			currentClassStats = stats;
+		}
+		return stats;
+	}
+
+	public void recordScanned(StackFrame stackFrame, EClass eClass) {
+		getFrameStats(stackFrame).recordsScanned++;
+		touchClass(eClass).recordsScanned++;
+	}
+
+	public void recordDecoded(StackFrame stackFrame, EClass eClass) {
+		getFrameStats(stackFrame).recordsDecoded++;
+		touchClass(eClass).recordsDecoded++;
+	}
+
+	public void objectEmitted(StackFrame stackFrame, EClass eClass) {
+		getFrameStats(stackFrame).objectsEmitted++;
+		getClassStats(eClass).objectsEmitted++;
+	}
+
+	public void indexLookup(StackFrame stackFrame, EClass eClass) {
+		getFrameStats(stackFrame).indexLookups++;
+		touchClass(eClass).indexLookups++;
+	}
+
+	public void setNanos(long nanos) {
+		this.nanos = nanos;
+	}
+
+	public long getNanos() {
+		return nanos;
+	}
+
+	public Map<String, Stats> getPerFrame() {
+		return perFrame;
+	}
+
+	public Map<String, Stats> getPerClass() {
+		return perClass;
+	}
+
+	/**
+	 * Adds the numbers of the given profile to this one, the total time is not added up because profiles that are merged have been running at the same time
+	 */
+	public void merge(QueryProfile other) {
+		for (String name : other.perFrame.keySet()) {
+			Stats stats = perFrame.get(name);
+			if (stats == null) {
+				stats = new Stats();
+				perFrame.put(name, stats);
+			}
+			stats.merge(other.perFrame.get(name));
+		}
+		for (String name : other.perClass.keySet()) {
+			Stats stats = perClass.get(name);
+			if (stats == null) {
+				stats = new Stats();
+				perClass.put(name, stats);
+			}
+			stats.merge(other.perClass.get(name));
+		}
+		nanos = Math.max(nanos, other.nanos);
+	}
+
+	public ObjectNode toJson() {
+		ObjectNode result = OBJECT_MAPPER.createObjectNode();
+		Stats total = new Stats();
+		for (Stats stats : perFrame.values()) {
+			total.merge(stats);
+		}
+		result.put("ms", nanos / 1000000);
+		result.put("stackFramesProcessed", total.processed);
+		result.put("recordsScanned", total.recordsScanned);
+		result.put("recordsDecoded", total.recordsDecoded);
+		result.put("objectsEmitted", total.objectsEmitted);
+		result.put("indexLookups", total.indexLookups);
+		ObjectNode frames = OBJECT_MAPPER.createObjectNode();
+		for (String name : perFrame.keySet()) {
+			frames.set(name, perFrame.get(name).toJson());
+		}
+		result.set("frames", frames);
+		ObjectNode classes = OBJECT_MAPPER.createObjectNode();
+		for (String name : perClass.keySet()) {
+			classes.set(name, perClass.get(name).toJson());
+		}
+		result.set("classes", classes);
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return toJson().toString();
+	}
+}
@@ -18,7 +18,10 @@ package org.bimserver.database.queries;
  *****************************************************************************/
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -26,8 +29,10 @@ import java.util.Set;
 import org.bimserver.BimserverDatabaseException;
 import org.bimserver.database.DatabaseSession;
 import org.bimserver.database.DatabaseSession.GetResult;
+import org.bimserver.database.PropertyIndex;
 import org.bimserver.database.Record;
 import org.bimserver.database.SearchingRecordIterator;
+import org.bimserver.database.TableHandle;
 import org.bimserver.database.queries.om.Properties;
 import org.bimserver.database.queries.om.QueryException;
 import org.bimserver.database.queries.om.QueryPart;
@@ -43,37 +48,93 @@ import org.slf4j.LoggerFactory;
 public class QueryPropertiesAndTypesStackFrame extends DatabaseReadingStackFrame implements ObjectProvidingStackFrame {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(QueryPropertiesAndTypesStackFrame.class);
+	// The related objects are only read to match the properties, so only the features used for that are decoded
+	private static final FeatureProjection REL_DEFINES_BY_PROPERTIES = new FeatureProjection("RelatingPropertyDefinition");
+	private static final FeatureProjection REL_DEFINES_BY_TYPE = new FeatureProjection("RelatingType");
+	private static final FeatureProjection TYPE_OBJECT = new FeatureProjection("HasPropertySets");
+	private static final FeatureProjection PROPERTY_SET = new FeatureProjection("Name", "HasProperties");
+	private static final FeatureProjection PROPERTY = new FeatureProjection("Name", "NominalValue");
 	private EClass eClass;
 	private SearchingRecordIterator typeRecordIterator;
 	private Record record;
 	private Map<String, Properties> properties;
+	private Iterator<Long> candidateIterator;
 
 	public QueryPropertiesAndTypesStackFrame(QueryObjectProvider queryObjectProvider, EClass eClass, QueryPart queryPart, QueryContext reusable, Map<String, Properties> properties) throws BimserverDatabaseException {
 		super(reusable, queryObjectProvider, queryPart);
 		this.eClass = eClass;
 		this.properties = properties;
 
-		String tableName = eClass.getEPackage().getName() + "_" + eClass.getName();
+		TableHandle tableHandle = queryObjectProvider.getDatabaseSession().getTableHandle(eClass);
 		if (getReusable().getOidCounters() != null) {
 			if (!getReusable().getOidCounters().containsKey(eClass)) {
 				return; // will skip to next one
 			}
+		}
+		PropertyIndex propertyIndex = queryObjectProvider.getDatabaseSession().getPropertyIndex();
+		if (propertyIndex.isComplete(reusable.getCroid(), queryObjectProvider.getDatabaseSession())) {
+			List<Long> candidates = getCandidates(propertyIndex);
+			if (candidates != null) {
+				candidateIterator = candidates.iterator();
+				return;
+			}
+		}
+		if (getReusable().getOidCounters() != null) {
 			long startOid = getReusable().getOidCounters().get(eClass);
 			ByteBuffer tmp = ByteBuffer.allocate(12);
 			tmp.putInt(getReusable().getPid());
 			tmp.putLong(startOid + 1);
-			typeRecordIterator = queryObjectProvider.getDatabaseSession().getKeyValueStore().getRecordIterator(tableName, BinUtils.intToByteArray(getReusable().getPid()), tmp.array(), queryObjectProvider.getDatabaseSession());
+			typeRecordIterator = queryObjectProvider.getDatabaseSession().getKeyValueStore().getRecordIterator(tableHandle, BinUtils.intToByteArray(getReusable().getPid()), tmp.array(), queryObjectProvider.getDatabaseSession());
 			record = typeRecordIterator.next();
 		} else {
 //			LOGGER.warn("Potential too-many-reads");
-			typeRecordIterator = queryObjectProvider.getDatabaseSession().getKeyValueStore().getRecordIterator(tableName, BinUtils.intToByteArray(getReusable().getPid()), BinUtils.intToByteArray(getReusable().getPid()), queryObjectProvider.getDatabaseSession());
+			typeRecordIterator = queryObjectProvider.getDatabaseSession().getKeyValueStore().getRecordIterator(tableHandle, BinUtils.intToByteArray(getReusable().getPid()), BinUtils.intToByteArray(getReusable().getPid()), queryObjectProvider.getDatabaseSession());
 			record = typeRecordIterator.next();
 		}
 	}
 	
-	@SuppressWarnings("unchecked")
+	/**
+	 * @return The oids of the objects of this frame's class that have all queried property values according to the PropertyIndex, sorted by oid, or null when
+	 * (one of) the properties cannot be looked up in the index
+	 */
+	private List<Long> getCandidates(PropertyIndex propertyIndex) throws BimserverDatabaseException {
+		DatabaseSession databaseSession = getQueryObjectProvider().getDatabaseSession();
+		short cid = databaseSession.getCid(eClass);
+		Set<Long> result = null;
+		for (String propertySetName : properties.keySet()) {
+			if (getPackageMetaData().getEPackage().getEClassifier(propertySetName) instanceof EClass) {
+				// Predefined property sets (IfcDoorLiningProperties etc...) are queried by their type name, these are not indexed
+				return null;
+			}
+			Properties propertiesObject = properties.get(propertySetName);
+			for (String name : propertiesObject.keys()) {
+				getQueryObjectProvider().incIndexLookups(this, eClass);
+				List<Long> oids = propertyIndex.query(getReusable().getCroid(), propertySetName, name, propertiesObject.get(name), databaseSession);
+				if (oids == null) {
+					return null;
+				}
+				Set<Long> matching = new HashSet<>();
+				for (Long oid : oids) {
+					if ((short) oid.longValue() == cid && (result == null || result.contains(oid))) {
+						matching.add(oid);
+					}
+				}
+				result = matching;
+			}
+		}
+		if (result == null) {
+			return null;
+		}
+		List<Long> candidates = new ArrayList<>(result);
+		Collections.sort(candidates);
+		return candidates;
+	}
+
 	@Override
 	public boolean process() throws BimserverDatabaseException, QueryException {
+		if (candidateIterator != null) {
+			return processCandidates();
+		}
 		if (typeRecordIterator == null) {
 			return true;
 		}
@@ -86,7 +147,7 @@ public class QueryPropertiesAndTypesStackFrame extends DatabaseReadingStackFrame
 		currentObject = null;
 		
 		ByteBuffer nextKeyStart = ByteBuffer.allocate(12);
-		getQueryObjectProvider().incReads();
+		getQueryObjectProvider().incReads(this, eClass);
 		ByteBuffer keyBuffer = ByteBuffer.wrap(record.getKey());
 		int keyPid = keyBuffer.getInt();
 		long keyOid = keyBuffer.getLong();
@@ -102,43 +163,8 @@ public class QueryPropertiesAndTypesStackFrame extends DatabaseReadingStackFrame
 			record = typeRecordIterator.next();
 		}
 
-		if (currentObject != null) {
-			DatabaseSession databaseSession = getQueryObjectProvider().getDatabaseSession();
-			List<Long> isDefinedByOids = (List<Long>) currentObject.get("IsDefinedBy");
-			int totalQueryProperties = 0;
-			for (String key : this.properties.keySet()) {
-				totalQueryProperties += this.properties.get(key).count();
-			}
-			if (isDefinedByOids != null) {
-				Set<String> propertyKeysMatched = new HashSet<>();
-				for (Long definedByOid : isDefinedByOids) {
-					EClass eClass = databaseSession.getEClassForOid(definedByOid);
-					if (getPackageMetaData().getEClass("IfcRelDefinesByProperties").isSuperTypeOf(eClass)) {
-						HashMapVirtualObject ifcRelDefinesByProperties = getByOid(definedByOid);
-						Long ifcPropertySetDefinition = (Long) ifcRelDefinesByProperties.get("RelatingPropertyDefinition");
-						processPropertySet(databaseSession, propertyKeysMatched, ifcPropertySetDefinition);
-					} else if (getPackageMetaData().getEClass("IfcRelDefinesByType").isSuperTypeOf(eClass)){
-						HashMapVirtualObject ifcRelDefinesByType = getByOid(definedByOid);
-						Long relatingTypeId = (Long) ifcRelDefinesByType.get("RelatingType");
-						EClass eClassForOid = databaseSession.getEClassForOid(relatingTypeId);
-						if (getPackageMetaData().getEClass("IfcTypeObject").isSuperTypeOf(eClassForOid)) {
-							HashMapVirtualObject ifcTypeObject = getByOid(relatingTypeId);
-							List<Long> propertySets = (List<Long>) ifcTypeObject.get("HasPropertySets");
-							if (propertySets != null) {
-								for (Long propertySetId : propertySets) {
-									processPropertySet(databaseSession, propertyKeysMatched, propertySetId);
-								}
-							}
-						}
-					} else {
-						LOGGER.info(eClass.getName());
-					}
-				}
-				if (propertyKeysMatched.size() != totalQueryProperties) {
-					// All properties should have matched, atm all properties provided in the query are evaluated as AND
-					currentObject = null;
-				}
-			}
+		if (currentObject != null && !matches(currentObject)) {
+			currentObject = null;
 		}
 		
 		processPossibleIncludes(currentObject, eClass, getQueryPart());
@@ -146,30 +172,97 @@ public class QueryPropertiesAndTypesStackFrame extends DatabaseReadingStackFrame
 		return false;
 	}
 
+	/**
+	 * The candidates found in the PropertyIndex are verified, the index uses normalized values and also contains properties that come from the type
+	 */
+	private boolean processCandidates() throws BimserverDatabaseException, QueryException {
+		if (!candidateIterator.hasNext()) {
+			currentObject = null;
+			return true;
+		}
+		currentObject = null;
+		long oid = candidateIterator.next();
+		if (getQueryObjectProvider().hasRead(oid)) {
+			return false;
+		}
+		currentObject = getByOid(oid);
+		if (currentObject != null && !matches(currentObject)) {
+			currentObject = null;
+		}
+		processPossibleIncludes(currentObject, eClass, getQueryPart());
+		return false;
+	}
+
+	@SuppressWarnings("unchecked")
+	private boolean matches(HashMapVirtualObject object) throws BimserverDatabaseException {
+		DatabaseSession databaseSession = getQueryObjectProvider().getDatabaseSession();
+		List<Long> isDefinedByOids = (List<Long>) object.get("IsDefinedBy");
+		int totalQueryProperties = 0;
+		for (String key : this.properties.keySet()) {
+			totalQueryProperties += this.properties.get(key).count();
+		}
+		if (isDefinedByOids == null) {
+			// No properties at all
+			return false;
+		}
+		Set<String> propertyKeysMatched = new HashSet<>();
+		for (Long definedByOid : isDefinedByOids) {
+			EClass eClass = databaseSession.getEClassForOid(definedByOid);
+			if (getPackageMetaData().getEClass("IfcRelDefinesByProperties").isSuperTypeOf(eClass)) {
+				HashMapVirtualObject ifcRelDefinesByProperties = getByOid(definedByOid, REL_DEFINES_BY_PROPERTIES);
+				Long ifcPropertySetDefinition = (Long) ifcRelDefinesByProperties.get("RelatingPropertyDefinition");
+				processPropertySet(databaseSession, propertyKeysMatched, ifcPropertySetDefinition);
+			} else if (getPackageMetaData().getEClass("IfcRelDefinesByType").isSuperTypeOf(eClass)){
+				HashMapVirtualObject ifcRelDefinesByType = getByOid(definedByOid, REL_DEFINES_BY_TYPE);
+				Long relatingTypeId = (Long) ifcRelDefinesByType.get("RelatingType");
+				EClass eClassForOid = databaseSession.getEClassForOid(relatingTypeId);
+				if (getPackageMetaData().getEClass("IfcTypeObject").isSuperTypeOf(eClassForOid)) {
+					HashMapVirtualObject ifcTypeObject = getByOid(relatingTypeId, TYPE_OBJECT);
+					List<Long> propertySets = (List<Long>) ifcTypeObject.get("HasPropertySets");
+					if (propertySets != null) {
+						for (Long propertySetId : propertySets) {
+							processPropertySet(databaseSession, propertyKeysMatched, propertySetId);
+						}
+					}
+				}
+			} else {
+				LOGGER.info(eClass.getName());
+			}
+		}
+		// All properties should have matched, atm all properties provided in the query are evaluated as AND
+		return propertyKeysMatched.size() == totalQueryProperties;
+	}
+
 	@SuppressWarnings("unchecked")
 	private void processPropertySet(DatabaseSession databaseSession, Set<String> propertyKeysMatched, Long ifcPropertySetDefinition) throws BimserverDatabaseException {
 		EClass eClassForOid = databaseSession.getEClassForOid(ifcPropertySetDefinition);
 		if (getPackageMetaData().getEClass("IfcPropertySet").isSuperTypeOf(eClassForOid)) {
-			HashMapVirtualObject ifcPropertySet = getByOid(ifcPropertySetDefinition);
+			HashMapVirtualObject ifcPropertySet = getByOid(ifcPropertySetDefinition, PROPERTY_SET);
 			String propertySetName = (String) ifcPropertySet.get("Name");
 			Properties propertiesObject = (Properties)properties.get(propertySetName);
 			if (propertiesObject != null) {
 				List<Long> properties = (List<Long>) ifcPropertySet.get("HasProperties");
 				for (long propertyOid : properties) {
 					if (getPackageMetaData().getEClass("IfcPropertySingleValue").isSuperTypeOf(databaseSession.getEClassForOid(propertyOid))) {
-						HashMapVirtualObject property = getByOid(propertyOid);
+						HashMapVirtualObject property = getByOid(propertyOid, PROPERTY);
 						String name = (String) property.get("Name");
 						HashMapWrappedVirtualObject value = (HashMapWrappedVirtualObject) property.get("NominalValue");
 						if (propertiesObject.has(name)) {
 							Object queryPropertyValue = propertiesObject.get(name);
 							
 							Object wrappedValue = value.eGet(value.eClass().getEStructuralFeature("wrappedValue"));
-							if (value.eClass().getName().equals("IfcBoolean")) {
+							if (wrappedValue instanceof Enumerator) {
+								// IfcBoolean/IfcLogical
 								Enumerator tristate = (Enumerator)wrappedValue;
-								if (tristate.getName().toLowerCase().equals(queryPropertyValue.toString())) {
+								if (queryPropertyValue != null && tristate.getName().toLowerCase().equals(queryPropertyValue.toString())) {
+									propertyKeysMatched.add(propertySetName + "___" + name);
+								}
+							} else if (wrappedValue instanceof Number && queryPropertyValue instanceof Number) {
+								// Query numbers are always doubles, but for example IfcInteger values are longs
+								if (((Number)wrappedValue).doubleValue() == ((Number)queryPropertyValue).doubleValue()) {
 									propertyKeysMatched.add(propertySetName + "___" + name);
 								}
-							} else if (wrappedValue.equals(queryPropertyValue)) {
+							} else if (wrappedValue != null && wrappedValue.equals(queryPropertyValue)) {
 								propertyKeysMatched.add(propertySetName + "___" + name);
 							}
 						}
@@ -24,6 +24,7 @@ import org.bimserver.database.BimserverLockConflictException;
 import org.bimserver.database.DatabaseSession.GetResult;
 import org.bimserver.database.Record;
 import org.bimserver.database.SearchingRecordIterator;
+import org.bimserver.database.TableHandle;
 import org.bimserver.database.queries.om.QueryException;
 import org.bimserver.database.queries.om.QueryPart;
 import org.bimserver.models.geometry.GeometryPackage;
@@ -36,25 +37,35 @@ public class QueryTypeStackFrame extends DatabaseReadingStackFrame implements Ob
 	private EClass eClass;
 	private SearchingRecordIterator typeRecordIterator;
 	private Record record;
+	private long oidRangeEnd = -1;
 
 	public QueryTypeStackFrame(QueryObjectProvider queryObjectProvider, EClass eClass, QueryContext reusable, QueryPart queryPart) throws BimserverLockConflictException, BimserverDatabaseException {
 		super(reusable, queryObjectProvider, queryPart);
 		this.eClass = eClass;
 		
-		String tableName = eClass.getEPackage().getName() + "_" + eClass.getName();
-		if (getReusable().getOidCounters() != null) {
-			if (!getReusable().getOidCounters().containsKey(eClass)) {
-				return; // will skip to next one
+		TableHandle tableHandle = queryObjectProvider.getDatabaseSession().getTableHandle(eClass);
+		if (queryPart.hasOidRange()) {
+			oidRangeEnd = queryPart.getOidRangeEnd();
+		}
+		if (getReusable().getOidCounters() != null || queryPart.hasOidRange()) {
+			long startOid = -1;
+			if (getReusable().getOidCounters() != null) {
+				if (!getReusable().getOidCounters().containsKey(eClass)) {
+					return; // will skip to next one
+				}
+				startOid = getReusable().getOidCounters().get(eClass) + 1;
+			}
+			if (queryPart.hasOidRange()) {
+				startOid = Math.max(startOid, queryPart.getOidRangeStart());
 			}
-			long startOid = getReusable().getOidCounters().get(eClass);
 			ByteBuffer tmp = ByteBuffer.allocate(12);
 			tmp.putInt(getReusable().getPid());
-			tmp.putLong(startOid + 1);
-			typeRecordIterator = queryObjectProvider.getDatabaseSession().getKeyValueStore().getRecordIterator(tableName, BinUtils.intToByteArray(getReusable().getPid()), tmp.array(), queryObjectProvider.getDatabaseSession());
+			tmp.putLong(startOid);
+			typeRecordIterator = queryObjectProvider.getDatabaseSession().getKeyValueStore().getRecordIterator(tableHandle, BinUtils.intToByteArray(getReusable().getPid()), tmp.array(), queryObjectProvider.getDatabaseSession());
 			record = typeRecordIterator.next();
 		} else {
 //			LOGGER.warn("Potential too-many-reads");
-			typeRecordIterator = queryObjectProvider.getDatabaseSession().getKeyValueStore().getRecordIterator(tableName, BinUtils.intToByteArray(getReusable().getPid()), BinUtils.intToByteArray(getReusable().getPid()), queryObjectProvider.getDatabaseSession());
+			typeRecordIterator = queryObjectProvider.getDatabaseSession().getKeyValueStore().getRecordIterator(tableHandle, BinUtils.intToByteArray(getReusable().getPid()), BinUtils.intToByteArray(getReusable().getPid()), queryObjectProvider.getDatabaseSession());
 			record = typeRecordIterator.next();
 		}
 	}
@@ -73,11 +84,18 @@ public class QueryTypeStackFrame extends DatabaseReadingStackFrame implements Ob
 		currentObject = null;
 		
 		ByteBuffer nextKeyStart = ByteBuffer.allocate(12);
-		getQueryObjectProvider().incReads();
+		getQueryObjectProvider().incReads(this, eClass);
 		ByteBuffer keyBuffer = ByteBuffer.wrap(record.getKey());
 		int keyPid = keyBuffer.getInt();
 		long keyOid = keyBuffer.getLong();
 		int keyRid = -keyBuffer.getInt();
+		if (oidRangeEnd != -1 && keyOid >= oidRangeEnd) {
+			// The rest of the table is read by another shard
+			currentObject = null;
+			record = null;
+			typeRecordIterator.close();
+			return true;
+		}
 		ByteBuffer valueBuffer = ByteBuffer.wrap(record.getValue());
 		GetResult map = getMap(eClass, eClass, valueBuffer, keyPid, keyOid, keyRid);
 		if (map == GetResult.CONTINUE_WITH_NEXT_OID) {
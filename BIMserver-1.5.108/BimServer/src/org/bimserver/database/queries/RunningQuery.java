@@ -0,0 +1,179 @@
+package org.bimserver.database.queries;
+
+/******************************************************************************
+ * Copyright (C) 2009-2018  BIMserver.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bimserver.database.queries.om.QueryBudget;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * A query that is registered with the QueryManager, keeps track of the resources used by the query so its budget can be enforced and it can be cancelled.
+ *
+ * The counters are updated by the QueryObjectProviders executing the query (in batches) and by the code writing the serialized results, the providers call check
+ * regularly and end the query when it returns a reason.
+ */
+public class RunningQuery {
+	private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+	private final long id;
+	private final String name;
+	private final Set<Long> roids;
+	private final QueryBudget budget;
+	private final long startTime = System.currentTimeMillis();
+	private final long startNanos = System.nanoTime();
+	private final AtomicLong reads = new AtomicLong();
+	private final AtomicLong objects = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private volatile long lastActivity = System.currentTimeMillis();
+	private volatile String stopReason;
+
+	public RunningQuery(long id, String name, Set<Long> roids, QueryBudget budget) {
+		this.id = id;
+		this.name = name;
+		this.roids = roids;
+		this.budget = budget;
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public QueryBudget getBudget() {
+		return budget;
+	}
+
+	public void addReads(long nrReads) {
+		reads.addAndGet(nrReads);
+	}
+
+	public void addObjects(long nrObjects) {
+		objects.addAndGet(nrObjects);
+	}
+
+	public void addBytes(long nrBytes) {
+		bytes.addAndGet(nrBytes);
+	}
+
+	public long getReads() {
+		return reads.get();
+	}
+
+	public long getObjects() {
+		return objects.get();
+	}
+
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	public long getLastActivity() {
+		return lastActivity;
+	}
+
+	/**
+	 * Asks the query to stop, the providers executing the query will end the query the next time they call check
+	 */
+	public void cancel() {
+		stop("Cancelled");
+	}
+
+	private void stop(String reason) {
+		synchronized (this) {
+			if (stopReason == null) {
+				stopReason = reason;
+			}
+		}
+	}
+
+	/**
+	 * @return null when the query can continue, otherwise the reason why the query has to stop
+	 */
+	public String check() {
+		lastActivity = System.currentTimeMillis();
+		if (stopReason != null) {
+			return stopReason;
+		}
+		if (budget.getMaxReads() != QueryBudget.UNLIMITED && reads.get() > budget.getMaxReads()) {
+			stop("Exceeded the maximum of " + budget.getMaxReads() + " reads");
+		} else if (budget.getMaxObjects() != QueryBudget.UNLIMITED && objects.get() >= budget.getMaxObjects()) {
+			stop("Reached the maximum of " + budget.getMaxObjects() + " objects");
+		} else if (budget.getMaxBytes() != QueryBudget.UNLIMITED && bytes.get() > budget.getMaxBytes()) {
+			stop("Exceeded the maximum of " + budget.getMaxBytes() + " bytes");
+		} else if (budget.getTimeout() != QueryBudget.UNLIMITED && (System.nanoTime() - startNanos) / 1000000 > budget.getTimeout()) {
+			stop("Exceeded the timeout of " + budget.getTimeout() + "ms");
+		}
+		return stopReason;
+	}
+
+	public String getStopReason() {
+		return stopReason;
+	}
+
+	/**
+	 * @return An OutputStream that writes to the given stream and counts the written bytes for this query
+	 */
+	public OutputStream countBytes(OutputStream outputStream) {
+		return new FilterOutputStream(outputStream) {
+			@Override
+			public void write(int b) throws IOException {
+				out.write(b);
+				bytes.incrementAndGet();
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+				bytes.addAndGet(len);
+			}
+		};
+	}
+
+	public ObjectNode toJson() {
+		ObjectNode result = OBJECT_MAPPER.createObjectNode();
+		result.put("id", id);
+		result.put("name", name);
+		ArrayNode roidsNode = OBJECT_MAPPER.createArrayNode();
+		if (roids != null) {
+			for (long roid : roids) {
+				roidsNode.add(roid);
+			}
+		}
+		result.set("roids", roidsNode);
+		result.put("start", startTime);
+		result.put("ms", (System.nanoTime() - startNanos) / 1000000);
+		result.put("reads", reads.get());
+		result.put("objects", objects.get());
+		result.put("bytes", bytes.get());
+		if (stopReason != null) {
+			result.put("stopReason", stopReason);
+		}
+		return result;
+	}
+}
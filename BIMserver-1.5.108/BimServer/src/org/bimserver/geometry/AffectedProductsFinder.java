@@ -0,0 +1,273 @@
+package org.bimserver.geometry;
+
+/******************************************************************************
+ * Copyright (C) 2009-2018  BIMserver.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bimserver.BimServer;
+import org.bimserver.BimserverDatabaseException;
+import org.bimserver.changes.Transaction;
+import org.bimserver.database.DatabaseSession;
+import org.bimserver.database.queries.QueryObjectProvider;
+import org.bimserver.database.queries.om.Include;
+import org.bimserver.database.queries.om.JsonQueryObjectModelConverter;
+import org.bimserver.database.queries.om.Query;
+import org.bimserver.database.queries.om.QueryException;
+import org.bimserver.database.queries.om.QueryPart;
+import org.bimserver.database.queries.om.Reference;
+import org.bimserver.emf.PackageMetaData;
+import org.bimserver.emf.Schema;
+import org.bimserver.shared.AbstractHashMapVirtualObject;
+import org.bimserver.shared.HashMapVirtualObject;
+import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EReference;
+import org.eclipse.emf.ecore.EStructuralFeature;
+
+/**
+ * Finds the products of which the geometry might have been changed by a low-level transaction. Created and updated products are always affected, other changed
+ * objects only affect the products that reach them through the representation, placement and opening references that are used for generating geometry (this
+ * includes mapped items and the placements of other products).
+ */
+public class AffectedProductsFinder {
+	private final BimServer bimServer;
+	private final DatabaseSession databaseSession;
+	private final PackageMetaData packageMetaData;
+	private final EClass productClass;
+	private final EStructuralFeature geometryFeature;
+	private final Set<Long> affectedProducts = new HashSet<>();
+	private final Set<Long> replacedGeometryInfos = new HashSet<>();
+
+	public AffectedProductsFinder(BimServer bimServer, DatabaseSession databaseSession, PackageMetaData packageMetaData) {
+		this.bimServer = bimServer;
+		this.databaseSession = databaseSession;
+		this.packageMetaData = packageMetaData;
+		this.productClass = packageMetaData.getEClass("IfcProduct");
+		this.geometryFeature = productClass.getEStructuralFeature("geometry");
+	}
+
+	/**
+	 * Should be called after the objects of the transaction have been saved and the inverses have been fixed, roid is the revision created by the transaction
+	 */
+	public void find(Transaction transaction, long roid) throws QueryException, IOException, BimserverDatabaseException {
+		Query query = new Query("Affected products", packageMetaData);
+		QueryPart queryPart = query.createQueryPart();
+		queryPart.addType(productClass, true);
+
+		JsonQueryObjectModelConverter jsonQueryObjectModelConverter = new JsonQueryObjectModelConverter(packageMetaData);
+		String queryNameSpace = "validifc";
+		if (packageMetaData.getSchema() == Schema.IFC4) {
+			queryNameSpace = "ifc4stdlib";
+		}
+		Include representationInclude = jsonQueryObjectModelConverter.getDefineFromFile(queryNameSpace + ":Representation");
+		Include objectPlacement = jsonQueryObjectModelConverter.getDefineFromFile(queryNameSpace + ":ObjectPlacement");
+		queryPart.addInclude(representationInclude);
+		queryPart.addInclude(objectPlacement);
+		Include openingsInclude = queryPart.createInclude();
+		openingsInclude.addType(packageMetaData.getEClass("IfcElement"), true);
+		openingsInclude.addField("HasOpenings");
+		Include hasOpenings = openingsInclude.createInclude();
+		hasOpenings.addType(packageMetaData.getEClass("IfcRelVoidsElement"), false);
+		hasOpenings.addField("RelatedOpeningElement");
+		hasOpenings.addInclude(representationInclude);
+		hasOpenings.addInclude(objectPlacement);
+
+		Set<EReference> geometryReferences = new HashSet<>();
+		Set<Include> done = new HashSet<>();
+		for (Include include : queryPart.getIncludes()) {
+			collectReferences(include, done, geometryReferences);
+		}
+
+		Set<Long> changed = new HashSet<>();
+		boolean needsRead = false;
+		for (HashMapVirtualObject object : transaction.getCreated()) {
+			changed.add(object.getOid());
+			needsRead |= isReferencedType(object.eClass(), geometryReferences);
+			if (productClass.isSuperTypeOf(object.eClass())) {
+				affectedProducts.add(object.getOid());
+			}
+		}
+		for (HashMapVirtualObject object : transaction.getUpdated()) {
+			changed.add(object.getOid());
+			needsRead |= isReferencedType(object.eClass(), geometryReferences);
+			if (productClass.isSuperTypeOf(object.eClass())) {
+				affectedProducts.add(object.getOid());
+				addReplacedGeometryInfo(object);
+			}
+		}
+		for (HashMapVirtualObject object : transaction.getDeleted()) {
+			changed.add(object.getOid());
+			needsRead |= isReferencedType(object.eClass(), geometryReferences);
+			if (productClass.isSuperTypeOf(object.eClass())) {
+				addReplacedGeometryInfo(object);
+			}
+		}
+		// When none of the changed objects can be part of the geometry of another product there is no need to read the products
+		if (needsRead) {
+			findReferencingProducts(query, roid, geometryReferences, changed);
+		}
+		for (HashMapVirtualObject object : transaction.getDeleted()) {
+			affectedProducts.remove(object.getOid());
+		}
+	}
+
+	private void findReferencingProducts(Query query, long roid, Set<EReference> geometryReferences, Set<Long> changed) throws QueryException, IOException, BimserverDatabaseException {
+		// Reverse edges of the geometry references, from the referenced object to the referencing objects
+		Map<Long, Set<Long>> referencedBy = new HashMap<>();
+		// Product oid to the oid of its current GeometryInfo (or null)
+		Map<Long, Long> products = new HashMap<>();
+		Set<Long> visited = new HashSet<>();
+		QueryObjectProvider queryObjectProvider = new QueryObjectProvider(databaseSession, bimServer, query, Collections.singleton(roid), packageMetaData);
+		HashMapVirtualObject next = queryObjectProvider.next();
+		while (next != null) {
+			if (productClass.isSuperTypeOf(next.eClass())) {
+				Object geometryInfo = next.eGet(geometryFeature);
+				products.put(next.getOid(), geometryInfo instanceof Long ? (Long) geometryInfo : null);
+			}
+			addEdges(next, geometryReferences, referencedBy, visited);
+			next = queryObjectProvider.next();
+		}
+
+		Deque<Long> todo = new ArrayDeque<>(changed);
+		Set<Long> reached = new HashSet<>(changed);
+		while (!todo.isEmpty()) {
+			long oid = todo.poll();
+			if (products.containsKey(oid) && affectedProducts.add(oid)) {
+				Long geometryInfo = products.get(oid);
+				if (geometryInfo != null) {
+					replacedGeometryInfos.add(geometryInfo);
+				}
+			}
+			// Products are followed as well, a changed opening also changes the geometry of the element it voids
+			Set<Long> parents = referencedBy.get(oid);
+			if (parents != null) {
+				for (long parent : parents) {
+					if (reached.add(parent)) {
+						todo.add(parent);
+					}
+				}
+			}
+		}
+	}
+
+	private void collectReferences(Include include, Set<Include> done, Set<EReference> geometryReferences) {
+		if (!done.add(include)) {
+			return;
+		}
+		if (include.getFields() != null) {
+			geometryReferences.addAll(include.getFields());
+		}
+		if (include.getFieldsDirect() != null) {
+			geometryReferences.addAll(include.getFieldsDirect());
+		}
+		if (include.hasIncludes()) {
+			for (Include child : include.getIncludes()) {
+				collectReferences(child, done, geometryReferences);
+			}
+		}
+		if (include.hasReferences()) {
+			for (Reference reference : include.getReferences()) {
+				collectReferences(reference.getInclude(), done, geometryReferences);
+			}
+		}
+	}
+
+	private boolean isReferencedType(EClass eClass, Set<EReference> geometryReferences) {
+		for (EReference eReference : geometryReferences) {
+			if (eReference.getEReferenceType().isSuperTypeOf(eClass)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void addEdges(HashMapVirtualObject object, Set<EReference> geometryReferences, Map<Long, Set<Long>> referencedBy, Set<Long> visited) {
+		if (!visited.add(object.getOid())) {
+			return;
+		}
+		for (EReference eReference : object.eClass().getEAllReferences()) {
+			if (!geometryReferences.contains(eReference)) {
+				continue;
+			}
+			if (eReference.isMany()) {
+				List<HashMapVirtualObject> directList = object.getDirectListFeature(eReference);
+				if (directList != null) {
+					for (HashMapVirtualObject referenced : directList) {
+						addEdge(object.getOid(), referenced.getOid(), referencedBy);
+						addEdges(referenced, geometryReferences, referencedBy, visited);
+					}
+				}
+				Object value = object.eGet(eReference);
+				if (value instanceof List) {
+					for (Object item : (List<?>) value) {
+						if (item instanceof Long) {
+							addEdge(object.getOid(), (Long) item, referencedBy);
+						}
+					}
+				}
+			} else {
+				AbstractHashMapVirtualObject direct = object.getDirectFeature(eReference);
+				if (direct instanceof HashMapVirtualObject) {
+					addEdge(object.getOid(), direct.getOid(), referencedBy);
+					addEdges((HashMapVirtualObject) direct, geometryReferences, referencedBy, visited);
+				}
+				Object value = object.eGet(eReference);
+				if (value instanceof Long) {
+					addEdge(object.getOid(), (Long) value, referencedBy);
+				}
+			}
+		}
+	}
+
+	private void addEdge(long from, long to, Map<Long, Set<Long>> referencedBy) {
+		Set<Long> set = referencedBy.get(to);
+		if (set == null) {
+			set = new HashSet<>();
+			referencedBy.put(to, set);
+		}
+		set.add(from);
+	}
+
+	private void addReplacedGeometryInfo(HashMapVirtualObject product) {
+		Object geometryInfo = product.eGet(geometryFeature);
+		if (geometryInfo instanceof Long) {
+			replacedGeometryInfos.add((Long) geometryInfo);
+		}
+	}
+
+	/**
+	 * @return The oids of the products that need new geometry, deleted products are not included
+	 */
+	public Set<Long> getAffectedProducts() {
+		return affectedProducts;
+	}
+
+	/**
+	 * @return The oids of the GeometryInfo objects of the affected and deleted products in the previous revision
+	 */
+	public Set<Long> getReplacedGeometryInfos() {
+		return replacedGeometryInfos;
+	}
+}
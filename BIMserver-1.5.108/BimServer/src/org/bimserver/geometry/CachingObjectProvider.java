@@ -0,0 +1,125 @@
+package org.bimserver.geometry;
+
+/******************************************************************************
+ * Copyright (C) 2009-2018  BIMserver.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+
+import org.bimserver.BimserverDatabaseException;
+import org.bimserver.database.DatabaseSession;
+import org.bimserver.database.VirtualObjectCache;
+import org.bimserver.database.queries.om.QueryException;
+import org.bimserver.plugins.serializers.ObjectProvider;
+import org.bimserver.shared.HashMapVirtualObject;
+import org.eclipse.emf.ecore.EClass;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Provides the objects of one geometry job to the serializer. The objects that an earlier job of the same generation has already read (mostly the shared parts
+ * of the representations like mapped representations, placements, styles and profiles) come from the cache, the others are read by the given provider and added
+ * to the cache. Products are never cached, they are changed by the job that generates their geometry.
+ */
+public class CachingObjectProvider implements ObjectProvider {
+	private static final Logger LOGGER = LoggerFactory.getLogger(CachingObjectProvider.class);
+	private final DatabaseSession databaseSession;
+	private final List<HashMapVirtualObject> cachedObjects;
+	private final Iterator<HashMapVirtualObject> cachedIterator;
+	private final ObjectProvider objectProvider;
+	private final VirtualObjectCache cache;
+	private final EClass productClass;
+
+	/**
+	 * @param objectProvider Reads the objects that were not in the cache, null when all objects were in the cache
+	 */
+	public CachingObjectProvider(DatabaseSession databaseSession, List<HashMapVirtualObject> cachedObjects, ObjectProvider objectProvider, VirtualObjectCache cache, EClass productClass) {
+		this.databaseSession = databaseSession;
+		this.cachedObjects = cachedObjects;
+		this.cachedIterator = cachedObjects.iterator();
+		this.objectProvider = objectProvider;
+		this.cache = cache;
+		this.productClass = productClass;
+	}
+
+	@Override
+	public HashMapVirtualObject next() throws BimserverDatabaseException {
+		if (cachedIterator.hasNext()) {
+			return cachedIterator.next();
+		}
+		if (objectProvider == null) {
+			return null;
+		}
+		HashMapVirtualObject next = objectProvider.next();
+		if (next != null && !productClass.isSuperTypeOf(next.eClass())) {
+			cache.put(next);
+		}
+		return next;
+	}
+
+	@Override
+	public ObjectProvider copy() throws IOException, QueryException {
+		return new CachingObjectProvider(databaseSession, cachedObjects, objectProvider == null ? null : objectProvider.copy(), cache, productClass);
+	}
+
+	@Override
+	public HashMapVirtualObject getByOid(long oid) {
+		HashMapVirtualObject object = cache.get(oid);
+		if (object == null && objectProvider != null) {
+			object = objectProvider.getByOid(oid);
+		}
+		return object;
+	}
+
+	@Override
+	public EClass getEClassForOid(long oid) {
+		try {
+			return databaseSession.getEClassForOid(oid);
+		} catch (BimserverDatabaseException e) {
+			LOGGER.error("", e);
+		}
+		return null;
+	}
+
+	@Override
+	public EClass getEClassForCid(short cid) {
+		try {
+			return databaseSession.getEClass(cid);
+		} catch (BimserverDatabaseException e) {
+			LOGGER.error("", e);
+		}
+		return null;
+	}
+
+	@Override
+	public ObjectNode getQueryNode() {
+		return objectProvider == null ? null : objectProvider.getQueryNode();
+	}
+
+	@Override
+	public String getIncompleteReason() {
+		return objectProvider == null ? null : objectProvider.getIncompleteReason();
+	}
+
+	@Override
+	public void cache(HashMapVirtualObject object) {
+		// Only the objects of this job are provided, there is nothing to cache for other readers
+	}
+}
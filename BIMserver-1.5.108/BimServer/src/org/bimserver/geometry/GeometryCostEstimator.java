@@ -0,0 +1,105 @@
+package org.bimserver.geometry;
+
+/******************************************************************************
+ * Copyright (C) 2009-2018  BIMserver.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.util.List;
+
+import org.bimserver.BimserverDatabaseException;
+import org.bimserver.database.DatabaseSession;
+import org.bimserver.emf.PackageMetaData;
+import org.bimserver.shared.AbstractHashMapVirtualObject;
+import org.bimserver.shared.HashMapVirtualObject;
+import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EStructuralFeature;
+
+/**
+ * Estimates the relative cost of generating the geometry of a product, before anything has been serialized. The estimate is based on the representation items of
+ * the usable representations (the types of the items are known from their oids, so the items themselves are not read) and the number of openings that have to be
+ * subtracted. The numbers only have a meaning relative to each other.
+ */
+public class GeometryCostEstimator {
+	private static final int PRODUCT_COST = 1;
+	private static final int ITEM_COST = 1;
+	private static final int MAPPED_ITEM_COST = 2;
+	private static final int BREP_COST = 4;
+	private static final int BOOLEAN_COST = 8;
+	private static final int OPENING_COST = 4;
+
+	private final DatabaseSession databaseSession;
+	private final EStructuralFeature representationFeature;
+	private final EStructuralFeature representationsFeature;
+	private final EStructuralFeature itemsFeature;
+	private final EStructuralFeature hasOpeningsFeature;
+	private final EClass elementClass;
+	private final EClass mappedItemClass;
+	private final EClass brepClass;
+	private final EClass booleanResultClass;
+
+	public GeometryCostEstimator(DatabaseSession databaseSession, PackageMetaData packageMetaData) {
+		this.databaseSession = databaseSession;
+		this.representationFeature = packageMetaData.getEClass("IfcProduct").getEStructuralFeature("Representation");
+		this.representationsFeature = packageMetaData.getEClass("IfcProductRepresentation").getEStructuralFeature("Representations");
+		this.itemsFeature = packageMetaData.getEClass("IfcRepresentation").getEStructuralFeature("Items");
+		this.elementClass = packageMetaData.getEClass("IfcElement");
+		this.hasOpeningsFeature = elementClass.getEStructuralFeature("HasOpenings");
+		this.mappedItemClass = packageMetaData.getEClass("IfcMappedItem");
+		this.brepClass = packageMetaData.getEClass("IfcManifoldSolidBrep");
+		this.booleanResultClass = packageMetaData.getEClass("IfcBooleanResult");
+	}
+
+	/**
+	 * @param product A product that has been read with its Representation and Representations as direct features
+	 */
+	public int estimate(HashMapVirtualObject product) throws BimserverDatabaseException {
+		int cost = PRODUCT_COST;
+		AbstractHashMapVirtualObject representation = product.getDirectFeature(representationFeature);
+		if (representation != null) {
+			List<HashMapVirtualObject> representations = representation.getDirectListFeature(representationsFeature);
+			if (representations != null) {
+				for (HashMapVirtualObject shapeRepresentation : representations) {
+					Object items = shapeRepresentation.eGet(itemsFeature);
+					if (items instanceof List) {
+						for (Object item : (List<?>) items) {
+							if (item instanceof Long) {
+								cost += itemCost(databaseSession.getEClassForOid((Long) item));
+							}
+						}
+					}
+				}
+			}
+		}
+		if (elementClass.isSuperTypeOf(product.eClass())) {
+			Object openings = product.eGet(hasOpeningsFeature);
+			if (openings instanceof List) {
+				cost += OPENING_COST * ((List<?>) openings).size();
+			}
+		}
+		return cost;
+	}
+
+	private int itemCost(EClass itemClass) {
+		if (mappedItemClass.isSuperTypeOf(itemClass)) {
+			return MAPPED_ITEM_COST;
+		} else if (booleanResultClass.isSuperTypeOf(itemClass)) {
+			return BOOLEAN_COST;
+		} else if (brepClass.isSuperTypeOf(itemClass)) {
+			return BREP_COST;
+		}
+		return ITEM_COST;
+	}
+}
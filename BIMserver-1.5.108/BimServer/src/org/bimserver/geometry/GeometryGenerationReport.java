@@ -156,6 +156,7 @@ public class GeometryGenerationReport {
 			jobNode.put("nrObjects", job.getNrObjects());
 			jobNode.put("usesMapping", job.isUsesMapping());
 			jobNode.put("trianglesGenerated", job.getTrianglesGenerated());
+			jobNode.put("estimatedCost", job.getEstimatedCost());
 			jobNode.put("totalTimeNanos", job.getTotalNanos());
 			
 			if (job.getException() != null) {
@@ -246,7 +247,7 @@ public class GeometryGenerationReport {
 		
 		builder.append("<h3>Jobs</h3>");
 		builder.append("<table>");
-		builder.append("<thead><tr><th>Main type</th><th># objects</th><th>Uses mapping</th><th># triangles</th><th>Total time</th><th>Exception</th><th>Debug file</th></tr></thead>");
+		builder.append("<thead><tr><th>Main type</th><th># objects</th><th>Uses mapping</th><th># triangles</th><th>Estimated cost</th><th>Total time</th><th>Exception</th><th>Debug file</th></tr></thead>");
 		builder.append("<tbody>");
 		for (ReportJob job : jobs) {
 			builder.append("<tr>");
@@ -261,6 +262,7 @@ public class GeometryGenerationReport {
 //				builder.append(oid + "(" + type + "), ");
 //			}
 //			builder.append("</td>");
+			builder.append("<td>" + job.getEstimatedCost() + "</td>");
 			builder.append("<td>" + Formatters.millisecondsToString(job.getTotalNanos() / 1000000) + "</td>");
 			if (job.getException() != null) {
 				StringWriter writer = new StringWriter();
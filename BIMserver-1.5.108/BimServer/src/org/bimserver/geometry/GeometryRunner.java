@@ -26,11 +26,16 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 
 import org.apache.commons.io.FileUtils;
@@ -45,8 +50,11 @@ import org.bimserver.ProductDef;
 import org.bimserver.Range;
 import org.bimserver.TemporaryGeometryData;
 import org.bimserver.database.DatabaseSession;
+import org.bimserver.database.GeometryContentStore;
+import org.bimserver.database.VirtualObjectCache;
 import org.bimserver.database.queries.QueryObjectProvider;
 import org.bimserver.database.queries.om.Query;
+import org.bimserver.database.queries.om.QueryException;
 import org.bimserver.database.queries.om.QueryPart;
 import org.bimserver.models.geometry.GeometryPackage;
 import org.bimserver.plugins.PluginConfiguration;
@@ -70,13 +78,18 @@ import org.bimserver.shared.VirtualObject;
 import org.bimserver.shared.WrappedVirtualObject;
 import org.bimserver.utils.GeometryUtils;
 import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EStructuralFeature;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.hash.HashCode;
 import com.google.common.primitives.UnsignedBytes;
 
 public class GeometryRunner implements Runnable {
 
 	private static final org.slf4j.Logger LOGGER = LoggerFactory.getLogger(GeometryRunner.class);
+	// The buffers that are compared when looking for stored geometry, the other buffers are derived from these
+	private static final EStructuralFeature[] COMPARED_BUFFERS = new EStructuralFeature[] { GeometryPackage.eINSTANCE.getGeometryData_Indices(), GeometryPackage.eINSTANCE.getGeometryData_Vertices(),
+			GeometryPackage.eINSTANCE.getGeometryData_Normals(), GeometryPackage.eINSTANCE.getGeometryData_ColorsQuantized() };
 	private final StreamingGeometryGenerator streamingGeometryGenerator;
 	private EClass eClass;
 	private RenderEngineSettings renderEngineSettings;
@@ -118,6 +131,10 @@ public class GeometryRunner implements Runnable {
 		this.job.setUsesMapping(map != null);
 	}
 
+	public int getEstimatedCost() {
+		return job.getEstimatedCost();
+	}
+
 	public float area(float[] triangle) {
 		return (float) (0.5f * 
 			Math.sqrt(
@@ -134,15 +151,26 @@ public class GeometryRunner implements Runnable {
 			HashMapVirtualObject next = objectProvider.next();
 			Query query = new Query("Double buffer query " + eClass.getName(), this.streamingGeometryGenerator.packageMetaData);
 			QueryPart queryPart = query.createQueryPart();
+			VirtualObjectCache sharedObjectCache = this.streamingGeometryGenerator.sharedObjectCache;
+			List<HashMapVirtualObject> cachedObjects = new ArrayList<>();
+			boolean hasOids = false;
 			while (next != null) {
-				queryPart.addOid(next.getOid());
+				HashMapVirtualObject cached = sharedObjectCache.get(next.getOid());
+				if (cached != null) {
+					cachedObjects.add(cached);
+				} else {
+					queryPart.addOid(next.getOid());
+					hasOids = true;
+				}
 				if (eClass.isSuperTypeOf(next.eClass())) {
 					job.addObject(next.getOid(), next.eClass().getName());
 				}
 				next = objectProvider.next();
 			}
 
-			objectProvider = new QueryObjectProvider(databaseSession, this.streamingGeometryGenerator.bimServer, query, Collections.singleton(queryContext.getRoid()), this.streamingGeometryGenerator.packageMetaData);
+			// A query part without oids would read everything, so there is nothing to query when all objects were already read by earlier jobs
+			ObjectProvider remainingObjectProvider = hasOids ? new QueryObjectProvider(databaseSession, this.streamingGeometryGenerator.bimServer, query, Collections.singleton(queryContext.getRoid()), this.streamingGeometryGenerator.packageMetaData) : null;
+			objectProvider = new CachingObjectProvider(databaseSession, cachedObjects, remainingObjectProvider, sharedObjectCache, this.streamingGeometryGenerator.productClass);
 
 			StreamingSerializer ifcSerializer = ifcSerializerPlugin.createSerializer(new PluginConfiguration());
 			RenderEngine renderEngine = null;
@@ -259,22 +287,22 @@ public class GeometryRunner implements Runnable {
 										geometryData.set("type", databaseSession.getCid(eClass));
 										int[] indices = geometry.getIndices();
 										geometryData.setAttribute(GeometryPackage.eINSTANCE.getGeometryData_Reused(), 1);
-										geometryData.setAttribute(GeometryPackage.eINSTANCE.getGeometryData_Indices(), createBuffer(queryContext, GeometryUtils.intArrayToByteArray(indices)));
+										// The buffers are only stored when no geometry with the same content exists yet
+										Map<EStructuralFeature, byte[]> buffers = new LinkedHashMap<>();
+										buffers.put(GeometryPackage.eINSTANCE.getGeometryData_Indices(), GeometryUtils.intArrayToByteArray(indices));
 										geometryData.set("nrIndices", indices.length);
 										float[] vertices = geometry.getVertices();
 										geometryData.set("nrVertices", vertices.length);
-										geometryData.setAttribute(GeometryPackage.eINSTANCE.getGeometryData_Vertices(), createBuffer(queryContext, GeometryUtils.floatArrayToByteArray(vertices)));
+										buffers.put(GeometryPackage.eINSTANCE.getGeometryData_Vertices(), GeometryUtils.floatArrayToByteArray(vertices));
 										float[] normals = geometry.getNormals();
 										geometryData.set("nrNormals", normals.length);
-										geometryData.setAttribute(GeometryPackage.eINSTANCE.getGeometryData_Normals(), createBuffer(queryContext, GeometryUtils.floatArrayToByteArray(normals)));
+										buffers.put(GeometryPackage.eINSTANCE.getGeometryData_Normals(), GeometryUtils.floatArrayToByteArray(normals));
 										
 										geometryInfo.setAttribute(GeometryPackage.eINSTANCE.getGeometryInfo_PrimitiveCount(), indices.length / 3);
 										
 										job.setTrianglesGenerated(indices.length / 3);
 										job.getReport().incrementTriangles(indices.length / 3);
 										
-										streamingGeometryGenerator.cacheGeometryData(geometryData, vertices);
-
 										Map<Color4f, Float> usedColors = new HashMap<>();
 
 										boolean hasTransparency = false;
@@ -344,7 +372,7 @@ public class GeometryRunner implements Runnable {
 											}
 											if (hasMaterial) {
 												geometryData.set("nrColors", colors.length);
-												geometryData.set(GeometryPackage.eINSTANCE.getGeometryData_ColorsQuantized(), createBuffer(queryContext, colors));
+												buffers.put(GeometryPackage.eINSTANCE.getGeometryData_ColorsQuantized(), colors);
 											} else {
 												geometryData.set("nrColors", 0);
 											}
@@ -376,7 +404,7 @@ public class GeometryRunner implements Runnable {
 										geometryInfo.set("boundsMm", boundsMm);
 
 										ByteBuffer normalsQuantized = quantizeNormals(normals);
-										geometryData.setAttribute(GeometryPackage.eINSTANCE.getGeometryData_NormalsQuantized(), createBuffer(queryContext, normalsQuantized.array()));
+										buffers.put(GeometryPackage.eINSTANCE.getGeometryData_NormalsQuantized(), normalsQuantized.array());
 										
 										HashMapWrappedVirtualObject geometryDataBounds = new HashMapWrappedVirtualObject(GeometryPackage.eINSTANCE.getBounds());
 										WrappedVirtualObject geometryDataBoundsMin = new HashMapWrappedVirtualObject(GeometryPackage.eINSTANCE.getVector3f());
@@ -415,15 +443,19 @@ public class GeometryRunner implements Runnable {
 												(double) maxBoundsUntranslated.eGet(GeometryPackage.eINSTANCE.getVector3f_Z()), 1d };
 
 										if (reuseGeometry) {
-											int hash = this.streamingGeometryGenerator.hash(indices, vertices, normals, colors);
+											HashCode digest = this.streamingGeometryGenerator.digest(buffers.get(GeometryPackage.eINSTANCE.getGeometryData_Indices()), buffers.get(GeometryPackage.eINSTANCE.getGeometryData_Vertices()),
+													buffers.get(GeometryPackage.eINSTANCE.getGeometryData_Normals()), colors);
 											float[] firstVertex = new float[] { vertices[indices[0]], vertices[indices[0] + 1], vertices[indices[0] + 2] };
 											float[] lastVertex = new float[] { vertices[indices[indices.length - 1] * 3], vertices[indices[indices.length - 1] * 3 + 1], vertices[indices[indices.length - 1] * 3 + 2] };
 											Range range = new Range(firstVertex, lastVertex);
-											Long referenceOid = this.streamingGeometryGenerator.hashes.get(hash);
+											Long referenceOid = this.streamingGeometryGenerator.hashes.get(digest);
+											if (referenceOid == null) {
+												referenceOid = findStoredGeometryData(digest, buffers, geometryData, vertices);
+											}
 											if (referenceOid != null) {
-												HashMapVirtualObject referencedData = databaseSession.getFromCache(referenceOid);
+												HashMapVirtualObject referencedData = this.streamingGeometryGenerator.getCachedGeometryData(referenceOid);
 												if (referencedData == null) {
-													LOGGER.error("Object not found in cache: " + referenceOid + " (hash: " + hash + ")");
+													LOGGER.error("Object not found in cache: " + referenceOid + " (digest: " + digest + ")");
 												}
 												Integer currentValue = (Integer) referencedData.get("reused");
 												referencedData.set("reused", currentValue + 1);
@@ -432,6 +464,10 @@ public class GeometryRunner implements Runnable {
 												referencedData.saveOverwrite();
 												geometryInfo.setReference(GeometryPackage.eINSTANCE.getGeometryInfo_Data(), referenceOid, 0);
 												this.streamingGeometryGenerator.bytesSavedByHash.addAndGet(size);
+												if (geometryReused) {
+													// The mapped items of this product use the found geometry as well
+													productToData.put(ifcProduct.getOid(), new TemporaryGeometryData(referenceOid, renderEngineInstance.getArea(), renderEngineInstance.getVolume(), indices.length / 3, size, mibu, mabu, indices, vertices));
+												}
 											} else if (geometryReused) {
 												// This is true when this geometry is part of a mapped item mapping (and used more than once)
 												
@@ -479,8 +515,8 @@ public class GeometryRunner implements Runnable {
 													geometryInfo.setAttribute(GeometryPackage.eINSTANCE.getGeometryInfo_PrimitiveCount(), indices.length / 3);
 
 													productToData.put(ifcProduct.getOid(), new TemporaryGeometryData(geometryData.getOid(), renderEngineInstance.getArea(), renderEngineInstance.getVolume(), indices.length / 3, size, mibu, mabu, indices, vertices));
-													geometryData.save();
-													databaseSession.cache((HashMapVirtualObject) geometryData);
+													saveGeometryData(geometryData, buffers, vertices);
+													databaseSession.getGeometryContentStore().put(queryContext.getPid(), digest, geometryData.getOid(), queryContext.getRid(), databaseSession);
 												}
 											} else {
 												// if (sizes.containsKey(size)
@@ -504,22 +540,23 @@ public class GeometryRunner implements Runnable {
 												// So reuse is on, the data was not found by hash, and this item is not in a mapped item
 												
 												// By saving it before putting it in the cache/hashmap, we make sure we won't get a BimserverConcurrentModificationException
-												geometryData.save(); // TODO Why??
+												saveGeometryData(geometryData, buffers, vertices); // TODO Why??
 
-												databaseSession.cache((HashMapVirtualObject) geometryData);
-												this.streamingGeometryGenerator.hashes.put(hash, geometryData.getOid());
+												this.streamingGeometryGenerator.hashes.put(digest, geometryData.getOid());
+												databaseSession.getGeometryContentStore().put(queryContext.getPid(), digest, geometryData.getOid(), queryContext.getRid(), databaseSession);
 												// sizes.put(size, ifcProduct);
 											}
 										} else {
-											geometryData.save();
-											databaseSession.cache((HashMapVirtualObject) geometryData);
+											// Mapped items look up the data of their master by oid to update the reuse count, it is kept by the generator
+											saveGeometryData(geometryData, buffers, vertices);
 										}
 
 										calculateObb(geometryInfo, productTranformationMatrix, indices, vertices, generateGeometryResult);
 										this.streamingGeometryGenerator.setTransformationMatrix(geometryInfo, productTranformationMatrix);
 										debuggingInfo.put(ifcProduct.getOid(), new DebuggingInfo(productTranformationMatrix, indices, vertices));
 
-										geometryInfo.save();
+										this.streamingGeometryGenerator.saveNew(geometryInfo);
+										addToSpatialIndex(ifcProduct, geometryInfo);
 										this.streamingGeometryGenerator.totalBytes.addAndGet(size);
 
 										ifcProduct.setReference(this.streamingGeometryGenerator.geometryFeature, geometryInfo.getOid(), 0);
@@ -561,7 +598,7 @@ public class GeometryRunner implements Runnable {
 										// ifcProduct.getOid());
 										notFoundObjects.put(expressId, ifcProduct);
 									}
-								} catch (BimserverDatabaseException | RenderEngineException e) {
+								} catch (BimserverDatabaseException | RenderEngineException | IOException | QueryException e) {
 									StreamingGeometryGenerator.LOGGER.error("", e);
 								}
 							}
@@ -693,7 +730,7 @@ public class GeometryRunner implements Runnable {
 											
 											generateGeometryResult.addDensity(density);
 											
-											HashMapVirtualObject referencedData = databaseSession.getFromCache(masterGeometryData.getOid());
+											HashMapVirtualObject referencedData = this.streamingGeometryGenerator.getCachedGeometryData(masterGeometryData.getOid());
 											Integer currentValue = (Integer) referencedData.get("reused");
 											referencedData.set("reused", currentValue + 1);
 											HashMapWrappedVirtualObject dataBounds = (HashMapWrappedVirtualObject) referencedData.get("boundsMm");
@@ -726,7 +763,8 @@ public class GeometryRunner implements Runnable {
 											// generateGeometryResult);
 											this.streamingGeometryGenerator.setTransformationMatrix(geometryInfo, totalTranformationMatrix);
 
-											geometryInfo.save();
+											this.streamingGeometryGenerator.saveNew(geometryInfo);
+											addToSpatialIndex(ifcProduct, geometryInfo);
 											// totalBytes.addAndGet(size);
 
 											ifcProduct.setReference(this.streamingGeometryGenerator.geometryFeature, geometryInfo.getOid(), 0);
@@ -781,10 +819,103 @@ public class GeometryRunner implements Runnable {
 	private long createBuffer(QueryContext queryContext, byte[] data) throws BimserverDatabaseException {
 		HashMapVirtualObject buffer = new HashMapVirtualObject(queryContext, GeometryPackage.eINSTANCE.getBuffer());
 		buffer.set("data", data);
-		buffer.save();
+		streamingGeometryGenerator.saveNew(buffer);
 		return buffer.getOid();
 	}
 
+	private void saveGeometryData(HashMapVirtualObject geometryData, Map<EStructuralFeature, byte[]> buffers, float[] vertices) throws BimserverDatabaseException {
+		for (Map.Entry<EStructuralFeature, byte[]> entry : buffers.entrySet()) {
+			geometryData.setAttribute(entry.getKey(), createBuffer(queryContext, entry.getValue()));
+		}
+		streamingGeometryGenerator.saveNew(geometryData);
+		streamingGeometryGenerator.cacheGeometryData(geometryData, vertices);
+	}
+
+	/**
+	 * Looks for geometry with the same content that was generated for an earlier revision of this project. The stored buffers and colors are compared with the new
+	 * ones, the digest is only used to find a candidate. When found, the stored GeometryData is cached and will be written again for this revision (with its own
+	 * reuse count, bounds and quantized vertices), its buffers are shared.
+	 * 
+	 * @return The oid of the stored GeometryData, or null when there is none with exactly the same content
+	 */
+	private Long findStoredGeometryData(HashCode digest, Map<EStructuralFeature, byte[]> buffers, HashMapVirtualObject geometryData, float[] vertices) throws BimserverDatabaseException, IOException, QueryException {
+		GeometryContentStore.Entry entry = databaseSession.getGeometryContentStore().get(queryContext.getPid(), digest, databaseSession);
+		if (entry == null || entry.getRid() > queryContext.getRid()) {
+			return null;
+		}
+		HashMapVirtualObject storedData = read(Collections.singleton(entry.getOid())).get(entry.getOid());
+		if (storedData == null || storedData.eClass() != GeometryPackage.eINSTANCE.getGeometryData()) {
+			return null;
+		}
+		Set<Long> bufferOids = new HashSet<>();
+		for (EStructuralFeature feature : COMPARED_BUFFERS) {
+			Long bufferOid = (Long) storedData.eGet(feature);
+			if ((bufferOid == null) != (buffers.get(feature) == null)) {
+				return null;
+			}
+			if (bufferOid != null) {
+				bufferOids.add(bufferOid);
+			}
+		}
+		Map<Long, HashMapVirtualObject> storedBuffers = read(bufferOids);
+		for (EStructuralFeature feature : COMPARED_BUFFERS) {
+			Long bufferOid = (Long) storedData.eGet(feature);
+			if (bufferOid != null) {
+				HashMapVirtualObject storedBuffer = storedBuffers.get(bufferOid);
+				if (storedBuffer == null || !Arrays.equals((byte[]) storedBuffer.get("data"), buffers.get(feature))) {
+					return null;
+				}
+			}
+		}
+		if (!sameColor(storedData.get("color"), geometryData.get("color")) || !sameColor(storedData.get("mostUsedColor"), geometryData.get("mostUsedColor"))) {
+			return null;
+		}
+		storedData.set("reused", 0);
+		storedData.set("boundsMm", geometryData.get("boundsMm"));
+		synchronized (this.streamingGeometryGenerator.hashes) {
+			Long existingOid = this.streamingGeometryGenerator.hashes.get(digest);
+			if (existingOid != null) {
+				// Found by another runner at the same time
+				return existingOid;
+			}
+			// Cached before it is added to the hashes, runners that find it there get it from the generator
+			this.streamingGeometryGenerator.cacheGeometryData(storedData, vertices);
+			this.streamingGeometryGenerator.hashes.put(digest, storedData.getOid());
+		}
+		return storedData.getOid();
+	}
+
+	private boolean sameColor(Object storedColor, Object color) {
+		if (storedColor == null || color == null) {
+			return storedColor == color;
+		}
+		for (String component : new String[] { "x", "y", "z", "w" }) {
+			if (!Objects.equals(((HashMapWrappedVirtualObject) storedColor).eGet(component), ((HashMapWrappedVirtualObject) color).eGet(component))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private Map<Long, HashMapVirtualObject> read(Set<Long> oids) throws BimserverDatabaseException, IOException, QueryException {
+		Map<Long, HashMapVirtualObject> result = new HashMap<>();
+		if (oids.isEmpty()) {
+			return result;
+		}
+		Query query = new Query("Geometry content " + eClass.getName(), this.streamingGeometryGenerator.packageMetaData);
+		QueryPart queryPart = query.createQueryPart();
+		for (long oid : oids) {
+			queryPart.addOid(oid);
+		}
+		QueryObjectProvider queryObjectProvider = new QueryObjectProvider(databaseSession, this.streamingGeometryGenerator.bimServer, query, Collections.singleton(queryContext.getRoid()), this.streamingGeometryGenerator.packageMetaData);
+		HashMapVirtualObject next = queryObjectProvider.next();
+		while (next != null) {
+			result.put(next.getOid(), next);
+			next = queryObjectProvider.next();
+		}
+		return result;
+	}
+
 	private ByteBuffer quantizeColors(byte[] vertex_colors) {
 		ByteBuffer quantizedColors = ByteBuffer.wrap(new byte[vertex_colors.length]);
 		for (int i=0; i<vertex_colors.length; i++) {
@@ -927,6 +1058,15 @@ public class GeometryRunner implements Runnable {
 		return Math.max(Math.max(front, top), side);
 	}
 
+	private void addToSpatialIndex(HashMapVirtualObject ifcProduct, HashMapVirtualObject geometryInfo) throws BimserverDatabaseException {
+		HashMapWrappedVirtualObject boundsMm = (HashMapWrappedVirtualObject) geometryInfo.get("boundsMm");
+		HashMapWrappedVirtualObject min = (HashMapWrappedVirtualObject) boundsMm.get("min");
+		HashMapWrappedVirtualObject max = (HashMapWrappedVirtualObject) boundsMm.get("max");
+		double[] minMm = new double[]{(double) min.get("x"), (double) min.get("y"), (double) min.get("z")};
+		double[] maxMm = new double[]{(double) max.get("x"), (double) max.get("y"), (double) max.get("z")};
+		databaseSession.getSpatialIndex().add(queryContext.getCroid(), ifcProduct.getOid(), minMm, maxMm, (float) geometryInfo.get("density"), databaseSession);
+	}
+
 	private HashMapWrappedVirtualObject createMmBounds(HashMapVirtualObject geometryInfo, HashMapWrappedVirtualObject boundsUntransformed, float toMmFactor) throws BimserverDatabaseException {
 		HashMapWrappedVirtualObject boundsMm = new HashMapWrappedVirtualObject(GeometryPackage.eINSTANCE.getBounds());
 		WrappedVirtualObject minBoundsMm = new HashMapWrappedVirtualObject(GeometryPackage.eINSTANCE.getVector3f());
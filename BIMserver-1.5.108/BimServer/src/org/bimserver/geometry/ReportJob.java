@@ -32,6 +32,7 @@ public class ReportJob {
 	private int trianglesGenerated;
 	private GeometryGenerationReport report;
 	private int debugId = -1;
+	private int estimatedCost;
 	
 	public ReportJob(GeometryGenerationReport report, String mainType, int nrObjects) {
 		this.report = report;
@@ -100,6 +101,17 @@ public class ReportJob {
 		return report;
 	}
 
+	public void setEstimatedCost(int estimatedCost) {
+		this.estimatedCost = estimatedCost;
+	}
+
+	/**
+	 * @return The cost as estimated by the GeometryCostEstimator before the job was run, only meaningful relative to other jobs
+	 */
+	public int getEstimatedCost() {
+		return estimatedCost;
+	}
+
 	public void setDebugFile(int debugId) {
 		this.debugId = debugId;
 	}
@@ -25,8 +25,10 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -34,8 +36,8 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -49,7 +51,9 @@ import org.bimserver.GenericGeometryGenerator;
 import org.bimserver.GeometryGeneratingException;
 import org.bimserver.ProductDef;
 import org.bimserver.database.DatabaseSession;
+import org.bimserver.database.GeometryContentStore;
 import org.bimserver.database.OldQuery;
+import org.bimserver.database.VirtualObjectCache;
 import org.bimserver.database.actions.ProgressListener;
 import org.bimserver.database.queries.QueryObjectProvider;
 import org.bimserver.database.queries.om.Include;
@@ -89,13 +93,19 @@ import org.eclipse.emf.ecore.EStructuralFeature;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
 public class StreamingGeometryGenerator extends GenericGeometryGenerator {
 	static final Logger LOGGER = LoggerFactory.getLogger(StreamingGeometryGenerator.class);
+	private static final HashFunction DIGEST_FUNCTION = Hashing.sha256();
 	
 	final BimServer bimServer;
-	final Map<Integer, Long> hashes = new ConcurrentHashMap<>();
+	final Map<HashCode, Long> hashes = new ConcurrentHashMap<>();
 
-	private EClass productClass;
+	EClass productClass;
 	EStructuralFeature geometryFeature;
 	EStructuralFeature representationFeature;
 	PackageMetaData packageMetaData;
@@ -113,6 +123,9 @@ public class StreamingGeometryGenerator extends GenericGeometryGenerator {
 	private volatile boolean allJobsPushed;
 
 	private int maxObjectsPerFile = 10;
+	// Jobs are closed when their estimated cost reaches this value, products that reach it on their own get a job of their own
+	private static final int MAX_COST_PER_JOB = 40;
+	private static final long SHARED_OBJECT_CACHE_BYTES = 64 * 1024 * 1024;
 	volatile boolean running = true;
 
 	String debugIdentifier;
@@ -133,8 +146,18 @@ public class StreamingGeometryGenerator extends GenericGeometryGenerator {
 	
 	private final Map<Long, Tuple<HashMapVirtualObject, float[]>> geometryDataMap = new ConcurrentHashMap<>();
 
+	// The objects that are part of the geometry of more than one product (mapped representations, placements, styles, profiles etc.) are read only once per generation
+	final VirtualObjectCache sharedObjectCache = new VirtualObjectCache(SHARED_OBJECT_CACHE_BYTES);
+
 	private GeometryGenerationDebugger geometryGenerationDebugger = new GeometryGenerationDebugger();
 
+	private Set<Long> productOids;
+	private float initialMultiplierToMm;
+	private Bounds initialBounds;
+	private Bounds initialBoundsUntransformed;
+	// The oids of the objects saved when only some products are regenerated, so they can be removed again when the result cannot be used
+	private List<Long> savedOids;
+
 	public StreamingGeometryGenerator(final BimServer bimServer, ProgressListener progressListener, Long eoid, GeometryGenerationReport report) {
 		this.bimServer = bimServer;
 		this.progressListener = progressListener;
@@ -142,6 +165,44 @@ public class StreamingGeometryGenerator extends GenericGeometryGenerator {
 		this.report = report;
 	}
 	
+	/**
+	 * Limits the geometry generation to the given products, null (the default) generates geometry for all products
+	 */
+	public void setProductOids(Set<Long> productOids) {
+		this.productOids = productOids;
+		this.savedOids = productOids == null ? null : Collections.synchronizedList(new ArrayList<Long>());
+	}
+
+	/**
+	 * The units and bounds to start from, used when only some of the products are regenerated, so the resulting bounds (and the quantization of the vertices)
+	 * also cover the products of which the geometry is kept. When the units of the model are different nothing is generated, the returned result then has the
+	 * new multiplier.
+	 */
+	public void setInitialBounds(float multiplierToMm, Bounds bounds, Bounds boundsUntransformed) {
+		this.initialMultiplierToMm = multiplierToMm;
+		this.initialBounds = bounds;
+		this.initialBoundsUntransformed = boundsUntransformed;
+	}
+
+	void saveNew(HashMapVirtualObject object) throws BimserverDatabaseException {
+		object.save();
+		if (savedOids != null) {
+			savedOids.add(object.getOid());
+		}
+	}
+
+	/**
+	 * Removes the objects saved by a run for a subset of the products, for when all geometry has to be generated after all
+	 */
+	public void removeGeneratedGeometry(DatabaseSession databaseSession, QueryContext queryContext) throws BimserverDatabaseException {
+		synchronized (savedOids) {
+			for (long oid : savedOids) {
+				databaseSession.removeSaved(oid, queryContext.getPid(), queryContext.getRid());
+			}
+			savedOids.clear();
+		}
+	}
+
 	void updateProgress() {
 		if (allJobsPushed) {
 			if (progressListener != null) {
@@ -158,6 +219,9 @@ public class StreamingGeometryGenerator extends GenericGeometryGenerator {
 	@SuppressWarnings("unchecked")
 	public GenerateGeometryResult generateGeometry(long uoid, final DatabaseSession databaseSession, QueryContext queryContext) throws BimserverDatabaseException, GeometryGeneratingException {
 		GenerateGeometryResult generateGeometryResult = new GenerateGeometryResult();
+		if (initialBounds != null) {
+			generateGeometryResult.extendBounds(initialBounds, initialBoundsUntransformed);
+		}
 		packageMetaData = queryContext.getPackageMetaData();
 		productClass = packageMetaData.getEClass("IfcProduct");
 		geometryFeature = productClass.getEStructuralFeature("geometry");
@@ -190,6 +254,18 @@ public class StreamingGeometryGenerator extends GenericGeometryGenerator {
 		report.setReuseGeometry(reuseGeometry);
 
 		try {
+			// Geometry might be regenerated for an existing revision, in that case the old entries are no longer valid
+			databaseSession.getSpatialIndex().clear(queryContext.getCroid(), databaseSession);
+
+			float multiplierToMm = processUnits(databaseSession, queryContext);
+			generateGeometryResult.setMultiplierToMm(multiplierToMm);
+			if (initialBounds != null && multiplierToMm != initialMultiplierToMm) {
+				// The geometry that would be kept has been generated with other units
+				LOGGER.info("Units changed, no geometry generated");
+				report.setEnd(new GregorianCalendar());
+				return generateGeometryResult;
+			}
+
 			final StreamingSerializerPlugin ifcSerializerPlugin = (StreamingSerializerPlugin) bimServer.getPluginManager().getPlugin(pluginName, true);
 			if (ifcSerializerPlugin == null) {
 				throw new UserException("No IFC serializer found");
@@ -238,7 +314,14 @@ public class StreamingGeometryGenerator extends GenericGeometryGenerator {
 				report.setRenderEngineVersion(engine.getVersion());
 			}
 			
-			ThreadPoolExecutor executor = new ThreadPoolExecutor(maxSimultanousThreads, maxSimultanousThreads, 24, TimeUnit.HOURS, new ArrayBlockingQueue<Runnable>(10000000));
+			// The most expensive jobs are started first, so the last jobs to run are cheap ones and the workers finish at about the same time
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(maxSimultanousThreads, maxSimultanousThreads, 24, TimeUnit.HOURS, new PriorityBlockingQueue<Runnable>(11, new Comparator<Runnable>() {
+				@Override
+				public int compare(Runnable o1, Runnable o2) {
+					return Integer.compare(((GeometryRunner) o2).getEstimatedCost(), ((GeometryRunner) o1).getEstimatedCost());
+				}
+			}));
+			GeometryCostEstimator costEstimator = new GeometryCostEstimator(databaseSession, packageMetaData);
 
 			JsonQueryObjectModelConverter jsonQueryObjectModelConverter = new JsonQueryObjectModelConverter(packageMetaData);
 			String queryNameSpace = "validifc";
@@ -250,15 +333,25 @@ public class StreamingGeometryGenerator extends GenericGeometryGenerator {
 			Include objectPlacement = jsonQueryObjectModelConverter.getDefineFromFile(queryNameSpace + ":ObjectPlacement");
 			
 			Set<EClass> classes = null;
-			if (queryContext.getOidCounters() != null) {
+			Map<EClass, List<Long>> productOidsPerClass = null;
+			if (productOids != null) {
+				productOidsPerClass = new HashMap<>();
+				for (long oid : productOids) {
+					EClass eClass = databaseSession.getEClassForOid(oid);
+					List<Long> list = productOidsPerClass.get(eClass);
+					if (list == null) {
+						list = new ArrayList<>();
+						productOidsPerClass.put(eClass, list);
+					}
+					list.add(oid);
+				}
+				classes = productOidsPerClass.keySet();
+			} else if (queryContext.getOidCounters() != null) {
 				classes = queryContext.getOidCounters().keySet();
 			} else {
 				classes = packageMetaData.getEClasses();
 			}
 
-			float multiplierToMm = processUnits(databaseSession, queryContext);
-			generateGeometryResult.setMultiplierToMm(multiplierToMm);
-			
 			// Phase 1 (mapped item detection) sometimes detects that mapped items have invalid (unsupported) RepresentationIdentifier values, this set keeps track of objects to skip in Phase 2 because of that
 			Set<Long> toSkip = new HashSet<>();
 			
@@ -267,6 +360,11 @@ public class StreamingGeometryGenerator extends GenericGeometryGenerator {
 					Query query2 = new Query(eClass.getName() + "Main query", packageMetaData);
 					QueryPart queryPart2 = query2.createQueryPart();
 					queryPart2.addType(eClass, false);
+					if (productOidsPerClass != null) {
+						for (long oid : productOidsPerClass.get(eClass)) {
+							queryPart2.addOid(oid);
+						}
+					}
 					Include representationInclude = queryPart2.createInclude();
 					representationInclude.addType(eClass, false);
 					representationInclude.addFieldDirect("Representation");
@@ -471,13 +569,20 @@ public class StreamingGeometryGenerator extends GenericGeometryGenerator {
 
 //							queryPart3.addInclude(jsonQueryObjectModelConverter.getDefineFromFile("validifc:IfcMappedItem"));
 							
-							processQuery(databaseSession, queryContext, generateGeometryResult, ifcSerializerPlugin, settings, renderEngineFilter, renderEnginePool, executor, eClass, query, queryPart, true, map, map.size());
+							// Only the master is rendered when the mapped items are optimized
+							int estimatedCost = costEstimator.estimate(masterProductDef.getObject()) * (optimizeMappedItems ? 1 : map.size());
+							processQuery(databaseSession, queryContext, generateGeometryResult, ifcSerializerPlugin, settings, renderEngineFilter, renderEnginePool, executor, eClass, query, queryPart, true, map, map.size(), estimatedCost);
 						}
 					}
 					
 					Query query3 = new Query("Remaining " + eClass.getName(), packageMetaData);
 					QueryPart queryPart3 = query3.createQueryPart();
 					queryPart3.addType(eClass, false);
+					if (productOidsPerClass != null) {
+						for (long oid : productOidsPerClass.get(eClass)) {
+							queryPart3.addOid(oid);
+						}
+					}
 					Include include3 = queryPart3.createInclude();
 					include3.addType(eClass, false);
 					include3.addFieldDirect("Representation");
@@ -494,6 +599,7 @@ public class StreamingGeometryGenerator extends GenericGeometryGenerator {
 					Query query = new Query("Main " + eClass.getName(), packageMetaData);
 					QueryPart queryPart = query.createQueryPart();
 					int written = 0;
+					int jobCost = 0;
 					
 					while (next != null) {
 						if (next.eClass() == eClass && !done.contains(next.getOid()) && !toSkip.contains(next.getOid())) {
@@ -508,13 +614,24 @@ public class StreamingGeometryGenerator extends GenericGeometryGenerator {
 											list = representation.getDirectListFeature(packageMetaData.getEReference("IfcProductRepresentation", "Representations"));
 											boolean goForIt2 = goForIt(list);
 											if (goForIt2) {
-												queryPart.addOid(next.getOid());
-												written++;
-												if (written >= maxObjectsPerFile) {
-													processQuery(databaseSession, queryContext, generateGeometryResult, ifcSerializerPlugin, settings, renderEngineFilter, renderEnginePool, executor, eClass, query, queryPart, false, null, written);
-													query = new Query("Main " + eClass.getName(), packageMetaData);
-													queryPart = query.createQueryPart();
-													written = 0;
+												int cost = costEstimator.estimate(next);
+												if (cost >= MAX_COST_PER_JOB) {
+													// Expensive products get a job of their own, so they cannot hold up the cheap products that would otherwise share their job
+													Query singleQuery = new Query("Main " + eClass.getName(), packageMetaData);
+													QueryPart singleQueryPart = singleQuery.createQueryPart();
+													singleQueryPart.addOid(next.getOid());
+													processQuery(databaseSession, queryContext, generateGeometryResult, ifcSerializerPlugin, settings, renderEngineFilter, renderEnginePool, executor, eClass, singleQuery, singleQueryPart, false, null, 1, cost);
+												} else {
+													queryPart.addOid(next.getOid());
+													written++;
+													jobCost += cost;
+													if (written >= maxObjectsPerFile || jobCost >= MAX_COST_PER_JOB) {
+														processQuery(databaseSession, queryContext, generateGeometryResult, ifcSerializerPlugin, settings, renderEngineFilter, renderEnginePool, executor, eClass, query, queryPart, false, null, written, jobCost);
+														query = new Query("Main " + eClass.getName(), packageMetaData);
+														queryPart = query.createQueryPart();
+														written = 0;
+														jobCost = 0;
+													}
 												}
 											}
 										}
@@ -525,7 +642,7 @@ public class StreamingGeometryGenerator extends GenericGeometryGenerator {
 						next = queryObjectProvider2.next();
 					}
 					if (written > 0) {
-						processQuery(databaseSession, queryContext, generateGeometryResult, ifcSerializerPlugin, settings, renderEngineFilter, renderEnginePool, executor, eClass, query, queryPart, false, null, written);
+						processQuery(databaseSession, queryContext, generateGeometryResult, ifcSerializerPlugin, settings, renderEngineFilter, renderEnginePool, executor, eClass, query, queryPart, false, null, written, jobCost);
 					}
 				}
 			}
@@ -550,7 +667,7 @@ public class StreamingGeometryGenerator extends GenericGeometryGenerator {
 				buffer.set("data", quantizeVertices(tuple.getB(), quantizationMatrix, multiplierToMm).array());
 //				buffer.setData(quantizeVertices(tuple.getB(), quantizationMatrix, multiplierToMm).array());
 //				databaseSession.store(buffer);
-				buffer.save();
+				saveNew(buffer);
 				HashMapVirtualObject geometryData = tuple.getA();
 				geometryData.set("verticesQuantized", buffer.getOid());
 				int reused = (int) geometryData.eGet(GeometryPackage.eINSTANCE.getGeometryData_Reused());
@@ -566,6 +683,8 @@ public class StreamingGeometryGenerator extends GenericGeometryGenerator {
 			long end = System.nanoTime();
 			long total = totalBytes.get() - (bytesSavedByHash.get() + bytesSavedByTransformation.get() + bytesSavedByMapping.get());
 			LOGGER.info("Rendertime: " + Formatters.nanosToString(end - start) + ", " + "Reused (by hash): " + Formatters.bytesToString(bytesSavedByHash.get()) + ", Reused (by transformation): " + Formatters.bytesToString(bytesSavedByTransformation.get()) + ", Reused (by mapping): " + Formatters.bytesToString(bytesSavedByMapping.get()) + ", Total: " + Formatters.bytesToString(totalBytes.get()) + ", Final: " + Formatters.bytesToString(total));
+			LOGGER.debug("Shared objects: " + sharedObjectCache);
+			sharedObjectCache.clear();
 			String dump = geometryGenerationDebugger.dump();
 			if (dump != null) {
 				LOGGER.info(dump);
@@ -791,7 +910,7 @@ public class StreamingGeometryGenerator extends GenericGeometryGenerator {
 	}
 
 	private void processQuery(final DatabaseSession databaseSession, QueryContext queryContext, GenerateGeometryResult generateGeometryResult, final StreamingSerializerPlugin ifcSerializerPlugin, final RenderEngineSettings settings,
-			final RenderEngineFilter renderEngineFilter, RenderEnginePool renderEnginePool, ThreadPoolExecutor executor, EClass eClass, Query query, QueryPart queryPart, boolean geometryReused, Map<Long, ProductDef> map, int nrObjects) throws QueryException, IOException {
+			final RenderEngineFilter renderEngineFilter, RenderEnginePool renderEnginePool, ThreadPoolExecutor executor, EClass eClass, Query query, QueryPart queryPart, boolean geometryReused, Map<Long, ProductDef> map, int nrObjects, int estimatedCost) throws QueryException, IOException {
 		JsonQueryObjectModelConverter jsonQueryObjectModelConverter = new JsonQueryObjectModelConverter(packageMetaData);
 		
 		String queryNameSpace = "validifc";
@@ -848,8 +967,9 @@ public class StreamingGeometryGenerator extends GenericGeometryGenerator {
 		QueryObjectProvider queryObjectProvider = new QueryObjectProvider(databaseSession, bimServer, query, Collections.singleton(queryContext.getRoid()), packageMetaData);
 		
 		ReportJob job = report.newJob(eClass.getName(), nrObjects);
+		job.setEstimatedCost(estimatedCost);
 		GeometryRunner runner = new GeometryRunner(this, eClass, renderEnginePool, databaseSession, settings, queryObjectProvider, ifcSerializerPlugin, renderEngineFilter, generateGeometryResult, queryContext, query, geometryReused, map, job, reuseGeometry, geometryGenerationDebugger );
-		executor.submit(runner);
+		executor.execute(runner);
 		jobsTotal.incrementAndGet();
 	}
 
@@ -897,7 +1017,7 @@ public class StreamingGeometryGenerator extends GenericGeometryGenerator {
 		
 		ReportJob job = report.newJob(eClass.getName(), nrObjects);
 		GeometryRunner runner = new GeometryRunner(this, eClass, renderEnginePool, databaseSession, settings, queryObjectProvider, ifcSerializerPlugin, renderEngineFilter, generateGeometryResult, queryContext, query, geometryReused, map, job, reuseGeometry, geometryGenerationDebugger );
-		executor.submit(runner);
+		executor.execute(runner);
 		jobsTotal.incrementAndGet();
 	}
 	
@@ -950,15 +1070,17 @@ public class StreamingGeometryGenerator extends GenericGeometryGenerator {
 		return size;
 	}
 
-	// TODO add color??
-	int hash(int[] indices, float[] vertices, float[] normals, byte[] colors) {
-		int hashCode =0;
-		hashCode += Arrays.hashCode(indices);
-		hashCode += Arrays.hashCode(vertices);
-		hashCode += Arrays.hashCode(normals);
-		hashCode += Arrays.hashCode(colors);
-		
-		return hashCode;
+	/**
+	 * 128 bits of the SHA-256 of the given buffers, used to find geometry with the same content in this generation run and in earlier revisions
+	 */
+	HashCode digest(byte[] indices, byte[] vertices, byte[] normals, byte[] colors) {
+		Hasher hasher = DIGEST_FUNCTION.newHasher();
+		for (byte[] buffer : new byte[][] { indices, vertices, normals, colors }) {
+			// The lengths make sure the same bytes split differently over the buffers give a different digest
+			hasher.putInt(buffer.length);
+			hasher.putBytes(buffer);
+		}
+		return HashCode.fromBytes(Arrays.copyOf(hasher.hash().asBytes(), GeometryContentStore.DIGEST_LENGTH));
 	}
 	
 	int hash(VirtualObject geometryData) {
@@ -1056,4 +1178,13 @@ public class StreamingGeometryGenerator extends GenericGeometryGenerator {
 	public void cacheGeometryData(HashMapVirtualObject geometryData, float[] vertices) {
 		geometryDataMap.put(geometryData.getOid(), new Tuple<>(geometryData, vertices));
 	}
+
+	/**
+	 * @return The GeometryData generated or reused in this generation, null when there is none with the given oid. The same instance is returned to all runners, so
+	 *         reuse counts can be updated on it until the data is quantized at the end of the generation
+	 */
+	public HashMapVirtualObject getCachedGeometryData(long oid) {
+		Tuple<HashMapVirtualObject, float[]> tuple = geometryDataMap.get(oid);
+		return tuple == null ? null : tuple.getA();
+	}
 }
\ No newline at end of file
@@ -33,8 +33,9 @@ import org.bimserver.cache.FileInputStreamDataSource;
 import org.bimserver.cache.NewDiskCacheOutputStream;
 import org.bimserver.database.DatabaseSession;
 import org.bimserver.database.OldQuery;
+import org.bimserver.database.queries.ParallelQueryObjectProvider;
 import org.bimserver.database.queries.QueryObjectProvider;
-import org.bimserver.database.queries.om.JsonQueryObjectModelConverter;
+import org.bimserver.database.queries.RunningQuery;
 import org.bimserver.database.queries.om.Query;
 import org.bimserver.database.queries.om.QueryPart;
 import org.bimserver.emf.PackageMetaData;
@@ -74,6 +75,9 @@ public class LongStreamingDownloadAction extends LongAction<StreamingDownloadKey
 	private SCheckoutResult checkoutResult = new SCheckoutResult();
 	private DownloadDescriptor downloadDescriptor;
 	private Path cacheFile;
+	private ObjectProvider objectProvider;
+	private RunningQuery runningQuery;
+	private boolean completenessChecked;
 
 	public LongStreamingDownloadAction(BimServer bimServer, String username, String userUsername, Authorization authorization, Long serializerOid, String jsonQuery, Set<Long> roids) {
 		super(bimServer, username, userUsername, authorization);
@@ -115,14 +119,16 @@ public class LongStreamingDownloadAction extends LongAction<StreamingDownloadKey
 			} else {
 				Plugin plugin = getBimServer().getPluginManager().getPlugin(serializerPluginConfiguration.getPluginDescriptor().getPluginClassName(), true);
 				
-				JsonQueryObjectModelConverter converter = new JsonQueryObjectModelConverter(packageMetaData);
 				ObjectNode queryObject = OBJECT_MAPPER.readValue(jsonQuery, ObjectNode.class);
-				Query query = converter.parseJson("query", (ObjectNode) queryObject);
+				Query query = getBimServer().getJsonQueryCache().get(packageMetaData, "query", queryObject);
 				
 				downloadDescriptor = new DownloadDescriptor(packageMetaData, jsonQuery, roids, query, serializerOid, this.filename);
 				
 				if (getBimServer().getNewDiskCacheManager().contains(downloadDescriptor)) {
+					// Can still be null when the entry has been evicted or invalidated in the meantime
 					cacheFile = getBimServer().getNewDiskCacheManager().get(downloadDescriptor);
+				}
+				if (cacheFile != null) {
 					FileInputStreamDataSource fileInputStreamDataSource = new FileInputStreamDataSource(cacheFile);
 					fileInputStreamDataSource.setName(downloadDescriptor.getFileNameWithoutExtension());
 					checkoutResult.setFile(new DataHandler(fileInputStreamDataSource));
@@ -145,6 +151,7 @@ public class LongStreamingDownloadAction extends LongAction<StreamingDownloadKey
 				} else {
 					if (query.isDoubleBuffer()) {
 						Query newQuery = new Query(packageMetaData);
+						newQuery.setBudget(query.getBudget());
 						QueryPart newQueryPart = newQuery.createQueryPart();
 						QueryObjectProvider queryObjectProvider = new QueryObjectProvider(databaseSession, getBimServer(), query, roids, packageMetaData);
 						HashMapVirtualObject next = queryObjectProvider.next();
@@ -155,7 +162,17 @@ public class LongStreamingDownloadAction extends LongAction<StreamingDownloadKey
 						query = newQuery;
 					}
 					// TODO passing a databasesession here, make sure it will be closed!!
-					QueryObjectProvider queryObjectProvider = new QueryObjectProvider(databaseSession, getBimServer(), query, roids, packageMetaData);
+					ObjectProvider queryObjectProvider;
+					if (query.isParallel()) {
+						ParallelQueryObjectProvider parallelQueryObjectProvider = new ParallelQueryObjectProvider(databaseSession, getBimServer(), query, roids, packageMetaData);
+						runningQuery = parallelQueryObjectProvider.getRunningQuery();
+						queryObjectProvider = parallelQueryObjectProvider;
+					} else {
+						QueryObjectProvider singleQueryObjectProvider = new QueryObjectProvider(databaseSession, getBimServer(), query, roids, packageMetaData);
+						runningQuery = singleQueryObjectProvider.getRunningQuery();
+						queryObjectProvider = singleQueryObjectProvider;
+					}
+					objectProvider = queryObjectProvider;
 					if (plugin instanceof MessagingStreamingSerializerPlugin) {
 						MessagingStreamingSerializerPlugin serializerPlugin = (MessagingStreamingSerializerPlugin)plugin;
 						messagingStreamingSerializer = serializerPlugin.createSerializer(pluginConfiguration);
@@ -207,6 +224,8 @@ public class LongStreamingDownloadAction extends LongAction<StreamingDownloadKey
 			if (getBimServer().getNewDiskCacheManager().isEnabled()) {
 				if (getBimServer().getNewDiskCacheManager().contains(downloadDescriptor)) {
 					cacheFile = getBimServer().getNewDiskCacheManager().get(downloadDescriptor);
+				}
+				if (cacheFile != null) {
 					FileInputStreamDataSource fileInputStreamDataSource = new FileInputStreamDataSource(cacheFile);
 					fileInputStreamDataSource.setName(downloadDescriptor.getFileNameWithoutExtension());
 					checkoutResult.setFile(new DataHandler(fileInputStreamDataSource));
@@ -216,6 +235,8 @@ public class LongStreamingDownloadAction extends LongAction<StreamingDownloadKey
 						CacheStoringStreamingSerializerDataSource cacheStoringEmfSerializerDataSource = new CacheStoringStreamingSerializerDataSource(serializer, diskCacheOutputStream, new DoneListener() {
 							@Override
 							public void done() {
+								checkComplete();
+								closeObjectProvider();
 								changeActionState(ActionState.FINISHED, "Done", 100);
 							}
 						}); 
@@ -228,6 +249,8 @@ public class LongStreamingDownloadAction extends LongAction<StreamingDownloadKey
 				StreamingSerializerDataSource streamingSerializerDataSource = new StreamingSerializerDataSource(filename, serializer, new DoneListener() {
 					@Override
 					public void done() {
+						checkComplete();
+						closeObjectProvider();
 						changeActionState(ActionState.FINISHED, "Done", 100);
 					}
 				});
@@ -239,8 +262,12 @@ public class LongStreamingDownloadAction extends LongAction<StreamingDownloadKey
 
 	public Writer getMessagingStreamingSerializer() {
 		if (getBimServer().getNewDiskCacheManager().isEnabled()) {
+			Path file = null;
 			if (getBimServer().getNewDiskCacheManager().contains(downloadDescriptor)) {
-				FileCacheReadingWriter fileCacheReadingWriter = new FileCacheReadingWriter(getBimServer().getNewDiskCacheManager().get(downloadDescriptor));
+				file = getBimServer().getNewDiskCacheManager().get(downloadDescriptor);
+			}
+			if (file != null) {
+				FileCacheReadingWriter fileCacheReadingWriter = new FileCacheReadingWriter(file);
 				fileCacheReadingWriter.setName(downloadDescriptor.getFileNameWithoutExtension());
 				return fileCacheReadingWriter;
 			} else {
@@ -249,4 +276,63 @@ public class LongStreamingDownloadAction extends LongAction<StreamingDownloadKey
 		}
 		return messagingStreamingSerializer;
 	}
+
+	/**
+	 * @return The registration of the query with the QueryManager, null when the result comes from the cache or the query has no budget
+	 */
+	public RunningQuery getRunningQuery() {
+		return runningQuery;
+	}
+
+	/**
+	 * @return null when all results of the query have been serialized, otherwise the reason the results are incomplete
+	 */
+	public String getIncompleteReason() {
+		return objectProvider == null ? null : objectProvider.getIncompleteReason();
+	}
+
+	/**
+	 * Stops the shards of a parallel query that are still running, they would otherwise keep waiting for the results to be read
+	 */
+	private void closeObjectProvider() {
+		if (objectProvider instanceof ParallelQueryObjectProvider) {
+			((ParallelQueryObjectProvider) objectProvider).close();
+		}
+	}
+
+	@Override
+	public void error(Throwable error) {
+		closeObjectProvider();
+		super.error(error);
+	}
+
+	@Override
+	public void terminate() {
+		closeObjectProvider();
+		super.terminate();
+	}
+
+	@Override
+	public void stop() {
+		// Also called when an action that was never read is cleaned up
+		closeObjectProvider();
+		super.stop();
+	}
+
+	/**
+	 * Has to be called when all results have been serialized, before the cache file is closed. Incomplete results are reported as a warning and are not kept in the cache
+	 */
+	public synchronized void checkComplete() {
+		if (completenessChecked) {
+			return;
+		}
+		completenessChecked = true;
+		String incompleteReason = getIncompleteReason();
+		if (incompleteReason != null) {
+			warning("Incomplete result: " + incompleteReason);
+			if (downloadDescriptor != null) {
+				getBimServer().getNewDiskCacheManager().discard(downloadDescriptor);
+			}
+		}
+	}
 }
\ No newline at end of file
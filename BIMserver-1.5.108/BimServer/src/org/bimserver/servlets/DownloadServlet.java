@@ -35,9 +35,12 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.io.IOUtils;
 import org.bimserver.BimServer;
+import org.bimserver.database.queries.RunningQuery;
 import org.bimserver.interfaces.objects.SDownloadResult;
 import org.bimserver.interfaces.objects.SExtendedData;
 import org.bimserver.interfaces.objects.SFile;
+import org.bimserver.longaction.LongAction;
+import org.bimserver.longaction.LongStreamingDownloadAction;
 import org.bimserver.models.log.AccessMethod;
 import org.bimserver.models.store.ActionState;
 import org.bimserver.models.store.LongActionState;
@@ -220,6 +223,16 @@ public class DownloadServlet extends SubServlet {
 						}
 					};
 
+					OutputStream resultOutputStream = outputStream;
+					LongAction<?> longAction = getBimServer().getLongActionManager().getLongAction(topicId);
+					if (longAction instanceof LongStreamingDownloadAction) {
+						RunningQuery runningQuery = ((LongStreamingDownloadAction) longAction).getRunningQuery();
+						if (runningQuery != null) {
+							// The written bytes count towards the maxBytes limit of the query budget
+							resultOutputStream = runningQuery.countBytes(outputStream);
+						}
+					}
+
 					try {
 						if (zip) {
 							if (pluginConfiguration.getString("ZipExtension") != null) {
@@ -230,7 +243,7 @@ public class DownloadServlet extends SubServlet {
 							response.setContentType("application/zip");
 
 							String nameInZip = dataSource.getName() + "." + pluginConfiguration.getString(SerializerPlugin.EXTENSION);
-							ZipOutputStream zipOutputStream = new ZipOutputStream(outputStream);
+							ZipOutputStream zipOutputStream = new ZipOutputStream(resultOutputStream);
 							zipOutputStream.putNextEntry(new ZipEntry(nameInZip));
 							
 							processDataSource(zipOutputStream, dataSource, progressReporter);
@@ -246,7 +259,7 @@ public class DownloadServlet extends SubServlet {
 							} else {
 								response.setContentType(request.getParameter("mime"));
 							}
-							processDataSource(outputStream, dataSource, progressReporter);
+							processDataSource(resultOutputStream, dataSource, progressReporter);
 						}
 					} catch (SerializerException s) {
 						if (s.getCause() != null && s.getCause() instanceof IOException) {
@@ -26,6 +26,7 @@ import java.nio.ByteBuffer;
 import java.util.GregorianCalendar;
 
 import org.bimserver.BimServer;
+import org.bimserver.database.queries.RunningQuery;
 import org.bimserver.endpoints.EndPoint;
 import org.bimserver.longaction.LongAction;
 import org.bimserver.longaction.LongDownloadOrCheckoutAction;
@@ -84,10 +85,11 @@ public class Streamer implements EndPoint {
 				bimServer.getExecutorService().execute(new Runnable() {
 					public void run() {
 						Writer writer = null;
+						LongStreamingDownloadAction longStreamingDownloadAction = null;
 						try {
 							LongAction<?> longAction = bimServer.getLongActionManager().getLongAction(topicId);
 							if (longAction instanceof LongStreamingDownloadAction) {
-								LongStreamingDownloadAction longStreamingDownloadAction = (LongStreamingDownloadAction)longAction;
+								longStreamingDownloadAction = (LongStreamingDownloadAction)longAction;
 								writer = longStreamingDownloadAction.getMessagingStreamingSerializer();
 							} else {
 								LongDownloadOrCheckoutAction longDownloadAction = (LongDownloadOrCheckoutAction) longAction;
@@ -112,6 +114,8 @@ public class Streamer implements EndPoint {
 //							streamingSocketInterface.enableBatching();
 							int bytes = 0;
 							long start = System.nanoTime();
+							// Only set when the query has a budget, the bytes sent count towards the maxBytes limit
+							RunningQuery runningQuery = longStreamingDownloadAction == null ? null : longStreamingDownloadAction.getRunningQuery();
 
 //							for (int i=0; i<100; i++) {
 //								byteArrayOutputStream.reset();
@@ -137,10 +141,25 @@ public class Streamer implements EndPoint {
 									bytes += newBuffer.capacity() + 8;
 									newBuffer.put(growingByteBuffer.array(), 0, growingByteBuffer.usedSize());
 									streamingSocketInterface.send(newBuffer.array(), 0, newBuffer.capacity());
+									if (runningQuery != null) {
+										runningQuery.addBytes(newBuffer.capacity());
+									}
 									byteArrayOutputStream.reset();
 									byteArrayOutputStream.writeLongUnchecked(topicId);
 								}
 							} while (writeMessage);
+							if (longStreamingDownloadAction != null) {
+								// Before closing the writer, so an incomplete result does not end up in the cache
+								longStreamingDownloadAction.checkComplete();
+								String incompleteReason = longStreamingDownloadAction.getIncompleteReason();
+								if (incompleteReason != null) {
+									JsonObject incompleteMessage = new JsonObject();
+									incompleteMessage.addProperty("topicId", topicId);
+									incompleteMessage.addProperty("incomplete", true);
+									incompleteMessage.addProperty("reason", incompleteReason);
+									streamingSocketInterface.send(incompleteMessage);
+								}
+							}
 //							streamingSocketInterface.flush();
 							long end = System.nanoTime();
 //							LOGGER.info(messagesSent + " messages written " + Formatters.bytesToString(bytes) + " in " + ((end - start) / 1000000) + " ms");
@@ -44,6 +44,7 @@ import org.bimserver.database.actions.AddUserDatabaseAction;
 import org.bimserver.database.actions.BimDatabaseAction;
 import org.bimserver.database.actions.GetDatabaseInformationAction;
 import org.bimserver.database.actions.GetLogsDatabaseAction;
+import org.bimserver.database.actions.PurgeProjectDatabaseAction;
 import org.bimserver.database.migrations.Migrator;
 import org.bimserver.emf.IfcModelInterface;
 import org.bimserver.emf.PackageMetaData;
@@ -94,6 +95,46 @@ public class AdminServiceImpl extends GenericServiceImpl implements AdminInterfa
 		return getBimServer().getNewDiskCacheManager().cleanup();
 	}
 
+	@Override
+	public String getRunningQueries() throws UserException {
+		requireAdminAuthenticationAndRunningServer();
+		return getBimServer().getQueryManager().toJson().toString();
+	}
+
+	@Override
+	public Boolean cancelQuery(Long queryId) throws UserException {
+		requireAdminAuthenticationAndRunningServer();
+		return getBimServer().getQueryManager().cancel(queryId);
+	}
+
+	@Override
+	public Boolean refreshReplica() throws ServerException, UserException {
+		requireAdminAuthenticationAndRunningServer();
+		if (!getBimServer().isReadOnly()) {
+			throw new UserException("This server is not a read-only replica");
+		}
+		try {
+			return getBimServer().refreshReplica();
+		} catch (BimserverDatabaseException e) {
+			return handleException(e);
+		}
+	}
+
+	@Override
+	public void purgeProject(Long poid) throws ServerException, UserException {
+		requireAdminAuthenticationAndRunningServer();
+		requireWritableServer();
+		DatabaseSession session = getBimServer().getDatabase().createSession();
+		try {
+			BimDatabaseAction<Void> action = new PurgeProjectDatabaseAction(getBimServer(), session, getInternalAccessMethod(), poid, getAuthorization());
+			session.executeAndCommitAction(action);
+		} catch (Exception e) {
+			handleException(e);
+		} finally {
+			session.close();
+		}
+	}
+
 	@Override
 	public SSystemInfo getSystemInfo() {
 		SSystemInfo systemInfo = new SSystemInfo();
@@ -317,7 +358,7 @@ public class AdminServiceImpl extends GenericServiceImpl implements AdminInterfa
 		requireAdminAuthenticationAndRunningServer();
 		DatabaseSession session = getBimServer().getDatabase().createSession();
 		try {
-			BimDatabaseAction<DatabaseInformation> action = new GetDatabaseInformationAction(session, getInternalAccessMethod());
+			BimDatabaseAction<DatabaseInformation> action = new GetDatabaseInformationAction(getBimServer(), session, getInternalAccessMethod());
 			return getBimServer().getSConverter().convertToSObject(session.executeAndCommitAction(action));
 		} catch (Exception e) {
 			return handleException(e);
@@ -343,6 +384,7 @@ public class AdminServiceImpl extends GenericServiceImpl implements AdminInterfa
 	
 	@Override
 	public void regenerateGeometry(Long croid) throws ServerException, UserException {
+		requireWritableServer();
 		LOGGER.info("Regenerating geometry for concrete revision" + croid);
 		DatabaseSession session = getBimServer().getDatabase().createSession();
 		try {
@@ -65,6 +65,12 @@ public class GenericServiceImpl {
 		}
 	}
 
+	protected void requireWritableServer() throws UserException {
+		if (serviceMap.getBimServer().isReadOnly()) {
+			throw new UserException("This server is a read-only replica, changes can only be made on the primary server");
+		}
+	}
+
 	protected void requireAuthentication() throws UserException {
 		if (serviceMap.getAuthorization() == null) {
 			throw new UserException("Authentication required for this call");
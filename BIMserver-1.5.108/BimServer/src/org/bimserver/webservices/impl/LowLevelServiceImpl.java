@@ -70,6 +70,7 @@ public class LowLevelServiceImpl extends GenericServiceImpl implements LowLevelI
 	@Override
 	public Long startTransaction(Long poid) throws UserException, ServerException {
 		requireAuthenticationAndRunningServer();
+		requireWritableServer();
 		DatabaseSession session = getBimServer().getDatabase().createSession();
 		int pid = -1;
 		int rid = -1;
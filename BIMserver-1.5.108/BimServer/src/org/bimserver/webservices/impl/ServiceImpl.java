@@ -134,6 +134,7 @@ import org.bimserver.database.actions.GetTopLevelProjectByNameDatabaseAction;
 import org.bimserver.database.actions.GetUserByUoidDatabaseAction;
 import org.bimserver.database.actions.GetUserByUserNameDatabaseAction;
 import org.bimserver.database.actions.GetVolumeDatabaseAction;
+import org.bimserver.database.actions.ProfileQueryDatabaseAction;
 import org.bimserver.database.actions.RegenerateGeometryDatabaseAction;
 import org.bimserver.database.actions.RemoveModelCheckerFromProjectDatabaseAction;
 import org.bimserver.database.actions.RemoveNewServiceFromProjectDatabaseAction;
@@ -457,6 +458,22 @@ public class ServiceImpl extends GenericServiceImpl implements ServiceInterface
 		}
 	}
 
+	@Override
+	public String profileQuery(Set<Long> roids, String jsonQuery) throws ServerException, UserException {
+		requireAuthenticationAndRunningServer();
+		for (long roid : roids) {
+			getAuthorization().canDownload(roid);
+		}
+		DatabaseSession session = getBimServer().getDatabase().createSession();
+		try {
+			return session.executeAndCommitAction(new ProfileQueryDatabaseAction(getBimServer(), session, getInternalAccessMethod(), roids, jsonQuery));
+		} catch (Exception e) {
+			return handleException(e);
+		} finally {
+			session.close();
+		}
+	}
+
 	@Override
 	public SSerializerPluginConfiguration getSerializerByName(String serializerName) throws ServerException, UserException {
 		requireAuthentication();
@@ -992,6 +1009,7 @@ public class ServiceImpl extends GenericServiceImpl implements ServiceInterface
 	@Override
 	public Long initiateCheckin(Long poid, Long deserializerOid) throws ServerException, UserException {
 		requireAuthenticationAndRunningServer();
+		requireWritableServer();
 		
 		ProgressOnProjectTopic progressTopic = getBimServer().getNotificationsManager().createProgressOnProjectTopic(getAuthorization().getUoid(), poid, SProgressTopicType.UPLOAD, "Checkin");
 		long topicId = progressTopic.getKey().getId();
@@ -1044,6 +1062,7 @@ public class ServiceImpl extends GenericServiceImpl implements ServiceInterface
 
 	public Long checkinInitiatedInternal(Long topicId, final Long poid, final String comment, Long deserializerOid, Long fileSize, String fileName, DataHandler dataHandler, Boolean merge, Boolean sync, long newServiceId) throws ServerException, UserException {
 		requireAuthenticationAndRunningServer();
+		requireWritableServer();
 		final DatabaseSession session = getBimServer().getDatabase().createSession();
 		String username = "Unknown";
 		String userUsername = "Unknown";
@@ -1173,6 +1192,7 @@ public class ServiceImpl extends GenericServiceImpl implements ServiceInterface
 	@Override
 	public Long checkinFromUrl(Long poid, String comment, Long deserializerOid, String fileName, String urlString, Boolean merge, Boolean sync) throws ServerException, UserException {
 		requireAuthenticationAndRunningServer();
+		requireWritableServer();
 		final DatabaseSession session = getBimServer().getDatabase().createSession();
 		String username = "Unknown";
 		String userUsername = "Unknown";
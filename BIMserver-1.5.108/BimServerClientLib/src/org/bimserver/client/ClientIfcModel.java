@@ -78,6 +78,8 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.base.Joiner;
 import com.google.common.io.LittleEndianDataInputStream;
 
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+
 public class ClientIfcModel extends IfcModel {
 	public enum ModelState {
 		NONE, LOADING, FULLY_LOADED
@@ -322,7 +324,8 @@ public class ClientIfcModel extends IfcModel {
 			Query query = new Query("test", getPackageMetaData());
 			QueryPart queryPart = query.createQueryPart();
 
-			Map<Long, Long> geometryInfoOidToOid = new HashMap<>();
+			Long2LongOpenHashMap geometryInfoOidToOid = new Long2LongOpenHashMap();
+			geometryInfoOidToOid.defaultReturnValue(-1);
 
 			EClass ifcProductClass = getPackageMetaData().getEClass("IfcProduct");
 			EStructuralFeature geometryFeature = ifcProductClass.getEStructuralFeature("geometry");
@@ -387,7 +390,7 @@ public class ClientIfcModel extends IfcModel {
 		}
 	}
 
-	private void processGeometryInputStream(InputStream inputStream, Map<Long, Long> geometryInfoOidToOid) throws IOException, GeometryException, IfcModelInterfaceException {
+	private void processGeometryInputStream(InputStream inputStream, Long2LongOpenHashMap geometryInfoOidToOid) throws IOException, GeometryException, IfcModelInterfaceException {
 		try (LittleEndianDataInputStream dataInputStream = new LittleEndianDataInputStream(inputStream)) {
 			boolean done = false;
 			while (!done) {
@@ -421,8 +424,8 @@ public class ClientIfcModel extends IfcModel {
 					((IdEObjectImpl)geometryInfo).setLoadingState(State.LOADING);
 					add(geometryInfoOid, geometryInfo);
 
-					Long ifcProductOid = geometryInfoOidToOid.get(geometryInfoOid);
-					if (ifcProductOid == null) {
+					long ifcProductOid = geometryInfoOidToOid.get(geometryInfoOid);
+					if (ifcProductOid == -1) {
 						throw new GeometryException("Missing geometry info id: " + geometryInfoOid);
 					}
 					IdEObject ifcProduct = get(ifcProductOid);
@@ -57,6 +57,8 @@ public class JarBimServer {
 		String address = "127.0.0.1";
 		String port = "8082";
 		String homedir = "home";
+		String databasedir = null;
+		boolean readOnly = false;
 		for (String arg : args) {
 			if (arg.startsWith("address=")) {
 				address = arg.substring(8);
@@ -73,10 +75,17 @@ public class JarBimServer {
 				if (homedir.startsWith("\"") && homedir.endsWith("\"")) {
 					homedir = homedir.substring(1, homedir.length() - 1);
 				}
+			} else if (arg.startsWith("databasedir=")) {
+				databasedir = arg.substring(12);
+				if (databasedir.startsWith("\"") && databasedir.endsWith("\"")) {
+					databasedir = databasedir.substring(1, databasedir.length() - 1);
+				}
+			} else if (arg.startsWith("readonly=")) {
+				readOnly = Boolean.parseBoolean(arg.substring(9));
 			}
 		}
 		final JarBimServer server = new JarBimServer();
-		server.start(address, Integer.parseInt(port), homedir, "www");
+		server.start(address, Integer.parseInt(port), homedir, "www", databasedir, readOnly);
 	}
 
 	public void stop() {
@@ -131,6 +140,14 @@ public class JarBimServer {
 	}
 
 	public void start(String address, int port, String homedir, String resourceBase) {
+		start(address, port, homedir, resourceBase, null, false);
+	}
+
+	/**
+	 * @param databasedir The database directory, null for the "database" directory in the home dir
+	 * @param readOnly Start as a read-only replica of the database in databasedir, which can be in use by another server
+	 */
+	public void start(String address, int port, String homedir, String resourceBase, String databasedir, boolean readOnly) {
 		// Strange hack needed for OSX
 		if (homedir.startsWith("\"") && homedir.endsWith("\"")) {
 			homedir = homedir.substring(1, homedir.length()-2);
@@ -143,6 +160,10 @@ public class JarBimServer {
 		bimServerConfig.setEnvironment(Environment.JAR);
 		bimServerConfig.setPort(port);
 		bimServerConfig.setClassPath(System.getProperty("java.class.path"));
+		if (databasedir != null) {
+			bimServerConfig.setDatabaseDir(Paths.get(databasedir));
+		}
+		bimServerConfig.setReadOnly(readOnly);
 		bimServer = new BimServer(bimServerConfig);
 		
 		try {
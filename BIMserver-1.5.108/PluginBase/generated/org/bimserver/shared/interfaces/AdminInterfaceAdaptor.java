@@ -21,6 +21,10 @@ import org.bimserver.shared.exceptions.ServerException;
 
 public class AdminInterfaceAdaptor implements org.bimserver.shared.interfaces.AdminInterface {
 
+	public java.lang.Boolean cancelQuery(java.lang.Long queryId) throws UserException, ServerException {
+		return null;
+	}
+	
 	public java.lang.Integer clearOutputFileCache() throws UserException, ServerException {
 		return null;
 	}
@@ -71,6 +75,10 @@ public class AdminInterfaceAdaptor implements org.bimserver.shared.interfaces.Ad
 		return null;
 	}
 	
+	public java.lang.String getRunningQueries() throws UserException, ServerException {
+		return null;
+	}
+	
 	public org.bimserver.interfaces.objects.SServerInfo getServerInfo() throws UserException, ServerException {
 		return null;
 	}
@@ -94,6 +102,13 @@ public class AdminInterfaceAdaptor implements org.bimserver.shared.interfaces.Ad
 	public void migrateDatabase() throws UserException, ServerException {
 	}
 	
+	public void purgeProject(java.lang.Long poid) throws UserException, ServerException {
+	}
+	
+	public java.lang.Boolean refreshReplica() throws UserException, ServerException {
+		return null;
+	}
+	
 	public void regenerateGeometry(java.lang.Long croid) throws UserException, ServerException {
 	}
 	
@@ -496,6 +496,10 @@ public class ServiceInterfaceAdaptor implements org.bimserver.shared.interfaces.
 		return null;
 	}
 	
+	public java.lang.String profileQuery(java.util.Set<java.lang.Long> roids, java.lang.String query) throws UserException, ServerException {
+		return null;
+	}
+	
 	public java.lang.Long regenerateGeometry(java.lang.Long roid, java.lang.Long eoid) throws UserException, ServerException {
 		return null;
 	}
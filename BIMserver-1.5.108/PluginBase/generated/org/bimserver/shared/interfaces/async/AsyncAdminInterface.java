@@ -29,6 +29,11 @@ public class AsyncAdminInterface {
 		this.syncService = syncService;
 	}
 
+	public interface CancelQueryCallback {
+		void success(java.lang.Boolean result);
+		void error(Throwable e);
+	}
+	
 	public interface ClearOutputFileCacheCallback {
 		void success(java.lang.Integer result);
 		void error(Throwable e);
@@ -94,6 +99,11 @@ public class AsyncAdminInterface {
 		void error(Throwable e);
 	}
 	
+	public interface GetRunningQueriesCallback {
+		void success(java.lang.String result);
+		void error(Throwable e);
+	}
+	
 	public interface GetServerInfoCallback {
 		void success(org.bimserver.interfaces.objects.SServerInfo result);
 		void error(Throwable e);
@@ -124,6 +134,16 @@ public class AsyncAdminInterface {
 		void error(Throwable e);
 	}
 	
+	public interface PurgeProjectCallback {
+		void success();
+		void error(Throwable e);
+	}
+	
+	public interface RefreshReplicaCallback {
+		void success(java.lang.Boolean result);
+		void error(Throwable e);
+	}
+	
 	public interface RegenerateGeometryCallback {
 		void success();
 		void error(Throwable e);
@@ -141,6 +161,18 @@ public class AsyncAdminInterface {
 	
 
 
+	public void cancelQuery(final java.lang.Long queryId, final CancelQueryCallback callback) {
+		executorService.submit(new Runnable(){
+			public void run(){
+				try {
+					callback.success(syncService.cancelQuery(queryId));
+				} catch (Throwable e) {
+					callback.error(e);
+				}
+			}
+		});
+	}
+	
 	public void clearOutputFileCache(final ClearOutputFileCacheCallback callback) {
 		executorService.submit(new Runnable(){
 			public void run(){
@@ -299,6 +331,18 @@ public class AsyncAdminInterface {
 		});
 	}
 	
+	public void getRunningQueries(final GetRunningQueriesCallback callback) {
+		executorService.submit(new Runnable(){
+			public void run(){
+				try {
+					callback.success(syncService.getRunningQueries());
+				} catch (Throwable e) {
+					callback.error(e);
+				}
+			}
+		});
+	}
+	
 	public void getServerInfo(final GetServerInfoCallback callback) {
 		executorService.submit(new Runnable(){
 			public void run(){
@@ -372,6 +416,31 @@ public class AsyncAdminInterface {
 		});
 	}
 	
+	public void purgeProject(final java.lang.Long poid, final PurgeProjectCallback callback) {
+		executorService.submit(new Runnable(){
+			public void run(){
+				try {
+					syncService.purgeProject(poid);
+					callback.success();
+				} catch (Throwable e) {
+					callback.error(e);
+				}
+			}
+		});
+	}
+	
+	public void refreshReplica(final RefreshReplicaCallback callback) {
+		executorService.submit(new Runnable(){
+			public void run(){
+				try {
+					callback.success(syncService.refreshReplica());
+				} catch (Throwable e) {
+					callback.error(e);
+				}
+			}
+		});
+	}
+	
 	public void regenerateGeometry(final java.lang.Long croid, final RegenerateGeometryCallback callback) {
 		executorService.submit(new Runnable(){
 			public void run(){
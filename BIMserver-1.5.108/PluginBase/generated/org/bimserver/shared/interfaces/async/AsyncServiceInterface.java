@@ -634,6 +634,11 @@ public class AsyncServiceInterface {
 		void error(Throwable e);
 	}
 	
+	public interface ProfileQueryCallback {
+		void success(java.lang.String result);
+		void error(Throwable e);
+	}
+	
 	public interface RegenerateGeometryCallback {
 		void success(java.lang.Long result);
 		void error(Throwable e);
@@ -2212,6 +2217,18 @@ public class AsyncServiceInterface {
 		});
 	}
 	
+	public void profileQuery(final java.util.Set<java.lang.Long> roids, final java.lang.String query, final ProfileQueryCallback callback) {
+		executorService.submit(new Runnable(){
+			public void run(){
+				try {
+					callback.success(syncService.profileQuery(roids, query));
+				} catch (Throwable e) {
+					callback.error(e);
+				}
+			}
+		});
+	}
+	
 	public void regenerateGeometry(final java.lang.Long roid, final java.lang.Long eoid, final RegenerateGeometryCallback callback) {
 		executorService.submit(new Runnable(){
 			public void run(){
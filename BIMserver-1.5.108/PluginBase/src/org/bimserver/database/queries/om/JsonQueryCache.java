@@ -0,0 +1,155 @@
+package org.bimserver.database.queries.om;
+
+/******************************************************************************
+ * Copyright (C) 2009-2018  BIMserver.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bimserver.emf.PackageMetaData;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+
+/**
+ * Caches parsed JSON queries. Clients tend to send the same query over and over again with only the oids, guids, bounding box or tiles changing, so those parameters
+ * are taken out of the JSON before it is used as the key. The cached Query is never executed itself, for every request a copy is made with the parameters of that request
+ * bound to it. The copies share the includes (and with that the compiled include dispatch tables) of the cached Query.
+ */
+public class JsonQueryCache {
+	private static final String[] PARAMETERS = new String[]{"oid", "oids", "guid", "guids", "inBoundingBox", "tiles"};
+	private static final TextNode PLACEHOLDER = new TextNode("?");
+
+	private final Map<String, Query> cache;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private volatile QueryBudget defaultBudget;
+
+	public JsonQueryCache(final int maxSize) {
+		this.cache = new LinkedHashMap<String, Query>(16, 0.75f, true) {
+			private static final long serialVersionUID = 5213816495207553342L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Query> eldest) {
+				if (size() > maxSize) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Same result as JsonQueryObjectModelConverter.parseJson, but the parsing and define expansion is only done once for every distinct query
+	 */
+	public Query get(PackageMetaData packageMetaData, String queryName, ObjectNode fullQuery) throws QueryException {
+		JsonQueryObjectModelConverter converter = new JsonQueryObjectModelConverter(packageMetaData);
+		List<ObjectNode> queryPartNodes = JsonQueryObjectModelConverter.getQueryPartNodes(fullQuery);
+		if (queryPartNodes == null) {
+			// Let the converter come up with the appropriate error
+			return applyDefaultBudget(converter.parseJson(queryName, fullQuery));
+		}
+
+		ObjectNode normalized = fullQuery.deepCopy();
+		List<ObjectNode> normalizedPartNodes = JsonQueryObjectModelConverter.getQueryPartNodes(normalized);
+		for (ObjectNode partNode : normalizedPartNodes) {
+			for (String parameter : PARAMETERS) {
+				if (partNode.has(parameter)) {
+					partNode.set(parameter, PLACEHOLDER);
+				}
+			}
+		}
+		String key = packageMetaData.getSchema().name() + "/" + queryName + "/" + normalized.toString();
+
+		Query template;
+		synchronized (cache) {
+			template = cache.get(key);
+		}
+		if (template == null) {
+			misses.incrementAndGet();
+			for (ObjectNode partNode : normalizedPartNodes) {
+				for (String parameter : PARAMETERS) {
+					partNode.remove(parameter);
+				}
+			}
+			template = converter.parseJson(queryName, normalized);
+			synchronized (cache) {
+				cache.put(key, template);
+			}
+		} else {
+			hits.incrementAndGet();
+		}
+
+		List<QueryPart> queryParts = new ArrayList<>();
+		for (int i=0; i<queryPartNodes.size(); i++) {
+			QueryPart queryPart = template.getQueryParts().get(i).copyWithoutParameters();
+			converter.bindParameters(queryPart, queryPartNodes.get(i));
+			queryParts.add(queryPart);
+		}
+		return applyDefaultBudget(template.copyWithQueryParts(queryParts));
+	}
+
+	private Query applyDefaultBudget(Query query) {
+		QueryBudget budget = defaultBudget;
+		if (budget != null) {
+			// Clients can lower the limits of the server, not raise them
+			query.setBudget(query.getBudget() == null ? budget : query.getBudget().limitTo(budget));
+		}
+		return query;
+	}
+
+	/**
+	 * @param defaultBudget The budget that is given to all queries returned by this cache, a budget given in the query itself can only lower these limits
+	 */
+	public void setDefaultBudget(QueryBudget defaultBudget) {
+		this.defaultBudget = defaultBudget;
+	}
+
+	public void clear() {
+		synchronized (cache) {
+			cache.clear();
+		}
+	}
+
+	public int size() {
+		synchronized (cache) {
+			return cache.size();
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	@Override
+	public String toString() {
+		return "JsonQueryCache size: " + size() + ", hits: " + getHits() + ", misses: " + getMisses() + ", evictions: " + getEvictions();
+	}
+}
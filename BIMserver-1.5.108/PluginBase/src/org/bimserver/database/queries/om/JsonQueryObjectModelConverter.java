@@ -20,13 +20,13 @@ package org.bimserver.database.queries.om;
 import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.bimserver.database.queries.om.Include.TypeDef;
 import org.bimserver.emf.PackageMetaData;
@@ -43,7 +43,7 @@ import com.fasterxml.jackson.databind.node.JsonNodeType;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
 public class JsonQueryObjectModelConverter {
-	private static final Map<String, Include> CACHED_DEFINES = new HashMap<>();
+	private static final Map<String, Include> CACHED_DEFINES = new ConcurrentHashMap<>();
 	private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
 	private static final int LATEST_VERSION = 2;
 	private PackageMetaData packageMetaData;
@@ -58,6 +58,17 @@ public class JsonQueryObjectModelConverter {
 		ObjectNode definesNode = OBJECT_MAPPER.createObjectNode();
 		queryNode.set("defines", definesNode);
 		queryNode.put("doublebuffer", query.isDoubleBuffer());
+		if (query.isParallel()) {
+			queryNode.put("parallel", true);
+			queryNode.put("ordered", query.isOrdered());
+		}
+		if (query.isProfile()) {
+			queryNode.put("profile", true);
+			queryNode.put("skipData", query.isSkipData());
+		}
+		if (query.getBudget() != null) {
+			queryNode.set("budget", dumpBudget(query.getBudget()));
+		}
 		for (String key : defines.keySet()) {
 			Include include = defines.get(key);
 			definesNode.set(key, dumpInclude(include));
@@ -122,6 +133,13 @@ public class JsonQueryObjectModelConverter {
 				inBoundingBoxNode.put("densityUpperThreshold", queryPart.getInBoundingBox().getDensityUpperThreshold());
 				queryPartNode.set("inBoundingBox", inBoundingBoxNode);
 			}
+			if (queryPart.hasProjection()) {
+				ArrayNode fieldsNode = OBJECT_MAPPER.createArrayNode();
+				for (String featureName : queryPart.getProjection()) {
+					fieldsNode.add(featureName);
+				}
+				queryPartNode.set("fields", fieldsNode);
+			}
 			if (queryPart.hasIncludes() || queryPart.hasReferences()) {
 				ArrayNode includesNode = OBJECT_MAPPER.createArrayNode();
 				queryPartNode.set("includes", includesNode);
@@ -147,6 +165,39 @@ public class JsonQueryObjectModelConverter {
 		return queryNode;
 	}
 
+	private ObjectNode dumpBudget(QueryBudget budget) {
+		ObjectNode budgetNode = OBJECT_MAPPER.createObjectNode();
+		budgetNode.put("maxReads", budget.getMaxReads());
+		budgetNode.put("maxObjects", budget.getMaxObjects());
+		budgetNode.put("maxBytes", budget.getMaxBytes());
+		budgetNode.put("timeout", budget.getTimeout());
+		return budgetNode;
+	}
+
+	private QueryBudget parseBudget(ObjectNode budgetNode) throws QueryException {
+		QueryBudget budget = new QueryBudget();
+		Iterator<String> fieldNames = budgetNode.fieldNames();
+		while (fieldNames.hasNext()) {
+			String fieldName = fieldNames.next();
+			JsonNode value = budgetNode.get(fieldName);
+			if (!value.isIntegralNumber()) {
+				throw new QueryException("\"budget\"." + fieldName + " must be of type number");
+			}
+			if (fieldName.equals("maxReads")) {
+				budget.setMaxReads(value.asLong());
+			} else if (fieldName.equals("maxObjects")) {
+				budget.setMaxObjects(value.asLong());
+			} else if (fieldName.equals("maxBytes")) {
+				budget.setMaxBytes(value.asLong());
+			} else if (fieldName.equals("timeout")) {
+				budget.setTimeout(value.asLong());
+			} else {
+				throw new QueryException("Unknown field in \"budget\": " + fieldName);
+			}
+		}
+		return budget;
+	}
+
 	private ObjectNode dumpInclude(Include include) {
 		ObjectNode includeNode = OBJECT_MAPPER.createObjectNode();
 		
@@ -203,6 +254,18 @@ public class JsonQueryObjectModelConverter {
 		}
 		query.setVersion(version);
 		query.setDoubleBuffer(fullQuery.has("doublebuffer") ? fullQuery.get("doublebuffer").asBoolean() : false);
+		query.setParallel(fullQuery.has("parallel") ? fullQuery.get("parallel").asBoolean() : false);
+		query.setOrdered(fullQuery.has("ordered") ? fullQuery.get("ordered").asBoolean() : false);
+		query.setProfile(fullQuery.has("profile") ? fullQuery.get("profile").asBoolean() : false);
+		query.setSkipData(fullQuery.has("skipData") ? fullQuery.get("skipData").asBoolean() : false);
+		if (fullQuery.has("budget")) {
+			JsonNode budget = fullQuery.get("budget");
+			if (budget instanceof ObjectNode) {
+				query.setBudget(parseBudget((ObjectNode) budget));
+			} else {
+				throw new QueryException("\"budget\" must be of type object");
+			}
+		}
 		if (fullQuery.has("defines")) {
 			JsonNode defines = fullQuery.get("defines");
 			if (defines instanceof ObjectNode) {
@@ -386,9 +449,11 @@ public class JsonQueryObjectModelConverter {
 		return include;
 	}
 
-	// TODO thread safety and cache invalidation on file updates
+	// TODO cache invalidation on file updates
 	public Include getDefineFromFile(String includeName) throws QueryException {
-		Include include = CACHED_DEFINES.get(includeName);
+		// Defines are resolved against the schema of the query, so the same name can result in different includes
+		String cacheKey = packageMetaData.getSchema().name() + "/" + includeName;
+		Include include = CACHED_DEFINES.get(cacheKey);
 		if (include != null) {
 			return include;
 		}
@@ -412,7 +477,10 @@ public class JsonQueryObjectModelConverter {
 			if (define == null) {
 				throw new QueryException("Could not find '" + singleIncludeName + "' in defines in namespace " + query.getName());
 			}
-			CACHED_DEFINES.put(includeName, define);
+			// The whole namespace has been parsed anyway, so cache all of its defines
+			for (Entry<String, Include> entry : query.getDefines().entrySet()) {
+				CACHED_DEFINES.putIfAbsent(packageMetaData.getSchema().name() + "/" + namespaceString + ":" + entry.getKey(), entry.getValue());
+			}
 			return define;
 		} catch (JsonParseException e) {
 			throw new QueryException(e);
@@ -502,38 +570,8 @@ public class JsonQueryObjectModelConverter {
 		if (objectNode.has("includeAllFields") && objectNode.get("includeAllFields").asBoolean()) {
 			queryPart.setIncludeAllFields(true);
 		}
-		if (objectNode.has("oid")) {
-			JsonNode oidNode = objectNode.get("oid");
-			if (oidNode.isNumber()) {
-				queryPart.addOid(oidNode.asLong());
-			} else {
-				throw new QueryException("\"oid\" must be of type number");
-			}
-		}
-		if (objectNode.has("oids")) {
-			JsonNode oidsNode = objectNode.get("oids");
-			if (oidsNode instanceof ArrayNode) {
-				ArrayNode oids = (ArrayNode)oidsNode;
-				for (int i=0; i<oids.size(); i++) {
-					JsonNode oidNode = oids.get(i);
-					if (oidNode.isNumber()) {
-						queryPart.addOid(oidNode.asLong());
-					} else {
-						throw new QueryException("\"oids\"[" + i + "] must be of type number (" + oidNode + ")");
-					}
-				}
-			} else {
-				throw new QueryException("\"oids\" must be of type array");
-			}
-		}
-		if (objectNode.has("guid")) {
-			JsonNode guidNode = objectNode.get("guid");
-			if (guidNode.isTextual()) {
-				queryPart.addGuid(guidNode.asText());
-			} else {
-				throw new QueryException("\"guid\" must be of type string");
-			}
-		}
+		parseOids(queryPart, objectNode);
+		parseGuids(queryPart, objectNode);
 		if (objectNode.has("name")) {
 			JsonNode nameNode = objectNode.get("name");
 			if (nameNode.isTextual()) {
@@ -542,22 +580,6 @@ public class JsonQueryObjectModelConverter {
 				throw new QueryException("\"name\" must be of type string");
 			}
 		}
-		if (objectNode.has("guids")) {
-			JsonNode guidsNode = objectNode.get("guids");
-			if (guidsNode instanceof ArrayNode) {
-				ArrayNode guids = (ArrayNode)guidsNode;
-				for (int i=0; i<guids.size(); i++) {
-					JsonNode guidNode = guids.get(i);
-					if (guidNode.isTextual()) {
-						queryPart.addGuid(guidNode.asText());
-					} else {
-						throw new QueryException("\"guids\"[" + i + "] must be of type string");
-					}
-				}
-			} else {
-				throw new QueryException("\"guids\" must be of type array");
-			}
-		}
 		if (objectNode.has("names")) {
 			JsonNode namesNode = objectNode.get("names");
 			if (namesNode instanceof ArrayNode) {
@@ -599,6 +621,151 @@ public class JsonQueryObjectModelConverter {
 				throw new QueryException("\"classifications\" must be of type array");
 			}
 		}
+		parseInBoundingBox(queryPart, objectNode);
+		parseTiles(queryPart, objectNode);
+
+		if (objectNode.has("include")) {
+			JsonNode includeNode = objectNode.get("include");
+			processSubInclude(query, queryPart, includeNode);
+		}
+		if (objectNode.has("includes")) {
+			JsonNode includesNode = objectNode.get("includes");
+			if (includesNode instanceof ArrayNode) {
+				ArrayNode includes = (ArrayNode)includesNode;
+				for (int i=0; i<includes.size(); i++) {
+					JsonNode include = includes.get(i);
+					processSubInclude(query, queryPart, include);
+				}
+			} else {
+				throw new QueryException("\"includes\" should be of type array");
+			}
+		}
+		
+		if (objectNode.has("loaderSettings")) {
+			query.setGeometrySettings((ObjectNode)objectNode.get("loaderSettings"));
+		}
+		
+		if (objectNode.has("fields")) {
+			JsonNode fieldsNode = objectNode.get("fields");
+			if (fieldsNode instanceof ArrayNode) {
+				for (JsonNode fieldNode : fieldsNode) {
+					if (fieldNode.isTextual()) {
+						queryPart.addProjection(fieldNode.asText());
+					} else {
+						throw new QueryException("\"fields\" must contain strings");
+					}
+				}
+			} else {
+				throw new QueryException("\"fields\" should be of type array");
+			}
+		}
+
+		Iterator<String> fieldNames = objectNode.fieldNames();
+		while (fieldNames.hasNext()) {
+			String fieldName = fieldNames.next();
+			if (fieldName.equals("includeAllFields") || fieldName.equals("type") || fieldName.equals("types") || fieldName.equals("oid") || fieldName.equals("oids") || fieldName.equals("guid") || fieldName.equals("guids") || fieldName.equals("name") || fieldName.equals("names") || fieldName.equals("properties") || fieldName.equals("inBoundingBox") || fieldName.equals("include") || fieldName.equals("includes") || fieldName.equalsIgnoreCase("includeAllSubtypes") || fieldName.equals("classifications") || fieldName.equals("doublebuffer") || fieldName.equals("parallel") || fieldName.equals("ordered") || fieldName.equals("profile") || fieldName.equals("skipData") || fieldName.equals("budget") || fieldName.equals("version")  || fieldName.equals("loaderSettings") || fieldName.equals("tiles") || fieldName.equals("reuseLowerThreshold") || fieldName.equals("fields")) {
+				// fine
+			} else {
+				throw new QueryException("Unknown field: \"" + fieldName + "\"");
+			}
+		}
+		
+		query.addQueryPart(queryPart);
+	}
+
+	/**
+	 * Sets the parameters (oids, guids, bounding box and tiles) found in the given query part node on the given part, used to bind parameters to a cached query
+	 */
+	public void bindParameters(QueryPart queryPart, ObjectNode objectNode) throws QueryException {
+		parseOids(queryPart, objectNode);
+		parseGuids(queryPart, objectNode);
+		parseInBoundingBox(queryPart, objectNode);
+		parseTiles(queryPart, objectNode);
+	}
+
+	/**
+	 * @return The nodes that will be parsed into query parts by parseJson, in the same order, or null when the query does not have the expected structure
+	 */
+	public static List<ObjectNode> getQueryPartNodes(ObjectNode fullQuery) {
+		List<ObjectNode> result = new ArrayList<>();
+		if (fullQuery.has("queries")) {
+			JsonNode queriesNode = fullQuery.get("queries");
+			if (!(queriesNode instanceof ArrayNode)) {
+				return null;
+			}
+			for (JsonNode queryNode : queriesNode) {
+				if (!(queryNode instanceof ObjectNode)) {
+					return null;
+				}
+				result.add((ObjectNode) queryNode);
+			}
+		} else if (fullQuery.has("query")) {
+			JsonNode queryNode = fullQuery.get("query");
+			if (!(queryNode instanceof ObjectNode)) {
+				return null;
+			}
+			result.add((ObjectNode) queryNode);
+		} else if (!fullQuery.has("defines")) {
+			result.add(fullQuery);
+		}
+		return result;
+	}
+
+	private void parseOids(QueryPart queryPart, ObjectNode objectNode) throws QueryException {
+		if (objectNode.has("oid")) {
+			JsonNode oidNode = objectNode.get("oid");
+			if (oidNode.isNumber()) {
+				queryPart.addOid(oidNode.asLong());
+			} else {
+				throw new QueryException("\"oid\" must be of type number");
+			}
+		}
+		if (objectNode.has("oids")) {
+			JsonNode oidsNode = objectNode.get("oids");
+			if (oidsNode instanceof ArrayNode) {
+				ArrayNode oids = (ArrayNode)oidsNode;
+				for (int i=0; i<oids.size(); i++) {
+					JsonNode oidNode = oids.get(i);
+					if (oidNode.isNumber()) {
+						queryPart.addOid(oidNode.asLong());
+					} else {
+						throw new QueryException("\"oids\"[" + i + "] must be of type number (" + oidNode + ")");
+					}
+				}
+			} else {
+				throw new QueryException("\"oids\" must be of type array");
+			}
+		}
+	}
+
+	private void parseGuids(QueryPart queryPart, ObjectNode objectNode) throws QueryException {
+		if (objectNode.has("guid")) {
+			JsonNode guidNode = objectNode.get("guid");
+			if (guidNode.isTextual()) {
+				queryPart.addGuid(guidNode.asText());
+			} else {
+				throw new QueryException("\"guid\" must be of type string");
+			}
+		}
+		if (objectNode.has("guids")) {
+			JsonNode guidsNode = objectNode.get("guids");
+			if (guidsNode instanceof ArrayNode) {
+				ArrayNode guids = (ArrayNode)guidsNode;
+				for (int i=0; i<guids.size(); i++) {
+					JsonNode guidNode = guids.get(i);
+					if (guidNode.isTextual()) {
+						queryPart.addGuid(guidNode.asText());
+					} else {
+						throw new QueryException("\"guids\"[" + i + "] must be of type string");
+					}
+				}
+			} else {
+				throw new QueryException("\"guids\" must be of type array");
+			}
+		}
+	}
+
+	private void parseInBoundingBox(QueryPart queryPart, ObjectNode objectNode) throws QueryException {
 		if (objectNode.has("inBoundingBox")) {
 			JsonNode boundingBoxNode = objectNode.get("inBoundingBox");
 			if (boundingBoxNode instanceof ObjectNode) {
@@ -635,6 +802,9 @@ public class JsonQueryObjectModelConverter {
 				throw new QueryException("\"inBoundingBox\" should be of type object");
 			}
 		}
+	}
+
+	private void parseTiles(QueryPart queryPart, ObjectNode objectNode) {
 		if (objectNode.has("tiles")) {
 			Tiles tiles = new Tiles();
 			ObjectNode tilesNode = (ObjectNode) objectNode.get("tiles");
@@ -662,43 +832,6 @@ public class JsonQueryObjectModelConverter {
 			}
 			queryPart.setTiles(tiles);
 		}
-
-		if (objectNode.has("include")) {
-			JsonNode includeNode = objectNode.get("include");
-			processSubInclude(query, queryPart, includeNode);
-		}
-		if (objectNode.has("includes")) {
-			JsonNode includesNode = objectNode.get("includes");
-			if (includesNode instanceof ArrayNode) {
-				ArrayNode includes = (ArrayNode)includesNode;
-				for (int i=0; i<includes.size(); i++) {
-					JsonNode include = includes.get(i);
-					processSubInclude(query, queryPart, include);
-				}
-			} else {
-				throw new QueryException("\"includes\" should be of type array");
-			}
-		}
-		
-		if (objectNode.has("loaderSettings")) {
-			query.setGeometrySettings((ObjectNode)objectNode.get("loaderSettings"));
-		}
-		
-		if (objectNode.has("fields")) {
-			objectNode.get("fields"); // fields node
-		}
-
-		Iterator<String> fieldNames = objectNode.fieldNames();
-		while (fieldNames.hasNext()) {
-			String fieldName = fieldNames.next();
-			if (fieldName.equals("includeAllFields") || fieldName.equals("type") || fieldName.equals("types") || fieldName.equals("oid") || fieldName.equals("oids") || fieldName.equals("guid") || fieldName.equals("guids") || fieldName.equals("name") || fieldName.equals("names") || fieldName.equals("properties") || fieldName.equals("inBoundingBox") || fieldName.equals("include") || fieldName.equals("includes") || fieldName.equalsIgnoreCase("includeAllSubtypes") || fieldName.equals("classifications") || fieldName.equals("doublebuffer") || fieldName.equals("version")  || fieldName.equals("loaderSettings") || fieldName.equals("tiles") || fieldName.equals("reuseLowerThreshold")) {
-				// fine
-			} else {
-				throw new QueryException("Unknown field: \"" + fieldName + "\"");
-			}
-		}
-		
-		query.addQueryPart(queryPart);
 	}
 
 	private void parseProperties(QueryPart queryPart, ObjectNode properties) throws QueryException {
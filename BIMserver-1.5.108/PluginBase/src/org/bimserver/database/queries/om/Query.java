@@ -35,6 +35,12 @@ public class Query {
 	private boolean doubleBuffer;
 	private int version;
 	private ObjectNode geometrySettings;
+	private boolean parallel;
+	private boolean ordered;
+	private boolean profile;
+	private boolean skipData;
+	private QueryBudget budget;
+	private volatile QueryPlan plan;
 	
 	public Query(String name, PackageMetaData packageMetaData) {
 		this.name = name;
@@ -125,4 +131,92 @@ public class Query {
 	public ObjectNode getGeometrySettings() {
 		return geometrySettings;
 	}
-}
\ No newline at end of file
+
+	public void setParallel(boolean parallel) {
+		this.parallel = parallel;
+	}
+	
+	public boolean isParallel() {
+		return parallel;
+	}
+
+	public void setOrdered(boolean ordered) {
+		this.ordered = ordered;
+	}
+	
+	/**
+	 * Only relevant for parallel queries, when set the results of the (parallel) parts are returned in the order of the parts
+	 */
+	public boolean isOrdered() {
+		return ordered;
+	}
+
+	public void setProfile(boolean profile) {
+		this.profile = profile;
+	}
+
+	/**
+	 * When set, an execution profile is collected while the query runs (see QueryObjectProvider.getProfile)
+	 */
+	public boolean isProfile() {
+		return profile;
+	}
+
+	public void setSkipData(boolean skipData) {
+		this.skipData = skipData;
+	}
+
+	/**
+	 * When set, the query is executed as usual but no objects are returned, only useful in combination with profile
+	 */
+	public boolean isSkipData() {
+		return skipData;
+	}
+
+	public void setBudget(QueryBudget budget) {
+		this.budget = budget;
+	}
+
+	/**
+	 * @return The limits for the execution of this query, null when there are none
+	 */
+	public QueryBudget getBudget() {
+		return budget;
+	}
+
+	/**
+	 * Creates a copy of this query with the given parts, the include dispatch tables of the plan of this query are shared with the copy
+	 */
+	Query copyWithQueryParts(List<QueryPart> queryParts) {
+		Query query = new Query(name, packageMetaData);
+		query.defines.putAll(defines);
+		query.queryParts.addAll(queryParts);
+		query.doubleBuffer = doubleBuffer;
+		query.version = version;
+		query.geometrySettings = geometrySettings;
+		query.parallel = parallel;
+		query.ordered = ordered;
+		query.profile = profile;
+		query.skipData = skipData;
+		query.budget = budget;
+		query.plan = new QueryPlan(query, getPlan());
+		return query;
+	}
+
+	/**
+	 * The plan is created on first use, the query should not be changed after that
+	 */
+	public QueryPlan getPlan() {
+		QueryPlan result = plan;
+		if (result == null) {
+			synchronized (this) {
+				result = plan;
+				if (result == null) {
+					result = new QueryPlan(this);
+					plan = result;
+				}
+			}
+		}
+		return result;
+	}
+}
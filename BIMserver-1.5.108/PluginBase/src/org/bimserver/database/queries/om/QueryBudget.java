@@ -0,0 +1,101 @@
+package org.bimserver.database.queries.om;
+
+/******************************************************************************
+ * Copyright (C) 2009-2018  BIMserver.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+/**
+ * Limits for the execution of one query. When one of the limits is reached the query ends early, the results returned until then are still valid but incomplete.
+ * All limits are -1 (UNLIMITED) by default.
+ */
+public class QueryBudget {
+	public static final long UNLIMITED = -1;
+
+	private long maxReads = UNLIMITED;
+	private long maxObjects = UNLIMITED;
+	private long maxBytes = UNLIMITED;
+	private long timeout = UNLIMITED;
+
+	public long getMaxReads() {
+		return maxReads;
+	}
+
+	/**
+	 * @param maxReads The maximum number of records read from the database
+	 */
+	public void setMaxReads(long maxReads) {
+		this.maxReads = maxReads;
+	}
+
+	public long getMaxObjects() {
+		return maxObjects;
+	}
+
+	/**
+	 * @param maxObjects The maximum number of objects returned by the query
+	 */
+	public void setMaxObjects(long maxObjects) {
+		this.maxObjects = maxObjects;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * @param maxBytes The maximum number of bytes the serialized results can take
+	 */
+	public void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	public long getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * @param timeout The maximum number of milliseconds the query can run, measured from the moment it is started
+	 */
+	public void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+
+	public boolean isUnlimited() {
+		return maxReads == UNLIMITED && maxObjects == UNLIMITED && maxBytes == UNLIMITED && timeout == UNLIMITED;
+	}
+
+	/**
+	 * @return A new budget with for every limit the lowest of this budget and the given budget
+	 */
+	public QueryBudget limitTo(QueryBudget other) {
+		QueryBudget result = new QueryBudget();
+		result.maxReads = min(maxReads, other.maxReads);
+		result.maxObjects = min(maxObjects, other.maxObjects);
+		result.maxBytes = min(maxBytes, other.maxBytes);
+		result.timeout = min(timeout, other.timeout);
+		return result;
+	}
+
+	private static long min(long a, long b) {
+		if (a == UNLIMITED) {
+			return b;
+		}
+		if (b == UNLIMITED) {
+			return a;
+		}
+		return Math.min(a, b);
+	}
+}
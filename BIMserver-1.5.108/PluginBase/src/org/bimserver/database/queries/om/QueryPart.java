@@ -43,6 +43,12 @@ public class QueryPart extends PartOfQuery implements CanInclude {
 	private List<Reference> references;
 	private Tiles tiles;
 	private int minimumReuseThreshold = -1;
+	private Set<String> projection;
+	// Only used for parts selecting on type, limits the objects to the oids from oidRangeStart (inclusive) to oidRangeEnd (exclusive)
+	private long oidRangeStart = -1;
+	private long oidRangeEnd = -1;
+	// The part this part has been copied from (or this part itself), copies share their includes with it
+	private QueryPart origin = this;
 	
 	public QueryPart(PackageMetaData packageMetaData) {
 		this.packageMetaData = packageMetaData;
@@ -203,6 +209,12 @@ public class QueryPart extends PartOfQuery implements CanInclude {
 			sb.append(indent(indent) + "inBoundingBox\n");
 			inBoundingBox.dump(indent + 1, sb);
 		}
+		if (hasProjection()) {
+			sb.append(indent(indent) + "projection\n");
+			for (String featureName : getProjection()) {
+				sb.append(indent(indent + 1) + featureName + "\n");
+			}
+		}
 		if (hasProperties()) {
 			sb.append(indent(indent) + "properties\n");
 			for (String key : properties.keySet()) {
@@ -278,4 +290,85 @@ public class QueryPart extends PartOfQuery implements CanInclude {
 	public int getMinimumReuseThreshold() {
 		return minimumReuseThreshold;
 	}
+
+	/**
+	 * Creates a copy of this part with the given types, all other settings are shared with this part
+	 */
+	public QueryPart copyWithTypes(List<TypeDef> types) {
+		QueryPart queryPart = new QueryPart(packageMetaData);
+		queryPart.types = types;
+		queryPart.oids = oids;
+		queryPart.guids = guids;
+		queryPart.names = names;
+		queryPart.properties = properties;
+		queryPart.classifications = classifications;
+		queryPart.inBoundingBox = inBoundingBox;
+		queryPart.includes = includes;
+		queryPart.includeAllFields = includeAllFields;
+		queryPart.references = references;
+		queryPart.tiles = tiles;
+		queryPart.minimumReuseThreshold = minimumReuseThreshold;
+		queryPart.projection = projection;
+		queryPart.oidRangeStart = oidRangeStart;
+		queryPart.oidRangeEnd = oidRangeEnd;
+		queryPart.origin = origin;
+		return queryPart;
+	}
+
+	/**
+	 * Limits a part that selects on type to the objects with an oid from start (inclusive) to end (exclusive), used to split up the reading of big tables
+	 */
+	public void setOidRange(long start, long end) {
+		this.oidRangeStart = start;
+		this.oidRangeEnd = end;
+	}
+
+	public boolean hasOidRange() {
+		return oidRangeStart != -1;
+	}
+
+	public long getOidRangeStart() {
+		return oidRangeStart;
+	}
+
+	public long getOidRangeEnd() {
+		return oidRangeEnd;
+	}
+
+	/**
+	 * @return The part this part has been copied from with copyWithTypes or copyWithoutParameters, or this part itself when it is not a copy
+	 */
+	public QueryPart getOrigin() {
+		return origin;
+	}
+
+	/**
+	 * Creates a copy of this part without the parameters (oids, guids, bounding box and tiles), all other settings are shared with this part
+	 */
+	public QueryPart copyWithoutParameters() {
+		QueryPart queryPart = copyWithTypes(types);
+		queryPart.oids = null;
+		queryPart.guids = null;
+		queryPart.inBoundingBox = null;
+		queryPart.tiles = null;
+		return queryPart;
+	}
+
+	/**
+	 * Limits the features that are read from the database for the objects matched by this part, features needed by the query itself (includes, guids, names, geometry) are always read
+	 */
+	public void addProjection(String featureName) {
+		if (projection == null) {
+			projection = new LinkedHashSet<>();
+		}
+		projection.add(featureName);
+	}
+
+	public Set<String> getProjection() {
+		return projection;
+	}
+
+	public boolean hasProjection() {
+		return projection != null;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,284 @@
+package org.bimserver.database.queries.om;
+
+/******************************************************************************
+ * Copyright (C) 2009-2018  BIMserver.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bimserver.database.queries.om.Include.TypeDef;
+import org.bimserver.emf.PackageMetaData;
+import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EReference;
+import org.eclipse.emf.ecore.EStructuralFeature;
+
+/**
+ * Compiled form of a Query. Answers the questions the stack frames ask for every object (which includes apply to an object of a certain class, which fields of it
+ * are followed directly or used for serialization, is a class selected by the query) with table lookups. The tables are filled per concrete EClass the first time a class is encountered and never change afterwards, a plan can be shared by all executions of the same Query.
+ */
+public class QueryPlan {
+	public static class IncludeStep {
+		private final CanInclude previousInclude;
+		private final Include include;
+		private final List<EReference> directFields;
+		private final List<EReference> serializationFeatures;
+
+		public IncludeStep(CanInclude previousInclude, Include include, EClass eClass) throws QueryException {
+			this.previousInclude = previousInclude;
+			this.include = include;
+			this.directFields = resolveDirectFields(include, eClass);
+			this.serializationFeatures = resolveSerializationFeatures(include, eClass);
+		}
+
+		private static List<EReference> resolveDirectFields(Include include, EClass eClass) {
+			if (!include.hasDirectFields()) {
+				return Collections.emptyList();
+			}
+			List<EReference> result = new ArrayList<>();
+			for (EReference eReference : include.getFieldsDirect()) {
+				// Objects are looked up by field name, so a field of another class with the same name also counts
+				EStructuralFeature feature = eClass.getEStructuralFeature(eReference.getName());
+				if (feature instanceof EReference) {
+					result.add((EReference) feature);
+				}
+			}
+			return result;
+		}
+
+		private static List<EReference> resolveSerializationFeatures(Include include, EClass eClass) throws QueryException {
+			if (!include.hasFields()) {
+				return Collections.emptyList();
+			}
+			for (EReference eReference : include.getFields()) {
+				if (!eReference.getEContainingClass().isSuperTypeOf(eClass)) {
+					throw new QueryException(eReference.getName() + " does not exist in " + eClass.getName());
+				}
+			}
+			return include.getFields();
+		}
+
+		public CanInclude getPreviousInclude() {
+			return previousInclude;
+		}
+
+		public Include getInclude() {
+			return include;
+		}
+
+		/**
+		 * @return The direct fields of the include that exist in the class of this step, as features of that class
+		 */
+		public List<EReference> getDirectFields() {
+			return directFields;
+		}
+
+		/**
+		 * @return The fields of the include, all checked to exist in the class of this step
+		 */
+		public List<EReference> getSerializationFeatures() {
+			return serializationFeatures;
+		}
+	}
+
+	private final Query query;
+	private final PackageMetaData packageMetaData;
+	// Keyed on the includes of the query, or on the origin of a QueryPart, so plans that share the table with copies of the query parts do not add entries for every copy
+	private final Map<CanInclude, Map<EClass, List<IncludeStep>>> includeSteps;
+	// Keyed on the origin of a QueryPart as well, the filtered part only depends on the types and includes, which copies share
+	private final Map<QueryPart, QueryPart> filteredQueryParts;
+	private final Map<EClass, Boolean> selectedByType = new ConcurrentHashMap<>();
+
+	public QueryPlan(Query query) {
+		this.query = query;
+		this.packageMetaData = query.getPackageMetaData();
+		this.includeSteps = new ConcurrentHashMap<>();
+		this.filteredQueryParts = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Creates a plan for a query that has the same types and includes as the query of the given plan (but possibly different parameters), the include dispatch tables
+	 * and the filtered query parts are shared
+	 */
+	public QueryPlan(Query query, QueryPlan shared) {
+		this.query = query;
+		this.packageMetaData = query.getPackageMetaData();
+		this.includeSteps = shared.includeSteps;
+		this.filteredQueryParts = shared.filteredQueryParts;
+	}
+
+	/**
+	 * @return The includes of the given CanInclude that apply to objects of the given class, in the order they have to be processed
+	 */
+	public List<IncludeStep> getIncludeSteps(CanInclude canInclude, EClass eClass) throws QueryException {
+		CanInclude key = canInclude instanceof QueryPart ? ((QueryPart) canInclude).getOrigin() : canInclude;
+		Map<EClass, List<IncludeStep>> perClass = includeSteps.get(key);
+		if (perClass == null) {
+			perClass = new ConcurrentHashMap<>();
+			Map<EClass, List<IncludeStep>> existing = includeSteps.putIfAbsent(key, perClass);
+			if (existing != null) {
+				perClass = existing;
+			}
+		}
+		List<IncludeStep> steps = perClass.get(eClass);
+		if (steps == null) {
+			steps = compileIncludeSteps(key, eClass);
+			perClass.put(eClass, steps);
+		}
+		return steps;
+	}
+
+	private List<IncludeStep> compileIncludeSteps(CanInclude canInclude, EClass eClass) throws QueryException {
+		List<IncludeStep> steps = new ArrayList<>();
+		if (canInclude.hasReferences()) {
+			for (Reference reference : canInclude.getReferences()) {
+				addIfApplicable(steps, canInclude, reference.getInclude(), eClass);
+			}
+		}
+		if (canInclude.hasIncludes()) {
+			for (Include include : canInclude.getIncludes()) {
+				addIfApplicable(steps, canInclude, include, eClass);
+			}
+		}
+		if (canInclude.isIncludeAllFields()) {
+			for (EReference eReference : eClass.getEAllReferences()) {
+				Include include = new Include(packageMetaData);
+				include.addType(eClass, false);
+				include.addField(eReference.getName());
+				steps.add(new IncludeStep(canInclude, include, eClass));
+			}
+		}
+		if (canInclude instanceof Include) {
+			addIfApplicable(steps, null, (Include) canInclude, eClass);
+		}
+		return steps.isEmpty() ? Collections.<IncludeStep>emptyList() : steps;
+	}
+
+	private void addIfApplicable(List<IncludeStep> steps, CanInclude previousInclude, Include include, EClass eClass) throws QueryException {
+		if (include.hasTypes()) {
+			for (TypeDef filterClass : include.getTypes()) {
+				// TODO also exclude the possibly excluded types here
+				if (!filterClass.geteClass().isSuperTypeOf(eClass)) {
+					return;
+				}
+			}
+		}
+		steps.add(new IncludeStep(previousInclude, include, eClass));
+	}
+
+	/**
+	 * @return A copy of the given part of which the includes do not follow the "data" field, used for objects of which the client already has the geometry data
+	 */
+	public QueryPart getFilteredQueryPart(QueryPart input) throws QueryException {
+		QueryPart key = input.getOrigin();
+		QueryPart result = filteredQueryParts.get(key);
+		if (result == null) {
+			result = createFilteredQueryPart(key);
+			QueryPart existing = filteredQueryParts.putIfAbsent(key, result);
+			if (existing != null) {
+				result = existing;
+			}
+		}
+		return result;
+	}
+
+	private QueryPart createFilteredQueryPart(QueryPart input) throws QueryException {
+		QueryPart result = new QueryPart(input.getPackageMetaData());
+		for (TypeDef typeDef : input.getTypes()) {
+			result.addType(typeDef);
+		}
+		for (Include include : input.getIncludes()) {
+			createFilteredInclude(result, include);
+		}
+		return result;
+	}
+
+	private void createFilteredInclude(QueryPart result, Include include) throws QueryException {
+		Include newInclude = result.createInclude();
+		for (TypeDef typeDef : include.getTypes()) {
+			newInclude.addType(typeDef);
+		}
+		for (EReference field : include.getFields()) {
+			newInclude.addField(field);
+		}
+		for (Include include2 : include.getIncludes()) {
+			newInclude.addInclude(createFilteredInclude(include2));
+		}
+	}
+
+	private Include createFilteredInclude(Include inputInclude) throws QueryException {
+		Include newInclude = new Include(inputInclude.getPackageMetaData());
+		for (TypeDef typeDef : inputInclude.getTypes()) {
+			newInclude.addType(typeDef);
+		}
+		if (inputInclude.hasFields()) {
+			for (EReference field : inputInclude.getFields()) {
+				if (field.getName().equals("data")) {
+					// Skip, this is the actual filtering
+					return newInclude;
+				}
+				newInclude.addField(field);
+			}
+		}
+		if (inputInclude.hasIncludes()) {
+			for (Include include2 : inputInclude.getIncludes()) {
+				newInclude.addInclude(createFilteredInclude(include2));
+			}
+		}
+		return newInclude;
+	}
+
+	/**
+	 * @return Whether all objects of the given class will be read because a part of the query selects them by type only
+	 */
+	public boolean isSelectedByType(EClass eClass) {
+		Boolean selected = selectedByType.get(eClass);
+		if (selected == null) {
+			selected = computeSelectedByType(eClass);
+			selectedByType.put(eClass, selected);
+		}
+		return selected;
+	}
+
+	private boolean computeSelectedByType(EClass eClass) {
+		for (QueryPart queryPart : query.getQueryParts()) {
+			boolean allNull = queryPart.getGuids() == null && queryPart.getNames() == null && queryPart.getOids() == null && queryPart.getInBoundingBox() == null && queryPart.getProperties() == null && queryPart.getClassifications() == null;
+			if (queryPart.hasTypes()) {
+				if (typeDefContains(queryPart, eClass)) {
+					if (allNull) {
+						return true;
+					}
+				}
+			} else {
+				return allNull;
+			}
+		}
+		return false;
+	}
+
+	private boolean typeDefContains(QueryPart queryPart, EClass eClass) {
+		for (TypeDef typeDef : queryPart.getTypes()) {
+			// TODO subtypes of TypeDefs with includeAllSubTypes are not taken into account, this has always been the case
+			if (typeDef.geteClass() == eClass) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
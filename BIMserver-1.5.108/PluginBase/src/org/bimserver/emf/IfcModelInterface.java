@@ -114,6 +114,14 @@ public interface IfcModelInterface extends Iterable<IdEObject>, ObjectFactory {
 	 */
 	BiMap<Long, IdEObject> getObjects();
 
+	/**
+	 * @return A Map<Long, IdEObject> with all objects in this model, for code that does not need the inverse. Models that store their objects with primitive keys
+	 * return a view on that map
+	 */
+	default Map<Long, IdEObject> getObjectMap() {
+		return getObjects();
+	}
+
 	/**
 	 * @return All OID's in this model
 	 */
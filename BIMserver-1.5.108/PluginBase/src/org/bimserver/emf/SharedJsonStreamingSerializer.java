@@ -106,6 +106,10 @@ public class SharedJsonStreamingSerializer implements StreamingReader {
 					return true;
 				} else {
 					print("]");
+					String incompleteReason = objectProvider.getIncompleteReason();
+					if (incompleteReason != null) {
+						print(",\"incomplete\":true,\"incompleteReason\":\"" + incompleteReason.replace("\\", "\\\\").replace("\"", "\\\"") + "\"");
+					}
 					print("}");
 					mode = Mode.FOOTER;
 					return true;
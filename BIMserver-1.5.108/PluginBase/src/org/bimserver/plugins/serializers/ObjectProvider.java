@@ -45,4 +45,11 @@ public interface ObjectProvider {
 	ObjectNode getQueryNode();
 
 	void cache(HashMapVirtualObject object);
+
+	/**
+	 * @return null when next() has returned all results, otherwise the reason the results are incomplete (for example because a query budget was exceeded or the query was cancelled)
+	 */
+	default String getIncompleteReason() {
+		return null;
+	}
 }
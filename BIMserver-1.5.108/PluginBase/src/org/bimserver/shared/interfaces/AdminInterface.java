@@ -153,6 +153,46 @@ public interface AdminInterface extends PublicInterface {
 	@WebMethod(action = "clearOutputFileCache")
 	Integer clearOutputFileCache() throws UserException, ServerException;
 
+	/**
+	 * Get the queries that are currently running (only queries with a budget are tracked)
+	 * @return A JSON array with for every query the id, roids, start time and the resources used so far
+	 * @throws UserException
+	 * @throws ServerException
+	 */
+	@WebMethod(action = "getRunningQueries")
+	String getRunningQueries() throws UserException, ServerException;
+
+	/**
+	 * Cancel a running query, the results sent until then are marked as incomplete
+	 * @param queryId The id of the query, as returned by getRunningQueries
+	 * @return Whether a query with the given id was running
+	 * @throws UserException
+	 * @throws ServerException
+	 */
+	@WebMethod(action = "cancelQuery")
+	Boolean cancelQuery(
+		@WebParam(name = "queryId", partName = "cancelQuery.queryId") Long queryId) throws UserException, ServerException;
+
+	/**
+	 * Reopen the database of a read-only replica, so revisions that have been committed on the primary server since the last refresh become visible
+	 * @return Whether the database has been reopened, false when there were still downloads or queries running, try again later in that case
+	 * @throws UserException
+	 * @throws ServerException
+	 */
+	@WebMethod(action = "refreshReplica")
+	Boolean refreshReplica() throws UserException, ServerException;
+
+	/**
+	 * Permanently remove the data of a deleted project (and its subprojects). The project stays visible as a deleted project, but can no longer be undeleted.
+	 * The records are removed in the background, the progress can be followed through getDatabaseInformation
+	 * @param poid The ObjectID of the project, the project has to be deleted first
+	 * @throws UserException
+	 * @throws ServerException
+	 */
+	@WebMethod(action = "purgeProject")
+	void purgeProject(
+		@WebParam(name = "poid", partName = "purgeProject.poid") Long poid) throws UserException, ServerException;
+
 	/**
 	 * Get information about the system this BIMserver is running on
 	 * @return A SSystemInfo object
@@ -113,6 +113,18 @@ public interface ServiceInterface extends PublicInterface {
 		@WebParam(name = "serializerOid", partName = "download.serializerOid") Long serializerOid,
 		@WebParam(name = "sync", partName = "download.sync") Boolean sync) throws ServerException, UserException;
 	
+	/**
+	 * Execute a query without returning the results, to find out where the time of the query is spent
+	 * @param roids A set of Revision ObjectIDs
+	 * @param query The query to use (JSON). If you are using the BIMserver API over JSON, make sure this is BASE64 encoded
+	 * @return The execution profile (JSON), per StackFrame class and per table the number of records scanned, records decoded, objects emitted, index lookups and (per StackFrame class) the time spent
+	 * @throws ServerException, UserException
+	 */
+	@WebMethod(action = "profileQuery")
+	String profileQuery(
+		@WebParam(name = "roids", partName = "profileQuery.roids") Set<Long> roids,
+		@WebParam(name = "query", partName = "profileQuery.query") String query) throws ServerException, UserException;
+	
 	/**
 	 * Get the data for a download/checkout
 	 * 
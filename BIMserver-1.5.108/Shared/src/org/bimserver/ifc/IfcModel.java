@@ -41,6 +41,7 @@ import org.bimserver.plugins.objectidms.ObjectIDM;
 import org.bimserver.shared.exceptions.PublicInterfaceNotFoundException;
 import org.bimserver.shared.exceptions.ServerException;
 import org.bimserver.shared.exceptions.UserException;
+import org.bimserver.utils.LongObjectBiMap;
 import org.eclipse.emf.common.util.ECollections;
 import org.eclipse.emf.common.util.EList;
 import org.eclipse.emf.ecore.*;
@@ -57,7 +58,7 @@ public abstract class IfcModel implements IfcModelInterface {
 	private final Set<IfcModelChangeListener> changeListeners = new LinkedHashSet<IfcModelChangeListener>();
 
 	// Object with oid
-	private BiMap<Long, IdEObject> objects;
+	private LongObjectBiMap<IdEObject> objects;
 	
 	// Objects without oid, usually embedded when serialized
 	private final Set<IdEObject> unidentifiedObjects = new HashSet<IdEObject>();
@@ -78,7 +79,7 @@ public abstract class IfcModel implements IfcModelInterface {
 			throw new IllegalArgumentException("PackageMetaData is required");
 		}
 		this.packageMetaData = packageMetaData;
-		this.objects = HashBiMap.create(size);
+		this.objects = new LongObjectBiMap<>(size);
 	}
 
 	public IfcModel(PackageMetaData packageMetaData, Map<Integer, Long> pidRoidMap) {
@@ -88,8 +89,7 @@ public abstract class IfcModel implements IfcModelInterface {
 	@SuppressWarnings("unchecked")
 	private void buildIndex() {
 		indexPerClass = new HashMap<EClass, List<? extends IdEObject>>();
-		for (Long key : objects.keySet()) {
-			IdEObject value = objects.get((Long) key);
+		for (IdEObject value : objects.values()) {
 			if (value != null) {
 				List<? extends IdEObject> list = indexPerClass.get(value.eClass());
 				if (list == null) {
@@ -107,8 +107,7 @@ public abstract class IfcModel implements IfcModelInterface {
 		}
 		ArrayList<IdEObject> list = new ArrayList<IdEObject>();
 		indexPerClass.put((EClass) eClass, list);
-		for (Long key : objects.keySet()) {
-			IdEObject value = objects.get((Long) key);
+		for (IdEObject value : objects.values()) {
 			if (eClass.isInstance(value)) {
 				list.add(value);
 			}
@@ -117,8 +116,7 @@ public abstract class IfcModel implements IfcModelInterface {
 
 	private void buildIndexWithSubTypes() {
 		indexPerClassWithSubTypes = new HashMap<EClass, List<? extends IdEObject>>();
-		for (Long key : objects.keySet()) {
-			IdEObject idEObject = objects.get(key);
+		for (IdEObject idEObject : objects.values()) {
 			if (idEObject != null) {
 				buildIndexWithSuperTypes(idEObject, idEObject.eClass());
 			}
@@ -149,8 +147,7 @@ public abstract class IfcModel implements IfcModelInterface {
 		}
 		EClass ifcRootEclass = packageMetaData.getEClass("IfcRoot");
 		EStructuralFeature guidFeature = ifcRootEclass.getEStructuralFeature("GlobalId");
-		for (Long key : objects.keySet()) {
-			IdEObject value = objects.get((Long) key);
+		for (IdEObject value : objects.values()) {
 			if (ifcRootEclass.isSuperTypeOf(value.eClass())) {
 				Object guid = value.eGet(guidFeature);
 				if (guid != null) {
@@ -170,8 +167,7 @@ public abstract class IfcModel implements IfcModelInterface {
 		}
 		EClass ifcRootEclass = packageMetaData.getEClass("IfcRoot");
 		EStructuralFeature nameFeature = ifcRootEclass.getEStructuralFeature("Name");
-		for (Long key : objects.keySet()) {
-			IdEObject value = objects.get((Long) key);
+		for (IdEObject value : objects.values()) {
 			if (ifcRootEclass.isSuperTypeOf(value.eClass())) {
 				Object name = value.eGet(nameFeature);
 				if (name != null) {
@@ -387,7 +383,12 @@ public abstract class IfcModel implements IfcModelInterface {
 	}
 
 	public BiMap<Long, IdEObject> getObjects() {
-		return (BiMap<Long, IdEObject>) objects;
+		return objects.asBiMap();
+	}
+
+	@Override
+	public Map<Long, IdEObject> getObjectMap() {
+		return objects.asMap();
 	}
 
 	public boolean contains(long oid) {
@@ -489,7 +490,7 @@ public abstract class IfcModel implements IfcModelInterface {
 
 	public void dump() {
 		System.out.println("Dumping IFC Model");
-		for (Long key : objects.keySet()) {
+		for (long key : objects.keySet()) {
 			System.out.println(key + ": " + objects.get(key).eClass().getName());
 		}
 	}
@@ -497,8 +498,8 @@ public abstract class IfcModel implements IfcModelInterface {
 	public void dumpPlusReferences() {
 		System.out.println("Dumping IFC Model + References");
 		Set<IdEObject> done = new HashSet<IdEObject>();
-		for (Long key : objects.keySet()) {
-			dumpPlusReferences(done, objects.get(key));
+		for (IdEObject idEObject : objects.values()) {
+			dumpPlusReferences(done, idEObject);
 		}
 	}
 
@@ -527,7 +528,7 @@ public abstract class IfcModel implements IfcModelInterface {
 
 	public void remove(IdEObject idEObject) {
 		unidentifiedObjects.remove(idEObject);
-		objects.inverse().remove(idEObject);
+		objects.removeValue(idEObject);
 		if (indexPerClass != null) {
 			indexPerClass.get(idEObject.eClass()).remove(idEObject);
 		}
@@ -541,23 +542,23 @@ public abstract class IfcModel implements IfcModelInterface {
 	}
 
 	public void fixOids(OidProvider oidProvider) {
-		BiMap<Long, IdEObject> temp = HashBiMap.create();
-		for (long oid : objects.keySet()) {
-			fixOids(objects.get(oid), oidProvider, temp);
+		LongObjectBiMap<IdEObject> temp = new LongObjectBiMap<>(objects.size());
+		for (IdEObject idEObject : objects.values()) {
+			fixOids(idEObject, oidProvider, temp);
 		}
 		objects = temp;
 	}
 
 	public void fixOidsFlat(OidProvider oidProvider) {
-		BiMap<Long, IdEObject> temp = HashBiMap.create();
-		for (long oid : objects.keySet()) {
-			fixOidsFlat(objects.get(oid), oidProvider, temp);
+		LongObjectBiMap<IdEObject> temp = new LongObjectBiMap<>(objects.size());
+		for (IdEObject idEObject : objects.values()) {
+			fixOidsFlat(idEObject, oidProvider, temp);
 		}
 		objects = temp;
 	}
 
 	public void fixOids() {
-		BiMap<Long, IdEObject> temp = HashBiMap.create();
+		LongObjectBiMap<IdEObject> temp = new LongObjectBiMap<>(objects.size());
 		for (IdEObject object : objects.values()) {
 			temp.put(object.getOid(), object);
 		}
@@ -565,7 +566,7 @@ public abstract class IfcModel implements IfcModelInterface {
 	}
 	
 	@SuppressWarnings("rawtypes")
-	private void fixOids(IdEObject idEObject, OidProvider oidProvider, BiMap<Long, IdEObject> temp) {
+	private void fixOids(IdEObject idEObject, OidProvider oidProvider, LongObjectBiMap<IdEObject> temp) {
 		if (idEObject == null) {
 			return;
 		}
@@ -589,7 +590,7 @@ public abstract class IfcModel implements IfcModelInterface {
 		}
 	}
 
-	private void fixOidsFlat(IdEObject idEObject, OidProvider oidProvider, BiMap<Long, IdEObject> temp) {
+	private void fixOidsFlat(IdEObject idEObject, OidProvider oidProvider, LongObjectBiMap<IdEObject> temp) {
 		if (idEObject == null) {
 			return;
 		}
@@ -619,7 +620,7 @@ public abstract class IfcModel implements IfcModelInterface {
 	}
 
 	public void changeOid(IdEObject object) {
-		objects.inverse().remove(object);
+		objects.removeValue(object);
 		objects.put(object.getOid(), object);
 	}
 	
@@ -0,0 +1,398 @@
+package org.bimserver.utils;
+
+/******************************************************************************
+ * Copyright (C) 2009-2018  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.BiMap;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import it.unimi.dsi.fastutil.longs.LongSets;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+import it.unimi.dsi.fastutil.objects.Reference2LongOpenHashMap;
+
+/**
+ * Bidirectional map from primitive longs (usually oids) to objects. Both directions are open addressing hash maps, so no Long objects are created for lookups.
+ * The reverse lookup is identity based (==), the equals/hashCode of the values are never used.
+ *
+ * Like a BiMap, every value can only be mapped to one key. Putting a value that is already mapped under another key throws an IllegalArgumentException, forcePut
+ * moves it.
+ *
+ * NO_KEY (-1) is also accepted as a key (IfcModel.setOid does not check the oid). Where the reverse map returns NO_KEY, the forward map is checked to tell a
+ * missing value apart from a value stored under -1.
+ */
+public class LongObjectBiMap<V> {
+	public static final long NO_KEY = -1;
+
+	private final Long2ObjectOpenHashMap<V> forward;
+	private final Reference2LongOpenHashMap<V> reverse;
+	private BiMapView biMapView;
+
+	public LongObjectBiMap() {
+		this(16);
+	}
+
+	public LongObjectBiMap(int expectedSize) {
+		forward = new Long2ObjectOpenHashMap<>(expectedSize);
+		reverse = new Reference2LongOpenHashMap<>(expectedSize);
+		reverse.defaultReturnValue(NO_KEY);
+	}
+
+	/**
+	 * @return The value that was previously mapped to the given key, or null
+	 * @throws IllegalArgumentException When the value is already mapped under another key
+	 */
+	public V put(long key, V value) {
+		long oldKey = reverse.getLong(value);
+		if (oldKey != key && isMapped(oldKey, value)) {
+			throw new IllegalArgumentException("value already present under key " + oldKey);
+		}
+		return forcePut(key, value);
+	}
+
+	/**
+	 * Like put, but a value that is already mapped under another key is moved to the given key
+	 *
+	 * @return The value that was previously mapped to the given key, or null
+	 */
+	public V forcePut(long key, V value) {
+		long oldKey = reverse.put(value, key);
+		if (oldKey != key && isMapped(oldKey, value)) {
+			forward.remove(oldKey);
+		}
+		V oldValue = forward.put(key, value);
+		if (oldValue != null && oldValue != value) {
+			reverse.removeLong(oldValue);
+		}
+		return oldValue;
+	}
+
+	public V get(long key) {
+		return forward.get(key);
+	}
+
+	/**
+	 * @return Whether the reverse map returning the given key for the given value means the value is in this map
+	 */
+	private boolean isMapped(long key, Object value) {
+		return key != NO_KEY || forward.get(NO_KEY) == value;
+	}
+
+	/**
+	 * @return The key of the given value, or NO_KEY when the value is not in this map, use containsValue when -1 can be a key
+	 */
+	public long getKey(V value) {
+		return reverse.getLong(value);
+	}
+
+	public boolean containsKey(long key) {
+		return forward.containsKey(key);
+	}
+
+	public boolean containsValue(V value) {
+		return reverse.containsKey(value);
+	}
+
+	public V removeKey(long key) {
+		V value = forward.remove(key);
+		if (value != null) {
+			reverse.removeLong(value);
+		}
+		return value;
+	}
+
+	/**
+	 * @return The key the value was mapped to, or NO_KEY
+	 */
+	public long removeValue(V value) {
+		long key = reverse.removeLong(value);
+		if (isMapped(key, value)) {
+			forward.remove(key);
+		}
+		return key;
+	}
+
+	public int size() {
+		return forward.size();
+	}
+
+	public boolean isEmpty() {
+		return forward.isEmpty();
+	}
+
+	public void clear() {
+		forward.clear();
+		reverse.clear();
+	}
+
+	/**
+	 * @return The keys, removing keys is not supported, use removeKey
+	 */
+	public LongSet keySet() {
+		return LongSets.unmodifiable(forward.keySet());
+	}
+
+	public Collection<V> values() {
+		return Collections.unmodifiableCollection(forward.values());
+	}
+
+	/**
+	 * @return A java.util.Map view of this map, for code that needs a Map, the keys are boxed
+	 */
+	public Map<Long, V> asMap() {
+		return asBiMap();
+	}
+
+	/**
+	 * @return A Guava BiMap view of this map, for code that needs a BiMap, the keys are boxed. Changes go through to this map, the inverse view is identity based
+	 * as well
+	 */
+	public BiMap<Long, V> asBiMap() {
+		if (biMapView == null) {
+			biMapView = new BiMapView();
+		}
+		return biMapView;
+	}
+
+	private class BiMapView extends AbstractMap<Long, V> implements BiMap<Long, V> {
+		private InverseView inverse;
+
+		@Override
+		public V get(Object key) {
+			return key instanceof Long ? forward.get(((Long) key).longValue()) : null;
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return key instanceof Long && forward.containsKey(((Long) key).longValue());
+		}
+
+		@Override
+		public boolean containsValue(Object value) {
+			return reverse.containsKey(value);
+		}
+
+		@Override
+		public V put(Long key, V value) {
+			return LongObjectBiMap.this.put(key, value);
+		}
+
+		@Override
+		public V forcePut(Long key, V value) {
+			return LongObjectBiMap.this.forcePut(key, value);
+		}
+
+		@Override
+		public V remove(Object key) {
+			return key instanceof Long ? removeKey((Long) key) : null;
+		}
+
+		@Override
+		public void clear() {
+			LongObjectBiMap.this.clear();
+		}
+
+		@Override
+		public int size() {
+			return forward.size();
+		}
+
+		@Override
+		public Set<V> values() {
+			return new AbstractSet<V>() {
+				@Override
+				public int size() {
+					return forward.size();
+				}
+
+				@Override
+				public boolean contains(Object value) {
+					return reverse.containsKey(value);
+				}
+
+				@Override
+				public Iterator<V> iterator() {
+					final Iterator<Map.Entry<Long, V>> iterator = entrySet().iterator();
+					return new Iterator<V>() {
+						@Override
+						public boolean hasNext() {
+							return iterator.hasNext();
+						}
+
+						@Override
+						public V next() {
+							return iterator.next().getValue();
+						}
+
+						@Override
+						public void remove() {
+							iterator.remove();
+						}
+					};
+				}
+			};
+		}
+
+		@Override
+		public BiMap<V, Long> inverse() {
+			if (inverse == null) {
+				inverse = new InverseView();
+			}
+			return inverse;
+		}
+
+		@Override
+		public Set<Map.Entry<Long, V>> entrySet() {
+			return new AbstractSet<Map.Entry<Long, V>>() {
+				@Override
+				public int size() {
+					return forward.size();
+				}
+
+				@Override
+				public Iterator<Map.Entry<Long, V>> iterator() {
+					final ObjectIterator<Long2ObjectMap.Entry<V>> iterator = forward.long2ObjectEntrySet().iterator();
+					return new Iterator<Map.Entry<Long, V>>() {
+						private V last;
+
+						@Override
+						public boolean hasNext() {
+							return iterator.hasNext();
+						}
+
+						@Override
+						public Map.Entry<Long, V> next() {
+							Long2ObjectMap.Entry<V> entry = iterator.next();
+							last = entry.getValue();
+							return new SimpleImmutableEntry<Long, V>(entry.getLongKey(), last);
+						}
+
+						@Override
+						public void remove() {
+							iterator.remove();
+							reverse.removeLong(last);
+						}
+					};
+				}
+			};
+		}
+	}
+
+	private class InverseView extends AbstractMap<V, Long> implements BiMap<V, Long> {
+		@Override
+		public Long get(Object value) {
+			long key = reverse.getLong(value);
+			return isMapped(key, value) ? key : null;
+		}
+
+		@Override
+		public boolean containsKey(Object value) {
+			return reverse.containsKey(value);
+		}
+
+		@Override
+		public boolean containsValue(Object key) {
+			return key instanceof Long && forward.containsKey(((Long) key).longValue());
+		}
+
+		@Override
+		public Long put(V value, Long key) {
+			V existing = forward.get(key.longValue());
+			if (existing != null && existing != value) {
+				throw new IllegalArgumentException("value already present under key " + key);
+			}
+			return forcePut(value, key);
+		}
+
+		@Override
+		public Long forcePut(V value, Long key) {
+			Long oldKey = get(value);
+			LongObjectBiMap.this.forcePut(key, value);
+			return oldKey;
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public Long remove(Object value) {
+			if (!reverse.containsKey(value)) {
+				return null;
+			}
+			return removeValue((V) value);
+		}
+
+		@Override
+		public void clear() {
+			LongObjectBiMap.this.clear();
+		}
+
+		@Override
+		public int size() {
+			return forward.size();
+		}
+
+		@Override
+		public Set<Long> values() {
+			return Collections.unmodifiableSet(asBiMap().keySet());
+		}
+
+		@Override
+		public BiMap<Long, V> inverse() {
+			return asBiMap();
+		}
+
+		@Override
+		public Set<Map.Entry<V, Long>> entrySet() {
+			return new AbstractSet<Map.Entry<V, Long>>() {
+				@Override
+				public int size() {
+					return forward.size();
+				}
+
+				@Override
+				public Iterator<Map.Entry<V, Long>> iterator() {
+					final Iterator<Map.Entry<Long, V>> iterator = asBiMap().entrySet().iterator();
+					return new Iterator<Map.Entry<V, Long>>() {
+						@Override
+						public boolean hasNext() {
+							return iterator.hasNext();
+						}
+
+						@Override
+						public Map.Entry<V, Long> next() {
+							Map.Entry<Long, V> entry = iterator.next();
+							return new SimpleImmutableEntry<V, Long>(entry.getValue(), entry.getKey());
+						}
+
+						@Override
+						public void remove() {
+							iterator.remove();
+						}
+					};
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package org.bimserver.tests;
+
+/******************************************************************************
+ * Copyright (C) 2009-2018  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.bimserver.LocalDevPluginLoader;
+import org.bimserver.client.json.JsonBimServerClientFactory;
+import org.bimserver.emf.MetaDataManager;
+import org.bimserver.interfaces.objects.SDeserializerPluginConfiguration;
+import org.bimserver.interfaces.objects.SProject;
+import org.bimserver.plugins.PluginManager;
+import org.bimserver.plugins.services.BimServerClientInterface;
+import org.bimserver.plugins.services.Flow;
+import org.bimserver.shared.BimServerClientFactory;
+import org.bimserver.shared.UsernamePasswordAuthenticationInfo;
+import org.bimserver.shared.exceptions.ServerException;
+import org.bimserver.shared.exceptions.UserException;
+
+/**
+ * Checks a read-only replica against a primary server, both running as separate local processes on the same database directory, for example:
+ *
+ * java -jar bimserver.jar port=8082 homedir=primary
+ * java -jar bimserver.jar port=8083 homedir=replica databasedir=primary/database readonly=true
+ *
+ * The primary has to be set up (admin user, plugins) before the replica is started. Arguments: primary address, replica address, IFC file.
+ */
+public class TestReadOnlyReplica {
+	public static void main(String[] args) {
+		new TestReadOnlyReplica().start(args);
+	}
+
+	private void start(String[] args) {
+		String primaryAddress = args.length > 0 ? args[0] : "http://localhost:8082";
+		String replicaAddress = args.length > 1 ? args[1] : "http://localhost:8083";
+		Path file = Paths.get(args.length > 2 ? args[2] : "../TestData/data/AC11-FZK-Haus-IFC - Alt.ifc");
+		try {
+			Path home = Paths.get("home");
+			PluginManager pluginManager = LocalDevPluginLoader.createPluginManager(home);
+			MetaDataManager metaDataManager = new MetaDataManager(home.resolve("tmp"));
+			pluginManager.setMetaDataManager(metaDataManager);
+			try (BimServerClientFactory primaryFactory = new JsonBimServerClientFactory(metaDataManager, primaryAddress);
+					BimServerClientFactory replicaFactory = new JsonBimServerClientFactory(metaDataManager, replicaAddress)) {
+				BimServerClientInterface primary = primaryFactory.create(new UsernamePasswordAuthenticationInfo("admin@bimserver.org", "admin"));
+				BimServerClientInterface replica = replicaFactory.create(new UsernamePasswordAuthenticationInfo("admin@bimserver.org", "admin"));
+
+				SProject project = primary.getServiceInterface().addProject("replica-" + System.currentTimeMillis(), "ifc2x3tc1");
+				SDeserializerPluginConfiguration deserializer = primary.getServiceInterface().getSuggestedDeserializerForExtension("ifc", project.getOid());
+				primary.checkin(project.getOid(), "replica test", deserializer.getOid(), false, Flow.SYNC, file);
+				long roid = primary.getServiceInterface().getProjectByPoid(project.getOid()).getLastRevisionId();
+				System.out.println("Checked in revision " + roid + " on the primary");
+
+				// A refresh is skipped while long running sessions are open on the replica, so it is tried a few times
+				boolean refreshed = false;
+				for (int i = 0; i < 30 && !refreshed; i++) {
+					refreshed = replica.getAdminInterface().refreshReplica();
+					if (!refreshed) {
+						Thread.sleep(1000);
+					}
+				}
+				if (!refreshed) {
+					System.out.println("FAILED: replica could not be refreshed");
+					return;
+				}
+
+				SProject replicaProject = replica.getServiceInterface().getProjectByPoid(project.getOid());
+				if (replicaProject == null || replicaProject.getLastRevisionId() != roid) {
+					System.out.println("FAILED: revision " + roid + " not visible on the replica");
+					return;
+				}
+				System.out.println("Revision " + roid + " visible on the replica");
+
+				try {
+					replica.getServiceInterface().addProject("replica-write-" + System.currentTimeMillis(), "ifc2x3tc1");
+					System.out.println("FAILED: the replica accepted a write");
+					return;
+				} catch (ServerException | UserException e) {
+					System.out.println("Write refused by the replica: " + e.getMessage());
+				}
+				System.out.println("OK");
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+}